@@ -6,7 +6,6 @@ import jakarta.servlet.DispatcherType;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.time.DateUtils;
 import org.apache.tomcat.InstanceManager;
 import org.apache.tomcat.SimpleInstanceManager;
 import org.eclipse.jetty.ee10.jsp.JettyJspServlet;
@@ -19,7 +18,6 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.flywaydb.core.Flyway;
 import org.glassfish.jersey.servlet.ServletContainer;
-import org.hibernate.Session;
 import org.transitclock.api.EmbeddedJspStarter;
 import org.transitclock.api.utils.ApiLoggingFilter;
 import org.transitclock.api.utils.ApiOriginFilter;
@@ -29,15 +27,10 @@ import org.transitclock.config.ConfigFileReader;
 import org.transitclock.config.data.AgencyConfig;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.config.data.DbSetupConfig;
-import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
-import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitclock.core.dataCache.HistoricalCacheWarmUp;
 import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
-import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
-import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
 import org.transitclock.domain.ApiKeyManager;
-import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.webstructs.WebAgency;
-import org.transitclock.utils.Time;
 import org.transitclock.utils.threading.UncaughtExceptionHandler;
 
 import java.io.File;
@@ -47,8 +40,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.EnumSet;
 import java.util.TimeZone;
 
@@ -116,10 +107,13 @@ public class Application {
     private void run() {
         String agencyId = AgencyConfig.getAgencyId();
         try {
-            try {
-                populateCaches();
-            } catch (Exception e) {
-                logger.error("Failed to populate cache.", e);
+            boolean warmUpInBackground = CoreConfig.cacheWarmUpInBackground.getValue();
+            if (!warmUpInBackground) {
+                try {
+                    populateCaches();
+                } catch (Exception e) {
+                    logger.error("Failed to populate cache.", e);
+                }
             }
 
             addShutdownHook("close-cache", () -> {
@@ -134,6 +128,7 @@ public class Application {
 
             // Initialize the core now
             Core core = Core.createCore(agencyId, context.getModuleRegistry());
+            if (warmUpInBackground) populateCachesInBackground();
 
             Server server = createWebserver();
             server.start();
@@ -178,104 +173,23 @@ public class Application {
     }
 
     private void populateCaches() throws Exception {
-        Session session = HibernateUtils.getSession();
-
-        Date endDate = Calendar.getInstance().getTime();
-
-        if (!CoreConfig.cacheReloadStartTimeStr.getValue().isEmpty() && !CoreConfig.cacheReloadEndTimeStr.getValue().isEmpty()) {
-            if (TripDataHistoryCacheFactory.getInstance() != null) {
-                logger.debug(
-                        "Populating TripDataHistoryCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                TripDataHistoryCacheFactory.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-
-            if (FrequencyBasedHistoricalAverageCache.getInstance() != null) {
-                logger.debug(
-                        "Populating FrequencyBasedHistoricalAverageCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                FrequencyBasedHistoricalAverageCache.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-
-            if (StopArrivalDepartureCacheFactory.getInstance() != null) {
-                logger.debug(
-                        "Populating StopArrivalDepartureCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                StopArrivalDepartureCacheFactory.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-            /*
-            if(ScheduleBasedHistoricalAverageCache.getInstance()!=null)
-            {
-            	logger.debug("Populating ScheduleBasedHistoricalAverageCache cache for period {} to {}",cacheReloadStartTimeStr.getValue(),cacheReloadEndTimeStr.getValue());
-            	ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, new Date(Time.parse(cacheReloadStartTimeStr.getValue()).getTime()), new Date(Time.parse(cacheReloadEndTimeStr.getValue()).getTime()));
-            }
-            */
-        } else {
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
-
-                if (TripDataHistoryCacheFactory.getInstance() != null) {
-                    logger.debug("Populating TripDataHistoryCache cache for period {} to {}", startDate, endDate);
-                    TripDataHistoryCacheFactory.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
-
-                if (FrequencyBasedHistoricalAverageCache.getInstance() != null) {
-                    logger.debug(
-                            "Populating FrequencyBasedHistoricalAverageCache cache for period {} to" + " {}",
-                            startDate,
-                            endDate);
-                    FrequencyBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
-
-                endDate = startDate;
-            }
-
-            endDate = Calendar.getInstance().getTime();
-
-            /* populate one day at a time to avoid memory issue */
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
-                if (StopArrivalDepartureCacheFactory.getInstance() != null) {
-                    logger.debug("Populating StopArrivalDepartureCache cache for period {} to {}", startDate, endDate);
-                    StopArrivalDepartureCacheFactory.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
-
-                endDate = startDate;
-            }
-            endDate = Calendar.getInstance().getTime();
-
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
-
-                if (ScheduleBasedHistoricalAverageCache.getInstance() != null) {
-                    logger.debug(
-                            "Populating ScheduleBasedHistoricalAverageCache cache for period {} to" + " {}",
-                            startDate,
-                            endDate);
-                    ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
+        HistoricalCacheWarmUp.populateCaches();
+    }
 
-                endDate = startDate;
+    /**
+     * Populates the historical caches in a background thread so that the core can start processing
+     * AVL data before the warm up has completed.
+     */
+    private void populateCachesInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                populateCaches();
+            } catch (Exception e) {
+                logger.error("Failed to populate cache.", e);
             }
-        }
+        }, "cacheWarmUp");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -3,7 +3,6 @@ package org.transitclock.api.data.gtfs;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import org.transitclock.config.data.ApiConfig;
 
 import java.util.concurrent.TimeUnit;
@@ -11,21 +10,22 @@ import java.util.concurrent.TimeUnit;
 /**
  * For caching GTFS-realtime messages. Useful because the messages are huge and take a lot of
  * resources so if get multiple requests not too far apart then it makes sense to return a cached
- * version.
+ * version. The messages are cached already serialized so that they don't need to be serialized
+ * again for each request.
  *
  * @author SkiBu Smith
  */
 public class DataCache {
-    private final Cache<String, FeedMessage> cacheMap =  CacheBuilder.newBuilder()
+    private final Cache<String, EncodedFeed> cacheMap =  CacheBuilder.newBuilder()
             .expireAfterWrite(ApiConfig.gtfsRtCacheSeconds.getValue(), TimeUnit.SECONDS)
             .build();
 
 
-    public FeedMessage get(String agencyId) {
+    public EncodedFeed get(String agencyId) {
         return cacheMap.getIfPresent(agencyId);
     }
 
-    public void put(String agencyId, FeedMessage feedMessage) {
-        cacheMap.put(agencyId, feedMessage);
+    public void put(String agencyId, EncodedFeed feed) {
+        cacheMap.put(agencyId, feed);
     }
 }
@@ -0,0 +1,109 @@
+/* (C)2023 */
+package org.transitclock.api.data.gtfs;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import org.transitclock.gtfs.realtime.OctalDecoder;
+import org.transitclock.utils.Time;
+
+/**
+ * A GTFS-realtime feed that has already been serialized so that it can be written directly to
+ * each client that requests it instead of being serialized again for every request. The gzipped
+ * and human-readable versions are created the first time they are needed and then also kept. The
+ * ETag is based on the serialized bytes and Last-Modified is the timestamp of the feed header so
+ * that clients polling frequently can be told that the feed has not changed.
+ */
+public class EncodedFeed {
+
+    private final byte[] bytes;
+    private final long timestampMsec;
+    private final String etag;
+
+    // Created when first needed
+    private volatile FeedMessage message;
+    private volatile byte[] gzippedBytes;
+    private volatile byte[] humanReadableBytes;
+
+    public EncodedFeed(FeedMessage message) {
+        this(message.toByteArray(), message.getHeader().getTimestamp() * Time.MS_PER_SEC);
+        this.message = message;
+    }
+
+    /**
+     * @param bytes The serialized FeedMessage
+     * @param timestampMsec The timestamp of the feed header, in msec
+     */
+    public EncodedFeed(byte[] bytes, long timestampMsec) {
+        this.bytes = bytes;
+        this.timestampMsec = timestampMsec;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        this.etag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length);
+    }
+
+    /** @return The serialized FeedMessage. Not to be modified. */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** @return The serialized FeedMessage, gzipped. Not to be modified. */
+    public byte[] getGzippedBytes() {
+        byte[] gzipped = gzippedBytes;
+        if (gzipped == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(bytes);
+            } catch (IOException e) {
+                // Can't happen when writing to a ByteArrayOutputStream
+                throw new UncheckedIOException(e);
+            }
+            gzipped = out.toByteArray();
+            gzippedBytes = gzipped;
+        }
+        return gzipped;
+    }
+
+    /** @return The feed in human-readable format, with octal escapes decoded, as UTF-8 */
+    public byte[] getHumanReadableBytes() {
+        byte[] humanReadable = humanReadableBytes;
+        if (humanReadable == null) {
+            humanReadable = OctalDecoder.convertOctalEscapedString(getMessage().toString())
+                    .getBytes(StandardCharsets.UTF_8);
+            humanReadableBytes = humanReadable;
+        }
+        return humanReadable;
+    }
+
+    /** @return The FeedMessage. Parsed from the bytes if it was created from bytes. */
+    public FeedMessage getMessage() {
+        FeedMessage feedMessage = message;
+        if (feedMessage == null) {
+            try {
+                feedMessage = FeedMessage.parseFrom(bytes);
+            } catch (InvalidProtocolBufferException e) {
+                // Shouldn't happen since the bytes were created from messages
+                throw new IllegalStateException(e);
+            }
+            message = feedMessage;
+        }
+        return feedMessage;
+    }
+
+    /** @return The ETag value, without quotes, for the feed */
+    public String getEtag() {
+        return etag;
+    }
+
+    /** @return When the feed was created, from the feed header */
+    public Date getLastModified() {
+        return new Date(timestampMsec);
+    }
+}
@@ -12,10 +12,7 @@ import org.transitclock.config.data.ApiConfig;
 import org.transitclock.core.holdingmethod.PredictionTimeComparator;
 import org.transitclock.service.dto.IpcPrediction;
 import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
-import org.transitclock.service.dto.IpcVehicleConfig;
-import org.transitclock.service.contract.VehiclesInterface;
 import org.transitclock.service.PredictionsServiceImpl;
-import org.transitclock.service.VehiclesServiceImpl;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
@@ -62,8 +59,16 @@ public class GtfsRtTripFeed {
     private final SimpleDateFormat gtfsRealtimeTimeFormatter = new SimpleDateFormat("HH:mm:ss");
 
     public GtfsRtTripFeed(String agencyId) {
+        this(agencyId, AgencyTimezoneCache.get(agencyId));
+    }
+
+    /**
+     * @param agencyId
+     * @param timeZone The agency timezone, for the trip start dates
+     */
+    GtfsRtTripFeed(String agencyId, TimeZone timeZone) {
         this.agencyId = agencyId;
-        this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache.get(agencyId));
+        this.gtfsRealtimeDateFormatter.setTimeZone(timeZone);
     }
 
     /**
@@ -72,12 +77,10 @@ public class GtfsRtTripFeed {
      * @param predsForTrip
      * @return
      */
-    private TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
+    TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
         // Create the parent TripUpdate object that is returned.
         TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
 
-        VehiclesInterface vehiclesInterface = VehiclesServiceImpl.instance();
-
         // Add the trip descriptor information
         IpcPrediction firstPred = predsForTrip.get(0);
         TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
@@ -123,22 +126,10 @@ public class GtfsRtTripFeed {
         if (firstPred.getDelay() != null && INCLUDE_TRIP_UPDATE_DELAY)
             tripUpdate.setDelay(firstPred.getDelay()); // set schedule deviation
 
-        // Add the VehicleDescriptor information
-        VehicleDescriptor.Builder vehicleDescriptor = null;
-
-        Collection<IpcVehicleConfig> vehConfigs = vehiclesInterface.getVehicleConfigs();
-        for (IpcVehicleConfig ipcVehicleConfig : vehConfigs) {
-            if (ipcVehicleConfig.getId().equals(firstPred.getVehicleId())) {
-                vehicleDescriptor = VehicleDescriptor
-                        .newBuilder()
-                        .setId(ipcVehicleConfig.getId());
-                break;
-            }
-        }
-
-        if (vehicleDescriptor == null)
-            vehicleDescriptor = VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
-
+        // Add the VehicleDescriptor information. The ID is the same whether
+        // or not there is a vehicle config for the vehicle so no need to
+        // look through all the vehicle configs.
+        VehicleDescriptor.Builder vehicleDescriptor = VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
         tripUpdate.setVehicle(vehicleDescriptor);
 
         // Add the StopTimeUpdate information for each prediction
@@ -266,19 +257,15 @@ public class GtfsRtTripFeed {
     }
 
     /**
-     * Returns map of all predictions for the project. Returns null if there was a problem getting
-     * the data via RMI. There is a separate list of predictions for each trip. The map is keyed by
-     * tripId.
+     * Returns map of all predictions for the project. There is a separate list of predictions for
+     * each trip. The map is keyed by tripId.
      *
-     * @return Map keyed on tripId of List of Predictions for the trip, or null if could not get
-     *     data from server.
+     * @param allPredictionsByStop The predictions, grouped by stop
+     * @return Map keyed on tripId of List of Predictions for the trip
      */
-    private Map<String, List<IpcPrediction>> getPredictionsPerTrip() {
-        // Get all the predictions, grouped by vehicle, from the server
-        List<IpcPredictionsForRouteStopDest> allPredictionsByStop = PredictionsServiceImpl.instance()
-                            .getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
-
-        // Group the predictions by trip instead of by vehicle
+    private Map<String, List<IpcPrediction>> getPredictionsPerTrip(
+            List<IpcPredictionsForRouteStopDest> allPredictionsByStop) {
+        // Group the predictions by trip instead of by stop
         Map<String, List<IpcPrediction>> predictionsByTrip = new HashMap<>();
         for (IpcPredictionsForRouteStopDest predictionsForStop : allPredictionsByStop) {
             for (IpcPrediction prediction : predictionsForStop.getPredictionsForRouteStop()) {
@@ -305,39 +292,75 @@ public class GtfsRtTripFeed {
     public FeedMessage createMessage() {
         // Get prediction data from server
         IntervalTimer timer = new IntervalTimer();
-        Map<String, List<IpcPrediction>> predsByTrip = getPredictionsPerTrip();
+        List<IpcPredictionsForRouteStopDest> allPredictionsByStop =
+                PredictionsServiceImpl.instance().getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
         logger.debug(
                 "Getting predictions via RMI for GtfsRtTripFeed.createMessage() took {} msec",
                 timer.elapsedMsec());
 
+        return createMessage(allPredictionsByStop);
+    }
+
+    /**
+     * Creates the GTFS-RT message for the predictions passed in.
+     *
+     * @param allPredictionsByStop The predictions, grouped by stop
+     * @return GTFS-RT FeedMessage for trip updates
+     */
+    FeedMessage createMessage(List<IpcPredictionsForRouteStopDest> allPredictionsByStop) {
         // Use prediction data to create GTFS-RT message and return it.
-        return createMessage(predsByTrip);
+        return createMessage(getPredictionsPerTrip(allPredictionsByStop));
     }
 
     // For getPossiblyCachedMessage()
     private static final DataCache tripFeedDataCache = new DataCache();
 
+    // For when the feed is maintained incrementally. Keyed by agencyId.
+    private static final Map<String, GtfsRtTripUpdatesIndex> tripUpdatesIndexes = new HashMap<>();
+
     /**
-     * For caching Vehicle Positions feed messages.
+     * For caching trip updates feed messages.
      *
      * @param agencyId
      * @return
      */
     public static FeedMessage getPossiblyCachedMessage(String agencyId) {
-        FeedMessage feedMessage = tripFeedDataCache.get(agencyId);
-        if (feedMessage != null) return feedMessage;
+        return getPossiblyCachedFeed(agencyId).getMessage();
+    }
+
+    /**
+     * Returns the trip updates feed, already serialized. If transitclock.api.incrementalTripUpdates
+     * is set then the feed is maintained incrementally, as predictions change, so only the trips
+     * that changed need to be encoded again. Otherwise the whole feed is created when the cached
+     * one expires.
+     *
+     * @param agencyId
+     * @return
+     */
+    public static EncodedFeed getPossiblyCachedFeed(String agencyId) {
+        if (ApiConfig.incrementalTripUpdates.getValue()) {
+            GtfsRtTripUpdatesIndex index;
+            synchronized (tripUpdatesIndexes) {
+                index = tripUpdatesIndexes.computeIfAbsent(
+                        agencyId, k -> new GtfsRtTripUpdatesIndex(new GtfsRtTripFeed(agencyId)));
+            }
+            return index.getFeed();
+        }
+
+        EncodedFeed encodedFeed = tripFeedDataCache.get(agencyId);
+        if (encodedFeed != null) return encodedFeed;
 
         synchronized (tripFeedDataCache) {
 
             // Cache may have been filled while waiting.
-            feedMessage = tripFeedDataCache.get(agencyId);
-            if (feedMessage != null) return feedMessage;
+            encodedFeed = tripFeedDataCache.get(agencyId);
+            if (encodedFeed != null) return encodedFeed;
 
             GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-            feedMessage = feed.createMessage();
-            tripFeedDataCache.put(agencyId, feedMessage);
+            encodedFeed = new EncodedFeed(feed.createMessage());
+            tripFeedDataCache.put(agencyId, encodedFeed);
         }
 
-        return feedMessage;
+        return encodedFeed;
     }
 }
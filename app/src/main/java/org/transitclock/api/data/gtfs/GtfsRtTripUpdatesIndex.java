@@ -0,0 +1,279 @@
+/* (C)2023 */
+package org.transitclock.api.data.gtfs;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.ApiConfig;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.holdingmethod.PredictionTimeComparator;
+import org.transitclock.service.dto.IpcPrediction;
+import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+/**
+ * Maintains the GTFS-realtime trip updates feed incrementally. PredictionDataCache notifies this
+ * class whenever the predictions for a vehicle change and the new predictions are simply recorded.
+ * When the feed is requested only the trips whose predictions changed, or where a prediction has
+ * moved into the time window for the feed, are re-encoded. Each trip is kept as an already
+ * serialized FeedEntity so the feed is created by just concatenating the bytes, which is valid
+ * protobuf since the entities are a repeated field of the FeedMessage. This way the cost of
+ * creating the feed depends on how much has changed instead of on the size of the fleet.
+ */
+@Slf4j
+class GtfsRtTripUpdatesIndex {
+
+    private static final long PREDICTION_MAX_FUTURE_MSEC =
+            (long) ApiConfig.predictionMaxFutureSecs.getValue() * Time.MS_PER_SEC;
+
+    private static final Comparator<IpcPrediction> STOP_SEQUENCE_COMPARATOR =
+            Comparator.comparingInt(IpcPrediction::getGtfsStopSeq);
+
+    /** The predictions for a trip, or for a frequency based trip start time, and its encoding */
+    private static class TripEntry {
+        // Keyed by vehicle ID since multiple vehicles can have predictions
+        // for the same trip
+        private final Map<String, List<IpcPrediction>> predictionsByVehicle = new HashMap<>(2);
+        // The serialized FeedEntity including the field tag and length. Null
+        // if there are no predictions within the time window.
+        private byte[] encoded;
+        // When the encoding needs to be redone because a prediction moves
+        // into the time window
+        private long validUntil;
+        private boolean dirty = true;
+    }
+
+    private final GtfsRtTripFeed tripFeed;
+
+    // Latest predictions for the vehicles that changed since the feed was
+    // last created. Written by the threads updating predictions. An empty
+    // list means the predictions for the vehicle were removed.
+    private final Map<String, List<IpcPrediction>> changedPredictionsByVehicle = new ConcurrentHashMap<>();
+
+    // Following only accessed when creating the feed, which is synchronized.
+    // Keyed by trip ID, or trip ID and start time for frequency based trips.
+    private final Map<String, TripEntry> tripEntries = new LinkedHashMap<>();
+    // Which trip entries each vehicle has predictions for
+    private final Map<String, Set<String>> tripKeysByVehicle = new HashMap<>();
+
+    private EncodedFeed cachedFeed;
+    private long cachedFeedTime;
+
+    /**
+     * Creates the index and registers it with PredictionDataCache. The predictions already in the
+     * cache are added after registering so that no change is missed.
+     *
+     * @param tripFeed For creating the TripUpdates
+     */
+    GtfsRtTripUpdatesIndex(GtfsRtTripFeed tripFeed) {
+        this(tripFeed, PredictionDataCache.getInstance());
+    }
+
+    /**
+     * @param tripFeed For creating the TripUpdates
+     * @param predictionDataCache Where the predictions come from
+     */
+    GtfsRtTripUpdatesIndex(GtfsRtTripFeed tripFeed, PredictionDataCache predictionDataCache) {
+        this.tripFeed = tripFeed;
+
+        predictionDataCache.addPredictionsChangeListener(this::predictionsChanged);
+
+        Map<String, List<IpcPrediction>> initialPredictionsByVehicle = new HashMap<>();
+        for (IpcPredictionsForRouteStopDest predsForStop :
+                predictionDataCache.getAllPredictions(Integer.MAX_VALUE, Long.MAX_VALUE)) {
+            for (IpcPrediction prediction : predsForStop.getPredictionsForRouteStop()) {
+                initialPredictionsByVehicle
+                        .computeIfAbsent(prediction.getVehicleId(), k -> new ArrayList<>())
+                        .add(prediction);
+            }
+        }
+        // Only use if there wasn't a change since registering since a change
+        // is more up to date
+        initialPredictionsByVehicle.forEach(changedPredictionsByVehicle::putIfAbsent);
+    }
+
+    /**
+     * Called by PredictionDataCache when the predictions for a vehicle change. Only records the
+     * change so that it is quick.
+     */
+    private void predictionsChanged(String vehicleId, List<IpcPrediction> newPredictionsForVehicle) {
+        changedPredictionsByVehicle.put(vehicleId, List.copyOf(newPredictionsForVehicle));
+    }
+
+    /**
+     * Returns the serialized FeedMessage. If it was created less than
+     * transitclock.api.gtfsRtCacheSeconds ago then the cached version is returned.
+     *
+     * @return the serialized GTFS-realtime trip updates feed
+     */
+    synchronized EncodedFeed getFeed() {
+        long now = System.currentTimeMillis();
+        if (cachedFeed != null && now - cachedFeedTime < (long) ApiConfig.gtfsRtCacheSeconds.getValue() * Time.MS_PER_SEC)
+            return cachedFeed;
+
+        cachedFeed = createFeed(now, SystemTime.getMillis());
+        cachedFeedTime = now;
+        return cachedFeed;
+    }
+
+    /**
+     * Creates the serialized FeedMessage, re-encoding only the trips that need it.
+     *
+     * @param timestampMsec For the feed header
+     * @param now The current system time, which determines which predictions are within the time
+     *     window for the feed
+     * @return the serialized GTFS-realtime trip updates feed
+     */
+    synchronized EncodedFeed createFeed(long timestampMsec, long now) {
+        IntervalTimer timer = new IntervalTimer();
+        applyChangedPredictions();
+        int numberEncoded = encodeTripEntries(now);
+
+        FeedHeader header = FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion("2.0")
+                .setIncrementality(Incrementality.FULL_DATASET)
+                .setTimestamp(timestampMsec / Time.MS_PER_SEC)
+                .build();
+        byte[] headerBytes = FeedMessage.newBuilder().setHeader(header).build().toByteArray();
+
+        int size = headerBytes.length;
+        for (TripEntry entry : tripEntries.values()) {
+            if (entry.encoded != null) size += entry.encoded.length;
+        }
+        ByteArrayOutputStream feed = new ByteArrayOutputStream(size);
+        feed.writeBytes(headerBytes);
+        for (TripEntry entry : tripEntries.values()) {
+            if (entry.encoded != null) feed.writeBytes(entry.encoded);
+        }
+
+        logger.debug("Created GTFS-realtime trip feed with {} trips, {} of which were re-encoded, in {} msec",
+                tripEntries.size(), numberEncoded, timer.elapsedMsec());
+        // The header timestamp is in seconds so Last-Modified is too
+        return new EncodedFeed(feed.toByteArray(), timestampMsec / Time.MS_PER_SEC * Time.MS_PER_SEC);
+    }
+
+    /**
+     * Moves the predictions of the vehicles that changed into the trip entries, marking the trip
+     * entries that are affected as dirty.
+     */
+    private void applyChangedPredictions() {
+        Iterator<Map.Entry<String, List<IpcPrediction>>> iterator =
+                changedPredictionsByVehicle.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, List<IpcPrediction>> change = iterator.next();
+            String vehicleId = change.getKey();
+            List<IpcPrediction> predictions = change.getValue();
+            // Only remove if not changed again in the meantime
+            changedPredictionsByVehicle.remove(vehicleId, predictions);
+
+            // Remove the previous predictions for the vehicle
+            Set<String> previousTripKeys = tripKeysByVehicle.remove(vehicleId);
+            if (previousTripKeys != null) {
+                for (String tripKey : previousTripKeys) {
+                    TripEntry entry = tripEntries.get(tripKey);
+                    if (entry == null) continue;
+                    entry.predictionsByVehicle.remove(vehicleId);
+                    entry.dirty = true;
+                }
+            }
+
+            // Add the new predictions, grouped by trip
+            Map<String, List<IpcPrediction>> predictionsByTrip = new HashMap<>();
+            for (IpcPrediction prediction : predictions) {
+                predictionsByTrip
+                        .computeIfAbsent(tripKey(prediction), k -> new ArrayList<>())
+                        .add(prediction);
+            }
+            predictionsByTrip.forEach((tripKey, predictionsForTrip) -> {
+                TripEntry entry = tripEntries.computeIfAbsent(tripKey, k -> new TripEntry());
+                entry.predictionsByVehicle.put(vehicleId, predictionsForTrip);
+                entry.dirty = true;
+            });
+            if (!predictionsByTrip.isEmpty()) tripKeysByVehicle.put(vehicleId, new HashSet<>(predictionsByTrip.keySet()));
+        }
+    }
+
+    /**
+     * Frequency based trips have a separate TripUpdate for each start time so they are keyed
+     * by the trip ID and the start time.
+     */
+    private static String tripKey(IpcPrediction prediction) {
+        if (prediction.getFreqStartTime() > 0) return prediction.getTripId() + "@" + prediction.getFreqStartTime();
+        return prediction.getTripId();
+    }
+
+    /**
+     * Re-encodes the trip entries that changed or where a prediction has moved into the time
+     * window for the feed. Entries without any predictions are removed.
+     *
+     * @param now The current system time
+     * @return number of trip entries that were encoded
+     */
+    private int encodeTripEntries(long now) {
+        long maxPredictionTime = now + PREDICTION_MAX_FUTURE_MSEC;
+        int numberEncoded = 0;
+        Iterator<TripEntry> iterator = tripEntries.values().iterator();
+        while (iterator.hasNext()) {
+            TripEntry entry = iterator.next();
+            if (entry.predictionsByVehicle.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            if (!entry.dirty && now < entry.validUntil) continue;
+
+            encode(entry, now, maxPredictionTime);
+            entry.dirty = false;
+            ++numberEncoded;
+        }
+        return numberEncoded;
+    }
+
+    /** Creates the serialized FeedEntity for the predictions of the trip entry */
+    private void encode(TripEntry entry, long now, long maxPredictionTime) {
+        List<IpcPrediction> predictions = new ArrayList<>();
+        entry.validUntil = Long.MAX_VALUE;
+        for (Collection<IpcPrediction> predictionsForVehicle : entry.predictionsByVehicle.values()) {
+            for (IpcPrediction prediction : predictionsForVehicle) {
+                if (prediction.getPredictionTime() < maxPredictionTime) {
+                    predictions.add(prediction);
+                } else {
+                    // Will need to be encoded again once it is within the window
+                    long entersWindow = prediction.getPredictionTime() - PREDICTION_MAX_FUTURE_MSEC;
+                    entry.validUntil = Math.min(entry.validUntil, Math.max(entersWindow, now + 1));
+                }
+            }
+        }
+
+        entry.encoded = null;
+        if (predictions.isEmpty()) return;
+
+        IpcPrediction firstPrediction = predictions.get(0);
+        boolean frequencyBased = firstPrediction.getFreqStartTime() > 0;
+        predictions.sort(frequencyBased ? new PredictionTimeComparator() : STOP_SEQUENCE_COMPARATOR);
+        try {
+            FeedEntity feedEntity = FeedEntity.newBuilder()
+                    .setId(frequencyBased ? predictions.get(0).getVehicleId() : predictions.get(0).getTripId())
+                    .setTripUpdate(tripFeed.createTripUpdate(predictions))
+                    .build();
+            entry.encoded = FeedMessage.newBuilder().addEntity(feedEntity).buildPartial().toByteArray();
+        } catch (Exception e) {
+            logger.error("Error parsing trip update data. {}", predictions, e);
+        }
+    }
+}
@@ -247,20 +247,30 @@ public class GtfsRtVehicleFeed {
      * @return
      */
     public static FeedMessage getPossiblyCachedMessage(String agencyId) {
-        FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId);
-        if (feedMessage != null) return feedMessage;
+        return getPossiblyCachedFeed(agencyId).getMessage();
+    }
+
+    /**
+     * For caching Vehicle Positions feed messages, already serialized.
+     *
+     * @param agencyId
+     * @return
+     */
+    public static EncodedFeed getPossiblyCachedFeed(String agencyId) {
+        EncodedFeed encodedFeed = vehicleFeedDataCache.get(agencyId);
+        if (encodedFeed != null) return encodedFeed;
 
         synchronized (vehicleFeedDataCache) {
 
             // Cache may have been filled while waiting.
-            feedMessage = vehicleFeedDataCache.get(agencyId);
-            if (feedMessage != null) return feedMessage;
+            encodedFeed = vehicleFeedDataCache.get(agencyId);
+            if (encodedFeed != null) return encodedFeed;
 
             GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-            feedMessage = feed.createMessage();
-            vehicleFeedDataCache.put(agencyId, feedMessage);
+            encodedFeed = new EncodedFeed(feed.createMessage());
+            vehicleFeedDataCache.put(agencyId, encodedFeed);
         }
 
-        return feedMessage;
+        return encodedFeed;
     }
 }
@@ -1,17 +1,19 @@
 /* (C)2023 */
 package org.transitclock.api.resources;
 
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
-import jakarta.ws.rs.core.StreamingOutput;
+import org.transitclock.api.data.gtfs.EncodedFeed;
 import org.transitclock.api.data.gtfs.GtfsRtTripFeed;
 import org.transitclock.api.data.gtfs.GtfsRtVehicleFeed;
 import org.transitclock.api.utils.StandardParameters;
-import org.transitclock.gtfs.realtime.OctalDecoder;
 
 /**
  * Contains API commands for the GTFS-realtime API.
@@ -40,45 +42,20 @@ public class GtfsRealtimeApi {
             final @BeanParam StandardParameters stdParameters,
             @Parameter(description = "If specified as human, it will get the output in human readable format. Otherwise will output data in binary format")
             @QueryParam(value = "format")
-            String format) throws WebApplicationException {
+            String format,
+            @Context Request request,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) throws WebApplicationException {
 
         // Make sure request is valid
         stdParameters.validate();
 
-        // Determine if output should be in human-readable format or in
-        // standard binary GTFS-realtime format.
-        final boolean humanFormatOutput = "human".equals(format);
-
-        // Determine the appropriate output format. For plain text best to use
-        // MediaType.TEXT_PLAIN so that output is formatted properly in web
-        // browser instead of newlines being removed. For binary output should
-        // use MediaType.APPLICATION_OCTET_STREAM.
-        String mediaType = humanFormatOutput ? MediaType.TEXT_PLAIN : MediaType.APPLICATION_OCTET_STREAM;
-
-        // Prepare a StreamingOutput object so can write using it
-        StreamingOutput stream = outputStream -> {
-            try {
-                FeedMessage message = GtfsRtVehicleFeed.getPossiblyCachedMessage(
-                        stdParameters.getAgencyId());
-
-                // Output in human-readable format or in standard binary
-                // format
-                if (humanFormatOutput) {
-                    // Output data in human-readable format. First, convert
-                    // the octal escaped message to regular UTF encoding.
-                    String decodedMessage = OctalDecoder.convertOctalEscapedString(message.toString());
-                    outputStream.write(decodedMessage.getBytes());
-                } else {
-                    // Standard binary output
-                    message.writeTo(outputStream);
-                }
-            } catch (Exception e) {
-                throw new WebApplicationException(e);
-            }
-        };
-
-        // Write out the data using the output stream
-        return Response.ok(stream).type(mediaType).build();
+        EncodedFeed feed;
+        try {
+            feed = GtfsRtVehicleFeed.getPossiblyCachedFeed(stdParameters.getAgencyId());
+        } catch (Exception e) {
+            throw new WebApplicationException(e);
+        }
+        return createResponse(feed, "human".equals(format), request, acceptEncoding);
     }
 
     /**
@@ -101,44 +78,70 @@ public class GtfsRealtimeApi {
             final @BeanParam StandardParameters stdParameters,
             @Parameter(description = "If specified as human, it will get the output in human readable format. Otherwise will output data in binary format")
             @QueryParam(value = "format")
-            String format) throws WebApplicationException {
+            String format,
+            @Context Request request,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) throws WebApplicationException {
 
         // Make sure request is valid
         stdParameters.validate();
 
-        // Determine if output should be in human readable format or in
-        // standard binary GTFS-realtime format.
-        final boolean humanFormatOutput = "human".equals(format);
+        EncodedFeed feed;
+        try {
+            feed = GtfsRtTripFeed.getPossiblyCachedFeed(stdParameters.getAgencyId());
+        } catch (Exception e) {
+            throw new WebApplicationException(e);
+        }
+        return createResponse(feed, "human".equals(format), request, acceptEncoding);
+    }
 
+    /**
+     * Creates the response for a GTFS-realtime feed. Since the feed is already serialized the
+     * bytes are simply written out. If the client already has the current version of the feed, as
+     * determined by the If-None-Match or If-Modified-Since headers, then a 304 Not Modified
+     * response without a body is returned. Binary output is gzipped if the client accepts it.
+     *
+     * @param feed The serialized feed
+     * @param humanFormatOutput If should output in human-readable format
+     * @param request For evaluating the conditional request headers
+     * @param acceptEncoding The Accept-Encoding header. Can be null.
+     * @return the response
+     */
+    private static Response createResponse(
+            EncodedFeed feed, boolean humanFormatOutput, Request request, String acceptEncoding) {
         // Determine the appropriate output format. For plain text best to use
         // MediaType.TEXT_PLAIN so that output is formatted properly in web
         // browser instead of newlines being removed. For binary output should
         // use MediaType.APPLICATION_OCTET_STREAM.
         String mediaType = humanFormatOutput ? MediaType.TEXT_PLAIN : MediaType.APPLICATION_OCTET_STREAM;
+        boolean gzip = !humanFormatOutput && acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        // Each representation needs its own ETag
+        String etagValue = feed.getEtag() + (humanFormatOutput ? "-human" : gzip ? "-gzip" : "");
+        EntityTag etag = new EntityTag(etagValue);
 
-        // Prepare a StreamingOutput object so can write using it
-        StreamingOutput stream = outputStream -> {
-            try {
-                FeedMessage message = GtfsRtTripFeed.getPossiblyCachedMessage(
-                        stdParameters.getAgencyId());
+        // If client already has this version of the feed then don't need
+        // to send it again
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(feed.getLastModified(), etag);
+        if (notModified != null) {
+            return notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+        }
 
-                // Output in human-readable format or in standard binary
-                // format
-                if (humanFormatOutput) {
-                    // Output data in human-readable format. First, convert
-                    // the octal escaped message to regular UTF encoding.
-                    String decodedMessage = OctalDecoder.convertOctalEscapedString(message.toString());
-                    outputStream.write(decodedMessage.getBytes());
-                } else {
-                    // Standard binary output
-                    message.writeTo(outputStream);
-                }
-            } catch (Exception e) {
-                throw new WebApplicationException(e);
-            }
-        };
+        byte[] body;
+        if (humanFormatOutput) {
+            // Output data in human-readable format. The octal escaped
+            // message has already been converted to regular UTF encoding.
+            body = feed.getHumanReadableBytes();
+        } else {
+            // Standard binary output
+            body = gzip ? feed.getGzippedBytes() : feed.getBytes();
+        }
 
-        // Write out the data using the output stream
-        return Response.ok(stream).type(mediaType).build();
+        Response.ResponseBuilder response = Response.ok(body)
+                .type(mediaType)
+                .tag(etag)
+                .lastModified(feed.getLastModified())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return response.build();
     }
 }
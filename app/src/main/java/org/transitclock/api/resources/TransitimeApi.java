@@ -76,6 +76,10 @@ public class TransitimeApi {
      *                             labeled as minor so they can be drawn specially in the UI.
      * @param numberPredictions    For when determining which vehicles are generating the predictions
      *                             so can label minor vehicles
+     * @param lat                  Optional latitude so can get only the vehicles near a location
+     * @param lon                  Optional longitude so can get only the vehicles near a location
+     * @param maxDistance          How far away a vehicle can be from the lat/lon. Default is 1,500 m and
+     *                             maximum is 2,000 m.
      * @return The Response object already configured for the specified media type.
      */
     @Operation(
@@ -102,17 +106,37 @@ public class TransitimeApi {
             @Parameter(description = "Number of predictions to show.", required = false)
             @QueryParam(value = "numPreds")
             @DefaultValue("2")
-            int numberPredictions)
+            int numberPredictions,
+            @Parameter(description = "Latitude in decimal degrees for only getting the vehicles near a location.", required = false)
+            @QueryParam(value = "lat")
+            Double lat,
+            @Parameter(description = "Longitude in decimal degrees for only getting the vehicles near a location.", required = false)
+            @QueryParam(value = "lon")
+            Double lon,
+            @Parameter(description = "How far away a vehicle can be from the location (lat/lon).", required = false)
+            @QueryParam(value = "maxDistance")
+            @DefaultValue("1500.0")
+            double maxDistance)
             throws WebApplicationException {
         // Make sure request is valid
         stdParameters.validate();
 
+        if (lat != null && lon != null && !(maxDistance <= PredsByLoc.MAX_MAX_DISTANCE))
+            throw WebUtils.badRequestException("Maximum maxDistance parameter "
+                    + "is "
+                    + PredsByLoc.MAX_MAX_DISTANCE
+                    + "m but "
+                    + maxDistance
+                    + "m was specified in the request.");
+
         try {
             // Get Vehicle data from server
             VehiclesInterface inter = stdParameters.getVehiclesInterface();
 
             Collection<IpcVehicle> vehicles;
-            if (!routesIdOrShortNames.isEmpty()
+            if (lat != null && lon != null) {
+                vehicles = inter.getNearLocation(new Location(lat, lon), maxDistance);
+            } else if (!routesIdOrShortNames.isEmpty()
                     && !routesIdOrShortNames.get(0).trim().isEmpty()) {
                 vehicles = inter.getForRoute(routesIdOrShortNames);
             } else if (!vehicleIds.isEmpty() && !vehicleIds.get(0).trim().isEmpty()) {
@@ -4,8 +4,11 @@ package org.transitclock.api.utils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.transitclock.domain.structs.Agency;
 import org.transitclock.domain.structs.Extent;
 import org.transitclock.domain.structs.Location;
@@ -20,10 +23,11 @@ import org.transitclock.utils.Time;
  */
 public class PredsByLoc {
 
-    // The cache of extents. Keyed on agencyId. Should not be accessed directly.
-    // Should instead use getAgencyExtents().
-    private static final Map<String, Extent> agencyExtentsCache = new HashMap<>();
-    private static long cacheUpdatedTime = 0;
+    // The index of agency extents. Should not be accessed directly. Should
+    // instead use getAgencyExtentsIndex(). Replaced as a whole when updated
+    // so that it can be read without synchronization.
+    private static volatile AgencyExtentsIndex agencyExtentsIndex = null;
+    private static volatile long cacheUpdatedTime = 0;
 
     // The maximum allowable maxDistance for getting predictions by location
     public static final double MAX_MAX_DISTANCE = 2000.0;
@@ -31,30 +35,122 @@ public class PredsByLoc {
     private static final long CACHE_VALID_MSEC = 4 * Time.MS_PER_HOUR;
 
     /**
-     * Returns the cache of agency extents. If haven't read in extents from the servers in more than
-     * 4 hours then the cache is updated before it is returned.
-     *
-     * @return cache of extents
+     * A spatial index of the agency extents. The area is divided into a coarse grid of cells and
+     * each cell lists the agencies whose extent overlaps it. This way only the agencies in the
+     * cells near a location need to be looked at. Agencies with an extent that covers a huge
+     * number of cells, which would only happen with bad data, are simply always looked at.
      */
-    private static Map<String, Extent> getAgencyExtents() {
-        // If updated cache recently then simply return it
-        if (System.currentTimeMillis() < cacheUpdatedTime + CACHE_VALID_MSEC) {
-            return agencyExtentsCache;
+    private static class AgencyExtentsIndex {
+        // Size of cells in degrees. About 111km north to south.
+        private static final double CELL_SIZE_DEGREES = 1.0;
+
+        private static final int MAX_CELLS_PER_AGENCY = 10_000;
+
+        // Conservative conversion so that no nearby cells are missed
+        private static final double MIN_METERS_PER_DEGREE = 110_000.0;
+
+        private final Map<String, Extent> extentsByAgencyId;
+        private final Map<Long, List<String>> agencyIdsByCell = new HashMap<>();
+        private final List<String> agencyIdsAlwaysChecked = new ArrayList<>();
+
+        private AgencyExtentsIndex(Map<String, Extent> extentsByAgencyId) {
+            this.extentsByAgencyId = extentsByAgencyId;
+            for (Map.Entry<String, Extent> entry : extentsByAgencyId.entrySet()) {
+                Extent extent = entry.getValue();
+                // Extent without any locations
+                if (extent.getMinLat() > extent.getMaxLat()) continue;
+
+                int minLatIndex = cellIndex(extent.getMinLat());
+                int maxLatIndex = cellIndex(extent.getMaxLat());
+                int minLonIndex = cellIndex(extent.getMinLon());
+                int maxLonIndex = cellIndex(extent.getMaxLon());
+                long numberOfCells = (long) (maxLatIndex - minLatIndex + 1) * (maxLonIndex - minLonIndex + 1);
+                if (numberOfCells > MAX_CELLS_PER_AGENCY) {
+                    agencyIdsAlwaysChecked.add(entry.getKey());
+                    continue;
+                }
+
+                for (int latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+                    for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                        agencyIdsByCell
+                                .computeIfAbsent(cellKey(latIndex, lonIndex), k -> new ArrayList<>())
+                                .add(entry.getKey());
+                    }
+                }
+            }
         }
 
-        // Haven't updated cache in a while so update it now
-        Collection<WebAgency> webAgencies = WebAgency.getCachedOrderedListOfWebAgencies();
+        private static int cellIndex(double degrees) {
+            return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+        }
+
+        private static long cellKey(int latIndex, int lonIndex) {
+            return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+        }
+
+        /** Returns the IDs of the agencies whose extent is within distance of the location */
+        private List<String> getNearbyAgencies(Location loc, double distance) {
+            double deltaLat = distance / MIN_METERS_PER_DEGREE;
+            double cosLat = Math.max(Math.cos(Math.toRadians(loc.getLat())), 0.01);
+            double deltaLon = deltaLat / cosLat;
 
-        // For each agency get the extent
-        for (WebAgency webAgency : webAgencies) {
-            Agency agency = webAgency.getAgency();
-            if (agency != null) {
-                agencyExtentsCache.put(webAgency.getAgencyId(), agency.getExtent());
+            int minLatIndex = cellIndex(loc.getLat() - deltaLat);
+            int maxLatIndex = cellIndex(loc.getLat() + deltaLat);
+            int minLonIndex = cellIndex(loc.getLon() - deltaLon);
+            int maxLonIndex = cellIndex(loc.getLon() + deltaLon);
+
+            // Only want each agency once even if it is in several cells
+            Set<String> candidateAgencyIds = new LinkedHashSet<>(agencyIdsAlwaysChecked);
+            for (int latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+                for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                    List<String> agencyIds = agencyIdsByCell.get(cellKey(latIndex, lonIndex));
+                    if (agencyIds != null) candidateAgencyIds.addAll(agencyIds);
+                }
+            }
+
+            List<String> nearbyAgencies = new ArrayList<>();
+            for (String agencyId : candidateAgencyIds) {
+                if (extentsByAgencyId.get(agencyId).isWithinDistance(loc, distance)) nearbyAgencies.add(agencyId);
             }
+            return nearbyAgencies;
         }
+    }
 
-        // Return the update cache
-        return agencyExtentsCache;
+    /**
+     * Returns the index of agency extents. If haven't read in extents from the servers in more than
+     * 4 hours then the index is recreated before it is returned.
+     *
+     * @return index of extents
+     */
+    private static AgencyExtentsIndex getAgencyExtentsIndex() {
+        // If updated index recently then simply return it
+        AgencyExtentsIndex index = agencyExtentsIndex;
+        if (index != null && System.currentTimeMillis() < cacheUpdatedTime + CACHE_VALID_MSEC) {
+            return index;
+        }
+
+        synchronized (PredsByLoc.class) {
+            // Another thread might have just updated it
+            if (agencyExtentsIndex != null && System.currentTimeMillis() < cacheUpdatedTime + CACHE_VALID_MSEC) {
+                return agencyExtentsIndex;
+            }
+
+            // Haven't updated index in a while so update it now
+            Collection<WebAgency> webAgencies = WebAgency.getCachedOrderedListOfWebAgencies();
+
+            // For each agency get the extent
+            Map<String, Extent> agencyExtents = new LinkedHashMap<>();
+            for (WebAgency webAgency : webAgencies) {
+                Agency agency = webAgency.getAgency();
+                if (agency != null && agency.getExtent() != null) {
+                    agencyExtents.put(webAgency.getAgencyId(), agency.getExtent());
+                }
+            }
+
+            agencyExtentsIndex = new AgencyExtentsIndex(agencyExtents);
+            cacheUpdatedTime = System.currentTimeMillis();
+            return agencyExtentsIndex;
+        }
     }
 
     /**
@@ -66,20 +162,8 @@ public class PredsByLoc {
      * @return List of agencies that are nearby
      */
     public static List<String> getNearbyAgencies(double latitude, double longitude, double distance) {
-        // For results of method
-        List<String> nearbyAgencies = new ArrayList<>();
-
-        // Determine which agencies are nearby and add them to list
+        // Determine which agencies are nearby using the index
         Location loc = new Location(latitude, longitude);
-        Map<String, Extent> agencyExtents = getAgencyExtents();
-        for (String agencyId : agencyExtents.keySet()) {
-            Extent agencyExtent = agencyExtents.get(agencyId);
-            if (agencyExtent.isWithinDistance(loc, distance)) {
-                nearbyAgencies.add(agencyId);
-            }
-        }
-
-        // Return agencies that are nearby
-        return nearbyAgencies;
+        return getAgencyExtentsIndex().getNearbyAgencies(loc, distance);
     }
 }
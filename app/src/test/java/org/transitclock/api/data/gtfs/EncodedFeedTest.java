@@ -0,0 +1,68 @@
+package org.transitclock.api.data.gtfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class EncodedFeedTest {
+
+    private static final long TIMESTAMP_SECS = 1_700_000_000L;
+
+    private static FeedMessage message(String... tripIds) {
+        FeedMessage.Builder message = FeedMessage.newBuilder()
+                .setHeader(FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion("2.0")
+                        .setTimestamp(TIMESTAMP_SECS));
+        for (String tripId : tripIds) {
+            message.addEntity(FeedEntity.newBuilder()
+                    .setId(tripId)
+                    .setTripUpdate(TripUpdate.newBuilder()
+                            .setTrip(TripDescriptor.newBuilder().setTripId(tripId))));
+        }
+        return message.build();
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void gzippedDecompressesToSameBytes() throws IOException {
+        EncodedFeed feed = new EncodedFeed(message("t1", "t2", "t3"));
+
+        assertThat(gunzip(feed.getGzippedBytes())).isEqualTo(feed.getBytes());
+        // Only compressed once
+        assertThat(feed.getGzippedBytes()).isSameAs(feed.getGzippedBytes());
+    }
+
+    @Test
+    public void messageParsedFromBytes() {
+        FeedMessage message = message("t1", "t2");
+        EncodedFeed feed = new EncodedFeed(message.toByteArray(), TIMESTAMP_SECS * 1000);
+
+        assertThat(feed.getMessage()).isEqualTo(message);
+        assertThat(feed.getLastModified().getTime()).isEqualTo(TIMESTAMP_SECS * 1000);
+        assertThat(new String(feed.getHumanReadableBytes(), StandardCharsets.UTF_8))
+                .contains("trip_id: \"t2\"");
+    }
+
+    @Test
+    public void etagChangesWithBytes() {
+        EncodedFeed feed = new EncodedFeed(message("t1", "t2"));
+
+        assertThat(new EncodedFeed(message("t1", "t2")).getEtag()).isEqualTo(feed.getEtag());
+        assertThat(new EncodedFeed(message("t1", "t3")).getEtag()).isNotEqualTo(feed.getEtag());
+        assertThat(new EncodedFeed(message("t1")).getEtag()).isNotEqualTo(feed.getEtag());
+    }
+}
@@ -0,0 +1,158 @@
+package org.transitclock.api.data.gtfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import java.util.List;
+import java.util.TimeZone;
+import org.junit.jupiter.api.Test;
+import org.transitclock.config.data.ApiConfig;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.service.dto.IpcPrediction;
+import org.transitclock.utils.Time;
+
+class GtfsRtTripUpdatesIndexTest {
+
+    private static final long WINDOW_MSEC = (long) ApiConfig.predictionMaxFutureSecs.getValue() * Time.MS_PER_SEC;
+
+    private final long now = System.currentTimeMillis();
+
+    private final PredictionDataCache cache = new PredictionDataCache();
+    private final GtfsRtTripFeed tripFeed = new GtfsRtTripFeed("agency", TimeZone.getTimeZone("UTC"));
+    private final GtfsRtTripUpdatesIndex index = new GtfsRtTripUpdatesIndex(tripFeed, cache);
+
+    private static Trip trip(String tripId) {
+        Trip trip = new Trip() {};
+        trip.setTripId(tripId);
+        trip.setRouteId("r1");
+        trip.setRouteShortName("1");
+        trip.setHeadsign("Downtown");
+        trip.setDirectionId("0");
+        trip.setTripPattern(new TripPattern() {});
+        return trip;
+    }
+
+    private static final Trip T1 = trip("t1");
+    private static final Trip T2 = trip("t2");
+
+    private IpcPrediction prediction(String vehicleId, Trip trip, int stopSeq, long predictionTime) {
+        AvlReport avlReport = new AvlReport(vehicleId, now, 12.34, 43.21, null);
+        avlReport.setTimeProcessed();
+        return new IpcPrediction(
+                avlReport,
+                "s" + stopSeq,
+                stopSeq,
+                trip,
+                predictionTime,
+                predictionTime,
+                false,
+                false,
+                false,
+                false,
+                IpcPrediction.ArrivalOrDeparture.ARRIVAL,
+                null,
+                0,
+                0,
+                false,
+                now);
+    }
+
+    private FeedMessage feed(long time) throws Exception {
+        EncodedFeed feed = index.createFeed(now, time);
+        return FeedMessage.parseFrom(feed.getBytes());
+    }
+
+    private static List<String> stopIds(FeedEntity entity) {
+        return entity.getTripUpdate().getStopTimeUpdateList().stream()
+                .map(StopTimeUpdate::getStopId)
+                .toList();
+    }
+
+    @Test
+    public void sameEntitiesAsCreatingWholeMessage() throws Exception {
+        // Two vehicles on the same trip, to different stops, and added out
+        // of stop order
+        cache.updatePredictions(null, List.of(
+                prediction("v1", T1, 3, now + 3 * Time.MS_PER_MIN),
+                prediction("v1", T1, 2, now + 2 * Time.MS_PER_MIN),
+                prediction("v1", T2, 4, now + 20 * Time.MS_PER_MIN)));
+        cache.updatePredictions(null, List.of(
+                prediction("v2", T1, 5, now + 5 * Time.MS_PER_MIN),
+                prediction("v2", T1, 6, now + 6 * Time.MS_PER_MIN)));
+
+        FeedMessage feed = feed(now);
+        FeedMessage wholeMessage =
+                tripFeed.createMessage(cache.getAllPredictions(Integer.MAX_VALUE, now + WINDOW_MSEC));
+
+        assertThat(feed.getHeader().getTimestamp()).isEqualTo(now / Time.MS_PER_SEC);
+        assertThat(feed.getEntityList()).hasSize(2);
+        assertThat(feed.getEntityList()).containsExactlyInAnyOrderElementsOf(wholeMessage.getEntityList());
+        assertThat(stopIds(feed.getEntity(0))).containsExactly("s2", "s3", "s5", "s6");
+    }
+
+    @Test
+    public void changedPredictionsReplaceOldOnes() throws Exception {
+        IpcPrediction old = prediction("v1", T1, 2, now + 2 * Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(old));
+        assertThat(stopIds(feed(now).getEntity(0))).containsExactly("s2");
+
+        cache.updatePredictions(List.of(old), List.of(prediction("v1", T2, 3, now + 3 * Time.MS_PER_MIN)));
+
+        FeedMessage feed = feed(now);
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t2");
+        assertThat(stopIds(feed.getEntity(0))).containsExactly("s3");
+    }
+
+    @Test
+    public void predictionEnteringWindowReEncoded() throws Exception {
+        cache.updatePredictions(null, List.of(
+                prediction("v1", T1, 2, now + 10 * Time.MS_PER_MIN),
+                prediction("v1", T1, 3, now + WINDOW_MSEC + 10 * Time.MS_PER_MIN),
+                prediction("v1", T2, 4, now + WINDOW_MSEC + 20 * Time.MS_PER_MIN)));
+
+        FeedMessage feed = feed(now);
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t1");
+        assertThat(stopIds(feed.getEntity(0))).containsExactly("s2");
+
+        // Nothing changed but time has passed so more is within the window
+        feed = feed(now + 15 * Time.MS_PER_MIN);
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t1");
+        assertThat(stopIds(feed.getEntity(0))).containsExactly("s2", "s3");
+
+        feed = feed(now + 25 * Time.MS_PER_MIN);
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t1", "t2");
+    }
+
+    @Test
+    public void emptyPredictionsRemoveVehicleTrips() throws Exception {
+        List<IpcPrediction> v1Predictions = List.of(
+                prediction("v1", T1, 2, now + 2 * Time.MS_PER_MIN),
+                prediction("v1", T2, 3, now + 3 * Time.MS_PER_MIN));
+        cache.updatePredictions(null, v1Predictions);
+        cache.updatePredictions(null, List.of(prediction("v2", T1, 4, now + 4 * Time.MS_PER_MIN)));
+        assertThat(feed(now).getEntityList()).hasSize(2);
+
+        cache.updatePredictions(v1Predictions, List.of());
+
+        // Trip t2 only had predictions for v1 so is gone, t1 still has v2
+        FeedMessage feed = feed(now);
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t1");
+        assertThat(stopIds(feed.getEntity(0))).containsExactly("s4");
+    }
+
+    @Test
+    public void predictionsAlreadyInCacheIncluded() throws Exception {
+        PredictionDataCache existingCache = new PredictionDataCache();
+        existingCache.updatePredictions(null, List.of(prediction("v1", T1, 2, now + 2 * Time.MS_PER_MIN)));
+
+        GtfsRtTripUpdatesIndex existingIndex = new GtfsRtTripUpdatesIndex(tripFeed, existingCache);
+
+        FeedMessage feed = FeedMessage.parseFrom(existingIndex.createFeed(now, now).getBytes());
+        assertThat(feed.getEntityList()).extracting(FeedEntity::getId).containsExactly("t1");
+    }
+}
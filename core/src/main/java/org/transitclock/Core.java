@@ -72,7 +72,7 @@ public class Core {
          // HibernateUtils.clearSessionFactory();
 
          // Read in all GTFS based config data from the database
-         configData = new DbConfig(agencyId, configRev);
+         configData = new DbConfig(agencyId, configRev, activeRevision.getTravelTimesRev());
 
          // Create the DataDBLogger so that generated data can be stored
          // to database via a robust queue. But don't actually log data
@@ -26,11 +26,9 @@ import org.transitclock.utils.Time;
  * Uses AVL based data of arrival/departure times and matches from the database to update the
  * expected travel and stop times.
  *
- * <p>NOTE: This could probably be made less resource/memory intensive by processing a days worth of
- * data at a time. Another possibility would be to try to process the data while it is being read in
- * instead of reading it all in at the beginning. But that would likely be quite difficult to
- * implement. Processing one day of data at a time would likely be far simpler and therefore a
- * better choice.
+ * <p>The data is processed while it is being read in, one vehicle trip at a time, so the memory
+ * used depends on the number of trips active at the same time instead of on the length of the
+ * time period being processed.
  *
  * @author SkiBu Smith
  */
@@ -20,4 +20,15 @@ public class ApiConfig {
             "transitclock.api.includeTripUpdateDelay",
             false,
             "Whether or not to include delay in the TripUpdate message");
+
+    public static final BooleanConfigValue incrementalTripUpdates = new BooleanConfigValue(
+            "transitclock.api.incrementalTripUpdates",
+            true,
+            "If true the GTFS-realtime trip updates feed is maintained "
+                    + "incrementally. Each trip is only re-encoded when the "
+                    + "predictions for it change, so the feed can be cached "
+                    + "for a short time via transitclock.api.gtfsRtCacheSeconds "
+                    + "even for a large fleet. If false the whole feed is "
+                    + "created from all of the predictions each time the "
+                    + "cache expires.");
 }
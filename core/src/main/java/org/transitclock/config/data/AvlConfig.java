@@ -249,12 +249,14 @@ public class AvlConfig {
     public static final IntegerConfigValue avlQueueSize = new IntegerConfigValue(
             "transitclock.avl.queueSize",
             2000,
-            "How many items to go into the blocking AVL queue "
-                    + "before need to wait for queue to have space. Should "
-                    + "be approximately 50% more than the number of reports "
-                    + "that will be read during a single AVL polling cycle. "
-                    + "If too big then wasteful. If too small then not all the "
-                    + "data will be rejected by the ThreadPoolExecutor. ");
+            "How many vehicles can have an AVL report waiting in the "
+                    + "AVL queue. Since a newer report for a vehicle replaces "
+                    + "the one already waiting in the queue this only needs "
+                    + "to be somewhat larger than the number of vehicles in "
+                    + "the fleet. If too small then reports for additional "
+                    + "vehicles will be rejected. When using "
+                    + "transitclock.avl.useVehicleShardedExecutor the "
+                    + "capacity is divided among the lanes.");
 
     public static IntegerConfigValue numAvlThreads = new IntegerConfigValue(
             "transitclock.avl.numThreads",
@@ -266,4 +268,22 @@ public class AvlConfig {
                     + "large systems with lots of vehicles then should use "
                     + "multiple threads, such as 3-15 so that more of the cores "
                     + "are used.");
+
+    public static final BooleanConfigValue useVehicleShardedExecutor = new BooleanConfigValue(
+            "transitclock.avl.useVehicleShardedExecutor",
+            false,
+            "When true the AVL reports are processed by a set of single "
+                    + "threaded lanes, with each vehicle always hashed onto the "
+                    + "same lane. Only the latest pending report per vehicle is "
+                    + "kept. Guarantees per vehicle ordering without contention "
+                    + "and scales better than the default thread pool for large "
+                    + "fleets.");
+
+    public static final IntegerConfigValue numAvlLanes = new IntegerConfigValue(
+            "transitclock.avl.numLanes",
+            Runtime.getRuntime().availableProcessors(),
+            "When transitclock.avl.useVehicleShardedExecutor is true "
+                    + "specifies how many single threaded lanes are used for "
+                    + "processing the AVL data. Defaults to the number of "
+                    + "available processors.");
 }
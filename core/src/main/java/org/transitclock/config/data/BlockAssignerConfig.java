@@ -53,6 +53,24 @@ public class BlockAssignerConfig {
                     + "reporting rates. So this param allows one to limit how "
                     + "frequently auto assigner called for vehicle");
 
+    public static final BooleanConfigValue parallelMatching = new BooleanConfigValue(
+            "transitclock.autoBlockAssigner.parallelMatching",
+            false,
+            "When true the currently active blocks are examined in "
+                    + "parallel when trying to auto assign a vehicle instead "
+                    + "of one after another by the thread processing the AVL "
+                    + "report. Reduces how long it takes to auto assign a "
+                    + "vehicle when there are many blocks, such as during "
+                    + "morning pull-out.");
+
+    public static final IntegerConfigValue parallelMatchingThreads = new IntegerConfigValue(
+            "transitclock.autoBlockAssigner.parallelMatchingThreads",
+            Runtime.getRuntime().availableProcessors(),
+            "When transitclock.autoBlockAssigner.parallelMatching is "
+                    + "true specifies the number of threads, shared by all "
+                    + "vehicles, that are used for examining the blocks. "
+                    + "Defaults to the number of available processors.");
+
     public static final BooleanConfigValue isManualAssignmentEnabled = new BooleanConfigValue(
             "transitclock.blockAssigner.manualAssignmentEnabled",
             false,
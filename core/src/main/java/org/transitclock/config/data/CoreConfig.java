@@ -44,6 +44,64 @@ public class CoreConfig {
             0,
             "How many days data to read in to populate historical cache on start up.");
 
+    public static final IntegerConfigValue cacheWarmUpThreads = new IntegerConfigValue(
+            "transitclock.cache.core.warmUpThreads",
+            4,
+            "Number of threads used to read in the arrivals/departures "
+                    + "for populating the historical caches on start up. Each "
+                    + "thread reads in a separate day so that the days are "
+                    + "read in parallel.");
+
+    public static final IntegerConfigValue cacheWarmUpFetchSize = new IntegerConfigValue(
+            "transitclock.cache.core.warmUpFetchSize",
+            5000,
+            "When populating the historical caches on start up the "
+                    + "arrivals/departures are streamed from the db instead "
+                    + "of all being read into memory at once. This is how "
+                    + "many rows are fetched from the db at a time.");
+
+    public static final BooleanConfigValue cacheWarmUpInBackground = new BooleanConfigValue(
+            "transitclock.cache.core.warmUpInBackground",
+            false,
+            "If true then the historical caches are populated in the "
+                    + "background so that the core can start processing AVL "
+                    + "data right away. Predictions will initially be based "
+                    + "on less historical data until the warm up has "
+                    + "completed.");
+
+    public static final IntegerConfigValue cacheWriteBehindMsec = new IntegerConfigValue(
+            "transitclock.cache.core.writeBehindMsec",
+            1000,
+            "How long the arrivals/departures added to the stop and trip "
+                    + "history caches are batched in memory before being "
+                    + "written to the cache, which serializes them to the "
+                    + "disk tier. When a stop or trip gets several events "
+                    + "within this time they are written just once. If 0 "
+                    + "then each event is written to the cache right away.");
+
+    public static final StringConfigValue kalmanErrorSnapshotFile = new StringConfigValue(
+            "transitclock.cache.core.kalmanErrorSnapshotFile",
+            "For the InMemoryKalmanErrorCache. If set then the Kalman "
+                    + "error values are periodically written to this file "
+                    + "and read back in on startup. If not set the error "
+                    + "values are only kept in memory.");
+
+    public static final IntegerConfigValue kalmanErrorSnapshotIntervalMsec = new IntegerConfigValue(
+            "transitclock.cache.core.kalmanErrorSnapshotIntervalMsec",
+            60 * Time.MS_PER_SEC,
+            "For the InMemoryKalmanErrorCache. How frequently the Kalman "
+                    + "error values are written to the snapshot file, if "
+                    + "they have changed.");
+
+    public static final IntegerConfigValue kalmanErrorMaxIdleDays = new IntegerConfigValue(
+            "transitclock.cache.core.kalmanErrorMaxIdleDays",
+            21,
+            "For the InMemoryKalmanErrorCache. Kalman error values that "
+                    + "have been neither read nor updated for this many days "
+                    + "are removed, same as the time to idle of the ehcache "
+                    + "KalmanErrorCache, so that the values for trips that "
+                    + "no longer run don't accumulate.");
+
     /**
      * When in playback mode or some other situations don't want to store generated data such as
      * arrivals/departures, events, and such to the database because only debugging.
@@ -89,9 +147,9 @@ public class CoreConfig {
 
     /**
      * When in batch mode can flood db with lots of objects. If
-     * transitclock.core.pauseIfDbQueueFilling is set to true then when objects are put into the
-     * DataDbLogger queue the calling thread will be temporarily suspended so that the separate
-     * thread can run to write to the db and thereby empty out the queue.
+     * transitclock.core.pauseIfDbQueueFilling is set to true then when the DataDbLogger queue is
+     * filling up the writer threads are started right away so that they empty out the queue. The
+     * calling thread is not suspended.
      *
      * @return
      */
@@ -104,10 +162,11 @@ public class CoreConfig {
             false,
             "When in batch mode can flood db with lots of objects. If"
                     + "transitclock.core.pauseIfDbQueueFilling is set to true "
-                    + "then when objects are put into the DataDbLogger queue "
-                    + "the calling thread will be temporarily suspended so "
-                    + "that the separate thread can run to write to the db and "
-                    + "thereby empty out the queue.");
+                    + "then when the DataDbLogger queue is filling up the "
+                    + "writer threads are started right away instead of at "
+                    + "the next flush so that they empty out the queue. The "
+                    + "calling thread is not suspended since it can be the "
+                    + "thread processing AVL reports.");
 
     /**
      * The semicolon separated list of names of all the modules that should be automatically
@@ -877,6 +936,16 @@ public class CoreConfig {
             false,
             "Allow auto assigner consider spatial matches to layovers. Experimental.");
 
+    public static BooleanConfigValue spatialMatchUsingSegmentIndex = new BooleanConfigValue(
+            "transitclock.core.spatialMatchUsingSegmentIndex",
+            true,
+            "When determining the spatial matches for a whole trip, such "
+                    + "as when auto assigning, use a spatial index of the "
+                    + "segments of the trip pattern so that only the segments "
+                    + "near the AVL report, and the layovers, need to be "
+                    + "examined. The resulting matches are the same as when "
+                    + "examining every segment.");
+
 
 
     public static BooleanConfigValue blockLoading = new BooleanConfigValue(
@@ -884,6 +953,29 @@ public class CoreConfig {
             false,
             "Set true to eagerly fetch all blocks into memory on startup");
 
+    public static final BooleanConfigValue blockGraphLoading = new BooleanConfigValue(
+            "transitclock.blockLoading.eagerGraph",
+            false,
+            "Set true to read in the complete block, trip, trip pattern, "
+                    + "stop path, and schedule time data on startup using a "
+                    + "few set based queries. The rest of the configuration "
+                    + "is read in parallel. Startup takes longer and uses "
+                    + "more memory but then the data never needs to be lazy "
+                    + "loaded, so the first AVL reports don't have to wait "
+                    + "on the serialized lazy loading. Takes precedence over "
+                    + "transitclock.blockLoading.agressive.");
+
+    public static final StringConfigValue configSnapshotDirectory = new StringConfigValue(
+            "transitclock.core.configSnapshotDirectory",
+            "If set then after the configuration data has been read from "
+                    + "the db a binary snapshot of it is written to this "
+                    + "directory. On the next start the configuration is then "
+                    + "read from the snapshot instead of from the db, which "
+                    + "is much faster. The snapshot is only used if it is for "
+                    + "the current configRev and travelTimesRev. When set the "
+                    + "complete block graph is read in on startup, as with "
+                    + "transitclock.blockLoading.eagerGraph.");
+
 
 
     /// ExponentialBiasAdjuster
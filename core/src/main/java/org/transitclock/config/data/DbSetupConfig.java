@@ -1,6 +1,7 @@
 /* (C)2023 */
 package org.transitclock.config.data;
 
+import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
 
@@ -99,6 +100,58 @@ public class DbSetupConfig {
     private static final IntegerConfigValue batchSize = new IntegerConfigValue(
             "transitclock.db.batchSize", 100, "Specifies the database batch size, defaults to 100");
 
+    public static final IntegerConfigValue numberDataWriterThreads = new IntegerConfigValue(
+            "transitclock.db.numberDataWriterThreads",
+            10,
+            "Number of threads shared by the DataDbLogger queues for "
+                    + "writing data to the database. Should be large enough "
+                    + "for the busy queues to use multiple writers at the same "
+                    + "time.");
+
+    public static final IntegerConfigValue maxWritersPerQueue = new IntegerConfigValue(
+            "transitclock.db.maxWritersPerQueue",
+            4,
+            "Max number of concurrent writers a DataDbLogger queue, such "
+                    + "as the one for predictions, can use when it is backed "
+                    + "up by more than transitclock.db.parallelWriteQueueLevel.");
+
+    public static final DoubleConfigValue parallelWriteQueueLevel = new DoubleConfigValue(
+            "transitclock.db.parallelWriteQueueLevel",
+            0.1,
+            "When a DataDbLogger queue is filled to more than this 0.0 - "
+                    + "1.0 fraction then additional concurrent writers are "
+                    + "used for it, up to transitclock.db.maxWritersPerQueue.");
+
+    public static final IntegerConfigValue minFlushIntervalMsec = new IntegerConfigValue(
+            "transitclock.db.minFlushIntervalMsec",
+            500,
+            "How frequently a DataDbLogger queue is written to the "
+                    + "database when it is receiving data.");
+
+    public static final IntegerConfigValue maxFlushIntervalMsec = new IntegerConfigValue(
+            "transitclock.db.maxFlushIntervalMsec",
+            10000,
+            "When a DataDbLogger queue is quiet the time between checks "
+                    + "for data to write is doubled each time until it reaches "
+                    + "this value.");
+
+    public static final StringConfigValue spillDirectory = new StringConfigValue(
+            "transitclock.db.spillDirectory",
+            "If set then each DataDbLogger queue uses a memory-mapped "
+                    + "journal file in this directory for data that can't be "
+                    + "written because the database is unavailable or because "
+                    + "the queue is full. The data is written to the database "
+                    + "from the journal, in order, once the database is "
+                    + "available again, even after a restart. If not set "
+                    + "then such data is kept in memory and can be lost.");
+
+    public static final IntegerConfigValue spillJournalMaxMB = new IntegerConfigValue(
+            "transitclock.db.spillJournalMaxMB",
+            512,
+            "Max size in MB of the journal file of each DataDbLogger "
+                    + "queue when transitclock.db.spillDirectory is set. Must "
+                    + "be less than 2048.");
+
 
 
 
@@ -24,6 +24,21 @@ public class MonitoringConfig {
                     + "maxQueueFractionGap ");
 
 
+    public static final DoubleConfigValue maxAvlQueueFraction = new DoubleConfigValue(
+            "transitclock.monitoring.maxAvlQueueFraction",
+            0.5,
+            "If the AVL queue fills up by more than this 0.0 - 1.0 "
+                    + "fraction then AVL queue monitoring is triggered.");
+
+    public static final DoubleConfigValue maxAvlQueueFractionGap = new DoubleConfigValue(
+            "transitclock.monitoring.maxAvlQueueFractionGap",
+            0.1,
+            "When transitioning from triggered to untriggered don't "
+                    + "want to send out an e-mail right away if actually "
+                    + "dithering. Therefore will only send out OK e-mail if the "
+                    + "value is now below maxAvlQueueFraction - "
+                    + "maxAvlQueueFractionGap ");
+
     public static DoubleConfigValue minPredictableBlocks = new DoubleConfigValue(
             "transitclock.monitoring.minPredictableBlocks",
             0.50,
@@ -2,6 +2,7 @@ package org.transitclock.config.data;
 
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
+import org.transitclock.config.IntegerConfigValue;
 
 public class TraveltimesConfig {
 
@@ -65,4 +66,26 @@ public class TraveltimesConfig {
                     + "time will be decreased to meet this limit. Purpose is "
                     + "to make sure that don't get invalid travel times due to "
                     + "bad data.");
+
+    public static IntegerConfigValue maxTripIdleMsec = new IntegerConfigValue(
+            "transitclock.traveltimes.maxTripIdleMsec",
+            0,
+            "When processing travel times the historic data is read in "
+                    + "ordered by time. By default the data for a vehicle "
+                    + "trip is processed at the end of its service day, so "
+                    + "that all of the data for the trip is used. If set to "
+                    + "a value greater than 0 then the data for a trip is "
+                    + "instead processed once there hasn't been any data for "
+                    + "it for this many msec. This reduces the memory needed "
+                    + "to only the data of the recently active trips, but "
+                    + "if a vehicle doesn't report for longer than this "
+                    + "during a trip the data for the trip is split up and "
+                    + "the travel times across the gap are lost.");
+
+    public static IntegerConfigValue processingThreads = new IntegerConfigValue(
+            "transitclock.traveltimes.processingThreads",
+            Runtime.getRuntime().availableProcessors(),
+            "Number of threads used to process the historic data of the "
+                    + "vehicle trips into travel times while the data is "
+                    + "being read in.");
 }
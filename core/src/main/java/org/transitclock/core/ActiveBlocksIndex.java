@@ -0,0 +1,218 @@
+/* (C)2023 */
+package org.transitclock.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.Time;
+
+/**
+ * An index of the blocks of each service ID by their start and end times so that can quickly
+ * determine which blocks are active at a time of day instead of having to check every block. The
+ * block start times are sorted so that the blocks starting within a time range can be found with
+ * a binary search. For finding the blocks that have already started but not yet ended the day is
+ * divided into buckets and each bucket contains the blocks that are running during it.
+ *
+ * <p>Which service IDs are valid for a date is not part of the index since the time of day of the
+ * blocks for a service ID doesn't depend on the date. That way the index is only created once for
+ * the configuration instead of for each service day.
+ *
+ * <p>Blocks are identified by their position in DbConfig.getBlocks(serviceId) so that the
+ * results can be returned in the same order as when going through all of the blocks.
+ */
+class ActiveBlocksIndex {
+
+    // Size of the time buckets used for finding blocks that are running
+    private static final int BUCKET_SECS = 5 * Time.SEC_PER_MIN;
+
+    /** The index for the blocks of a single service ID */
+    private static class ServiceBlocks {
+        // In the same order as DbConfig.getBlocks(serviceId)
+        private final Block[] blocks;
+        // The block start times, sorted, and the corresponding positions
+        private final int[] sortedStartTimes;
+        private final int[] positionsByStartTime;
+        // For each bucket the positions of the blocks that are running
+        // during some part of it
+        private final int firstBucket;
+        private final int[][] positionsByBucket;
+
+        private ServiceBlocks(Collection<Block> blocksForService) {
+            blocks = blocksForService.toArray(new Block[0]);
+
+            Integer[] positions = new Integer[blocks.length];
+            for (int i = 0; i < blocks.length; ++i) positions[i] = i;
+            Arrays.sort(positions, (p1, p2) -> Integer.compare(blocks[p1].getStartTime(), blocks[p2].getStartTime()));
+            sortedStartTimes = new int[blocks.length];
+            positionsByStartTime = new int[blocks.length];
+            for (int i = 0; i < blocks.length; ++i) {
+                positionsByStartTime[i] = positions[i];
+                sortedStartTimes[i] = blocks[positions[i]].getStartTime();
+            }
+
+            // A block is running at time t if startTime < t < endTime
+            int minBucket = Integer.MAX_VALUE;
+            int maxBucket = Integer.MIN_VALUE;
+            for (Block block : blocks) {
+                if (block.getEndTime() - block.getStartTime() < 2) continue;
+                minBucket = Math.min(minBucket, bucket(block.getStartTime() + 1));
+                maxBucket = Math.max(maxBucket, bucket(block.getEndTime() - 1));
+            }
+            if (minBucket > maxBucket) {
+                firstBucket = 0;
+                positionsByBucket = new int[0][];
+                return;
+            }
+
+            List<List<Integer>> bucketLists = new ArrayList<>(maxBucket - minBucket + 1);
+            for (int bucket = minBucket; bucket <= maxBucket; ++bucket) bucketLists.add(new ArrayList<>());
+            for (int position = 0; position < blocks.length; ++position) {
+                Block block = blocks[position];
+                if (block.getEndTime() - block.getStartTime() < 2) continue;
+                for (int bucket = bucket(block.getStartTime() + 1); bucket <= bucket(block.getEndTime() - 1); ++bucket) {
+                    bucketLists.get(bucket - minBucket).add(position);
+                }
+            }
+            firstBucket = minBucket;
+            positionsByBucket = new int[bucketLists.size()][];
+            for (int i = 0; i < bucketLists.size(); ++i) {
+                positionsByBucket[i] = bucketLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        private static int bucket(int secsInDay) {
+            return Math.floorDiv(secsInDay, BUCKET_SECS);
+        }
+
+        /** Adds the positions of the blocks with minExclusive < startTime < maxExclusive */
+        private void addStartingBetween(BitSet positions, int minExclusive, int maxExclusive) {
+            // Find first start time greater than minExclusive
+            int low = 0;
+            int high = sortedStartTimes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sortedStartTimes[mid] <= minExclusive) low = mid + 1;
+                else high = mid;
+            }
+
+            for (int i = low; i < sortedStartTimes.length && sortedStartTimes[i] < maxExclusive; ++i) {
+                positions.set(positionsByStartTime[i]);
+            }
+        }
+
+        /**
+         * Adds the positions of the blocks with startTime < secsInDay < endTime that also have
+         * startTime - allowableBeforeTimeSecs < secsInDay
+         */
+        private void addRunning(BitSet positions, int secsInDay, int allowableBeforeTimeSecs) {
+            int bucketIndex = bucket(secsInDay) - firstBucket;
+            if (bucketIndex < 0 || bucketIndex >= positionsByBucket.length) return;
+
+            for (int position : positionsByBucket[bucketIndex]) {
+                Block block = blocks[position];
+                if (secsInDay > block.getStartTime()
+                        && secsInDay > block.getStartTime() - allowableBeforeTimeSecs
+                        && secsInDay < block.getEndTime()) positions.set(position);
+            }
+        }
+    }
+
+    private final DbConfig dbConfig;
+    private final Function<String, Collection<Block>> blocksForServiceId;
+
+    // Created for a service ID when first needed. Keyed on service ID.
+    private final Map<String, ServiceBlocks> blocksByServiceId = new ConcurrentHashMap<>();
+
+    ActiveBlocksIndex(DbConfig dbConfig) {
+        this(dbConfig, dbConfig::getBlocks);
+    }
+
+    /**
+     * @param dbConfig The configuration that the index is for. Can be null if not needed.
+     * @param blocksForServiceId Returns the blocks of a service ID in a consistent order
+     */
+    ActiveBlocksIndex(DbConfig dbConfig, Function<String, Collection<Block>> blocksForServiceId) {
+        this.dbConfig = dbConfig;
+        this.blocksForServiceId = blocksForServiceId;
+    }
+
+    /** @return The DbConfig that the index is for */
+    DbConfig getDbConfig() {
+        return dbConfig;
+    }
+
+    private ServiceBlocks getServiceBlocks(String serviceId) {
+        return blocksByServiceId.computeIfAbsent(serviceId, id -> new ServiceBlocks(blocksForServiceId.apply(id)));
+    }
+
+    /**
+     * Adds the positions of the blocks for the service ID that are active at secsInDay, as defined
+     * by Block.isActiveForSecsInDay().
+     *
+     * @param serviceId
+     * @param positions Where the positions of the active blocks are added
+     * @param secsInDay Time of day. Can be negative or greater than a day when checking blocks from
+     *     the next or previous day.
+     * @param allowableBeforeTimeSecs How much before the block start time the block is considered
+     *     to be active
+     * @param allowableAfterStartTimeSecs If greater than or equal to zero then block considered
+     *     active only if within this number of seconds after the start time. If less then zero
+     *     then block considered active up to the block end time.
+     */
+    void addActive(
+            String serviceId,
+            BitSet positions,
+            int secsInDay,
+            int allowableBeforeTimeSecs,
+            int allowableAfterStartTimeSecs) {
+        ServiceBlocks serviceBlocks = getServiceBlocks(serviceId);
+        if (allowableAfterStartTimeSecs >= 0) {
+            // startTime - before < secsInDay < startTime + after
+            serviceBlocks.addStartingBetween(
+                    positions, secsInDay - allowableAfterStartTimeSecs, secsInDay + allowableBeforeTimeSecs);
+        } else {
+            // startTime - before < secsInDay < endTime. Blocks that have
+            // started plus the ones about to start. The ones about to start
+            // still need to not have ended, which is checked here.
+            serviceBlocks.addRunning(positions, secsInDay, allowableBeforeTimeSecs);
+            BitSet aboutToStart = new BitSet(serviceBlocks.blocks.length);
+            serviceBlocks.addStartingBetween(aboutToStart, secsInDay - 1, secsInDay + allowableBeforeTimeSecs);
+            for (int position = aboutToStart.nextSetBit(0); position >= 0; position = aboutToStart.nextSetBit(position + 1)) {
+                if (secsInDay < serviceBlocks.blocks[position].getEndTime()) positions.set(position);
+            }
+        }
+    }
+
+    /**
+     * Adds the positions of the blocks for the service ID that start within
+     * allowableBeforeTimeSecs after secsInDay, as defined by Block.isBeforeStartTime(int, int).
+     *
+     * @param serviceId
+     * @param positions Where the positions of the blocks are added
+     * @param secsInDay
+     * @param allowableBeforeTimeSecs
+     */
+    void addAboutToStart(String serviceId, BitSet positions, int secsInDay, int allowableBeforeTimeSecs) {
+        ServiceBlocks serviceBlocks = getServiceBlocks(serviceId);
+        serviceBlocks.addStartingBetween(positions, secsInDay, secsInDay + allowableBeforeTimeSecs);
+        // Also handle where time is before midnight but start time is after
+        serviceBlocks.addStartingBetween(
+                positions, secsInDay - Time.SEC_PER_DAY, secsInDay - Time.SEC_PER_DAY + allowableBeforeTimeSecs);
+    }
+
+    /**
+     * @param serviceId
+     * @param position
+     * @return The block at the position within DbConfig.getBlocks(serviceId)
+     */
+    Block getBlock(String serviceId, int position) {
+        return getServiceBlocks(serviceId).blocks[position];
+    }
+}
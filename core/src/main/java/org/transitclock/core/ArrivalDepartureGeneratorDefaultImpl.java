@@ -243,6 +243,7 @@ public class ArrivalDepartureGeneratorDefaultImpl implements ArrivalDepartureGen
 
         if (StopArrivalDepartureCacheFactory.getInstance() != null) {
             StopArrivalDepartureCacheFactory.getInstance().putArrivalDeparture(arrivalDeparture);
+            StopPathTraversalIndex.getInstance().putArrivalDeparture(arrivalDeparture);
         }
 
         if (DwellTimeModelCacheFactory.getInstance() != null) {
@@ -2,6 +2,7 @@
 package org.transitclock.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
@@ -21,7 +22,24 @@ import org.transitclock.utils.Time;
  */
 public class BlocksInfo {
 
+    // For quickly determining the active blocks. Recreated if the
+    // configuration is reread.
+    private static volatile ActiveBlocksIndex activeBlocksIndex = null;
 
+    /**
+     * Returns the index of the blocks for the current configuration, creating it if needed.
+     *
+     * @param dbConfig The current configuration
+     * @return the index
+     */
+    private static ActiveBlocksIndex getActiveBlocksIndex(DbConfig dbConfig) {
+        ActiveBlocksIndex index = activeBlocksIndex;
+        if (index == null || index.getDbConfig() != dbConfig) {
+            index = new ActiveBlocksIndex(dbConfig);
+            activeBlocksIndex = index;
+        }
+        return index;
+    }
 
     /**
      * Looks at all blocks that are for the current service ID and returns list of ones that will
@@ -33,7 +51,7 @@ public class BlocksInfo {
      */
     public static List<Block> getBlocksAboutToStart(int beforeStartTimeSecs) {
         // The list to be returned
-        List<Block> aboutToStartBlocks = new ArrayList<>(1000);
+        List<Block> aboutToStartBlocks = new ArrayList<>();
 
         Core core = Core.getInstance();
         if (core == null) return aboutToStartBlocks;
@@ -42,16 +60,16 @@ public class BlocksInfo {
         // Yes, there can be multiple ones active at once.
         Date now = SystemTime.getDate();
         Collection<String> currentServiceIds = core.getServiceUtils().getServiceIds(now);
+        int secsInDay = core.getTime().getSecondsIntoDay(now);
+        ActiveBlocksIndex index = getActiveBlocksIndex(core.getDbConfig());
 
         // For each service ID ...
         for (String serviceId : currentServiceIds) {
-            DbConfig dbConfig = core.getDbConfig();
-            Collection<Block> blocks = dbConfig.getBlocks(serviceId);
-
-            // If the block is about to be or currently active then
-            // add it to the list to be returned
-            for (Block block : blocks) {
-                if (block.isBeforeStartTime(now, beforeStartTimeSecs)) aboutToStartBlocks.add(block);
+            // Use the index to determine the blocks that are about to start
+            BitSet positions = new BitSet();
+            index.addAboutToStart(serviceId, positions, secsInDay, beforeStartTimeSecs);
+            for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1)) {
+                aboutToStartBlocks.add(index.getBlock(serviceId, position));
             }
         }
 
@@ -70,7 +88,9 @@ public class BlocksInfo {
     }
 
     /**
-     * Returns list of blocks that are currently active for the specified routes.
+     * Returns list of blocks that are currently active for the specified routes. Same as checking
+     * Block.isActive() for every block of the current service IDs but uses an index of the block
+     * times so that only the blocks that are actually active need to be looked at.
      *
      * @param routeIds Collection of routes IDs that want blocks for. Use null to indicate all
      *     routes.
@@ -90,22 +110,25 @@ public class BlocksInfo {
             int allowableBeforeTimeSecs,
             int allowableAfterStartTimeSecs) {
         // The list to be returned
-        List<Block> activeBlocks = new ArrayList<>(1000);
+        List<Block> activeBlocks = new ArrayList<>();
 
         Core core = Core.getInstance();
         if (core == null) return activeBlocks;
 
-        // Determine which service IDs are currently active
+        // Determine which service IDs are currently active. Also need the
+        // ones for the previous and next day since a block can be active
+        // for them too when near midnight.
         long now = SystemTime.getMillis();
         List<String> currentServiceIds = core.getServiceUtils().getServiceIdsForDay(now);
+        List<String> previousDayServiceIds = core.getServiceUtils().getServiceIdsForDay(now - Time.DAY_IN_MSECS);
+        List<String> nextDayServiceIds = core.getServiceUtils().getServiceIdsForDay(now + Time.DAY_IN_MSECS);
         Set<String> serviceIds = new HashSet<>(currentServiceIds);
 
         // If current time is just a couple of hours after midnight then need
         // to also look at service IDs for previous day as well since a block
         // from the previous day might still be running after midnight.
-        int secsInDayForAvlReport = Core.getInstance().getTime().getSecondsIntoDay(now);
+        int secsInDayForAvlReport = core.getTime().getSecondsIntoDay(now);
         if (secsInDayForAvlReport < 4 * Time.HOUR_IN_SECS) {
-            List<String> previousDayServiceIds = core.getServiceUtils().getServiceIdsForDay(now - Time.DAY_IN_MSECS);
             serviceIds.addAll(previousDayServiceIds);
         }
 
@@ -113,18 +136,41 @@ public class BlocksInfo {
         // service IDs from the next day since a block might start soon after
         // midnight.
         if (secsInDayForAvlReport > Time.DAY_IN_SECS - allowableBeforeTimeSecs) {
-            List<String> nextDayServiceIds = core.getServiceUtils().getServiceIdsForDay(now + Time.DAY_IN_MSECS);
             serviceIds.addAll(nextDayServiceIds);
         }
 
+        ActiveBlocksIndex index = getActiveBlocksIndex(core.getDbConfig());
+
         // For each service ID ...
         for (String serviceId : serviceIds) {
-            DbConfig dbConfig = core.getDbConfig();
-            Collection<Block> blocks = dbConfig.getBlocks(serviceId);
+            // Determine the blocks that are active. Like Block.isActive() the
+            // block times are compared to the time of day for each of the
+            // days that the service ID is valid for.
+            BitSet positions = new BitSet();
+            if (currentServiceIds.contains(serviceId)) {
+                index.addActive(
+                        serviceId, positions, secsInDayForAvlReport, allowableBeforeTimeSecs, allowableAfterStartTimeSecs);
+            }
+            if (previousDayServiceIds.contains(serviceId)) {
+                index.addActive(
+                        serviceId,
+                        positions,
+                        secsInDayForAvlReport + Time.DAY_IN_SECS,
+                        allowableBeforeTimeSecs,
+                        allowableAfterStartTimeSecs);
+            }
+            if (nextDayServiceIds.contains(serviceId)) {
+                index.addActive(
+                        serviceId,
+                        positions,
+                        secsInDayForAvlReport - Time.DAY_IN_SECS,
+                        allowableBeforeTimeSecs,
+                        allowableAfterStartTimeSecs);
+            }
+
+            for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1)) {
+                Block block = index.getBlock(serviceId, position);
 
-            // If the block is about to be or currently active then
-            // add it to the list to be returned
-            for (Block block : blocks) {
                 // If this is a block to ignore then simply continue to the
                 // next one
                 if (blockIdsToIgnore != null && blockIdsToIgnore.contains(block.getId())) continue;
@@ -142,10 +188,8 @@ public class BlocksInfo {
                     }
                 }
 
-                // If block currently active and is for specified route then
-                // add it to the list
-                if (block.isActive(now, allowableBeforeTimeSecs, allowableAfterStartTimeSecs) && forSpecifiedRoute)
-                    activeBlocks.add(block);
+                // If block is for specified route then add it to the list
+                if (forSpecifiedRoute) activeBlocks.add(block);
             }
         }
 
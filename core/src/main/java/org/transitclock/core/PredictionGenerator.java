@@ -35,129 +35,73 @@ public abstract class PredictionGenerator {
 
 
 
-    protected TravelTimeDetails getLastVehicleTravelTime(VehicleState currentVehicleState, Indices indices) {
-
-        StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-                indices.getStopPath().getStopId(),
-                new Date(currentVehicleState.getMatch().getAvlTime()));
-
+    /**
+     * Returns the most recent traversal of the stop path of the indices by another vehicle,
+     * going in the same direction, on the day of the match of the vehicle. Uses the
+     * StopPathTraversalIndex so that the whole day's history of the stops doesn't need to be
+     * searched.
+     *
+     * @param currentVehicleState
+     * @param indices
+     * @return The departure from the previous stop and the arrival at the stop of the stop path.
+     *     The arrival is null if the vehicle that most recently departed the previous stop hasn't
+     *     yet arrived at the stop. Null if no other vehicle departed the previous stop. Unlike
+     *     getLastVehicleTravelTime() the travel time can be zero or negative, and that isn't
+     *     logged as a prediction event.
+     */
+    protected TravelTimeDetails getLastTraversal(VehicleState currentVehicleState, Indices indices) {
         /* TODO how do we handle the the first stop path. Where do we get the first stop id. */
-        if (!indices.atBeginningOfTrip()) {
-            String currentStopId = indices.getPreviousStopPath().getStopId();
-
-            StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(
-                    currentStopId, new Date(currentVehicleState.getMatch().getAvlTime()));
-
-            List<IpcArrivalDeparture> currentStopList =
-                    StopArrivalDepartureCacheFactory.getInstance().getStopHistory(currentStopKey);
-
-            List<IpcArrivalDeparture> nextStopList =
-                    StopArrivalDepartureCacheFactory.getInstance().getStopHistory(nextStopKey);
-
-            if (currentStopList != null && nextStopList != null) {
-                // lists are already sorted when put into cache.
-                for (IpcArrivalDeparture currentArrivalDeparture : currentStopList) {
-
-                    if (currentArrivalDeparture.isDeparture()
-                            && !currentArrivalDeparture.getVehicleId().equals(currentVehicleState.getVehicleId())
-                            && (currentVehicleState.getTrip().getDirectionId() == null
-                                    || currentVehicleState
-                                            .getTrip()
-                                            .getDirectionId()
-                                            .equals(currentArrivalDeparture.getDirectionId()))) {
-                        IpcArrivalDeparture found;
-
-                        if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-                            TravelTimeDetails travelTimeDetails = new TravelTimeDetails(currentArrivalDeparture, found);
-                            if (travelTimeDetails.getTravelTime() > 0) {
-                                return travelTimeDetails;
-
-                            } else {
-                                String description = found + " : " + currentArrivalDeparture;
-                                PredictionEvent.create(
-                                        currentVehicleState.getAvlReport(),
-                                        currentVehicleState.getMatch(),
-                                        PredictionEvent.TRAVELTIME_EXCEPTION,
-                                        description,
-                                        travelTimeDetails.getArrival().getStopId(),
-                                        travelTimeDetails.getDeparture().getStopId(),
-                                        travelTimeDetails.getArrival().getVehicleId(),
-                                        travelTimeDetails.getArrival().getTime(),
-                                        travelTimeDetails.getDeparture().getTime());
-                                return null;
-                            }
-                        } else {
-                            return null;
-                        }
-                    }
-                }
-            }
-        }
+        if (indices.atBeginningOfTrip()) return null;
+
+        Date avlTime = new Date(currentVehicleState.getMatch().getAvlTime());
+        StopPathTraversalIndex traversalIndex = StopPathTraversalIndex.getInstance();
+        IpcArrivalDeparture departure = traversalIndex.getLastDeparture(
+                indices.getPreviousStopPath().getStopId(),
+                avlTime,
+                currentVehicleState.getTrip().getDirectionId(),
+                currentVehicleState.getVehicleId());
+        if (departure == null) return null;
+
+        IpcArrivalDeparture arrival = traversalIndex.getLastArrival(
+                indices.getStopPath().getStopId(), avlTime, departure.getVehicleId(), departure.getTripId());
+        return new TravelTimeDetails(departure, arrival);
+    }
+
+    protected TravelTimeDetails getLastVehicleTravelTime(VehicleState currentVehicleState, Indices indices) {
+        TravelTimeDetails travelTimeDetails = getLastTraversal(currentVehicleState, indices);
+        if (travelTimeDetails == null || travelTimeDetails.getArrival() == null) return null;
+
+        if (travelTimeDetails.getTravelTime() > 0) return travelTimeDetails;
+
+        String description = travelTimeDetails.getArrival() + " : " + travelTimeDetails.getDeparture();
+        PredictionEvent.create(
+                currentVehicleState.getAvlReport(),
+                currentVehicleState.getMatch(),
+                PredictionEvent.TRAVELTIME_EXCEPTION,
+                description,
+                travelTimeDetails.getArrival().getStopId(),
+                travelTimeDetails.getDeparture().getStopId(),
+                travelTimeDetails.getArrival().getVehicleId(),
+                travelTimeDetails.getArrival().getTime(),
+                travelTimeDetails.getDeparture().getTime());
         return null;
     }
 
     protected Indices getLastVehicleIndices(VehicleState currentVehicleState, Indices indices) {
+        TravelTimeDetails travelTimeDetails = getLastTraversal(currentVehicleState, indices);
+        if (travelTimeDetails == null || travelTimeDetails.getArrival() == null) return null;
 
-        StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-                indices.getStopPath().getStopId(),
-                new Date(currentVehicleState.getMatch().getAvlTime()));
+        IpcArrivalDeparture departure = travelTimeDetails.getDeparture();
+        IpcArrivalDeparture arrival = travelTimeDetails.getArrival();
+        // If not positive then must be going backwards
+        if (arrival.getTime().getTime() - departure.getTime().getTime() <= 0) return null;
 
-        /* TODO how do we handle the the first stop path. Where do we get the first stop id. */
-        if (!indices.atBeginningOfTrip()) {
-            String currentStopId = indices.getPreviousStopPath().getStopId();
-
-            StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(
-                    currentStopId, new Date(currentVehicleState.getMatch().getAvlTime()));
-
-            List<IpcArrivalDeparture> currentStopList =
-                    StopArrivalDepartureCacheFactory.getInstance().getStopHistory(currentStopKey);
-
-            List<IpcArrivalDeparture> nextStopList =
-                    StopArrivalDepartureCacheFactory.getInstance().getStopHistory(nextStopKey);
-
-            if (currentStopList != null && nextStopList != null) {
-                // lists are already sorted when put into cache.
-                for (IpcArrivalDeparture currentArrivalDeparture : currentStopList) {
-
-                    if (currentArrivalDeparture.isDeparture()
-                            && !currentArrivalDeparture.getVehicleId().equals(currentVehicleState.getVehicleId())
-                            && (currentVehicleState.getTrip().getDirectionId() == null
-                                    || currentVehicleState
-                                            .getTrip()
-                                            .getDirectionId()
-                                            .equals(currentArrivalDeparture.getDirectionId()))) {
-                        IpcArrivalDeparture found;
-
-                        if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-                            if (found.getTime().getTime()
-                                            - currentArrivalDeparture.getTime().getTime()
-                                    > 0) {
-                                Block currentBlock = null;
-                                /* block is transient in arrival departure so when read from database need to get from dbconfig. */
-
-                                DbConfig dbConfig = Core.getInstance().getDbConfig();
-
-                                currentBlock = dbConfig.getBlock(
-                                        currentArrivalDeparture.getServiceId(), currentArrivalDeparture.getBlockId());
-
-                                if (currentBlock != null)
-                                    return new Indices(
-                                            currentBlock,
-                                            currentArrivalDeparture.getTripIndex(),
-                                            found.getStopPathIndex(),
-                                            0);
-                            } else {
-                                // must be going backwards
-                                return null;
-                            }
-                        } else {
-                            return null;
-                        }
-                    }
-                }
-            }
-        }
-        return null;
+        /* block is transient in arrival departure so when read from database need to get from dbconfig. */
+        DbConfig dbConfig = Core.getInstance().getDbConfig();
+        Block currentBlock = dbConfig.getBlock(departure.getServiceId(), departure.getBlockId());
+        if (currentBlock == null) return null;
+
+        return new Indices(currentBlock, departure.getTripIndex(), arrival.getStopPathIndex(), 0);
     }
 
     /* TODO could also make it a requirement that it is on the same route as the one we are generating prediction for */
@@ -269,6 +213,31 @@ public abstract class PredictionGenerator {
         return times;
     }
 
+    /**
+     * Same as lastDaysTimes() but returns just the travel times, most recent first. Uses the
+     * travel times kept by the cache if it has them so that the trip history of each of the days
+     * doesn't need to be searched.
+     */
+    protected long[] lastDaysTravelTimes(
+            TripDataHistoryCacheInterface cache,
+            String tripId,
+            String direction,
+            int stopPathIndex,
+            Date startDate,
+            Integer startTime,
+            int num_days_look_back,
+            int num_days) {
+        long[] travelTimes =
+                cache.getLastDaysTravelTimes(tripId, startTime, stopPathIndex, startDate, num_days_look_back, num_days);
+        if (travelTimes != null) return travelTimes;
+
+        return lastDaysTimes(
+                        cache, tripId, direction, stopPathIndex, startDate, startTime, num_days_look_back, num_days)
+                .stream()
+                .mapToLong(TravelTimeDetails::getTravelTime)
+                .toArray();
+    }
+
     protected IpcArrivalDeparture getArrival(int stopPathIndex, List<IpcArrivalDeparture> results) {
         for (IpcArrivalDeparture result : results) {
             if (result.isArrival() && result.getStopPathIndex() == stopPathIndex) {
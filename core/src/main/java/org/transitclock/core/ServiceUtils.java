@@ -1,15 +1,19 @@
 /* (C)2023 */
 package org.transitclock.core;
 
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.Core;
@@ -30,21 +34,77 @@ import static org.transitclock.config.data.ServiceConfig.minutesIntoMorningToInc
 @Slf4j
 public class ServiceUtils {
 
-    private final GregorianCalendar calendar;
+    // The range of days, relative to the first day requested, that the
+    // service IDs are determined for at once. When a day outside the table
+    // is requested the table is extended, up to MAX_DAYS_IN_TABLE days.
+    private static final int DAYS_BEFORE = 7;
+    private static final int DAYS_AFTER = 30;
+    private static final int MAX_DAYS_IN_TABLE = 400;
 
-    private final DbConfig dbConfig;
     /**
-     * ServiceUtils constructor. Creates reusable GregorianCalendar and sets the timezone so that
-     * the calendar can be reused.
+     * The service IDs for a range of consecutive days. Immutable so that it can be read by
+     * multiple threads without locking. Replaced as a whole when more days are needed.
+     */
+    private record ServiceDays(long firstEpochDay, List<List<String>> serviceIdsByDay) {
+        private long lastEpochDay() {
+            return firstEpochDay + serviceIdsByDay.size() - 1;
+        }
+
+        private List<String> get(long epochDay) {
+            if (epochDay < firstEpochDay || epochDay > lastEpochDay()) return null;
+            return serviceIdsByDay.get((int) (epochDay - firstEpochDay));
+        }
+    }
+
+    // For determining the day of the week
+    private final ZoneId agencyZoneId;
+
+    // For determining the service day. Same as Time.getStartOfDay(), which is
+    // also used for the calendar dates, so uses the default timezone.
+    private final ZoneId serviceDayZoneId;
+
+    private final List<Calendar> calendars;
+
+    // For getting the calendar dates for the day of a time
+    private final Function<Date, List<CalendarDate>> calendarDatesForDay;
+
+    // Keyed on service ID. For when there are multiple calendars for a
+    // service ID, which shouldn't happen, the first one is used.
+    private final Map<String, Calendar> calendarsByServiceId = new HashMap<>();
+
+    private volatile ServiceDays serviceDays = null;
+
+    /**
+     * ServiceUtils constructor. Uses the timezone of the agency for determining the day of the
+     * week.
      *
-     * @param timezoneName See http://en.wikipedia.org/wiki/List_of_tz_zones
+     * @param dbConfig The configuration that the service IDs are determined from
      */
     public ServiceUtils(DbConfig dbConfig) {
+        this(agencyZoneId(dbConfig), dbConfig.getCalendars(), dbConfig::getCalendarDates);
+    }
 
-        Agency agency = dbConfig.getFirstAgency();
-        this.calendar = agency != null ? new GregorianCalendar(agency.getTimeZone()) : new GregorianCalendar();
+    /**
+     * @param agencyZoneId For determining the day of the week
+     * @param calendars All the calendars
+     * @param calendarDatesForDay Returns the calendar dates for the day of the time passed in, or
+     *     null if there are none
+     */
+    ServiceUtils(
+            ZoneId agencyZoneId, List<Calendar> calendars, Function<Date, List<CalendarDate>> calendarDatesForDay) {
+        this.agencyZoneId = agencyZoneId;
+        this.serviceDayZoneId = ZoneId.systemDefault();
+        this.calendars = calendars;
+        this.calendarDatesForDay = calendarDatesForDay;
+
+        for (Calendar calendar : calendars) {
+            calendarsByServiceId.putIfAbsent(calendar.getServiceId(), calendar);
+        }
+    }
 
-        this.dbConfig = dbConfig;
+    private static ZoneId agencyZoneId(DbConfig dbConfig) {
+        Agency agency = dbConfig.getFirstAgency();
+        return agency != null ? agency.getTimeZone().toZoneId() : ZoneId.systemDefault();
     }
 
     /**
@@ -55,10 +115,11 @@ public class ServiceUtils {
      * @return Day of the week
      */
     public int getDayOfWeek(Date epochTime) {
-        synchronized (calendar) {
-            calendar.setTime(epochTime);
-            return calendar.get(java.util.Calendar.DAY_OF_WEEK);
-        }
+        DayOfWeek dayOfWeek =
+                Instant.ofEpochMilli(epochTime.getTime()).atZone(agencyZoneId).getDayOfWeek();
+        // java.util.Calendar uses SUNDAY=1 through SATURDAY=7 while DayOfWeek
+        // uses MONDAY=1 through SUNDAY=7
+        return dayOfWeek.getValue() % 7 + 1;
     }
 
     /**
@@ -75,7 +136,7 @@ public class ServiceUtils {
      * @return List of active Calendars
      */
     private List<Calendar> getActiveCalendars(Date epochTime) {
-        List<Calendar> originalCalendarList = dbConfig.getCalendars();
+        List<Calendar> originalCalendarList = calendars;
         List<Calendar> activeCalendarList = new ArrayList<Calendar>();
         long maxEndTime = 0;
 
@@ -133,32 +194,68 @@ public class ServiceUtils {
         return activeCalendarList;
     }
 
-    Map<Date, List<String>> serviceIdsForDate = new HashMap<Date, List<String>>();
-
     /**
-     * Caching version fo getServiceIdsForDay. Assumes epochTime can be distilled to a serviceDate.
-     * Note that boundary conditions may exist where serviceDate guess is wrong.
+     * Returns the service IDs for the service day of the specified time. The service IDs are
+     * determined once for each day and kept in an immutable table so that they can be looked up
+     * without locking.
      *
-     * <p>TODO as is this cache will grow without bounds, but the data should be small
+     * @param epochTime The time that determining service IDs for
+     * @return Unmodifiable list of service IDs that are active for the day of the specified time
      */
     public List<String> getServiceIdsForDay(Date epochTime) {
-        Date serviceDate = getStartOfDay(epochTime);
-        if (serviceIdsForDate.containsKey(serviceDate)) {
-            return serviceIdsForDate.get(serviceDate);
+        long epochDay = Instant.ofEpochMilli(epochTime.getTime())
+                .atZone(serviceDayZoneId)
+                .toLocalDate()
+                .toEpochDay();
+
+        ServiceDays days = serviceDays;
+        if (days != null) {
+            List<String> serviceIds = days.get(epochDay);
+            if (serviceIds != null) return serviceIds;
         }
-        List<String> serviceIds = getServiceIdsForDayNoCache(serviceDate);
-        serviceIdsForDate.put(serviceDate, serviceIds);
-        return serviceIds;
+
+        return addServiceDays(epochDay);
     }
 
-    private Date getStartOfDay(Date epochTime) {
-        java.util.Calendar c = java.util.Calendar.getInstance();
-        c.setTime(epochTime);
-        c.set(java.util.Calendar.HOUR, 0);
-        c.set(java.util.Calendar.MINUTE, 0);
-        c.set(java.util.Calendar.SECOND, 0);
-        c.set(java.util.Calendar.MILLISECOND, 0);
-        return c.getTime();
+    /**
+     * Creates a new table of service days that includes the specified day. If the table would
+     * become too large then a new one for just the days around the specified day is created.
+     *
+     * @param epochDay The day that is needed
+     * @return The service IDs for the day
+     */
+    private synchronized List<String> addServiceDays(long epochDay) {
+        // Another thread might have already added the day
+        ServiceDays days = serviceDays;
+        if (days != null && days.get(epochDay) != null) return days.get(epochDay);
+
+        long firstEpochDay = epochDay - DAYS_BEFORE;
+        long lastEpochDay = epochDay + DAYS_AFTER;
+        if (days != null
+                && Math.max(lastEpochDay, days.lastEpochDay()) - Math.min(firstEpochDay, days.firstEpochDay())
+                        < MAX_DAYS_IN_TABLE) {
+            firstEpochDay = Math.min(firstEpochDay, days.firstEpochDay());
+            lastEpochDay = Math.max(lastEpochDay, days.lastEpochDay());
+        } else {
+            days = null;
+        }
+
+        List<List<String>> serviceIdsByDay = new ArrayList<>((int) (lastEpochDay - firstEpochDay + 1));
+        for (long day = firstEpochDay; day <= lastEpochDay; ++day) {
+            List<String> serviceIds = days != null ? days.get(day) : null;
+            if (serviceIds == null) {
+                Date startOfDay = Date.from(
+                        LocalDate.ofEpochDay(day).atStartOfDay(serviceDayZoneId).toInstant());
+                serviceIds = List.copyOf(getServiceIdsForDayNoCache(startOfDay));
+            }
+            serviceIdsByDay.add(serviceIds);
+        }
+
+        ServiceDays newDays = new ServiceDays(firstEpochDay, List.copyOf(serviceIdsByDay));
+        serviceDays = newDays;
+        logger.debug("Determined service IDs for days {} through {}",
+                LocalDate.ofEpochDay(firstEpochDay), LocalDate.ofEpochDay(lastEpochDay));
+        return newDays.get(epochDay);
     }
 
     /**
@@ -198,7 +295,7 @@ public class ServiceUtils {
         // Go through calendar_dates to see if there is special service for
         // this date. Add or remove the special service.
 
-        List<CalendarDate> calendarDatesForNow = dbConfig.getCalendarDates(epochTime);
+        List<CalendarDate> calendarDatesForNow = calendarDatesForDay.apply(epochTime);
 
         if (calendarDatesForNow != null) {
             for (CalendarDate calendarDate : calendarDatesForNow) {
@@ -217,7 +314,7 @@ public class ServiceUtils {
                         serviceIds);
             }
         }
-        logger.info("Finished adding calendar dates");
+        logger.debug("Finished adding calendar dates");
 
         // Return the results
         return serviceIds;
@@ -292,21 +389,12 @@ public class ServiceUtils {
         // Result to be returned
         List<Calendar> currentCalendars = new ArrayList<Calendar>();
 
-        // Get list of all calendars that are configured
-        List<Calendar> allCalendars = dbConfig.getCalendars();
-
         // For each service ID that is currently active...
         Collection<String> currentServiceIds = getServiceIds(epochTime);
         for (String serviceId : currentServiceIds) {
             // Find corresponding calendar
-            for (Calendar calendar : allCalendars) {
-                if (calendar.getServiceId().equals(serviceId)) {
-                    // Found the calendar that corresponds to the service ID
-                    // so add it to the list
-                    currentCalendars.add(calendar);
-                    break;
-                }
-            }
+            Calendar calendar = calendarsByServiceId.get(serviceId);
+            if (calendar != null) currentCalendars.add(calendar);
         }
 
         // Return the results
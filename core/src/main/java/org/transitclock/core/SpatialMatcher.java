@@ -76,6 +76,41 @@ public class SpatialMatcher {
      * @return List of potential SpatialMatches. Can be empty but will not be null.
      */
     private List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport, Trip trip, MatchingType matchingType) {
+        if (CoreConfig.spatialMatchUsingSegmentIndex.getValue())
+            return getSpatialMatchesForTripUsingIndex(avlReport, trip, matchingType);
+        return getSpatialMatchesForTripExaminingEverySegment(avlReport, trip, matchingType);
+    }
+
+    /**
+     * Determines the spatial matches for the whole trip, either using the spatial index of the
+     * segments or by examining every segment, regardless of
+     * transitclock.core.spatialMatchUsingSegmentIndex. For verifying that both result in the same
+     * matches.
+     *
+     * @param avlReport
+     * @param trip
+     * @param matchingType for keeping track of what kind of spatial matching being done
+     * @param useSegmentIndex whether to use the spatial index of the segments
+     * @return List of potential SpatialMatches. Can be empty but will not be null.
+     */
+    static List<SpatialMatch> getSpatialMatchesForTrip(
+            AvlReport avlReport, Trip trip, MatchingType matchingType, boolean useSegmentIndex) {
+        SpatialMatcher spatialMatcher = new SpatialMatcher();
+        return useSegmentIndex
+                ? spatialMatcher.getSpatialMatchesForTripUsingIndex(avlReport, trip, matchingType)
+                : spatialMatcher.getSpatialMatchesForTripExaminingEverySegment(avlReport, trip, matchingType);
+    }
+
+    /**
+     * Same as getSpatialMatchesForTrip() but always examines every segment of the trip.
+     *
+     * @param avlReport
+     * @param trip
+     * @param matchingType for keeping track of what kind of spatial matching being done
+     * @return List of potential SpatialMatches. Can be empty but will not be null.
+     */
+    private List<SpatialMatch> getSpatialMatchesForTripExaminingEverySegment(
+            AvlReport avlReport, Trip trip, MatchingType matchingType) {
         Block block = trip.getBlock();
 
         // The matches to be returned
@@ -112,6 +147,84 @@ public class SpatialMatcher {
         return spatialMatches;
     }
 
+    /**
+     * Same as getSpatialMatchesForTrip() but uses the spatial index of the segments of the trip
+     * pattern so that only the segments near the AVL report, plus the layovers, are examined. A
+     * segment that is not near the AVL report is further away than the allowable distance, so
+     * examining it could only have completed a previous potential match, because the distance was
+     * getting worse again, and reset the distance to compare the next segment to. Therefore for
+     * each run of skipped segments that is done instead, which results in exactly the same matches
+     * as examining every segment.
+     *
+     * @param avlReport
+     * @param trip
+     * @param matchingType for keeping track of what kind of spatial matching being done
+     * @return List of potential SpatialMatches. Can be empty but will not be null.
+     */
+    private List<SpatialMatch> getSpatialMatchesForTripUsingIndex(
+            AvlReport avlReport, Trip trip, MatchingType matchingType) {
+        Block block = trip.getBlock();
+        int tripIndex = block.getTripIndex(trip);
+        SegmentsSpatialIndex segmentsIndex = trip.getTripPattern().getSegmentsSpatialIndex();
+
+        // Need all the segments that could be within the allowable distance
+        // of any of the stop paths
+        double maxDistance = getMaxAllowableDistanceFromSegment(trip.getRoute(), matchingType);
+        if (!Double.isNaN(segmentsIndex.getMaxStopPathMaxDistance()))
+            maxDistance = Math.max(maxDistance, segmentsIndex.getMaxStopPathMaxDistance());
+        BitSet nearbySegments = segmentsIndex.getSegmentsNear(avlReport.getLocation(), maxDistance);
+        TripPatternGeometry geometry = segmentsIndex.getGeometry();
+        double latRadians = Math.toRadians(avlReport.getLocation().getLat());
+        double lonRadians = Math.toRadians(avlReport.getLocation().getLon());
+
+        // The matches to be returned
+        List<SpatialMatch> spatialMatches = new ArrayList<>();
+
+        boolean skippedSegments = false;
+        for (int stopPathIndex = 0; stopPathIndex < trip.getNumberStopPaths(); ++stopPathIndex) {
+            StopPath stopPath = trip.getStopPath(stopPathIndex);
+            int numberSegments = stopPath.getNumberSegments();
+            for (int segmentIndex = 0; segmentIndex < numberSegments; ++segmentIndex) {
+                // Layovers always need to be examined since they can match
+                // even if the vehicle is away from the path
+                boolean atLayover = stopPath.isLayoverStop() && segmentIndex == numberSegments - 1;
+                int segment = geometry.getSegmentOffset(stopPathIndex, segmentIndex);
+                if (!atLayover && !nearbySegments.get(segment)) {
+                    skippedSegments = true;
+                    continue;
+                }
+
+                if (skippedSegments) {
+                    // Moved away from any potential match and then back
+                    if (previousPotentialSpatialMatch != null) {
+                        spatialMatches.add(previousPotentialSpatialMatch);
+                        previousPotentialSpatialMatch = null;
+                    }
+                    previousDistanceToSegment = Double.MAX_VALUE;
+                    skippedSegments = false;
+                }
+
+                Indices indices = new Indices(block, tripIndex, stopPathIndex, segmentIndex);
+                processPossiblePotentialMatch(
+                        avlReport,
+                        indices,
+                        spatialMatches,
+                        matchingType,
+                        geometry.distance(segment, latRadians, lonRadians),
+                        geometry.matchDistanceAlongSegment(segment, latRadians, lonRadians),
+                        geometry.getLength(segment),
+                        geometry.getHeading(segment));
+            }
+        }
+
+        // Handle boundary condition same as getSpatialMatchesForTrip()
+        if (previousPotentialSpatialMatch != null) {
+            spatialMatches.add(previousPotentialSpatialMatch);
+        }
+
+        return spatialMatches;
+    }
+
     /**
      * For list of spatial matches passed in returns the first non-layover one. This is needed
      * because for a trip always get a layover match in addition to the possible real spatial
@@ -450,10 +563,42 @@ public class SpatialMatcher {
             Indices potentialMatchIndices,
             List<SpatialMatch> spatialMatches,
             MatchingType matchingType) {
-        // Convenience variables
         VectorWithHeading segmentVector = potentialMatchIndices.getSegment();
-        double distanceToSegment = segmentVector.distance(avlReport.getLocation());
-        double distanceAlongSegment = segmentVector.matchDistanceAlongVector(avlReport.getLocation());
+        processPossiblePotentialMatch(
+                avlReport,
+                potentialMatchIndices,
+                spatialMatches,
+                matchingType,
+                segmentVector.distance(avlReport.getLocation()),
+                segmentVector.matchDistanceAlongVector(avlReport.getLocation()),
+                segmentVector.length(),
+                segmentVector.getHeading());
+    }
+
+    /**
+     * Same as processPossiblePotentialMatch() but for when the distances for the segment have
+     * already been determined, such as from the TripPatternGeometry of the trip pattern. This way
+     * no Vector objects need to be used.
+     *
+     * @param avlReport The new AVL report
+     * @param potentialMatchIndices Specifies block/trip/stop path where to look at match
+     * @param spatialMatches The list of spatial matches that should add any additional matches to
+     * @param matchingType for keeping track of what kind of spatial matching being done
+     * @param distanceToSegment Distance from the AVL report to the segment
+     * @param distanceAlongSegment Distance along the segment where the AVL report best matches
+     * @param segmentLength Length of the segment
+     * @param segmentHeading Heading of the segment
+     */
+    private void processPossiblePotentialMatch(
+            AvlReport avlReport,
+            Indices potentialMatchIndices,
+            List<SpatialMatch> spatialMatches,
+            MatchingType matchingType,
+            double distanceToSegment,
+            double distanceAlongSegment,
+            double segmentLength,
+            float segmentHeading) {
+        // Convenience variables
         boolean atLayover = potentialMatchIndices.isLayover();
 
         // Make sure only searching starting from previous spatial match.
@@ -512,7 +657,7 @@ public class SpatialMatcher {
         // If layover then need to set distanceAlongSegment to the length of
         // the path so that the match is with the actual stop.
         if (atLayover) {
-            distanceAlongSegment = potentialMatchIndices.getSegment().length();
+            distanceAlongSegment = segmentLength;
         }
 
         // Create the SpatialMatch object for the specified indices
@@ -532,8 +677,8 @@ public class SpatialMatcher {
         // If the match is better than the previous one then it trending
         // towards a minimum so keep track of it if heading and distance are OK.
         if (distanceToSegment < previousDistanceToSegment) {
-            boolean headingOK =
-                    segmentVector.headingOK(avlReport.getHeading(), CoreConfig.getMaxHeadingOffsetFromSegment());
+            boolean headingOK = Geo.headingOK(
+                    avlReport.getHeading(), segmentHeading, CoreConfig.getMaxHeadingOffsetFromSegment());
             boolean distanceOK =
                     distanceToSegment < getMaxAllowableDistanceFromSegment(potentialMatchIndices, matchingType);
 
@@ -15,6 +15,10 @@ import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.transitclock.config.data.BlockAssignerConfig.allowableEarlySeconds;
 import static org.transitclock.config.data.BlockAssignerConfig.allowableLateSeconds;
@@ -48,8 +52,28 @@ public class AutoBlockAssigner {
 
     // Contains the results of spatial matching the avl report to the
     // specified trip pattern. Keyed on trip pattern ID. Note: since the spatial
-    // matches are cached and reused the block member will not be correct
-    private final Map<String, SpatialMatch> spatialMatchCache = new HashMap<>();
+    // matches are cached and reused the block member will not be correct.
+    // Synchronized since blocks can be examined in parallel. Not a
+    // ConcurrentHashMap because null is stored when there is no match.
+    private final Map<String, SpatialMatch> spatialMatchCache = Collections.synchronizedMap(new HashMap<>());
+
+    /**
+     * The pool used for examining blocks in parallel. Shared by all vehicles so that the number of
+     * threads is bounded even when many vehicles are auto assigned at once. Only created if
+     * parallel matching is enabled.
+     */
+    private static class ParallelMatchingPool {
+        private static final ForkJoinPool pool = new ForkJoinPool(
+                BlockAssignerConfig.parallelMatchingThreads.getValue(),
+                forkJoinPool -> {
+                    ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                    thread.setName("autoBlockAssigner-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null,
+                false);
+    }
 
     /**
      * Constructor
@@ -557,20 +581,15 @@ public class AutoBlockAssigner {
             logger.info("For vehicleId={} examining {} blocks for matches.", vehicleId, blocksToExamine.size());
         }
 
-        // For each active block that is currently unassigned...
-        for (Block block : blocksToExamine) {
-            logger.debug(
-                    "For vehicleId={} examining blockId={} for match. The block contains the routes {}. {}",
-                    vehicleId,
-                    block.getId(),
-                    block.getRouteIds(),
-                    block.toShortString());
-
-            // Determine best match for the block depending on whether the
-            // block is schedule based or not
-            TemporalMatch bestMatch = block.isNoSchedule() ? bestNoScheduleMatch(block) : bestScheduleMatch(block);
-            if (bestMatch != null) {
-                validMatches.add(bestMatch);
+        if (BlockAssignerConfig.parallelMatching.getValue()) {
+            validMatches = determineTemporalMatchesInParallel(blocksToExamine);
+        } else {
+            // For each active block that is currently unassigned...
+            for (Block block : blocksToExamine) {
+                TemporalMatch bestMatch = bestMatch(block);
+                if (bestMatch != null) {
+                    validMatches.add(bestMatch);
+                }
             }
         }
 
@@ -582,6 +601,68 @@ public class AutoBlockAssigner {
         return validMatches;
     }
 
+    /**
+     * Determines the best match for the block depending on whether the block is schedule based or
+     * not.
+     *
+     * @param block The block to try to match to
+     * @return Best TemporalMatch to the block assignment, or null if no adequate match
+     */
+    private TemporalMatch bestMatch(Block block) {
+        logger.debug(
+                "For vehicleId={} examining blockId={} for match. The block contains the routes {}. {}",
+                vehicleState.getVehicleId(),
+                block.getId(),
+                block.getRouteIds(),
+                block.toShortString());
+
+        return block.isNoSchedule() ? bestNoScheduleMatch(block) : bestScheduleMatch(block);
+    }
+
+    /**
+     * Same as the loop in determineTemporalMatches() but the blocks are examined in parallel using
+     * the shared ParallelMatchingPool. A vehicle is only auto assigned if there is a single valid
+     * match. Therefore once two valid matches have been found the result is known to be ambiguous
+     * and the blocks not yet examined are skipped. The thread processing the AVL report waits for
+     * the results, so the vehicle state is not modified while the blocks are being examined.
+     *
+     * @param blocksToExamine
+     * @return The valid matches, in the same order as the blocks. If there are multiple matches
+     *     then not all blocks might have been examined.
+     */
+    private List<TemporalMatch> determineTemporalMatchesInParallel(List<Block> blocksToExamine) {
+        TemporalMatch[] matchesByBlock = new TemporalMatch[blocksToExamine.size()];
+        AtomicInteger numberOfMatches = new AtomicInteger();
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(blocksToExamine.size());
+        for (int i = 0; i < blocksToExamine.size(); ++i) {
+            int blockIndex = i;
+            Block block = blocksToExamine.get(i);
+            tasks.add(ParallelMatchingPool.pool.submit(() -> {
+                // If already ambiguous then don't need to look at block
+                if (numberOfMatches.get() > 1) return;
+
+                TemporalMatch bestMatch = bestMatch(block);
+                if (bestMatch != null) {
+                    matchesByBlock[blockIndex] = bestMatch;
+                    numberOfMatches.incrementAndGet();
+                }
+            }));
+        }
+
+        // Wait for all the blocks. Joining also makes the results visible
+        // to this thread.
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        List<TemporalMatch> validMatches = new ArrayList<>();
+        for (TemporalMatch match : matchesByBlock) {
+            if (match != null) validMatches.add(match);
+        }
+        return validMatches;
+    }
+
     /**
      * Determines if the auto assigner is being called too recently, as specified by the
      * transitclock.autoBlockAssigner.minTimeBetweenAutoAssigningSecs property. This is important
@@ -7,6 +7,7 @@ import org.transitclock.config.data.AvlConfig;
 import org.transitclock.domain.structs.AvlReport;
 import org.transitclock.utils.threading.NamedThreadFactory;
 
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
@@ -14,7 +15,9 @@ import java.util.concurrent.*;
  * AVL reports. One can dump AVL reports into this executor and then have them be executed, possibly
  * using multiple threads. The number of threads is specified using the Java property
  * transitclock.avl.numThreads . The queue size is set using the Java property
- * transitclock.avl.queueSize .
+ * transitclock.avl.queueSize . If transitclock.avl.useVehicleShardedExecutor is set then a
+ * {@link VehicleShardedAvlExecutor} is used instead so that each vehicle is always processed by the
+ * same single threaded lane.
  *
  * <p>Causes AvlClient.run() to be called on each AvlReport, unless using test executor, in which
  * case the AvlClientTester() is called.
@@ -27,6 +30,8 @@ public class AvlExecutor {
     private static final int MAX_THREADS = 25;
     private static AvlExecutor singleton;
     private final Executor avlClientExecutor;
+    // The queues used by the executor. Kept so that backpressure can be monitored
+    private final List<AvlReportProcessorQueue> queues;
     private final AvlReportProcessorFactory avlReportProcessorFactory;
 
     public AvlExecutor(AvlReportProcessorFactory avlReportProcessorFactory) {
@@ -46,9 +51,21 @@ public class AvlExecutor {
             numberThreads = MAX_THREADS;
         }
 
+        if (AvlConfig.useVehicleShardedExecutor.getValue()) {
+            int numberLanes = Math.max(1, AvlConfig.numAvlLanes.getValue());
+            // The queue size is for all of the lanes together
+            int maxQueueSizePerLane = Math.max(1, (maxAVLQueueSize + numberLanes - 1) / numberLanes);
+            logger.info("Starting AvlExecutor using vehicle sharded lanes. maxAVLQueueSize={}, numberLanes={} and maxQueueSizePerLane={}", maxAVLQueueSize, numberLanes, maxQueueSizePerLane);
+            VehicleShardedAvlExecutor shardedExecutor = new VehicleShardedAvlExecutor(numberLanes, maxQueueSizePerLane);
+            avlClientExecutor = shardedExecutor;
+            queues = shardedExecutor.getQueues();
+            return;
+        }
+
         logger.info("Starting AvlExecutor for directly handling AVL reports via a queue instead of JMS. maxAVLQueueSize={} and numberThreads={}", maxAVLQueueSize, numberThreads);
 
         AvlReportProcessorQueue workQueue = new AvlReportProcessorQueue(maxAVLQueueSize);
+        queues = List.of(workQueue);
         NamedThreadFactory avlClientThreadFactory = new NamedThreadFactory("avlClient");
 
         // Called when queue fills up
@@ -81,6 +98,16 @@ public class AvlExecutor {
         return singleton;
     }
 
+    /**
+     * Returns the singleton instance only if it has already been created. For monitoring, so that
+     * just looking at the executor doesn't create it and start its threads.
+     *
+     * @return the singleton AvlExecutor, or null if not created yet
+     */
+    public static synchronized AvlExecutor getInstanceIfCreated() {
+        return singleton;
+    }
+
     /**
      * Instead of writing AVL report to JMS topic this method directly processes it. By doing this
      * one can bypass the need for a JMS server. Uses a thread executor so that can both use
@@ -100,6 +127,61 @@ public class AvlExecutor {
      */
     public void processAvlReport(AvlReport avlReport) {
         AvlReportProcessor client = avlReportProcessorFactory.createClient(avlReport);
-        avlClientExecutor.execute(client);
+        try {
+            avlClientExecutor.execute(client);
+        } catch (RejectedExecutionException e) {
+            logger.error("Rejected AVL report {} in AvlExecutor for agencyId={}. {}", avlReport, AgencyConfig.getAgencyId(), e.getMessage());
+        }
+    }
+
+    /** @return Number of vehicles with an AVL report waiting to be processed */
+    public int getQueueSize() {
+        return queues.stream().mapToInt(AvlReportProcessorQueue::size).sum();
+    }
+
+    /** @return Max number of vehicles that can have an AVL report waiting to be processed */
+    public int getQueueCapacity() {
+        return queues.stream().mapToInt(AvlReportProcessorQueue::getCapacity).sum();
+    }
+
+    /**
+     * Returns how full the AVL queue is, from 0.0 to 1.0. Useful for monitoring backpressure. When
+     * using multiple lanes it is the level of the fullest lane since reports are rejected once any
+     * single lane is full.
+     *
+     * @return fraction of queue capacity used
+     */
+    public double queueLevel() {
+        double level = 0.0;
+        for (AvlReportProcessorQueue queue : queues) {
+            int capacity = queue.getCapacity();
+            if (capacity > 0) level = Math.max(level, (double) queue.size() / capacity);
+        }
+        return level;
+    }
+
+    /** @return Number of AVL reports replaced by a newer one for the same vehicle while queued */
+    public long getCoalescedCount() {
+        return queues.stream().mapToLong(AvlReportProcessorQueue::getCoalescedCount).sum();
+    }
+
+    /** @return Number of AVL reports rejected because the queue was full */
+    public long getRejectedCount() {
+        return queues.stream().mapToLong(AvlReportProcessorQueue::getRejectedCount).sum();
+    }
+
+    /** @return Average time in msec that AVL reports waited in the queue before being processed */
+    public double getAverageQueueWaitMsec() {
+        long dequeued = queues.stream().mapToLong(AvlReportProcessorQueue::getDequeuedCount).sum();
+        if (dequeued == 0) return 0.0;
+
+        long totalWaitNanos = queues.stream().mapToLong(AvlReportProcessorQueue::getTotalQueueWaitNanos).sum();
+        return (double) TimeUnit.NANOSECONDS.toMicros(totalWaitNanos) / dequeued / 1000.0;
+    }
+
+    /** @return Longest time in msec that an AVL report waited in the queue */
+    public long getMaxQueueWaitMsec() {
+        long maxWaitNanos = queues.stream().mapToLong(AvlReportProcessorQueue::getMaxQueueWaitNanos).max().orElse(0);
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
     }
 }
@@ -1,177 +1,268 @@
 /* (C)2023 */
 package org.transitclock.core.avl;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.domain.structs.AvlReport;
 
 /**
- * A queue of {@link AvlReportProcessor} runnables that can be used with a ThreadPoolExecutor. Implements by
- * subclassing a ArrayBlockingQueue<Runnable> where the Runnable is an AvlClient. Also keeps track
- * of the last AVL report per vehicle. When getting data from queue, if the data is obsolete (a new
- * AVL report has been received for the vehicle) then that element from the queue is thrown out and
- * the next item is retrieved until a non-obsolete one is found.
+ * A queue of {@link AvlReportProcessor} runnables that can be used with a ThreadPoolExecutor. Keeps
+ * at most one pending AvlReportProcessor per vehicle. When a new AVL report is offered for a
+ * vehicle that already has a report waiting in the queue then the pending one is replaced in place
+ * by the newer one, so the obsolete report never takes up a slot in the queue and offer() never
+ * blocks. The capacity of the queue therefore only needs to be as large as the fleet instead of
+ * being sized to handle bursts of AVL data.
  *
- * <p>Extended ArrayBlockingQueue class so that don't have to create a blocking queue from scratch.
+ * <p>Vehicles are handed out in the order in which they first had a report queued so that all
+ * vehicles are serviced fairly.
  *
- * <p>Note: wanted to extend from ArrayBlockingQueue<AvlClient> but that didn't work for the
+ * <p>Also keeps track of statistics so that backpressure can be monitored: the number of reports
+ * that were coalesced, the number rejected because the queue was full, and how long reports waited
+ * in the queue.
+ *
+ * <p>Note: wanted to implement BlockingQueue<AvlClient> but that didn't work for the
  * ThreadPoolExecutor which expects a BlockingQueue<Runnable>. So had to resort to doing ugly casts.
  *
  * @author SkiBu Smith
  */
 @Slf4j
-public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcessor> {
+public class AvlReportProcessorQueue extends AbstractQueue<AvlReportProcessor>
+        implements BlockingQueue<AvlReportProcessor> {
+
+    // The pending AVL report for each vehicle that has one. Keyed on vehicleId
+    private final Map<String, PendingReport> pendingReportPerVehicle = new ConcurrentHashMap<>();
+
+    // Order in which vehicles are to be serviced. Each vehicle is in here
+    // at most once since subsequent reports replace the pending one.
+    private final LinkedBlockingQueue<String> vehicleOrder;
+
+    private final int capacity;
+
+    // Number of vehicles with a pending report. A slot is reserved while the
+    // pending report is being added so that a report is never added and
+    // then has to be removed again because vehicleOrder is full, which
+    // could remove a newer report that another thread coalesced into it.
+    private final AtomicInteger reservedSlots = new AtomicInteger();
 
-    // For keeping track of the last AVL report for each vehicle. Used to
-    // determine if AVL report from queue is obsolete.
-    private final ConcurrentHashMap<String, AvlReport> avlDataPerVehicleMap = new ConcurrentHashMap<>();
+    // Statistics for monitoring backpressure
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final LongAdder totalQueueWaitNanos = new LongAdder();
+    private final LongAdder dequeuedCount = new LongAdder();
+    private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Math::max, 0);
+
+    /** A report waiting in the queue plus when its vehicle was first queued */
+    private record PendingReport(AvlReportProcessor processor, long enqueuedNanos) {}
 
     /**
      * Constructs the queue to have specified size.
      *
-     * @param queueSize How many AVL elements can be put into the queue before it blocks.
+     * @param queueSize How many vehicles can have a pending AVL report before offer() rejects
+     *     reports for additional vehicles.
      */
     public AvlReportProcessorQueue(int queueSize) {
-        super(queueSize);
+        this.capacity = queueSize;
+        this.vehicleOrder = new LinkedBlockingQueue<>(queueSize);
     }
 
     /**
-     * Adds the AVL report to the map of last AVL report for each vehicle
+     * Adds the AVL report to the queue without blocking. If the vehicle already has a pending
+     * report then that one is replaced, unless it is actually newer, and true is returned. Used by
+     * ThreadPoolExecutor.
      *
-     * @param runnable the AvlClient
+     * @return false only if the queue is full and the vehicle did not already have a pending report
      */
-    private void addToAvlDataPerVehicleMap(AvlReportProcessor runnable) {
-        if (runnable == null)
-            throw new IllegalArgumentException("Runnable must be AvlClient.");
-
+    @Override
+    public boolean offer(@NonNull AvlReportProcessor runnable) {
         AvlReport avlReport = runnable.getAvlReport();
-        avlDataPerVehicleMap.put(avlReport.getVehicleId(), avlReport);
-    }
+        String vehicleId = avlReport.getVehicleId();
 
-    /**
-     * Returns true if the AVL report is older than the latest one for the vehicle and is therefore
-     * obsolete and doesn't need to be processed.
-     *
-     * @param runnableFromQueue {@link AvlReportProcessor} from the queue containing an AvlReport
-     * @return true of obsolete
-     */
-    private boolean isObsolete(AvlReportProcessor runnableFromQueue) {
-        if (runnableFromQueue == null)
-            throw new IllegalArgumentException("Runnable must be AvlClient.");
-
-        AvlReport avlReportFromQueue = runnableFromQueue.getAvlReport();
-
-        AvlReport lastAvlReportForVehicle = avlDataPerVehicleMap.get(avlReportFromQueue.getVehicleId());
-        boolean obsolete = lastAvlReportForVehicle != null && avlReportFromQueue.getTime() < lastAvlReportForVehicle.getTime();
-        if (obsolete) {
-            logger.debug(
-                    "AVL report from queue is obsolete (there is a newer "
-                            + "one for the vehicle). Therefore ignoring this report so "
-                            + "can move on to next valid report for another vehicle. "
-                            + "From queue {}. Last AVL report in map {}. Size of queue "
-                            + "is {}",
-                    avlReportFromQueue,
-                    lastAvlReportForVehicle,
-                    size());
+        boolean[] newlyPending = new boolean[1];
+        boolean[] rejected = new boolean[1];
+        pendingReportPerVehicle.compute(vehicleId, (key, pending) -> {
+            if (pending == null) {
+                if (!reserveSlot()) {
+                    rejected[0] = true;
+                    return null;
+                }
+                newlyPending[0] = true;
+                return new PendingReport(runnable, System.nanoTime());
+            }
+
+            coalescedCount.incrementAndGet();
+            if (avlReport.getTime() < pending.processor().getAvlReport().getTime()) {
+                logger.debug("AVL report is obsolete (there is a newer one already queued for the vehicle). Therefore ignoring {}", avlReport);
+                return pending;
+            }
+            // Replace in place but keep original enqueue time so that queue
+            // wait reflects how long the vehicle has been waiting
+            return new PendingReport(runnable, pending.enqueuedNanos());
+        });
+
+        if (rejected[0]) {
+            rejectedCount.incrementAndGet();
+            logger.debug("offer() rejected {} because queue with capacity {} is full", avlReport, capacity);
+            return false;
         }
-        return obsolete;
+
+        // Can't fail since a slot was reserved for the vehicle
+        if (newlyPending[0]) vehicleOrder.add(vehicleId);
+        return true;
+    }
+
+    /** @return true if there was room for another vehicle and a slot was reserved for it */
+    private boolean reserveSlot() {
+        int slots;
+        do {
+            slots = reservedSlots.get();
+            if (slots >= capacity) return false;
+        } while (!reservedSlots.compareAndSet(slots, slots + 1));
+        return true;
     }
 
     /**
-     * Calls superclass add() method but also updates the AVL data per vehicle map. Doesn't seem to
-     * be used by ThreadPoolExecutor but still included for completeness.
+     * Same as offer() since the queue never needs to block when adding a report for a vehicle that
+     * already has one pending.
      */
     @Override
-    public boolean add(@NonNull AvlReportProcessor runnable) {
-        addToAvlDataPerVehicleMap(runnable);
-        return super.add(runnable);
+    public boolean offer(AvlReportProcessor runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
     }
 
     /**
-     * Calls superclass put() method but also updates the AVL data per vehicle map. Doesn't seem to
-     * be used by ThreadPoolExecutor but still included for completeness.
+     * Same as offer() since a full queue means reports should be rejected and counted instead of
+     * blocking the AVL feed.
      */
     @Override
-    public void put(@NonNull AvlReportProcessor runnable) throws InterruptedException {
-        super.put(runnable);
-        addToAvlDataPerVehicleMap(runnable);
+    public void put(@NonNull AvlReportProcessor runnable) {
+        offer(runnable);
     }
 
     /**
-     * Calls superclass offer() method but also updates the AVL data per vehicle map. Used by
-     * ThreadPoolExecutor.
+     * Removes the pending report for the vehicle and records how long it waited.
+     *
+     * @param vehicleId the vehicle taken from the order queue, or null
+     * @return the pending report for the vehicle, or null if vehicleId was null
      */
+    private AvlReportProcessor removePending(String vehicleId) {
+        if (vehicleId == null) return null;
+
+        PendingReport pending = pendingReportPerVehicle.remove(vehicleId);
+        reservedSlots.decrementAndGet();
+        long waitNanos = System.nanoTime() - pending.enqueuedNanos();
+        totalQueueWaitNanos.add(waitNanos);
+        maxQueueWaitNanos.accumulate(waitNanos);
+        dequeuedCount.increment();
+        return pending.processor();
+    }
+
+    /** Returns latest report for the next vehicle, or null if queue is empty */
     @Override
-    public boolean offer(@NonNull AvlReportProcessor runnable) {
-        AvlReport avlReport = runnable.getAvlReport();
-        logger.debug("offer() remainingCapacity={} {}", remainingCapacity(), avlReport);
+    public AvlReportProcessor poll() {
+        return removePending(vehicleOrder.poll());
+    }
 
-        boolean successful = super.offer(runnable);
-        if (successful) addToAvlDataPerVehicleMap(runnable);
+    /** Returns latest report for the next vehicle, waiting if necessary. Used by ThreadPoolExecutor. */
+    @Override
+    public AvlReportProcessor poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return removePending(vehicleOrder.poll(timeout, unit));
+    }
 
-        logger.debug("offer() returned {} for {}", successful, avlReport);
-        return successful;
+    /** Returns latest report for the next vehicle, waiting if necessary. Used by ThreadPoolExecutor. */
+    @Override
+    @NonNull
+    public AvlReportProcessor take() throws InterruptedException {
+        return removePending(vehicleOrder.take());
     }
 
-    /**
-     * Calls superclass offer(timeout, unit) method but also updates the AVL data per vehicle map.
-     * Doesn't seem to be used by ThreadPoolExecutor but still included for completeness.
-     */
     @Override
-    public boolean offer(AvlReportProcessor runnable, long timeout, TimeUnit unit) throws InterruptedException {
-        boolean successful = super.offer(runnable, timeout, unit);
-        if (successful) addToAvlDataPerVehicleMap(runnable);
+    public AvlReportProcessor peek() {
+        String vehicleId = vehicleOrder.peek();
+        if (vehicleId == null) return null;
 
-        return successful;
+        PendingReport pending = pendingReportPerVehicle.get(vehicleId);
+        return pending != null ? pending.processor() : null;
     }
 
-    /**
-     * Calls superclass poll() method until it gets AVL data that is not obsolete. Doesn't seem to
-     * be used by ThreadPoolExecutor but still included for completeness.
-     */
     @Override
-    public AvlReportProcessor poll() {
-        AvlReportProcessor runnable;
-        do {
-            runnable = super.poll();
-        } while (isObsolete(runnable));
-        return runnable;
+    public int size() {
+        return vehicleOrder.size();
     }
 
-    /**
-     * Calls superclass poll(timeout, unit) method until it gets AVL data that is not obsolete. Used
-     * by ThreadPoolExecutor.
-     */
     @Override
-    public AvlReportProcessor poll(long timeout, TimeUnit unit) throws InterruptedException {
-        logger.debug("In poll(t,u) timeout={} units={}", timeout, unit);
+    public int remainingCapacity() {
+        return capacity - reservedSlots.get();
+    }
 
-        AvlReportProcessor runnable;
-        do {
-            runnable = super.poll(timeout, unit);
-        } while (runnable != null && isObsolete(runnable));
+    @Override
+    public int drainTo(Collection<? super AvlReportProcessor> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
 
-        if (runnable != null) {
-            logger.debug("poll(t,u) in AvlQueue returned {}", runnable.getAvlReport());
+    @Override
+    public int drainTo(Collection<? super AvlReportProcessor> c, int maxElements) {
+        int count = 0;
+        AvlReportProcessor runnable;
+        while (count < maxElements && (runnable = poll()) != null) {
+            c.add(runnable);
+            ++count;
         }
-        return runnable;
+        return count;
     }
 
-    /**
-     * Calls superclass take() method until it gets AVL data that is not obsolete. Doesn't seem to
-     * be used by ThreadPoolExecutor but still included for completeness.
-     */
+    /** Iterates over a snapshot of the pending reports, in order. Removal not supported. */
     @Override
-    @NonNull
-    public AvlReportProcessor take() throws InterruptedException {
-        AvlReportProcessor runnable;
-        do {
-            runnable = super.take();
-        } while (isObsolete(runnable));
-        return runnable;
+    public Iterator<AvlReportProcessor> iterator() {
+        List<AvlReportProcessor> snapshot = new ArrayList<>(vehicleOrder.size());
+        for (String vehicleId : vehicleOrder) {
+            PendingReport pending = pendingReportPerVehicle.get(vehicleId);
+            if (pending != null) snapshot.add(pending.processor());
+        }
+        return snapshot.iterator();
+    }
+
+    /** @return Max number of vehicles that can have a pending report */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return Number of AVL reports that were replaced by a newer report for the same vehicle */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /** @return Number of AVL reports rejected because the queue was full */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** @return Number of AVL reports that have been taken from the queue */
+    public long getDequeuedCount() {
+        return dequeuedCount.sum();
+    }
+
+    /** @return Total time in nanoseconds that the dequeued AVL reports spent waiting in the queue */
+    public long getTotalQueueWaitNanos() {
+        return totalQueueWaitNanos.sum();
+    }
+
+    /** @return Longest time in nanoseconds that an AVL report waited in the queue */
+    public long getMaxQueueWaitNanos() {
+        return maxQueueWaitNanos.get();
     }
 }
@@ -0,0 +1,132 @@
+/* (C)2023 */
+package org.transitclock.core.avl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.utils.threading.NamedThread;
+
+/**
+ * An Executor for {@link AvlReportProcessor}s that hashes the vehicleId of each AVL report onto one
+ * of a fixed number of lanes. Each lane is serviced by a single thread so all reports for a vehicle
+ * are processed in order by the same thread, meaning that the per vehicle state is never contended
+ * by multiple AVL threads.
+ *
+ * <p>Each lane uses an {@link AvlReportProcessorQueue} so only keeps the latest pending report per
+ * vehicle. If a new report comes in for a vehicle while an older one is still waiting to be
+ * processed then the older one is simply replaced. Therefore the number of pending items in a lane
+ * is bounded by the number of vehicles hashed to it, not by how bursty the AVL feed is.
+ */
+@Slf4j
+public class VehicleShardedAvlExecutor implements Executor {
+
+    private final Lane[] lanes;
+
+    /**
+     * Creates the executor and starts a thread for each lane.
+     *
+     * @param numberLanes How many single threaded lanes to hash the vehicles onto
+     * @param maxPendingVehiclesPerLane Max number of vehicles that can have a pending report in a
+     *     single lane. If exceeded then reports for additional vehicles are rejected.
+     */
+    public VehicleShardedAvlExecutor(int numberLanes, int maxPendingVehiclesPerLane) {
+        lanes = new Lane[numberLanes];
+        for (int i = 0; i < numberLanes; ++i) {
+            lanes[i] = new Lane(maxPendingVehiclesPerLane);
+            NamedThread thread = new NamedThread(lanes[i], "avlLane");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands the AvlReportProcessor to the lane for its vehicle.
+     *
+     * @param runnable Must be an AvlReportProcessor
+     * @throws RejectedExecutionException if the lane already has too many vehicles pending
+     */
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+        if (!(runnable instanceof AvlReportProcessor processor))
+            throw new IllegalArgumentException("Runnable must be AvlReportProcessor.");
+
+        String vehicleId = processor.getAvlReport().getVehicleId();
+        laneFor(vehicleId).submit(processor);
+    }
+
+    /**
+     * Determines the lane for the vehicle. Consistent for the life of the executor.
+     *
+     * @param vehicleId
+     * @return the lane that handles the vehicle
+     */
+    private Lane laneFor(String vehicleId) {
+        return lanes[laneIndex(vehicleId)];
+    }
+
+    /**
+     * @param vehicleId
+     * @return index of the lane, and of its queue in getQueues(), that handles the vehicle
+     */
+    int laneIndex(String vehicleId) {
+        return Math.floorMod(vehicleId.hashCode(), lanes.length);
+    }
+
+    /** @return Number of lanes, and therefore threads, used by this executor */
+    public int getNumberLanes() {
+        return lanes.length;
+    }
+
+    /** @return The queues of the lanes, for monitoring */
+    public List<AvlReportProcessorQueue> getQueues() {
+        List<AvlReportProcessorQueue> queues = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) queues.add(lane.queue);
+        return queues;
+    }
+
+    /**
+     * A single threaded lane. Uses a coalescing AvlReportProcessorQueue so that only the latest
+     * pending report per vehicle is kept and vehicles are serviced fairly.
+     */
+    private static class Lane implements Runnable {
+        private final AvlReportProcessorQueue queue;
+
+        private Lane(int maxPendingVehicles) {
+            this.queue = new AvlReportProcessorQueue(maxPendingVehicles);
+        }
+
+        /** Puts the report into the slot for the vehicle. */
+        private void submit(AvlReportProcessor processor) {
+            if (!queue.offer(processor)) {
+                throw new RejectedExecutionException("AVL lane already has " + queue.getCapacity()
+                        + " vehicles pending so rejecting " + processor.getAvlReport());
+            }
+        }
+
+        /** Processes the latest report for each pending vehicle, forever. */
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                AvlReportProcessor processor;
+                try {
+                    processor = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                try {
+                    processor.run();
+                } catch (Exception e) {
+                    AvlReport avlReport = processor.getAvlReport();
+                    logger.error("Unexpected exception processing {} in AVL lane.", avlReport, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+
+/**
+ * For the lists of arrival/departure events of StopEvents and TripEvents. The lists are sorted
+ * using IpcArrivalDepartureComparator and are copied when an event is added instead of being
+ * modified. That way a list that has been returned to a caller never changes, so it can be read
+ * while other threads add events, and adding an event doesn't require sorting the whole list.
+ */
+final class EventLists {
+
+    private static final Comparator<IpcArrivalDeparture> comparator = new IpcArrivalDepartureComparator();
+
+    private EventLists() {}
+
+    /**
+     * Returns a new list containing the events of the sorted list plus the new event. The new
+     * event is placed after any events that compare as equal, which is the same as appending it
+     * and then doing a stable sort.
+     *
+     * @param events Sorted list of events. Can be null.
+     * @param event The event to add
+     * @return New sorted list that includes the event
+     */
+    static List<IpcArrivalDeparture> withEventAdded(List<IpcArrivalDeparture> events, IpcArrivalDeparture event) {
+        int size = events == null ? 0 : events.size();
+
+        // Find first event that is after the new one
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(events.get(mid), event) <= 0) low = mid + 1;
+            else high = mid;
+        }
+
+        List<IpcArrivalDeparture> newEvents = new ArrayList<>(size + 1);
+        if (events != null) newEvents.addAll(events.subList(0, low));
+        newEvents.add(event);
+        if (events != null) newEvents.addAll(events.subList(low, size));
+        return newEvents;
+    }
+}
@@ -0,0 +1,302 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.transitclock.config.data.AgencyConfig;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.domain.hibernate.HibernateUtils;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.gtfs.GtfsData;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * Populates the historical caches from the arrivals/departures in the database on start up.
+ *
+ * <p>Previously each cache read in all of the arrivals/departures for a day on its own, meaning
+ * that the same rows were read from the database several times and that a whole day of rows was
+ * held in memory at once. Here the rows are instead streamed from the database just once, ordered
+ * by time, and each row is handed to all of the caches. Since the caches are fed in time order the
+ * trip and stop histories already contain the earlier arrivals/departures when the historical
+ * average and dwell time caches, which look them up, process a row.
+ *
+ * <p>The time range is split into separate days which are read in parallel by a bounded number of
+ * threads, each with its own stateless session so that the rows are not retained by a persistence
+ * context. Each day is read into its own bounded queue and the queues are drained one day after
+ * another, oldest first, so that the caches still see the rows in time order, also across the
+ * day boundaries. A reader for a later day blocks once its queue is full, which limits how many
+ * rows are held in memory while an earlier day is still being processed.
+ */
+@Slf4j
+public class HistoricalCacheWarmUp {
+
+    // How often to log progress for a day being read in
+    private static final int LOG_EVERY_N_ROWS = 100_000;
+
+    // Put into a day's queue once all of its rows have been read
+    private static final Object END_OF_RANGE = new Object();
+
+    /** Something that is populated by the arrivals/departures */
+    @FunctionalInterface
+    interface CacheLoader {
+        void put(ArrivalDeparture arrivalDeparture) throws Exception;
+    }
+
+    record NamedCacheLoader(String name, CacheLoader loader, AtomicLong errorCount) {
+        NamedCacheLoader(String name, CacheLoader loader) {
+            this(name, loader, new AtomicLong());
+        }
+    }
+
+    /** Reads the arrivals/departures for a time range, ordered by time, into the queue */
+    @FunctionalInterface
+    interface RangeReader {
+        void read(Date startDate, Date endDate, BlockingQueue<Object> queue) throws InterruptedException;
+    }
+
+    private final List<NamedCacheLoader> loaders;
+    private final RangeReader rangeReader;
+    private final int maxThreads;
+    private final int queueCapacity;
+
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicInteger rangesCompleted = new AtomicInteger();
+
+    private volatile boolean complete = false;
+
+    /**
+     * @param includeScheduleBasedAverages Whether the ScheduleBasedHistoricalAverageCache should be
+     *     populated. It is not when reloading a specific time range.
+     */
+    private HistoricalCacheWarmUp(boolean includeScheduleBasedAverages) {
+        rangeReader = HistoricalCacheWarmUp::readRange;
+        maxThreads = CoreConfig.cacheWarmUpThreads.getValue();
+        queueCapacity = Math.max(1, CoreConfig.cacheWarmUpFetchSize.getValue());
+
+        // The order matters. The trip history must be updated before the
+        // historical averages since they are determined from the trip history.
+        loaders = new ArrayList<>();
+        TripDataHistoryCacheInterface tripDataHistoryCache = TripDataHistoryCacheFactory.getInstance();
+        if (tripDataHistoryCache != null) {
+            loaders.add(new NamedCacheLoader("TripDataHistoryCache", arrivalDeparture -> {
+                if (GtfsData.routeNotFiltered(arrivalDeparture.getRouteId()))
+                    tripDataHistoryCache.putArrivalDeparture(arrivalDeparture);
+            }));
+        }
+
+        FrequencyBasedHistoricalAverageCache frequencyBasedCache = FrequencyBasedHistoricalAverageCache.getInstance();
+        if (frequencyBasedCache != null) {
+            loaders.add(new NamedCacheLoader("FrequencyBasedHistoricalAverageCache", arrivalDeparture -> {
+                if (GtfsData.routeNotFiltered(arrivalDeparture.getRouteId()))
+                    frequencyBasedCache.putArrivalDeparture(arrivalDeparture);
+            }));
+        }
+
+        StopArrivalDepartureCacheInterface stopArrivalDepartureCache = StopArrivalDepartureCacheFactory.getInstance();
+        if (stopArrivalDepartureCache != null) {
+            loaders.add(
+                    new NamedCacheLoader("StopArrivalDepartureCache", stopArrivalDepartureCache::putArrivalDeparture));
+            loaders.add(new NamedCacheLoader(
+                    "StopPathTraversalIndex", StopPathTraversalIndex.getInstance()::putArrivalDeparture));
+
+            DwellTimeModelCacheInterface dwellTimeModelCache = DwellTimeModelCacheFactory.getInstance();
+            if (dwellTimeModelCache != null) {
+                loaders.add(new NamedCacheLoader("DwellTimeModelCache", dwellTimeModelCache::addSample));
+            }
+        }
+
+        ScheduleBasedHistoricalAverageCache scheduleBasedCache = ScheduleBasedHistoricalAverageCache.getInstance();
+        if (includeScheduleBasedAverages && scheduleBasedCache != null) {
+            loaders.add(new NamedCacheLoader(
+                    "ScheduleBasedHistoricalAverageCache", scheduleBasedCache::putArrivalDeparture));
+        }
+    }
+
+    /**
+     * For populating the specified loaders using the specified reader instead of the db.
+     *
+     * @param loaders The loaders, in the order they are to be given each arrival/departure
+     * @param rangeReader
+     * @param maxThreads How many ranges can be read at once
+     * @param queueCapacity How many arrivals/departures can be queued for each range
+     */
+    HistoricalCacheWarmUp(List<NamedCacheLoader> loaders, RangeReader rangeReader, int maxThreads, int queueCapacity) {
+        this.loaders = loaders;
+        this.rangeReader = rangeReader;
+        this.maxThreads = maxThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Populates the caches using the configured time range. If transitclock.core.cacheReloadStartTimeStr
+     * and cacheReloadEndTimeStr are set then that range is used. Otherwise the last
+     * transitclock.cache.core.daysPopulateHistoricalCache days are used.
+     *
+     * @return The warm up, which has completed when this method returns
+     */
+    public static HistoricalCacheWarmUp populateCaches() throws Exception {
+        String startTimeStr = CoreConfig.cacheReloadStartTimeStr.getValue();
+        String endTimeStr = CoreConfig.cacheReloadEndTimeStr.getValue();
+
+        HistoricalCacheWarmUp warmUp;
+        Date endDate;
+        Date startDate;
+        if (!startTimeStr.isEmpty() && !endTimeStr.isEmpty()) {
+            warmUp = new HistoricalCacheWarmUp(false);
+            startDate = new Date(Time.parse(startTimeStr).getTime());
+            endDate = new Date(Time.parse(endTimeStr).getTime());
+        } else {
+            warmUp = new HistoricalCacheWarmUp(true);
+            endDate = new Date();
+            startDate = new Date(endDate.getTime() - CoreConfig.getDaysPopulateHistoricalCache() * Time.MS_PER_DAY);
+        }
+
+        warmUp.populate(startDate, endDate);
+        return warmUp;
+    }
+
+    /** @return true if all of the days have been read in */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Reads in the arrivals/departures for the time range, one day per task, and feeds them to the
+     * caches in time order.
+     */
+    void populate(Date startDate, Date endDate) throws Exception {
+        if (loaders.isEmpty() || !startDate.before(endDate)) {
+            complete = true;
+            return;
+        }
+
+        // Split into days, oldest first. The tasks are submitted in this
+        // order so the executor always reads the day that is being drained
+        // or the days right after it.
+        List<Date[]> ranges = new ArrayList<>();
+        for (long rangeStart = startDate.getTime(); rangeStart < endDate.getTime(); rangeStart += Time.MS_PER_DAY) {
+            long rangeEnd = Math.min(rangeStart + Time.MS_PER_DAY, endDate.getTime());
+            ranges.add(new Date[] {new Date(rangeStart), new Date(rangeEnd)});
+        }
+
+        int numberThreads = Math.max(1, Math.min(maxThreads, ranges.size()));
+        logger.info("Populating historical caches {} for {} to {} using {} threads.",
+                loaders.stream().map(NamedCacheLoader::name).toList(), startDate, endDate, numberThreads);
+
+        IntervalTimer timer = new IntervalTimer();
+        ExecutorService executor = Executors.newFixedThreadPool(numberThreads, new NamedThreadFactory("cacheWarmUp"));
+        try {
+            List<BlockingQueue<Object>> queues = new ArrayList<>(ranges.size());
+            List<Future<?>> futures = new ArrayList<>(ranges.size());
+            for (Date[] range : ranges) {
+                BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+                queues.add(queue);
+                futures.add(executor.submit(() -> {
+                    try {
+                        rangeReader.read(range[0], range[1], queue);
+                    } finally {
+                        queue.put(END_OF_RANGE);
+                    }
+                    return null;
+                }));
+            }
+
+            for (int i = 0; i < ranges.size(); ++i) {
+                BlockingQueue<Object> queue = queues.get(i);
+                long rowsInRange = 0;
+                for (Object row = queue.take(); row != END_OF_RANGE; row = queue.take()) {
+                    ArrivalDeparture arrivalDeparture = (ArrivalDeparture) row;
+                    for (NamedCacheLoader loader : loaders) {
+                        put(loader, arrivalDeparture);
+                    }
+
+                    rowsRead.incrementAndGet();
+                    if (++rowsInRange % LOG_EVERY_N_ROWS == 0) {
+                        logger.info("Read {} arrivals/departures so far for {} to {}.",
+                                rowsInRange, ranges.get(i)[0], ranges.get(i)[1]);
+                    }
+                }
+                // Throws if reading the day failed
+                futures.get(i).get();
+                queues.set(i, null);
+                logger.info("Populated historical caches for {} to {}. Completed {} of {} days, {} rows so far.",
+                        ranges.get(i)[0], ranges.get(i)[1], rangesCompleted.incrementAndGet(), ranges.size(),
+                        rowsRead.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        complete = true;
+        long msec = Math.max(timer.elapsedMsec(), 1);
+        logger.info("Done populating historical caches. Read {} arrivals/departures in {} msec ({} per second).",
+                rowsRead.get(), msec, rowsRead.get() * Time.MS_PER_SEC / msec);
+        for (NamedCacheLoader loader : loaders) {
+            if (loader.errorCount().get() > 0) {
+                logger.error("There were {} errors populating {}.", loader.errorCount().get(), loader.name());
+            }
+        }
+    }
+
+    /**
+     * Streams the arrivals/departures for the time range from the db, ordered by time, into the
+     * queue. Blocks while the queue is full. A StatelessSession doesn't call Lifecycle.onLoad(), so
+     * the strings of the arrivals/departures the caches hold on to are interned here.
+     */
+    private static void readRange(Date startDate, Date endDate, BlockingQueue<Object> queue)
+            throws InterruptedException {
+        try (StatelessSession session = HibernateUtils.getSessionFactory(AgencyConfig.getAgencyId())
+                .openStatelessSession()) {
+            // Need to be in a transaction for postgres to actually use a
+            // cursor instead of reading in all of the rows at once
+            Transaction tx = session.beginTransaction();
+            try (ScrollableResults<ArrivalDeparture> results = session.createQuery(
+                            "FROM ArrivalDeparture WHERE time >= :startDate AND time < :endDate ORDER BY time",
+                            ArrivalDeparture.class)
+                    .setParameter("startDate", startDate)
+                    .setParameter("endDate", endDate)
+                    .setFetchSize(CoreConfig.cacheWarmUpFetchSize.getValue())
+                    .setReadOnly(true)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    ArrivalDeparture arrivalDeparture = results.get();
+                    arrivalDeparture.internStrings();
+                    queue.put(arrivalDeparture);
+                }
+            } finally {
+                tx.rollback();
+            }
+        }
+    }
+
+    /**
+     * Puts the arrival/departure into a cache. An exception is logged the first time so that a
+     * single bad row doesn't stop the whole cache from being populated.
+     */
+    private static void put(NamedCacheLoader loader, ArrivalDeparture arrivalDeparture) {
+        try {
+            loader.loader().put(arrivalDeparture);
+        } catch (Exception e) {
+            if (loader.errorCount().getAndIncrement() == 0) {
+                logger.error("Exception populating {} with {}", loader.name(), arrivalDeparture, e);
+            }
+        }
+    }
+}
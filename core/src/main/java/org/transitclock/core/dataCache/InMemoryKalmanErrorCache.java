@@ -0,0 +1,372 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.core.Indices;
+import org.transitclock.utils.ApplicationShutdownSupport;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.Timer;
+
+/**
+ * An ErrorCache that keeps the Kalman error values in a ConcurrentHashMap instead of in ehcache.
+ * The error values are read and written for every stop path of every prediction, so this avoids
+ * the synchronization of the ehcache KalmanErrorCache and the serialization of its disk tier. The
+ * trip and stop path index are packed into a single long key, with each trip ID being assigned a
+ * number the first time it is used, so no KalmanErrorCacheKey needs to be created.
+ *
+ * <p>The KalmanError values are never modified once stored. Each put stores a new KalmanError so
+ * that a value returned by getErrorValue() or being written to the snapshot doesn't change
+ * underneath the reader.
+ *
+ * <p>Like the time to idle of the ehcache KalmanErrorCache, error values that have been neither
+ * read nor updated for transitclock.cache.core.kalmanErrorMaxIdleDays are removed, along with the
+ * numbers of the trip IDs that no longer have any error values.
+ *
+ * <p>If transitclock.cache.core.kalmanErrorSnapshotFile is set then the error values are written
+ * to that file periodically, by a timer thread, and at shutdown. They are read back in on
+ * startup so that they survive a restart like they do with the persistent ehcache. To use this
+ * class set transitclock.core.cache.errorCacheClass to
+ * org.transitclock.core.dataCache.InMemoryKalmanErrorCache.
+ */
+@Slf4j
+public class InMemoryKalmanErrorCache implements ErrorCache {
+
+    private static final int MAGIC = 0x54434b45; // "TCKE"
+
+    // Needs to be incremented whenever the contents of the snapshot change
+    // so that snapshots written by an older version are ignored
+    private static final int FORMAT_VERSION = 2;
+
+    // How often the idle error values are removed
+    private static final long REMOVE_IDLE_INTERVAL_MSEC = Time.MS_PER_HOUR;
+
+    // The last access time is only updated when it is at least this old so
+    // that reads don't need to write to memory shared between threads
+    private static final long ACCESS_TIME_RESOLUTION_MSEC = Time.MS_PER_MIN;
+
+    /** An error value along with when it was last read or updated */
+    private static final class Entry {
+        private final KalmanError error;
+        private volatile long lastAccessTime;
+
+        private Entry(KalmanError error, long lastAccessTime) {
+            this.error = error;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        private KalmanError access() {
+            long now = SystemTime.getMillis();
+            if (now - lastAccessTime > ACCESS_TIME_RESOLUTION_MSEC) lastAccessTime = now;
+            return error;
+        }
+    }
+
+    private final Map<Long, Entry> errors = new ConcurrentHashMap<>();
+
+    // Each trip ID is assigned a number. Numbers are not reused once the
+    // trip ID is removed so that a key can never refer to a different trip.
+    private final Map<String, Integer> tripNumbers = new ConcurrentHashMap<>();
+    private final Map<Integer, String> tripIdsByNumber = new ConcurrentHashMap<>();
+    private int nextTripNumber = 0;
+
+    // Whether there are changes that haven't been written to the snapshot
+    private volatile boolean changed = false;
+
+    private final Path snapshotFile;
+
+    private final long maxIdleMsec;
+
+    public InMemoryKalmanErrorCache() {
+        this(snapshotFileFromConfig(), CoreConfig.kalmanErrorMaxIdleDays.getValue() * Time.MS_PER_DAY);
+
+        Timer.get()
+                .scheduleWithFixedDelay(
+                        this::removeIdleSafely, REMOVE_IDLE_INTERVAL_MSEC, REMOVE_IDLE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+        if (snapshotFile == null) return;
+
+        long intervalMsec = CoreConfig.kalmanErrorSnapshotIntervalMsec.getValue();
+        Timer.get().scheduleWithFixedDelay(this::writeSnapshotIfChanged, intervalMsec, intervalMsec, TimeUnit.MILLISECONDS);
+        // So that the latest values aren't lost when shutting down
+        ApplicationShutdownSupport.addShutdownHook("kalman-error-snapshot", this::writeSnapshotIfChanged);
+    }
+
+    /**
+     * Creates the cache without any timers, reading in the snapshot if there is one.
+     *
+     * @param snapshotFile The snapshot file, or null if the values are only kept in memory
+     * @param maxIdleMsec How long an error value is kept without being read or updated
+     */
+    InMemoryKalmanErrorCache(Path snapshotFile, long maxIdleMsec) {
+        this.snapshotFile = snapshotFile;
+        this.maxIdleMsec = maxIdleMsec;
+        if (snapshotFile != null) readSnapshot();
+    }
+
+    private static Path snapshotFileFromConfig() {
+        String fileName = CoreConfig.kalmanErrorSnapshotFile.getValue();
+        return fileName != null && !fileName.isEmpty() ? Path.of(fileName) : null;
+    }
+
+    /** Returns the number for the trip ID, assigning one if it doesn't have one yet */
+    private int tripNumber(String tripId) {
+        Integer tripNumber = tripNumbers.get(tripId);
+        if (tripNumber != null) return tripNumber;
+
+        synchronized (tripIdsByNumber) {
+            return tripNumbers.computeIfAbsent(tripId, id -> {
+                int number = nextTripNumber++;
+                tripIdsByNumber.put(number, id);
+                return number;
+            });
+        }
+    }
+
+    static long key(int tripNumber, int stopPathIndex) {
+        return ((long) tripNumber << 32) | (stopPathIndex & 0xffffffffL);
+    }
+
+    static int tripNumber(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int stopPathIndex(long key) {
+        return (int) key;
+    }
+
+    private long key(String tripId, int stopPathIndex) {
+        return key(tripNumber(tripId), stopPathIndex);
+    }
+
+    private long key(Indices indices) {
+        return key(indices.getBlock().getTrip(indices.getTripIndex()).getId(), indices.getStopPathIndex());
+    }
+
+    private KalmanError getErrorValue(long key) {
+        Entry entry = errors.get(key);
+        return entry != null ? entry.access() : null;
+    }
+
+    @Override
+    public KalmanError getErrorValue(Indices indices) {
+        return getErrorValue(key(indices));
+    }
+
+    @Override
+    public KalmanError getErrorValue(KalmanErrorCacheKey key) {
+        return getErrorValue(key(key.getTripId(), key.getStopPathIndex()));
+    }
+
+    @Override
+    public void putErrorValue(Indices indices, Double value) {
+        putErrorValue(key(indices), value);
+    }
+
+    @Override
+    public void putErrorValue(KalmanErrorCacheKey key, Double value) {
+        putErrorValue(key(key.getTripId(), key.getStopPathIndex()), value);
+    }
+
+    private void putErrorValue(long key, Double value) {
+        long now = SystemTime.getMillis();
+        errors.compute(key, (k, entry) -> {
+            if (entry == null) return new Entry(new KalmanError(value), now);
+
+            // Same as KalmanError.setError(), the number of updates is only
+            // incremented if the value changed
+            KalmanError error = entry.error;
+            if (error.getError().compareTo(value) == 0) {
+                entry.lastAccessTime = now;
+                return entry;
+            }
+            Integer updates = error.getUpdates();
+            return new Entry(new KalmanError(value, updates != null ? updates + 1 : 0), now);
+        });
+        changed = true;
+    }
+
+    @Override
+    public List<KalmanErrorCacheKey> getKeys() {
+        List<KalmanErrorCacheKey> keys = new ArrayList<>(errors.size());
+        for (long key : errors.keySet()) {
+            String tripId = tripIdsByNumber.get(tripNumber(key));
+            if (tripId != null) keys.add(new KalmanErrorCacheKey(tripId, stopPathIndex(key)));
+        }
+        return keys;
+    }
+
+    /** @return Number of error values */
+    int size() {
+        return errors.size();
+    }
+
+    /** @return Number of trip IDs that have been assigned a number */
+    int numberTrips() {
+        return tripNumbers.size();
+    }
+
+    /**
+     * Removes the error values that haven't been read or updated within maxIdleMsec before now,
+     * and then the numbers of the trip IDs that no longer have any error values.
+     *
+     * @param now The current time
+     * @return Number of error values removed
+     */
+    int removeIdle(long now) {
+        long oldestAccessTimeToKeep = now - maxIdleMsec;
+        int sizeBefore = errors.size();
+        // Conditional on the entry so that an entry just replaced by a put
+        // is kept. Errors for a trip number that has already been removed,
+        // which can happen if a put races with the removal of its trip, are
+        // removed too.
+        errors.entrySet()
+                .removeIf(entry -> entry.getValue().lastAccessTime < oldestAccessTimeToKeep
+                        || !tripIdsByNumber.containsKey(tripNumber(entry.getKey())));
+        int numberRemoved = Math.max(sizeBefore - errors.size(), 0);
+
+        Set<Integer> tripNumbersInUse = new HashSet<>();
+        for (long key : errors.keySet()) tripNumbersInUse.add(tripNumber(key));
+        synchronized (tripIdsByNumber) {
+            tripIdsByNumber.entrySet().removeIf(entry -> {
+                if (tripNumbersInUse.contains(entry.getKey())) return false;
+                tripNumbers.remove(entry.getValue(), entry.getKey());
+                return true;
+            });
+        }
+
+        if (numberRemoved > 0) changed = true;
+        return numberRemoved;
+    }
+
+    private void removeIdleSafely() {
+        // Exceptions would stop the timer from running this again
+        try {
+            int numberRemoved = removeIdle(SystemTime.getMillis());
+            if (numberRemoved > 0) logger.info("Removed {} idle Kalman error values.", numberRemoved);
+        } catch (Exception e) {
+            logger.error("Error removing idle Kalman error values.", e);
+        }
+    }
+
+    /**
+     * Called by the timer and at shutdown. Exceptions are caught so that the timer keeps running.
+     * Synchronized so that the timer and the shutdown hook don't write the snapshot at the same
+     * time.
+     */
+    private synchronized void writeSnapshotIfChanged() {
+        if (!changed) return;
+        changed = false;
+        try {
+            writeSnapshot();
+        } catch (Exception e) {
+            changed = true;
+            logger.error("Could not write Kalman error snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Writes the error values to the snapshot file. Written to a temporary file first and then
+     * moved so that a partially written snapshot is never read.
+     */
+    synchronized void writeSnapshot() throws IOException {
+        IntervalTimer timer = new IntervalTimer();
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        if (snapshotFile.getParent() != null) Files.createDirectories(snapshotFile.getParent());
+
+        // Errors for trips that are not in the copy, because they were added
+        // after it was made, are skipped. They will be written with the next
+        // snapshot.
+        Map<Integer, String> tripIdsCopy = new HashMap<>(tripIdsByNumber);
+        List<Map.Entry<Long, Entry>> entries = new ArrayList<>(errors.size());
+        for (Map.Entry<Long, Entry> entry : errors.entrySet()) {
+            if (tripIdsCopy.containsKey(tripNumber(entry.getKey()))) entries.add(entry);
+        }
+
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tripIdsCopy.size());
+            for (Map.Entry<Integer, String> trip : tripIdsCopy.entrySet()) {
+                out.writeInt(trip.getKey());
+                out.writeUTF(trip.getValue());
+            }
+
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, Entry> entry : entries) {
+                KalmanError error = entry.getValue().error;
+                Integer updates = error.getUpdates();
+                out.writeLong(entry.getKey());
+                out.writeDouble(error.getError());
+                out.writeInt(updates != null ? updates : -1);
+                out.writeLong(entry.getValue().lastAccessTime);
+            }
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Wrote {} Kalman error values to {}. Took {} msec.", entries.size(), snapshotFile, timer.elapsedMsec());
+    }
+
+    /** Reads in the error values from the snapshot file, if there is one */
+    private void readSnapshot() {
+        if (!Files.isReadable(snapshotFile)) {
+            logger.info("No Kalman error snapshot {} so starting with no error values.", snapshotFile);
+            return;
+        }
+
+        IntervalTimer timer = new IntervalTimer();
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+            int magic = in.readInt();
+            int formatVersion = in.readInt();
+            if (magic != MAGIC || formatVersion != FORMAT_VERSION) {
+                logger.info("Kalman error snapshot {} is format {} but need format {} so it is not used.",
+                        snapshotFile, formatVersion, FORMAT_VERSION);
+                return;
+            }
+
+            // Trip numbers in the file are converted to the numbers
+            // assigned for this run
+            int numberTrips = in.readInt();
+            Map<Integer, Integer> tripNumbersInFile = new HashMap<>();
+            for (int i = 0; i < numberTrips; ++i) {
+                int tripNumberInFile = in.readInt();
+                tripNumbersInFile.put(tripNumberInFile, tripNumber(in.readUTF()));
+            }
+
+            int numberErrors = in.readInt();
+            for (int i = 0; i < numberErrors; ++i) {
+                long key = in.readLong();
+                double error = in.readDouble();
+                int updates = in.readInt();
+                long lastAccessTime = in.readLong();
+                Integer tripNumber = tripNumbersInFile.get(tripNumber(key));
+                if (tripNumber == null) throw new IOException("Unknown trip number in key " + key);
+                errors.put(
+                        key(tripNumber, stopPathIndex(key)),
+                        new Entry(new KalmanError(error, updates >= 0 ? updates : null), lastAccessTime));
+            }
+            logger.info("Read {} Kalman error values from {}. Took {} msec.", numberErrors, snapshotFile, timer.elapsedMsec());
+        } catch (IOException | RuntimeException e) {
+            errors.clear();
+            logger.error("Could not read Kalman error snapshot {} so starting with no error values.", snapshotFile, e);
+        }
+    }
+}
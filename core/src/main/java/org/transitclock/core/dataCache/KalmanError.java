@@ -18,6 +18,12 @@ public class KalmanError implements Serializable {
         // TODO Auto-generated constructor stub
     }
 
+    /** For restoring a previously stored error value along with its number of updates */
+    KalmanError(Double error, Integer updates) {
+        this.error = error;
+        this.updates = updates;
+    }
+
     public Double getError() {
         return error;
     }
@@ -18,7 +18,8 @@ import org.transitclock.utils.SystemTime;
 import org.transitclock.utils.Time;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.UnaryOperator;
 
 /**
  * For storing and retrieving predictions by stop.
@@ -29,11 +30,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * adding an updated prediction. Otherwise might obtain predictions when the old one has been
  * removed but the new one has not yet been written, causing a prediction to be missed.
  *
- * <p>For concurrency and thread safety using ConcurrentHashMap instead of HashMap.
+ * <p>For concurrency and thread safety the predictions are kept in an immutable map, containing
+ * immutable lists of immutable IpcPredictionsForRouteStopDest objects. Each update creates a new
+ * map and publishes it as a whole (copy-on-write). Therefore readers never need to synchronize or
+ * block the threads updating the predictions, and everything read from one snapshot is coherent.
  *
- * <p>getPredictions() returns a copy of the list of predictions for the route/stop. This way the
- * contents will always be coherent and the caller does not need to synchronize, which would be
- * difficult to enforce.
+ * <p>getPredictions() returns the IpcPredictionsForRouteStopDest objects of the snapshot, and if
+ * nothing needs to be filtered out even the list of them, so usually no objects are created.
  *
  * @author SkiBu Smith
  */
@@ -54,14 +57,31 @@ public class PredictionDataCache {
     // vehicles actually going all the way where they want. Therefore
     // for each route/stop have a List of PredictionsForRouteStop, one
     // for each destination/trip head sign.
-    // Keyed by MapKey using routeId/stopId.
-    // ConcurrentHashMap is used so that can associate a route/stop with a
-    // PredictionsForRouteStop in a threadsafe way. Will always use same
-    // PredictionsForRouteStop for a route/stop and synchronize any changes and
-    // access to it so if multiple threads are making changes on a route/stop
-    // those changes will be coherent and information will not be lost.
-    private final ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>> predictionsMap =
-            new ConcurrentHashMap<>(1000);
+    // Keyed by MapKey using routeShortName/stopId.
+    // The map and its lists are immutable. Updates, which are serialized
+    // by updateLock, copy the map and then publish the new one so readers
+    // always see the complete result of an update.
+    private volatile Map<MapKey, List<IpcPredictionsForRouteStopDest>> predictionsMap = Map.of();
+    private final Object updateLock = new Object();
+
+    // Notified whenever the predictions for a vehicle change so that
+    // derived data, such as the GTFS-realtime trip feed, can be updated
+    // incrementally instead of being recreated from all the predictions.
+    private final List<PredictionsChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    /** For being notified when the predictions for a vehicle have changed. */
+    @FunctionalInterface
+    public interface PredictionsChangeListener {
+        /**
+         * Called by the thread that updated the predictions, right after the update, so should be
+         * quick.
+         *
+         * @param vehicleId The vehicle whose predictions changed
+         * @param newPredictionsForVehicle All of the current predictions for the vehicle. Empty if
+         *     the predictions were removed. Not to be modified.
+         */
+        void predictionsChanged(String vehicleId, List<IpcPrediction> newPredictionsForVehicle);
+    }
 
 
     /**
@@ -85,11 +105,10 @@ public class PredictionDataCache {
     }
 
     /**
-     * Returns copy of the PredictionsForRouteStop object. This is the low-level method that
-     * actually gets the appropriate predictions. A clone is used so that it can be accessed as
-     * needed without worrying about another thread writing to it. The list of predictions should be
-     * relatively small so cloning is not very costly. And this way the caller of this method
-     * doesn't have to synchronize or such.
+     * Returns the PredictionsForRouteStop objects. This is the low-level method that actually gets
+     * the appropriate predictions. The objects are immutable so they can be accessed as needed
+     * without worrying about another thread changing them, and they are only copied when they need
+     * to be limited. And this way the caller of this method doesn't have to synchronize or such.
      *
      * @param routeIdOrShortName route_id or route_short_name, or null to specify all routes for
      *     stop.
@@ -98,7 +117,8 @@ public class PredictionDataCache {
      * @param stopIdOrCode stop_id or stop_code
      * @param maxPredictionsPerStop
      * @param distanceToStop For when getting predictions by location
-     * @return List of IpcPredictionsForRouteStopDest. Can be empty but will not be null.
+     * @return List of IpcPredictionsForRouteStopDest. Can be empty but will not be null. Not to be
+     *     modified.
      */
     public List<IpcPredictionsForRouteStopDest> getPredictions(
             String routeIdOrShortName,
@@ -145,12 +165,48 @@ public class PredictionDataCache {
         }
 
         // Get the predictions from the map
-        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = getPredictionsForRouteStop(routeShortName, stopId);
+        List<IpcPredictionsForRouteStopDest> predictions = filterPredictions(
+                getPredictionsForRouteStop(routeShortName, stopId), directionId, maxPredictionsPerStop, distanceToStop);
 
-        // Remove old predictions so that they are not provided through the
+        // If no predictions should still return a IpcPredictionsForRouteStopDest
+        // object so that the client can get route, stop, and direction info to
+        // display in the UI.
+        if (predictions.isEmpty()) {
+            return List.of(new IpcPredictionsForRouteStopDest(routeShortName, directionId, stopIdOrCode, distanceToStop));
+        }
+
+        return predictions;
+    }
+
+    /**
+     * Determines which of the predictions for a route/stop to provide. The predictions are
+     * immutable so the objects are only copied if they need to be limited or have a different
+     * distanceToStop. The list is only copied if something is left out.
+     *
+     * @param predictionsForRouteStop The predictions for all destinations for the route/stop
+     * @param directionId Set to null if want predictions for all directions.
+     * @param maxPredictionsPerStop
+     * @param distanceToStop For when getting predictions by location
+     * @return List of IpcPredictionsForRouteStopDest. Can be empty but will not be null. Not to be
+     *     modified.
+     */
+    List<IpcPredictionsForRouteStopDest> filterPredictions(
+            List<IpcPredictionsForRouteStopDest> predictionsForRouteStop,
+            String directionId,
+            int maxPredictionsPerStop,
+            double distanceToStop) {
+        // Leave out old predictions so that they are not provided through the
         // API and such
-        for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-            preds.removeExpiredPredictions(getSystemTime());
+        List<IpcPredictionsForRouteStopDest> currentPredictions = predictionsForRouteStop;
+        long currentTime = getSystemTime();
+        for (int i = 0; i < predictionsForRouteStop.size(); ++i) {
+            IpcPredictionsForRouteStopDest preds = predictionsForRouteStop.get(i);
+            IpcPredictionsForRouteStopDest unexpiredPreds = preds.withoutExpiredPredictions(currentTime);
+            if (unexpiredPreds != preds) {
+                if (currentPredictions == predictionsForRouteStop)
+                    currentPredictions = new ArrayList<>(predictionsForRouteStop);
+                currentPredictions.set(i, unexpiredPreds);
+            }
         }
 
         // Want to limit predictions to max time in future since if using
@@ -166,7 +222,7 @@ public class PredictionDataCache {
         // because it could be useful to user.
         boolean endOfTripPredFound = false;
         boolean nonEndOfTripPredFound = false;
-        for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
+        for (IpcPredictionsForRouteStopDest predictions : currentPredictions) {
             for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
                 if (preds.isAtEndOfTrip()) endOfTripPredFound = true;
                 else nonEndOfTripPredFound = true;
@@ -176,80 +232,64 @@ public class PredictionDataCache {
         boolean shouldFilterOutEndOfTripPreds =
                 (endOfTripPredFound && nonEndOfTripPredFound && !PredictionConfig.returnArrivalPredictionForEndOfTrip.getValue());
 
-        // Make a copy of the prediction objects so that they cannot be
-        // modified by another thread while they are being accessed. This
-        // is important because when the predictions are modified they are
-        // temporarily not coherent.
-        List<IpcPredictionsForRouteStopDest> clonedPredictions = new ArrayList<>(predictionsForRouteStop.size());
-        for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
-            // If supposed to return only predictions for specific direction and
-            // the current predictions are for the wrong direction then simply
-            // continue to the next predictions.
-            if (directionId != null && !directionId.equals(predictions.getDirectionId())) continue;
-
-            // If determined that should filter out end of trip predictions,
-            // do so if all of the predictions for this stop are end of trip
-            // predictions. Yes, this is a bit complicated.
-            if (shouldFilterOutEndOfTripPreds) {
-                if (!predictions.getPredictionsForRouteStop().isEmpty()) {
-                    boolean allPredsForEndOfTrip = true;
-                    for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
-                        if (!preds.isAtEndOfTrip()) {
-                            allPredsForEndOfTrip = false;
-                            continue;
-                        }
-                    }
-                    if (allPredsForEndOfTrip) continue;
-                }
-            }
+        // Apply the distance to the stop and the limits. The result is the
+        // list from the map until something is different.
+        List<IpcPredictionsForRouteStopDest> clonedPredictions = currentPredictions;
+        for (int i = 0; i < currentPredictions.size(); ++i) {
+            IpcPredictionsForRouteStopDest predictions = currentPredictions.get(i);
+            IpcPredictionsForRouteStopDest clone = null;
 
-            // Direction ID is OK so clone prediction and add to list
-            IpcPredictionsForRouteStopDest clone =
-                    predictions.getClone(maxPredictionsPerStop, maxPredictionEpochTime, distanceToStop);
-            clonedPredictions.add(clone);
-        }
-
-        // If no predictions should still return a IpcPredictionsForRouteStopDest
-        // object so that the client can get route, stop, and direction info to
-        // display in the UI.
-        if (clonedPredictions.isEmpty()) {
-            IpcPredictionsForRouteStopDest pred =
-                    new IpcPredictionsForRouteStopDest(routeShortName, directionId, stopIdOrCode, distanceToStop);
-            clonedPredictions.add(pred);
+            // If supposed to return only predictions for specific direction and
+            // the current predictions are for the wrong direction then leave
+            // them out. And if determined that should filter out end of trip
+            // predictions, do so if all of the predictions for this stop are
+            // end of trip predictions.
+            if ((directionId == null || directionId.equals(predictions.getDirectionId()))
+                    && !(shouldFilterOutEndOfTripPreds && allPredictionsAtEndOfTrip(predictions)))
+                clone = predictions.getClone(maxPredictionsPerStop, maxPredictionEpochTime, distanceToStop);
+
+            if (clone != predictions && clonedPredictions == currentPredictions)
+                clonedPredictions = new ArrayList<>(currentPredictions.subList(0, i));
+            if (clonedPredictions != currentPredictions && clone != null) clonedPredictions.add(clone);
         }
 
         // Will frequently get info for trip patterns that are not currently in
         // service. If only have no predictions, then that should be returned.
         // But if do have predictions for a destination then should filter out
         // the destinations that don't have any predictions so that useful
-        // info doesn't clutter the screen. Since need to make sure that don't
-        // modify clonedPredictions while removing elements need to be careful
-        // about how go about doing this.
+        // info doesn't clutter the screen.
         boolean hasDestinationWithPredictions = false;
+        boolean hasDestinationWithoutPredictions = false;
         for (IpcPredictionsForRouteStopDest pred : clonedPredictions) {
-            // If at least one of the destinations has predictions...
-            if (!pred.getPredictionsForRouteStop().isEmpty()) {
-                hasDestinationWithPredictions = true;
-                break;
-            }
+            if (pred.getPredictionsForRouteStop().isEmpty()) hasDestinationWithoutPredictions = true;
+            else hasDestinationWithPredictions = true;
         }
-        if (hasDestinationWithPredictions) {
-            // Filter out destination info where there are no predictions.
-            // Use iterator since possibly removing elements in loop
-            Iterator<IpcPredictionsForRouteStopDest> iterator = clonedPredictions.iterator();
-            while (iterator.hasNext()) {
-                IpcPredictionsForRouteStopDest predsForRouteStopDest = iterator.next();
-                // If found destination with no predictions remove it
-                if (predsForRouteStopDest.getPredictionsForRouteStop().isEmpty()) {
-                    iterator.remove();
-                }
+        if (hasDestinationWithPredictions && hasDestinationWithoutPredictions) {
+            List<IpcPredictionsForRouteStopDest> destinationsWithPredictions = new ArrayList<>(clonedPredictions.size());
+            for (IpcPredictionsForRouteStopDest pred : clonedPredictions) {
+                if (!pred.getPredictionsForRouteStop().isEmpty()) destinationsWithPredictions.add(pred);
             }
+            clonedPredictions = destinationsWithPredictions;
         }
 
-        // Return the safe cloned predictions
         return clonedPredictions;
     }
 
+    /**
+     * Returns true if there are predictions and all of them are for the end of the trip.
+     *
+     * @param predictions
+     * @return
+     */
+    private static boolean allPredictionsAtEndOfTrip(IpcPredictionsForRouteStopDest predictions) {
+        if (predictions.getPredictionsForRouteStop().isEmpty()) return false;
+
+        for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
+            if (!preds.isAtEndOfTrip()) return false;
+        }
+        return true;
+    }
+
     /**
      * Returns copy of the PredictionsForRouteStop object. A clone is used so that it can be
      * accessed as needed without worrying about another thread writing to it. The list of
@@ -355,7 +395,8 @@ public class PredictionDataCache {
 
     /**
      * Returns copy of all predictions for system, limited by maxPredictionsPerStop and
-     * maxPredictionTime.
+     * maxPredictionTime. Goes through a single snapshot of the predictions so they are coherent,
+     * even for a vehicle whose predictions are being updated at the same time.
      *
      * @param maxPredictionsPerStop Maximum number of predictions per route/stop/destination to
      *     clone.
@@ -366,7 +407,8 @@ public class PredictionDataCache {
     public List<IpcPredictionsForRouteStopDest> getAllPredictions(int maxPredictionsPerStop, long maxSystemTimeForPrediction) {
         List<IpcPredictionsForRouteStopDest> allPredictions = new ArrayList<>(5000);
 
-        // Go through all PredictionsForRouteStop objects
+        // Go through all PredictionsForRouteStop objects of the current
+        // snapshot
         Collection<List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop = predictionsMap.values();
         for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : predictionsByRouteStop) {
             for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : predictionsForRouteStop) {
@@ -383,6 +425,15 @@ public class PredictionDataCache {
         return allPredictions;
     }
 
+    /**
+     * Adds a listener that is called whenever the predictions for a vehicle change.
+     *
+     * @param listener
+     */
+    public void addPredictionsChangeListener(PredictionsChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
     /**
      * Updates predictions in the cache that are associated with a vehicle. Removes any that are in
      * oldPredictionsForVehicle and adds all the ones in newPredictionsForVehicle.
@@ -393,6 +444,51 @@ public class PredictionDataCache {
      */
     public void updatePredictions(
             List<IpcPrediction> oldPredictionsForVehicle, List<IpcPrediction> newPredictionsForVehicle) {
+        synchronized (updateLock) {
+            Map<MapKey, List<IpcPredictionsForRouteStopDest>> updatedPredictionsMap = new HashMap<>(predictionsMap);
+            doUpdatePredictions(updatedPredictionsMap, oldPredictionsForVehicle, newPredictionsForVehicle);
+            predictionsMap = Collections.unmodifiableMap(updatedPredictionsMap);
+        }
+        notifyChangeListeners(oldPredictionsForVehicle, newPredictionsForVehicle);
+    }
+
+    /**
+     * Lets the listeners know that the predictions for the vehicle changed. A problem with a
+     * listener is logged but doesn't affect the prediction update.
+     */
+    private void notifyChangeListeners(
+            List<IpcPrediction> oldPredictionsForVehicle, List<IpcPrediction> newPredictionsForVehicle) {
+        if (changeListeners.isEmpty()) return;
+
+        List<IpcPrediction> newPredictions =
+                newPredictionsForVehicle == null ? List.of() : Collections.unmodifiableList(newPredictionsForVehicle);
+        String vehicleId;
+        if (!newPredictions.isEmpty()) vehicleId = newPredictions.get(0).getVehicleId();
+        else if (oldPredictionsForVehicle != null && !oldPredictionsForVehicle.isEmpty())
+            vehicleId = oldPredictionsForVehicle.get(0).getVehicleId();
+        else return;
+
+        for (PredictionsChangeListener listener : changeListeners) {
+            try {
+                listener.predictionsChanged(vehicleId, newPredictions);
+            } catch (Exception e) {
+                logger.error("Exception notifying {} of predictions change for vehicleId={}", listener, vehicleId, e);
+            }
+        }
+    }
+
+    /**
+     * Does the work for updatePredictions() on the copy of the map that is then published.
+     *
+     * @param updatedPredictionsMap The copy of the map to update
+     * @param oldPredictionsForVehicle The old predictions to be removed.
+     * @param newPredictionsForVehicle The new predictions. Can be null if only removing old
+     *     predictions
+     */
+    private void doUpdatePredictions(
+            Map<MapKey, List<IpcPredictionsForRouteStopDest>> updatedPredictionsMap,
+            List<IpcPrediction> oldPredictionsForVehicle,
+            List<IpcPrediction> newPredictionsForVehicle) {
         // Handle null being passed in for newPredictionsForVehicle
         if (newPredictionsForVehicle == null)
             newPredictionsForVehicle = new ArrayList<>();
@@ -400,12 +496,11 @@ public class PredictionDataCache {
         // Can have several predictions for a route/stop/dest for a vehicle if
         // the route is a relatively short loop. And if have unscheduled
         // trips then won't have a unique trip identifier. Therefore to
-        // atomically update the predictions for this vehicle for this
-        // route/stop need to delete all predictions for the vehicle
-        // and add all new ones in one synchronized operation.
-        // First step is to group the new predictions by route/stop/dest so
-        // can deal with them all at once. Those are put into
-        // newPredsForVehicleByRouteStopDestMap.
+        // update the predictions for this vehicle for this route/stop need
+        // to delete all predictions for the vehicle and add all new ones at
+        // once. First step is to group the new predictions by
+        // route/stop/dest so can deal with them all at once. Those are put
+        // into newPredsForVehicleByRouteStopDestMap.
         Map<MapKey, List<IpcPrediction>> newPredsForVehicleByRouteStopDestMap = new HashMap<>();
 
         for (IpcPrediction newPrediction : newPredictionsForVehicle) {
@@ -419,8 +514,16 @@ public class PredictionDataCache {
 
         // Go through the new predictions grouped by route/stop/destination and
         // process them.
+        long currentTime = getSystemTime();
         for (List<IpcPrediction> newPredsForVehicleForRouteStopDest : newPredsForVehicleByRouteStopDestMap.values()) {
-            updatePredictionsForVehicle(newPredsForVehicleForRouteStopDest);
+            logger.debug("Adding predictions for the route/stop/destination: {}", newPredsForVehicleForRouteStopDest);
+            IpcPrediction pred = newPredsForVehicleForRouteStopDest.get(0);
+            updateDestination(
+                    updatedPredictionsMap,
+                    pred.getTrip(),
+                    pred.getStopId(),
+                    true,
+                    preds -> preds.withPredictionsForVehicle(newPredsForVehicleForRouteStopDest, currentTime));
         }
 
         // Remove old predictions that are not in newPredictionsForVehicle
@@ -434,7 +537,13 @@ public class PredictionDataCache {
                         oldPrediction.getTrip().getHeadsign());
                 if (newPredsForVehicleByRouteStopDestMap.get(key) == null) {
                     // Remove the old prediction
-                    removePrediction(oldPrediction);
+                    logger.debug("Removing prediction={}", oldPrediction);
+                    updateDestination(
+                            updatedPredictionsMap,
+                            oldPrediction.getTrip(),
+                            oldPrediction.getStopId(),
+                            false,
+                            preds -> preds.withoutPrediction(oldPrediction));
                 }
             }
         }
@@ -452,46 +561,6 @@ public class PredictionDataCache {
         updatePredictions(oldPredictions, null);
     }
 
-    /**
-     * Removes old prediction from the map. For when there is no new prediction for the vehicle for
-     * the route/stop.
-     *
-     * @param oldPrediction
-     */
-    private void removePrediction(IpcPrediction oldPrediction) {
-        logger.debug("Removing prediction={}", oldPrediction);
-
-        // Get the prediction list from the map
-        IpcPredictionsForRouteStopDest predictions = getPredictionsForRouteStopDestination(oldPrediction);
-        predictions.removePrediction(oldPrediction);
-    }
-
-    /**
-     * Gets the prediction list for the route/stop/destination, synchronizes it so that changes are
-     * threadsafe, and then updates the list with the new predictions. Each route/stop will usually
-     * get only a single prediction but there are situations where a vehicle will hit a stop more
-     * than once with the max time that predictions are generated for. For such a case need to add
-     * all of those predictions at once.
-     *
-     * @param newPredsForVehicleForRouteStopDest the new predictions to be set for the
-     *     route/stop/destination.
-     */
-    private void updatePredictionsForVehicle(List<IpcPrediction> newPredsForVehicleForRouteStopDest) {
-        // If no predictions then nothing to do so return.
-        if (newPredsForVehicleForRouteStopDest == null || newPredsForVehicleForRouteStopDest.isEmpty()) {
-            return;
-        }
-
-        logger.debug("Adding predictions for the route/stop/destination: {}", newPredsForVehicleForRouteStopDest);
-
-        // Get the current predictions for the route/stop/destination
-        IpcPrediction pred = newPredsForVehicleForRouteStopDest.get(0);
-        IpcPredictionsForRouteStopDest currentPredsForRouteStopDest = getPredictionsForRouteStopDestination(pred);
-
-        // Update the predictions for the route/stop/destination
-        currentPredsForRouteStopDest.updatePredictionsForVehicle(newPredsForVehicleForRouteStopDest, getSystemTime());
-    }
-
     /**
      * Returns List of PredictionsForRouteStop objects associated with the specified route/stop.
      * Returns a list because there is a separate PredictionsForRouteStop for each destination and
@@ -500,87 +569,85 @@ public class PredictionDataCache {
      * @param routeShortName The route short name. Set to null to get predictions for all routes for
      *     the stop.
      * @param stopId
-     * @return list of predictions. Can be empty array but never null.
+     * @return list of predictions. Can be empty array but never null. Not to be modified.
      */
-    private List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(String routeShortName, String stopId) {
-        List<IpcPredictionsForRouteStopDest> predictionsForStop;
+    List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(String routeShortName, String stopId) {
+        // Use the same snapshot for all of the routes
+        Map<MapKey, List<IpcPredictionsForRouteStopDest>> predictionsMap = this.predictionsMap;
 
         // If routeShortName specified then get predictions for that route.
         // If not then get predictions for all routes that serve the stop.
         if (routeShortName != null) {
-            // Determine the predictions for all destinations for the route/stop
-            MapKey key = MapKey.create(routeShortName, stopId);
-            predictionsForStop = predictionsMap.get(key);
-
-            if (predictionsForStop == null) {
-                // No predictions so return empty array instead of null
-                predictionsForStop = new ArrayList<>(1);
-
-                // Need to update the predictions map with the
-                // predictionsForStop list for this route/stop so that
-                // when this list of predictions is updated it will be
-                // kept around.
-                predictionsMap.putIfAbsent(key, predictionsForStop);
-            }
-        } else {
-            // No route specified so get predictions for all routes for the stop
-            predictionsForStop = new ArrayList<>();
-            Collection<Route> routes = Core.getInstance().getDbConfig().getRoutesForStop(stopId);
-            for (Route route : routes) {
-                MapKey key = MapKey.create(route.getShortName(), stopId);
-                List<IpcPredictionsForRouteStopDest> predsForRoute = predictionsMap.get(key);
-                if (predsForRoute != null)
-                    predictionsForStop.addAll(predsForRoute);
-            }
+            // Determine the predictions for all destinations for the route/stop.
+            // No predictions so return empty list instead of null
+            return predictionsMap.getOrDefault(MapKey.create(routeShortName, stopId), List.of());
         }
 
+        // No route specified so get predictions for all routes for the stop
+        List<IpcPredictionsForRouteStopDest> predictionsForStop = new ArrayList<>();
+        Collection<Route> routes = Core.getInstance().getDbConfig().getRoutesForStop(stopId);
+        for (Route route : routes) {
+            MapKey key = MapKey.create(route.getShortName(), stopId);
+            List<IpcPredictionsForRouteStopDest> predsForRoute = predictionsMap.get(key);
+            if (predsForRoute != null)
+                predictionsForStop.addAll(predsForRoute);
+        }
         return predictionsForStop;
     }
 
     /**
-     * Returns PredictionsForRouteStop object associated with the specified route/stop/destination
-     * specified by the trip and stopId parameters.
-     *
-     * <p>The returned PredictionsForRouteStop objects needs to be synchronized when predictions
-     * accessed. Otherwise might access temporarily corrupt state when a prediction is being
-     * updated.
+     * Replaces the PredictionsForRouteStop object for the route/stop/destination specified by the
+     * trip and stopId parameters with the changed one. Since the lists in the map are immutable a
+     * new list for the route/stop is put into the map.
      *
+     * @param updatedPredictionsMap The copy of the map being updated
      * @param trip
      * @param stopId
-     * @return The PredictionsForRouteStop for the specified route/stop/destination
+     * @param create Whether to create the PredictionsForRouteStop if there isn't one yet
+     * @param change Returns the changed PredictionsForRouteStop, or the same one if unchanged
      */
-    private IpcPredictionsForRouteStopDest getPredictionsForRouteStopDestination(Trip trip, String stopId) {
-        // Determine the predictions for all destinations for the route/stop
-        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = getPredictionsForRouteStop(trip.getRouteShortName(), stopId);
-
-        // Sync on the array so that it can't change between when check to
-        // find out if the PredictionsForRouteStopDest already exists for
-        // the destination till the time insert new one.
-        synchronized (predictionsForRouteStop) {
-            // From the list of predictions return the one that is for the
-            // specified destination.
-            for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-                if (preds.getHeadsign() == null || preds.getHeadsign().equals(trip.getHeadsign()))
-                    return preds;
-            }
-
-            // The PredictionsForRouteStopDest was not yet created for the
-            // route/stop/destination so create it now and add it to list
-            // of PredictionsForRouteStopDest objects for the route/stop.
-            IpcPredictionsForRouteStopDest preds = new IpcPredictionsForRouteStopDest(trip, stopId, Double.NaN);
-            predictionsForRouteStop.add(preds);
-            return preds;
-        }
+    private static void updateDestination(
+            Map<MapKey, List<IpcPredictionsForRouteStopDest>> updatedPredictionsMap,
+            Trip trip,
+            String stopId,
+            boolean create,
+            UnaryOperator<IpcPredictionsForRouteStopDest> change) {
+        MapKey key = MapKey.create(trip.getRouteShortName(), stopId);
+        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop =
+                updatedPredictionsMap.getOrDefault(key, List.of());
+
+        int index = indexOfDestination(predictionsForRouteStop, trip.getHeadsign());
+        if (index < 0 && !create) return;
+
+        // The PredictionsForRouteStopDest might not yet have been created for
+        // the route/stop/destination
+        IpcPredictionsForRouteStopDest predictions = index >= 0
+                ? predictionsForRouteStop.get(index)
+                : new IpcPredictionsForRouteStopDest(trip, stopId, Double.NaN);
+        IpcPredictionsForRouteStopDest changedPredictions = change.apply(predictions);
+        if (changedPredictions == predictions && index >= 0) return;
+
+        List<IpcPredictionsForRouteStopDest> updated = new ArrayList<>(predictionsForRouteStop);
+        if (index >= 0) updated.set(index, changedPredictions);
+        else updated.add(changedPredictions);
+        updatedPredictionsMap.put(key, List.copyOf(updated));
     }
 
     /**
-     * Returns PredictionsForRouteStop object associated with the specified route/stop/destination
-     * specified by the prediction parameter.
+     * From the list of predictions return the index of the one that is for the specified
+     * destination.
      *
-     * @param prediction for specifying route and stop for which to get the prediction list for.
-     * @return The PredictionsForRouteStop for the specified route/stop/destination
+     * @param predictionsForRouteStop
+     * @param headsign
+     * @return The index of the predictions for the destination, or -1 if there aren't any
      */
-    private IpcPredictionsForRouteStopDest getPredictionsForRouteStopDestination(IpcPrediction prediction) {
-        return getPredictionsForRouteStopDestination(prediction.getTrip(), prediction.getStopId());
+    private static int indexOfDestination(
+            List<IpcPredictionsForRouteStopDest> predictionsForRouteStop, String headsign) {
+        for (int i = 0; i < predictionsForRouteStop.size(); ++i) {
+            IpcPredictionsForRouteStopDest preds = predictionsForRouteStop.get(i);
+            if (preds.getHeadsign() == null || preds.getHeadsign().equals(headsign)) return i;
+        }
+        return -1;
     }
+
 }
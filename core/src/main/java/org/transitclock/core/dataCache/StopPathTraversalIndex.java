@@ -0,0 +1,172 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * Keeps track of the most recent departures from each stop and the most recent arrival of each
+ * vehicle and trip at each stop, for each day. This way the most recent traversal of a stop path
+ * by another vehicle can be determined directly instead of by going through the whole day's
+ * history of the stops in the StopArrivalDepartureCache, which gets slower as the day goes on.
+ *
+ * <p>Gets the same arrivals and departures as the StopArrivalDepartureCache and gives the same
+ * results as searching its sorted lists. When events have the same time the one added first is
+ * used, same as for the sorted lists.
+ */
+@Slf4j
+public class StopPathTraversalIndex {
+
+    // Only the most recent days are kept since the StopArrivalDepartureCache
+    // is only used for the current day
+    private static final int DAYS_TO_KEEP = 2;
+
+    private static final StopPathTraversalIndex singleton = new StopPathTraversalIndex();
+
+    /** Key for departures from a stop. Direction is null when for all directions. */
+    private record DepartureKey(String stopId, String directionId) {}
+
+    /** Key for the arrival of a vehicle and trip at a stop */
+    private record ArrivalKey(String stopId, String vehicleId, String tripId) {}
+
+    /**
+     * The most recent departure and the most recent departure by a different vehicle than that
+     * one. That way the most recent departure by a vehicle other than any specified vehicle is
+     * available.
+     */
+    private record LatestDepartures(IpcArrivalDeparture latest, IpcArrivalDeparture latestByOtherVehicle) {
+
+        private LatestDepartures add(IpcArrivalDeparture departure) {
+            boolean sameVehicle = departure.getVehicleId().equals(latest.getVehicleId());
+            if (isAfter(departure, latest))
+                return new LatestDepartures(departure, sameVehicle ? latestByOtherVehicle : latest);
+            if (!sameVehicle && (latestByOtherVehicle == null || isAfter(departure, latestByOtherVehicle)))
+                return new LatestDepartures(latest, departure);
+            return this;
+        }
+
+        private IpcArrivalDeparture getLatestNotBy(String vehicleId) {
+            return latest.getVehicleId().equals(vehicleId) ? latestByOtherVehicle : latest;
+        }
+    }
+
+    /** The index for a single day */
+    private static class DayIndex {
+        private final Map<DepartureKey, LatestDepartures> departures = new ConcurrentHashMap<>();
+        private final Map<ArrivalKey, IpcArrivalDeparture> arrivals = new ConcurrentHashMap<>();
+    }
+
+    // Keyed on start of day
+    private final Map<Long, DayIndex> dayIndices = new ConcurrentHashMap<>();
+
+    private volatile long latestDay = Long.MIN_VALUE;
+
+    /**
+     * Gets the singleton instance of this class.
+     *
+     * @return
+     */
+    public static StopPathTraversalIndex getInstance() {
+        return singleton;
+    }
+
+    StopPathTraversalIndex() {}
+
+    private static boolean isAfter(IpcArrivalDeparture event, IpcArrivalDeparture other) {
+        return event.getTime().getTime() > other.getTime().getTime();
+    }
+
+    /**
+     * Adds the arrival or departure to the index. Should be called for each arrival/departure that
+     * is put into the StopArrivalDepartureCache.
+     *
+     * @param arrivalDeparture
+     */
+    public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+        if (arrivalDeparture.getStop() == null) return;
+
+        long day = Time.getStartOfDay(arrivalDeparture.getDate());
+        // New day checked first since latestDay minus the days to keep would
+        // overflow before the first event
+        if (day > latestDay) {
+            latestDay = day;
+            Iterator<Long> iterator = dayIndices.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() < day - DAYS_TO_KEEP * Time.MS_PER_DAY) iterator.remove();
+            }
+        } else if (day < latestDay - DAYS_TO_KEEP * Time.MS_PER_DAY) {
+            return;
+        }
+
+        IpcArrivalDeparture event;
+        try {
+            event = new IpcArrivalDeparture(arrivalDeparture);
+        } catch (Exception e) {
+            logger.error("Error adding {} event to StopPathTraversalIndex.", arrivalDeparture, e);
+            return;
+        }
+
+        DayIndex dayIndex = dayIndices.computeIfAbsent(day, k -> new DayIndex());
+        String stopId = arrivalDeparture.getStop().getId();
+        if (event.isDeparture()) {
+            addDeparture(dayIndex, new DepartureKey(stopId, null), event);
+            if (event.getDirectionId() != null)
+                addDeparture(dayIndex, new DepartureKey(stopId, event.getDirectionId()), event);
+        } else {
+            dayIndex.arrivals.merge(
+                    new ArrivalKey(stopId, event.getVehicleId(), event.getTripId()),
+                    event,
+                    (existing, newEvent) -> isAfter(newEvent, existing) ? newEvent : existing);
+        }
+    }
+
+    private static void addDeparture(DayIndex dayIndex, DepartureKey key, IpcArrivalDeparture departure) {
+        dayIndex.departures.compute(
+                key,
+                (k, latestDepartures) ->
+                        latestDepartures == null ? new LatestDepartures(departure, null) : latestDepartures.add(departure));
+    }
+
+    /**
+     * Returns the most recent departure from the stop, for the day of the specified time, by a
+     * vehicle other than the specified one.
+     *
+     * @param stopId
+     * @param time For determining the day
+     * @param directionId Direction of the departure. If null then departures for all directions
+     *     are considered.
+     * @param excludedVehicleId The vehicle whose departures are not to be considered
+     * @return The departure, or null if there is none
+     */
+    public IpcArrivalDeparture getLastDeparture(
+            String stopId, Date time, String directionId, String excludedVehicleId) {
+        DayIndex dayIndex = dayIndices.get(Time.getStartOfDay(time));
+        if (dayIndex == null) return null;
+
+        LatestDepartures latestDepartures = dayIndex.departures.get(new DepartureKey(stopId, directionId));
+        return latestDepartures == null ? null : latestDepartures.getLatestNotBy(excludedVehicleId);
+    }
+
+    /**
+     * Returns the most recent arrival at the stop by the vehicle for the trip, for the day of the
+     * specified time.
+     *
+     * @param stopId
+     * @param time For determining the day
+     * @param vehicleId
+     * @param tripId
+     * @return The arrival, or null if there is none
+     */
+    public IpcArrivalDeparture getLastArrival(String stopId, Date time, String vehicleId, String tripId) {
+        DayIndex dayIndex = dayIndices.get(Time.getStartOfDay(time));
+        if (dayIndex == null) return null;
+
+        return dayIndex.arrivals.get(new ArrivalKey(stopId, vehicleId, tripId));
+    }
+}
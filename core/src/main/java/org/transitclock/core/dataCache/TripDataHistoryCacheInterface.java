@@ -3,7 +3,6 @@ package org.transitclock.core.dataCache;
 
 import java.util.Date;
 import java.util.List;
-import org.hibernate.Session;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.service.dto.IpcArrivalDeparture;
 
@@ -13,8 +12,6 @@ public interface TripDataHistoryCacheInterface {
 
     TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture);
 
-    void populateCacheFromDb(Session session, Date startDate, Date endDate);
-
     IpcArrivalDeparture findPreviousArrivalEvent(
             List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current);
 
@@ -22,4 +19,24 @@ public interface TripDataHistoryCacheInterface {
             List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current);
 
     List<TripKey> getKeys();
+
+    /**
+     * Returns the travel times for a stop path of a trip for the days before the specified day,
+     * for implementations that keep them separately from the trip history so that they don't need
+     * to be determined from the history of each day. Same results as
+     * PredictionGenerator.lastDaysTimes() but just the travel times.
+     *
+     * @param tripId
+     * @param startTime Start time of the trip
+     * @param stopPathIndex
+     * @param startDate The start of the current day
+     * @param numDaysLookBack How many days before the current day to look at
+     * @param numDays Maximum number of travel times to return
+     * @return The travel times in msec, most recent first, or null if not available from this
+     *     cache, in which case the trip history needs to be used
+     */
+    default long[] getLastDaysTravelTimes(
+            String tripId, Integer startTime, int stopPathIndex, Date startDate, int numDaysLookBack, int numDays) {
+        return null;
+    }
 }
@@ -2,7 +2,6 @@
 package org.transitclock.core.dataCache;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import org.transitclock.service.dto.IpcArrivalDeparture;
@@ -11,7 +10,7 @@ public class TripEvents implements Serializable {
     /** */
     private static final long serialVersionUID = -510989387398784934L;
 
-    public List<IpcArrivalDeparture> events = null;
+    public volatile List<IpcArrivalDeparture> events = null;
 
     public List<IpcArrivalDeparture> getEvents() {
         return events;
@@ -51,11 +50,14 @@ public class TripEvents implements Serializable {
         Collections.sort(this.events, new IpcArrivalDepartureComparator());
     }
 
+    /**
+     * Adds the event. The list of events is replaced instead of modified so that lists already
+     * returned by getEvents() don't change. Not thread safe, so the caller needs to make sure that
+     * only one thread at a time adds events.
+     *
+     * @param event
+     */
     public void addEvent(IpcArrivalDeparture event) {
-        if (this.events == null) {
-            events = new ArrayList<IpcArrivalDeparture>();
-        }
-        events.add(event);
-        Collections.sort(this.events, new IpcArrivalDepartureComparator());
+        events = EventLists.withEventAdded(events, event);
     }
 }
@@ -21,6 +21,7 @@ import org.transitclock.config.data.AgencyConfig;
 import org.transitclock.core.VehicleState;
 import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Location;
 import org.transitclock.domain.structs.Route;
 import org.transitclock.domain.structs.VehicleConfig;
 import org.transitclock.service.dto.IpcVehicleComplete;
@@ -36,6 +37,12 @@ import org.transitclock.utils.Time;
  * when converting to a IpcExtVehicle. Organizes vehicles info by vehicle ID but also by route so
  * can easily determine which vehicles are associated with a route.
  *
+ * <p>The per block views are immutable. When a vehicle changes block a new view is created and
+ * atomically replaces the old one. The per route views are concurrent maps that are updated in
+ * place so that an AVL update doesn't need to copy the map for the whole route. In both cases
+ * readers can use the views without synchronizing. There is also a spatial grid of the current vehicle positions so
+ * that the vehicles near a location can be determined without going through the whole fleet.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
@@ -49,15 +56,22 @@ public class VehicleDataCache {
 
     // Keyed by route_short_name. Key is null for vehicles that have not
     // been successfully associated with a route. For each route there is a
-    // submap that is keyed by vehicle.
-    private final Map<String, Map<String, IpcVehicleComplete>> vehiclesByRouteMap =
+    // concurrent submap that is keyed by vehicle. Submaps are only added,
+    // never removed, so that an update can't be lost by being put into a
+    // submap that was just removed.
+    private final ConcurrentHashMapNullKeyOk<String, Map<String, IpcVehicleComplete>> vehiclesByRouteMap =
             new ConcurrentHashMapNullKeyOk<String, Map<String, IpcVehicleComplete>>();
 
     // So can determine vehicles associated with a block ID. Keyed on
     // block ID. Each block can have a list of vehicle IDs. Though rare
     // there are situations where multiple vehicles might have the
-    // same assignment, such as for unscheduled assignments.
-    private final Map<String, List<String>> vehicleIdsByBlockMap = new ConcurrentHashMapNullKeyOk<String, List<String>>();
+    // same assignment, such as for unscheduled assignments. The lists
+    // are immutable and are replaced whenever they change.
+    private final ConcurrentHashMapNullKeyOk<String, List<String>> vehicleIdsByBlockMap =
+            new ConcurrentHashMapNullKeyOk<String, List<String>>();
+
+    // So can quickly determine the vehicles near a location
+    private final VehicleSpatialGrid vehicleSpatialGrid = new VehicleSpatialGrid();
 
     // Keeps track of vehicle static config info. If new vehicle encountered
     // in AVL feed then this map is updated and the new VehicleConfig is also
@@ -311,6 +325,19 @@ public class VehicleDataCache {
         return vehicles;
     }
 
+    /**
+     * Returns Collection of vehicles currently within maxDistance of the location. Uses the spatial
+     * grid so only the vehicles near the location are looked at. Like getVehiclesForRoute() filters
+     * out info more than MAX_AGE_MSEC old and schedule based vehicles.
+     *
+     * @param loc The location
+     * @param maxDistance Max distance in meters that the vehicle can be from the location
+     * @return Collection of vehicles near the location. Empty collection if there are none.
+     */
+    public Collection<IpcVehicleComplete> getVehiclesNearLocation(Location loc, double maxDistance) {
+        return filterSchedBasedVehicle(filterOldAvlReports(vehicleSpatialGrid.getVehiclesNear(loc, maxDistance)));
+    }
+
     /**
      * Returns collection of vehicles whose vehicleIds were specified using the vehiclesIds
      * parameter. No filtering of old vehicles is done since requesting info on specific vehicles.
@@ -363,26 +390,22 @@ public class VehicleDataCache {
     }
 
     /**
-     * Returns copy of list of vehicle IDs that are currently assigned to the specified block. A
-     * copy is returned since the list is quite small and will often need to iterate over it while
-     * calling methods that modify the underlying list. Using a copy makes sure that don't get a
-     * ConcurrentModificationException. Will return empty list if no vehicles assigned to that block
-     * (won't return null). Usually there will only be a single vehicle associated with a block
+     * Returns list of vehicle IDs that are currently assigned to the specified block. The list is
+     * an immutable snapshot so can iterate over it while calling methods that modify the underlying
+     * assignments without getting a ConcurrentModificationException. Will return empty list if no
+     * vehicles assigned to that block (won't return null). Usually there will only be a single vehicle associated with a block
      * assignment but there are cases, such as unscheduled assignments, where there could be
      * multiple vehicles. Therefore this method returns a List. No filtering of vehicles is done
      * since dealing with vehicle IDs, not IpcExtVehicle objects, and therefore harder to tell if
      * vehicle is stale.
      *
      * @param blockId
-     * @return Copy of list of vehicle IDs associated with the specified block Id. Returns empty
+     * @return Immutable list of vehicle IDs associated with the specified block Id. Returns empty
      *     list instead of null if no vehicles associated with the block ID.
      */
     public Collection<String> getVehiclesByBlockId(String blockId) {
         List<String> vehicleIds = vehicleIdsByBlockMap.get(blockId);
-        if (vehicleIds != null)
-            // Return copy of collection
-            return new ArrayList<String>(vehicleIds);
-        else return new ArrayList<String>(0);
+        return vehicleIds != null ? vehicleIds : List.of();
     }
 
     /**
@@ -401,17 +424,23 @@ public class VehicleDataCache {
 
             // Block assignment has changed for vehicle so remove the old one
             // from the map
-            List<String> vehicleIdsForOldBlock = vehicleIdsByBlockMap.get(originalVehicle.getBlockId());
-            if (vehicleIdsForOldBlock != null) vehicleIdsForOldBlock.remove(originalVehicle.getId());
+            vehicleIdsByBlockMap.computeIfPresent(originalVehicle.getBlockId(), (blockId, vehicleIds) -> {
+                List<String> updated = new ArrayList<>(vehicleIds);
+                updated.remove(originalVehicle.getId());
+                return List.copyOf(updated);
+            });
         }
 
         // Add the new block assignment to the map
-        List<String> vehiclesForNewBlock = vehicleIdsByBlockMap.get(vehicle.getBlockId());
-        if (vehiclesForNewBlock == null) {
-            vehiclesForNewBlock = new ArrayList<String>(1);
-            vehicleIdsByBlockMap.put(vehicle.getBlockId(), vehiclesForNewBlock);
-        }
-        vehiclesForNewBlock.add(vehicle.getId());
+        vehicleIdsByBlockMap.compute(vehicle.getBlockId(), (blockId, vehicleIds) -> {
+            if (vehicleIds == null) return List.of(vehicle.getId());
+            if (vehicleIds.contains(vehicle.getId())) return vehicleIds;
+
+            List<String> updated = new ArrayList<>(vehicleIds.size() + 1);
+            updated.addAll(vehicleIds);
+            updated.add(vehicle.getId());
+            return List.copyOf(updated);
+        });
     }
 
     /**
@@ -429,15 +458,16 @@ public class VehicleDataCache {
                         || !originalVehicle.getRouteShortName().equals(vehicle.getRouteShortName()))) {
             Map<String, IpcVehicleComplete> vehicleMapForRoute =
                     vehiclesByRouteMap.get(originalVehicle.getRouteShortName());
-            vehicleMapForRoute.remove(vehicle.getId());
+            if (vehicleMapForRoute != null) vehicleMapForRoute.remove(vehicle.getId());
         }
 
         // Add IpcExtVehicle to the vehiclesByRouteMap
         Map<String, IpcVehicleComplete> vehicleMapForRoute = vehiclesByRouteMap.get(vehicle.getRouteShortName());
         if (vehicleMapForRoute == null) {
-            vehicleMapForRoute = new HashMap<String, IpcVehicleComplete>();
-            String routeMapKey = vehicle.getRouteShortName();
-            vehiclesByRouteMap.put(routeMapKey, vehicleMapForRoute);
+            // compute() instead of computeIfAbsent() since key can be null
+            vehicleMapForRoute = vehiclesByRouteMap.compute(
+                    vehicle.getRouteShortName(),
+                    (routeShortName, vehicles) -> vehicles != null ? vehicles : new ConcurrentHashMap<>());
         }
         vehicleMapForRoute.put(vehicle.getId(), vehicle);
     }
@@ -454,12 +484,14 @@ public class VehicleDataCache {
         if (!vehicle.isForSchedBasedPred() || vehicle.isPredictable()) {
             // Normal situation. Add vehicle to vehiclesMap
             vehiclesMap.put(vehicle.getId(), vehicle);
+            vehicleSpatialGrid.update(vehicle);
         } else {
             // Special case where vehicle is schedule based and it is not
             // predictable. This means that should get rid of the vehicle
             // from the vehiclesMap since it was just a temporary fake
             // vehicle.
             vehiclesMap.remove(vehicle.getId());
+            vehicleSpatialGrid.remove(vehicle.getId());
         }
     }
 
@@ -488,5 +520,6 @@ public class VehicleDataCache {
     public void removeVehicle(String vehicleId) {
         logger.debug("Removing from VehicleDataCache vehiclesMap vehicleId={}", vehicleId);
         vehiclesMap.remove(vehicleId);
+        vehicleSpatialGrid.remove(vehicleId);
     }
 }
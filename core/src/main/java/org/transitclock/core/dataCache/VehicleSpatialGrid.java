@@ -0,0 +1,135 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.service.dto.IpcVehicleComplete;
+import org.transitclock.utils.Geo;
+
+/**
+ * A spatial index of the current vehicle positions. The area is divided into a grid of cells and
+ * each cell contains the vehicles currently in it. This way can determine the vehicles near a
+ * location by only looking at the cells near the location instead of going through the whole
+ * fleet.
+ *
+ * <p>Updates for a vehicle are done within a compute() on the vehicle's entry in cellByVehicleId so
+ * that even if the same vehicle is updated by multiple threads at once it ends up in exactly one
+ * cell.
+ */
+class VehicleSpatialGrid {
+
+    // Size of cells in degrees of latitude and longitude. About 1.1km north
+    // to south, less east to west away from the equator.
+    private static final double CELL_SIZE_DEGREES = 0.01;
+
+    private static final double METERS_PER_DEGREE_LAT = Math.PI * Geo.RADIUS_OF_EARTH_IN_METERS / 180.0;
+
+    // The vehicles in each cell, keyed by vehicle ID. Empty cells are removed.
+    private final Map<Long, Map<String, IpcVehicleComplete>> vehiclesByCell = new ConcurrentHashMap<>();
+
+    // Which cell each vehicle is currently in so that it can be removed from
+    // the cell when it moves
+    private final Map<String, Long> cellByVehicleId = new ConcurrentHashMap<>();
+
+    private static int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+
+    /**
+     * Puts the vehicle into the cell for its current position, removing it from the cell it was
+     * in before if it has moved to a different one.
+     *
+     * @param vehicle
+     */
+    void update(IpcVehicleComplete vehicle) {
+        if (vehicle.getAvl() == null) {
+            remove(vehicle.getId());
+            return;
+        }
+
+        long cell = cellKey(cellIndex(vehicle.getLatitude()), cellIndex(vehicle.getLongitude()));
+        cellByVehicleId.compute(vehicle.getId(), (vehicleId, previousCell) -> {
+            vehiclesByCell.compute(cell, (key, vehicles) -> {
+                if (vehicles == null) vehicles = new ConcurrentHashMap<>();
+                vehicles.put(vehicleId, vehicle);
+                return vehicles;
+            });
+            if (previousCell != null && previousCell != cell) removeFromCell(previousCell, vehicleId);
+            return cell;
+        });
+    }
+
+    /**
+     * Removes the vehicle from the grid.
+     *
+     * @param vehicleId
+     */
+    void remove(String vehicleId) {
+        cellByVehicleId.computeIfPresent(vehicleId, (key, cell) -> {
+            removeFromCell(cell, vehicleId);
+            return null;
+        });
+    }
+
+    private void removeFromCell(long cell, String vehicleId) {
+        vehiclesByCell.computeIfPresent(cell, (key, vehicles) -> {
+            vehicles.remove(vehicleId);
+            return vehicles.isEmpty() ? null : vehicles;
+        });
+    }
+
+    /**
+     * Returns the vehicles within maxDistance of the location. Only the cells that could contain
+     * such vehicles are looked at. If that would be more cells than there are cells with vehicles,
+     * such as for a very large maxDistance, then simply goes through all the vehicles instead.
+     *
+     * @param loc
+     * @param maxDistance In meters
+     * @return The vehicles. Can be empty but not null.
+     */
+    List<IpcVehicleComplete> getVehiclesNear(Location loc, double maxDistance) {
+        double deltaLat = maxDistance / METERS_PER_DEGREE_LAT;
+        double cosLat = Math.max(Math.cos(Math.toRadians(loc.getLat())), 0.01);
+        double deltaLon = deltaLat / cosLat;
+
+        // Indexes are long so that the range can't overflow
+        long minLatIndex = cellIndex(loc.getLat() - deltaLat);
+        long maxLatIndex = cellIndex(loc.getLat() + deltaLat);
+        long minLonIndex = cellIndex(loc.getLon() - deltaLon);
+        long maxLonIndex = cellIndex(loc.getLon() + deltaLon);
+
+        List<IpcVehicleComplete> nearbyVehicles = new ArrayList<>();
+        double numberOfCells = (double) (maxLatIndex - minLatIndex + 1) * (maxLonIndex - minLonIndex + 1);
+        if (numberOfCells > vehiclesByCell.size()) {
+            for (Map<String, IpcVehicleComplete> vehicles : vehiclesByCell.values())
+                addVehiclesNear(vehicles, loc, maxDistance, nearbyVehicles);
+            return nearbyVehicles;
+        }
+
+        for (long latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+            for (long lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                Map<String, IpcVehicleComplete> vehicles = vehiclesByCell.get(cellKey((int) latIndex, (int) lonIndex));
+                if (vehicles != null) addVehiclesNear(vehicles, loc, maxDistance, nearbyVehicles);
+            }
+        }
+        return nearbyVehicles;
+    }
+
+    private static void addVehiclesNear(
+            Map<String, IpcVehicleComplete> vehicles,
+            Location loc,
+            double maxDistance,
+            List<IpcVehicleComplete> nearbyVehicles) {
+        for (IpcVehicleComplete vehicle : vehicles.values()) {
+            Location vehicleLoc = new Location(vehicle.getLatitude(), vehicle.getLongitude());
+            if (Geo.distance(loc, vehicleLoc) <= maxDistance) nearbyVehicles.add(vehicle);
+        }
+    }
+}
@@ -1,17 +1,13 @@
 /* (C)2023 */
 package org.transitclock.core.dataCache.ehcache;
 
-import com.querydsl.jpa.impl.JPAQuery;
 import lombok.extern.slf4j.Slf4j;
 import org.ehcache.Cache;
-import org.ehcache.CacheManager;
-import org.hibernate.Session;
 import org.transitclock.core.dataCache.*;
 import org.transitclock.domain.structs.ArrivalDeparture;
-import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
 
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -28,11 +24,22 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 
     private static final String cacheByStop = "arrivalDeparturesByStop";
 
-    private final Cache<StopArrivalDepartureCacheKey, StopEvents> cache;
+    // Events are added atomically for each stop and batched before being
+    // written to the cache
+    private final WriteBehindCache<StopArrivalDepartureCacheKey, StopEvents> cache;
 
     public StopArrivalDepartureCache() {
-        CacheManager cm = CacheManagerFactory.getInstance();
-        cache = cm.getCache(cacheByStop, StopArrivalDepartureCacheKey.class, StopEvents.class);
+        this(CacheManagerFactory.getInstance()
+                .getCache(cacheByStop, StopArrivalDepartureCacheKey.class, StopEvents.class));
+    }
+
+    /**
+     * For using a cache other than the configured one, such as an in memory one.
+     *
+     * @param cache
+     */
+    public StopArrivalDepartureCache(Cache<StopArrivalDepartureCacheKey, StopEvents> cache) {
+        this.cache = new WriteBehindCache<>(cache);
     }
 
 
@@ -41,15 +48,8 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
      */
 
     @SuppressWarnings("unchecked")
-    public synchronized List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
-        Calendar date = Calendar.getInstance();
-        date.setTime(key.getDate());
-
-        date.set(Calendar.HOUR_OF_DAY, 0);
-        date.set(Calendar.MINUTE, 0);
-        date.set(Calendar.SECOND, 0);
-        date.set(Calendar.MILLISECOND, 0);
-        key.setDate(date.getTime());
+    public List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+        key.setDate(new Date(Time.getStartOfDay(key.getDate())));
         StopEvents result = cache.get(key);
 
         if (result != null) {
@@ -60,34 +60,28 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
     }
 
 
-    public synchronized StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
-
-        logger.debug("Putting :{} in StopArrivalDepartureCache cache.", arrivalDeparture.toString());
+    public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
-        Calendar date = Calendar.getInstance();
-        date.setTime(arrivalDeparture.getDate());
+        logger.debug("Putting :{} in StopArrivalDepartureCache cache.", arrivalDeparture);
 
-        date.set(Calendar.HOUR_OF_DAY, 0);
-        date.set(Calendar.MINUTE, 0);
-        date.set(Calendar.SECOND, 0);
-        date.set(Calendar.MILLISECOND, 0);
         if (arrivalDeparture.getStop() != null) {
-            StopArrivalDepartureCacheKey key =
-                    new StopArrivalDepartureCacheKey(arrivalDeparture.getStop().getId(), date.getTime());
-
-            StopEvents element = cache.get(key);
-
-            if (element == null) {
-                element = new StopEvents();
-            }
+            StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(
+                    arrivalDeparture.getStop().getId(), new Date(Time.getStartOfDay(arrivalDeparture.getDate())));
 
+            IpcArrivalDeparture event;
             try {
-                element.addEvent(new IpcArrivalDeparture(arrivalDeparture));
+                event = new IpcArrivalDeparture(arrivalDeparture);
             } catch (Exception e) {
                 logger.error("Error adding {} event to StopArrivalDepartureCache.", arrivalDeparture, e);
+                event = null;
             }
 
-            cache.put(key, element);
+            // The element is created for the key even if the event
+            // couldn't be created
+            IpcArrivalDeparture eventToAdd = event;
+            cache.update(key, StopEvents::new, element -> {
+                if (eventToAdd != null) element.addEvent(eventToAdd);
+            });
 
             return key;
         } else {
@@ -98,24 +92,4 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
     private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
         return iterable == null ? Collections.emptyList() : iterable;
     }
-
-    public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
-        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
-        var qentity = QArrivalDeparture.arrivalDeparture;
-        List<ArrivalDeparture> results = query.from(qentity)
-                .where(qentity.time.between(startDate,endDate))
-                .orderBy(qentity.time.asc())
-                .fetch();
-
-        for (ArrivalDeparture result : results) {
-            StopArrivalDepartureCacheFactory.getInstance().putArrivalDeparture(result);
-            // TODO might be better with its own populateCacheFromdb
-            try {
-                if (DwellTimeModelCacheFactory.getInstance() != null)
-                    DwellTimeModelCacheFactory.getInstance().addSample(result);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
 }
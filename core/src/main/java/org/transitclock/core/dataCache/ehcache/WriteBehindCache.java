@@ -0,0 +1,120 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.ehcache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.ehcache.Cache;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.utils.ApplicationShutdownSupport;
+import org.transitclock.utils.Timer;
+
+/**
+ * Wraps an ehcache Cache whose values are updated in place, such as the lists of arrivals and
+ * departures for a stop or trip. Updates are done atomically for each key, using
+ * ConcurrentHashMap.compute(), so threads updating different keys don't block each other. The
+ * updated values are kept in memory and written to the cache periodically, so that a value that
+ * is updated several times is only serialized to the disk tier once. Reads see the updated values
+ * right away. The values not yet written are also flushed when the application shuts down.
+ *
+ * @param <K> Type of the key
+ * @param <V> Type of the value
+ */
+@Slf4j
+public class WriteBehindCache<K, V> {
+
+    private final Cache<K, V> cache;
+
+    // The values that have been updated but not yet written to the cache
+    private final Map<K, V> pendingValues = new ConcurrentHashMap<>();
+
+    private final long writeBehindMsec;
+
+    // Shared by all the write behind caches
+    private static ScheduledThreadPoolExecutor timer = null;
+
+    /**
+     * @param cache The cache that values are written to
+     */
+    public WriteBehindCache(Cache<K, V> cache) {
+        this(cache, CoreConfig.cacheWriteBehindMsec.getValue());
+    }
+
+    /**
+     * @param cache The cache that values are written to
+     * @param writeBehindMsec How often the updated values are written to the cache. If 0 then they
+     *     are written right away.
+     */
+    WriteBehindCache(Cache<K, V> cache, long writeBehindMsec) {
+        this.cache = cache;
+        this.writeBehindMsec = writeBehindMsec;
+        if (writeBehindMsec > 0) {
+            getTimer().scheduleWithFixedDelay(this::flushSafely, writeBehindMsec, writeBehindMsec, TimeUnit.MILLISECONDS);
+            // So that the latest updates aren't lost when shutting down
+            ApplicationShutdownSupport.addShutdownHook("write-behind-cache-flush", this::flushSafely);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (timer == null) timer = Timer.get();
+        return timer;
+    }
+
+    /**
+     * Returns the value for the key, including any updates not yet written to the cache.
+     *
+     * @param key
+     * @return The value, or null if there is none
+     */
+    public V get(K key) {
+        V value = pendingValues.get(key);
+        return value != null ? value : cache.get(key);
+    }
+
+    /**
+     * Updates the value for the key. The update is done while no other thread can update the same
+     * key. If there is no value for the key yet then one is created first.
+     *
+     * @param key
+     * @param creator For creating the value if there is none for the key
+     * @param updater For updating the value. Should not take long.
+     */
+    public void update(K key, Supplier<V> creator, Consumer<V> updater) {
+        pendingValues.compute(key, (k, value) -> {
+            if (value == null) value = cache.get(k);
+            if (value == null) value = creator.get();
+            updater.accept(value);
+
+            // If not writing behind then write to the cache right away
+            if (writeBehindMsec <= 0) {
+                cache.put(k, value);
+                return null;
+            }
+            return value;
+        });
+    }
+
+    /** Writes the updated values to the cache */
+    public void flush() {
+        for (K key : pendingValues.keySet()) {
+            // Done atomically so that an update for the key can't be lost
+            pendingValues.computeIfPresent(key, (k, value) -> {
+                cache.put(k, value);
+                return null;
+            });
+        }
+    }
+
+    private void flushSafely() {
+        // Exceptions would stop the timer from running this again
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Error writing updated values to cache.", e);
+        }
+    }
+}
@@ -1,12 +1,10 @@
 /* (C)2023 */
 package org.transitclock.core.dataCache.ehcache.frequency;
 
-import com.querydsl.jpa.impl.JPAQuery;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.DateUtils;
 import org.ehcache.Cache;
 import org.ehcache.CacheManager;
-import org.hibernate.Session;
 import org.transitclock.Core;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.core.dataCache.*;
@@ -14,10 +12,8 @@ import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
 import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.Block;
-import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
-import org.transitclock.gtfs.GtfsData;
 import org.transitclock.service.dto.IpcArrivalDeparture;
 
 import java.net.URL;
@@ -134,26 +130,6 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
         return tripKey;
     }
 
-    /* (non-Javadoc)
-     * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#populateCacheFromDb(org.hibernate.Session, java.util.Date, java.util.Date)
-     */
-
-    @Override
-    public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
-        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
-        var qentity = QArrivalDeparture.arrivalDeparture;
-        List<ArrivalDeparture> results = query.from(qentity)
-                .where(qentity.time.between(startDate,endDate))
-                .fetch();
-
-        for (ArrivalDeparture result : results) {
-            // TODO this might be better done in the database.
-            if (GtfsData.routeNotFiltered(result.getRouteId())) {
-                TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(result);
-            }
-        }
-    }
-
     /* (non-Javadoc)
      * @see org.transitclock.core.dataCache.ehcache.test#findPreviousArrivalEvent(java.util.List, org.transitclock.db.structs.ArrivalDeparture)
      */
@@ -1,24 +1,22 @@
 /* (C)2023 */
 package org.transitclock.core.dataCache.ehcache.scheduled;
 
-import com.querydsl.jpa.impl.JPAQuery;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.DateUtils;
-import org.ehcache.Cache;
 import org.ehcache.CacheManager;
-import org.hibernate.Session;
 import org.transitclock.Core;
+import org.transitclock.config.data.PredictionConfig;
 import org.transitclock.core.dataCache.*;
 import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
+import org.transitclock.core.dataCache.ehcache.WriteBehindCache;
+import org.transitclock.core.dataCache.scheduled.StopPathTravelTimeHistory;
 import org.transitclock.domain.structs.ArrivalDeparture;
-import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
-import org.transitclock.gtfs.GtfsData;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
 
 import java.net.URL;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -32,11 +30,18 @@ import java.util.List;
 public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
     private static final boolean debug = false;
     private static final String cacheByTrip = "arrivalDeparturesByTrip";
-    private final Cache<TripKey, TripEvents> cache;
+    // Events are added atomically for each trip and batched before being
+    // written to the cache
+    private final WriteBehindCache<TripKey, TripEvents> cache;
+    // The travel times of the most recent days for each stop path, for the
+    // Kalman filter. Updated along with the trip history.
+    private final StopPathTravelTimeHistory travelTimeHistory;
 
     public TripDataHistoryCache() {
         CacheManager cm = CacheManagerFactory.getInstance();
-        cache = cm.getCache(cacheByTrip, TripKey.class, TripEvents.class);
+        cache = new WriteBehindCache<>(cm.getCache(cacheByTrip, TripKey.class, TripEvents.class));
+        travelTimeHistory = new StopPathTravelTimeHistory(
+                this, PredictionConfig.maxKalmanDays.getValue(), PredictionConfig.maxKalmanDaysToSearch.getValue());
     }
 
     /* (non-Javadoc)
@@ -56,16 +61,16 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
      * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#putArrivalDeparture(org.transitclock.db.structs.ArrivalDeparture)
      */
     @Override
-    public synchronized TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+    public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
-        logger.debug("Putting :{} in TripDataHistoryCache cache.", arrivalDeparture.toString());
+        logger.debug("Putting :{} in TripDataHistoryCache cache.", arrivalDeparture);
         /* just put todays time in for last three days to aid development. This means it will kick in in 1 days rather than 3. Perhaps be a good way to start rather than using default transiTime method but I doubt it. */
         int days_back = 1;
         if (debug) days_back = 3;
         TripKey tripKey = null;
 
         for (int i = 0; i < days_back; i++) {
-            Date nearestDay = DateUtils.truncate(new Date(arrivalDeparture.getTime()), Calendar.DAY_OF_MONTH);
+            Date nearestDay = new Date(Time.getStartOfDay(new Date(arrivalDeparture.getTime())));
 
             nearestDay = DateUtils.addDays(nearestDay, i * -1);
 
@@ -77,44 +82,27 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
 
                 tripKey = new TripKey(arrivalDeparture.getTripId(), nearestDay, trip.getStartTime());
 
-                TripEvents result = cache.get(tripKey);
-                if (result == null) {
-                    result = new TripEvents();
-                }
-
+                IpcArrivalDeparture event;
                 try {
-                    result.addEvent(new IpcArrivalDeparture(arrivalDeparture));
-
+                    event = new IpcArrivalDeparture(arrivalDeparture);
                 } catch (Exception e) {
                     logger.error("Error adding {} event to TripDataHistoryCache.", arrivalDeparture, e);
+                    event = null;
                 }
 
-                cache.put(tripKey, result);
+                IpcArrivalDeparture eventToAdd = event;
+                TripKey keyToUpdate = tripKey;
+                cache.update(tripKey, TripEvents::new, result -> {
+                    if (eventToAdd != null) {
+                        result.addEvent(eventToAdd);
+                        travelTimeHistory.update(keyToUpdate, eventToAdd, result.getEvents());
+                    }
+                });
             }
         }
         return tripKey;
     }
 
-    /* (non-Javadoc)
-     * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#populateCacheFromDb(org.hibernate.Session, java.util.Date, java.util.Date)
-     */
-
-    @Override
-    public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
-        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
-        var qentity = QArrivalDeparture.arrivalDeparture;
-        List<ArrivalDeparture> results = query.from(qentity)
-                .where(qentity.time.between(startDate,endDate))
-                .fetch();
-
-        for (ArrivalDeparture result : results) {
-            // TODO this might be better done in the database.
-            if (GtfsData.routeNotFiltered(result.getRouteId())) {
-                TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(result);
-            }
-        }
-    }
-
     /* (non-Javadoc)
      * @see org.transitclock.core.dataCache.ehcache.test#findPreviousArrivalEvent(java.util.List, org.transitclock.db.structs.ArrivalDeparture)
      */
@@ -154,6 +142,13 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
         return iterable == null ? Collections.emptyList() : iterable;
     }
 
+    @Override
+    public long[] getLastDaysTravelTimes(
+            String tripId, Integer startTime, int stopPathIndex, Date startDate, int numDaysLookBack, int numDays) {
+        return travelTimeHistory.getLastDaysTravelTimes(
+                tripId, startTime, stopPathIndex, startDate, numDaysLookBack, numDays);
+    }
+
     @Override
     public List<TripKey> getKeys() {
         // TODO Auto-generated method stub
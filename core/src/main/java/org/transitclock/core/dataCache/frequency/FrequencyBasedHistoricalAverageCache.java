@@ -1,18 +1,14 @@
 /* (C)2023 */
 package org.transitclock.core.dataCache.frequency;
 
-import com.querydsl.jpa.impl.JPAQuery;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.DateUtils;
-import org.hibernate.Session;
 import org.transitclock.Core;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.core.dataCache.*;
 import org.transitclock.domain.structs.ArrivalDeparture;
-import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
-import org.transitclock.gtfs.GtfsData;
 import org.transitclock.service.dto.IpcArrivalDeparture;
 
 import java.util.*;
@@ -266,22 +262,6 @@ public class FrequencyBasedHistoricalAverageCache {
         return null;
     }
 
-    public void populateCacheFromDb(Session session, Date startDate, Date endDate) throws Exception {
-        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
-        var qentity = QArrivalDeparture.arrivalDeparture;
-        List<ArrivalDeparture> results = query.from(qentity)
-                .where(qentity.time.between(startDate,endDate))
-                .fetch();
-
-        results.sort(new ArrivalDepartureComparator());
-        for (ArrivalDeparture result : results) {
-            // TODO this might be better done in the database.
-            if (GtfsData.routeNotFiltered(result.getRouteId())) {
-                FrequencyBasedHistoricalAverageCache.getInstance().putArrivalDeparture(result);
-            }
-        }
-    }
-
     public static int round(double i, int v) {
         return (int) (Math.floor(i / v) * v);
     }
@@ -1,12 +1,10 @@
 /* (C)2023 */
 package org.transitclock.core.dataCache.scheduled;
 
-import com.querydsl.jpa.impl.JPAQuery;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.DateUtils;
 import org.ehcache.Cache;
 import org.ehcache.CacheManager;
-import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.transitclock.Core;
 import org.transitclock.core.DwellTimeDetails;
@@ -14,7 +12,6 @@ import org.transitclock.core.TravelTimeDetails;
 import org.transitclock.core.dataCache.*;
 import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
 import org.transitclock.domain.structs.ArrivalDeparture;
-import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.service.dto.IpcArrivalDeparture;
@@ -153,20 +150,6 @@ public class ScheduleBasedHistoricalAverageCache {
         return null;
     }
 
-    public void populateCacheFromDb(Session session, Date startDate, Date endDate) throws Exception {
-        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
-        var qentity = QArrivalDeparture.arrivalDeparture;
-        List<ArrivalDeparture> results = query.from(qentity)
-                .where(qentity.time.between(startDate,endDate))
-                .fetch();
-
-        results.sort(new ArrivalDepartureComparator());
-
-        for (ArrivalDeparture result : results) {
-            ScheduleBasedHistoricalAverageCache.getInstance().putArrivalDeparture(result);
-        }
-    }
-
     public List<StopPathCacheKey> getKeys() {
         // TODO Auto-generated method stub
         return null;
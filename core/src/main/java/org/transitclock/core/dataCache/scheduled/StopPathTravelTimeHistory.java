@@ -0,0 +1,299 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.scheduled;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.core.predictiongenerator.datafilter.TravelTimeFilterFactory;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.Timer;
+
+/**
+ * Keeps the travel times of the most recent days for each stop path of each trip so that the
+ * Kalman prediction generator can get the historical travel times for a stop path directly
+ * instead of having to get and search the trip history for each of the days, which might need to
+ * be read from the disk tier of the cache.
+ *
+ * <p>For each trip, trip start time and stop path the days and travel times are kept in primitive
+ * arrays, sorted with the most recent day first. Only the most recent days are kept, as many as
+ * are needed for the Kalman filter. The travel times are updated whenever an arrival or departure
+ * is added to the trip history. The first time the travel times for a stop path are requested the
+ * trip history for the previous days is searched, same as when not using this class, so that
+ * history that was already in the cache, such as from a previous run, is used.
+ *
+ * <p>Stop paths whose travel times are too old to be used and that haven't been requested within
+ * the look back period are periodically removed, so that trips that no longer run, such as ones
+ * from a previous configuration, don't accumulate.
+ *
+ * <p>The travel time for a day is determined the same way as by
+ * PredictionGenerator.lastDaysTimes(): the latest arrival for the stop path and the corresponding
+ * departure from the previous stop, if the travel time passes the TravelTimeDataFilter.
+ */
+@Slf4j
+public class StopPathTravelTimeHistory {
+
+    // How often the stop paths that are no longer used are removed
+    private static final long REMOVE_STALE_INTERVAL_MSEC = Time.MS_PER_HOUR;
+
+    private record Key(String tripId, Integer startTime, int stopPathIndex) {}
+
+    /** The travel times for a stop path of a trip */
+    private static class Days {
+        // Sorted with most recent day first. Days are epoch days.
+        private final int[] epochDays;
+        private final long[] travelTimes;
+        private int size = 0;
+        // Whether the trip history for the previous days has been searched
+        private boolean searchedHistory = false;
+        // The most recent day that the travel times were requested for
+        private int lastRequestedEpochDay = Integer.MIN_VALUE;
+
+        private Days(int capacity) {
+            epochDays = new int[capacity];
+            travelTimes = new long[capacity];
+        }
+
+        private int indexOf(int epochDay) {
+            for (int i = 0; i < size; ++i) {
+                if (epochDays[i] == epochDay) return i;
+            }
+            return -1;
+        }
+
+        /** Sets the travel time for the day. If travelTime is null the day is removed. */
+        private void set(int epochDay, Long travelTime) {
+            int index = indexOf(epochDay);
+            if (index >= 0) {
+                if (travelTime != null) {
+                    travelTimes[index] = travelTime;
+                } else {
+                    System.arraycopy(epochDays, index + 1, epochDays, index, size - index - 1);
+                    System.arraycopy(travelTimes, index + 1, travelTimes, index, size - index - 1);
+                    --size;
+                }
+                return;
+            }
+            if (travelTime == null) return;
+
+            // Find where to insert so that most recent day is first. If full
+            // then the oldest day is dropped, unless the new day is the oldest.
+            int insertAt = 0;
+            while (insertAt < size && epochDays[insertAt] > epochDay) ++insertAt;
+            if (insertAt == epochDays.length) return;
+            int numberToMove = Math.min(size, epochDays.length - 1) - insertAt;
+            System.arraycopy(epochDays, insertAt, epochDays, insertAt + 1, numberToMove);
+            System.arraycopy(travelTimes, insertAt, travelTimes, insertAt + 1, numberToMove);
+            epochDays[insertAt] = epochDay;
+            travelTimes[insertAt] = travelTime;
+            size = Math.min(size + 1, epochDays.length);
+        }
+
+        /** @return The most recent day that was added or requested */
+        private int lastUsedEpochDay() {
+            return size > 0 ? Math.max(epochDays[0], lastRequestedEpochDay) : lastRequestedEpochDay;
+        }
+    }
+
+    private final TripDataHistoryCacheInterface tripDataHistoryCache;
+
+    // Number of days kept for each stop path
+    private final int capacity;
+
+    // How many days back the travel times can be requested for
+    private final int maxDaysLookBack;
+
+    private final Map<Key, Days> daysByStopPath = new ConcurrentHashMap<>();
+
+    /**
+     * @param tripDataHistoryCache The trip history that the travel times are determined from
+     * @param maxDays The maximum number of days of travel times that will be requested
+     * @param maxDaysLookBack How many days back the travel times will be requested for. Stop
+     *     paths that haven't been used for longer are removed.
+     */
+    public StopPathTravelTimeHistory(
+            TripDataHistoryCacheInterface tripDataHistoryCache, int maxDays, int maxDaysLookBack) {
+        this.tripDataHistoryCache = tripDataHistoryCache;
+        // One more than needed since the current day is kept too but is not
+        // used for predictions on that day
+        this.capacity = maxDays + 1;
+        this.maxDaysLookBack = maxDaysLookBack;
+        Timer.get()
+                .scheduleWithFixedDelay(
+                        this::removeStaleSafely, REMOVE_STALE_INTERVAL_MSEC, REMOVE_STALE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    private static int epochDay(Date startOfDay) {
+        return (int) Instant.ofEpochMilli(startOfDay.getTime())
+                .atZone(ZoneId.systemDefault())
+                .toLocalDate()
+                .toEpochDay();
+    }
+
+    private static Date startOfDay(int epochDay) {
+        return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * Returns the travel time for the stop path using the trip history for a day.
+     *
+     * @param events The trip history
+     * @param stopPathIndex
+     * @return The travel time in msec, or null if there isn't a valid one
+     */
+    private Long travelTime(List<IpcArrivalDeparture> events, int stopPathIndex) {
+        if (events == null) return null;
+
+        IpcArrivalDeparture arrival = null;
+        for (IpcArrivalDeparture event : events) {
+            if (event.isArrival() && event.getStopPathIndex() == stopPathIndex) {
+                arrival = event;
+                break;
+            }
+        }
+        if (arrival == null) return null;
+
+        IpcArrivalDeparture departure = tripDataHistoryCache.findPreviousDepartureEvent(events, arrival);
+        if (departure == null) return null;
+
+        TravelTimeDetails travelTimeDetails = new TravelTimeDetails(departure, arrival);
+        if (!travelTimeDetails.sanityCheck()
+                || TravelTimeFilterFactory.getInstance().filter(departure, arrival)) return null;
+        long travelTime = arrival.getTime().getTime() - departure.getTime().getTime();
+        return travelTime != -1 ? travelTime : null;
+    }
+
+    /**
+     * Updates the travel times affected by a new event for a trip. Needs to be called while no
+     * other thread can add events for the trip.
+     *
+     * @param tripKey The trip
+     * @param event The new arrival or departure
+     * @param events The trip history including the new event
+     */
+    public void update(TripKey tripKey, IpcArrivalDeparture event, List<IpcArrivalDeparture> events) {
+        // An arrival is the end of its stop path while a departure is the
+        // start of the next one
+        int stopPathIndex = event.isArrival() ? event.getStopPathIndex() : event.getStopPathIndex() + 1;
+        Key key = new Key(tripKey.getTripId(), tripKey.getStartTime(), stopPathIndex);
+        Long travelTime = travelTime(events, stopPathIndex);
+
+        Days days = travelTime == null ? daysByStopPath.get(key) : daysByStopPath.computeIfAbsent(key, k -> new Days(capacity));
+        if (days == null) return;
+        synchronized (days) {
+            days.set(epochDay(tripKey.getTripStartDate()), travelTime);
+        }
+    }
+
+    /**
+     * Returns the travel times for the stop path for the days before the specified day. Same
+     * results as PredictionGenerator.lastDaysTimes() but just the travel times.
+     *
+     * @param tripId
+     * @param startTime Start time of the trip
+     * @param stopPathIndex
+     * @param startDate The start of the current day. Only previous days are used.
+     * @param numDaysLookBack How many days before the current day to look at
+     * @param numDays Maximum number of travel times to return
+     * @return The travel times in msec, most recent first. Null if numDays is more than are kept.
+     */
+    public long[] getLastDaysTravelTimes(
+            String tripId, Integer startTime, int stopPathIndex, Date startDate, int numDaysLookBack, int numDays) {
+        if (numDays >= capacity) return null;
+
+        int today = epochDay(startDate);
+        Days days = daysByStopPath.computeIfAbsent(new Key(tripId, startTime, stopPathIndex), k -> new Days(capacity));
+        synchronized (days) {
+            days.lastRequestedEpochDay = Math.max(days.lastRequestedEpochDay, today);
+            if (!days.searchedHistory) {
+                searchHistory(days, tripId, startTime, stopPathIndex, today, numDaysLookBack, numDays);
+                days.searchedHistory = true;
+            }
+
+            long[] travelTimes = new long[Math.min(days.size, numDays)];
+            int numberFound = 0;
+            for (int i = 0; i < days.size && numberFound < numDays; ++i) {
+                int epochDay = days.epochDays[i];
+                if (epochDay >= today) continue;
+                if (epochDay < today - numDaysLookBack) break;
+                travelTimes[numberFound++] = days.travelTimes[i];
+            }
+            return numberFound == travelTimes.length ? travelTimes : Arrays.copyOf(travelTimes, numberFound);
+        }
+    }
+
+    /**
+     * Adds the travel times for the previous days from the trip history. Days that already have a
+     * travel time, because they were updated with new events, are not changed.
+     */
+    private void searchHistory(
+            Days days, String tripId, Integer startTime, int stopPathIndex, int today, int numDaysLookBack, int numDays) {
+        int numberFound = 0;
+        for (int i = 1; i <= numDaysLookBack && numberFound < numDays; ++i) {
+            int epochDay = today - i;
+            if (days.indexOf(epochDay) >= 0) {
+                ++numberFound;
+                continue;
+            }
+
+            TripKey tripKey = new TripKey(tripId, startOfDay(epochDay), startTime);
+            Long travelTime = travelTime(tripDataHistoryCache.getTripHistory(tripKey), stopPathIndex);
+            if (travelTime != null) {
+                days.set(epochDay, travelTime);
+                ++numberFound;
+            }
+        }
+    }
+
+    /**
+     * Removes the stop paths that neither had travel times added nor were requested within
+     * maxDaysLookBack days before the specified date. Their travel times are too old to be
+     * returned by getLastDaysTravelTimes(), and if the stop path is requested again the trip
+     * history is searched again.
+     *
+     * @param date The current date
+     * @return Number of stop paths removed
+     */
+    public int removeStale(Date date) {
+        int oldestEpochDayToKeep = epochDay(date) - maxDaysLookBack;
+        int numberRemoved = 0;
+        for (Map.Entry<Key, Days> entry : daysByStopPath.entrySet()) {
+            Days days = entry.getValue();
+            boolean stale;
+            synchronized (days) {
+                stale = days.lastUsedEpochDay() < oldestEpochDayToKeep;
+            }
+            // Only removed if still the same Days. An update racing with the
+            // removal can at worst be lost from here, but it is still in the
+            // trip history, which is searched if the stop path is requested.
+            if (stale && daysByStopPath.remove(entry.getKey(), days)) ++numberRemoved;
+        }
+        return numberRemoved;
+    }
+
+    /** @return Number of stop paths that travel times are kept for */
+    public int size() {
+        return daysByStopPath.size();
+    }
+
+    private void removeStaleSafely() {
+        // Exceptions would stop the timer from running this again
+        try {
+            int numberRemoved = removeStale(SystemTime.getDate());
+            logger.debug("Removed travel times for {} stop paths that are no longer used.", numberRemoved);
+        } catch (Exception e) {
+            logger.error("Error removing stale stop path travel times.", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/* (C)2023 */
+package org.transitclock.core.predictiongenerator.kalman;
+
+import org.transitclock.config.data.PredictionConfig;
+
+/**
+ * The Kalman filter calculation of KalmanPrediction done using only primitive values so that no
+ * objects need to be created for each prediction. The durations of the last vehicle and of the
+ * previous days are passed in directly instead of as TripSegments and the results are kept in
+ * arrays of this object, which are reused. The results are exactly the same as for
+ * KalmanPrediction.predict().
+ *
+ * <p>Can evaluate multiple stop paths, such as all the remaining stop paths of a trip, in a single
+ * call. The historical durations for the stop paths are then passed in a single array with a fixed
+ * number of values for each stop path.
+ *
+ * <p>Not thread safe since the result arrays are reused. Use forCurrentThread() to get the
+ * instance for the current thread, or create an instance when the results need to be kept while
+ * other predictions are done.
+ */
+public final class KalmanFilter {
+
+    private static final ThreadLocal<KalmanFilter> filters = ThreadLocal.withInitial(KalmanFilter::new);
+
+    private double[] predictions = new double[1];
+    private double[] filterErrors = new double[1];
+
+    /**
+     * Returns the KalmanFilter for the current thread so that its result arrays can be reused.
+     *
+     * @return the KalmanFilter for the current thread
+     */
+    public static KalmanFilter forCurrentThread() {
+        return filters.get();
+    }
+
+    /**
+     * Does the Kalman prediction for a single stop path. Afterwards the results are available
+     * from getPrediction(0) and getFilterError(0).
+     *
+     * @param lastVehicleDuration Time in msec that the last vehicle took to traverse the stop path
+     * @param historicalDurations Times in msec of the previous days, most recent first
+     * @param numberDays How many of the historical durations to use. Must be at least 1.
+     * @param lastPredictionError The filter error from the previous prediction
+     * @return The predicted travel time
+     */
+    public double predict(
+            long lastVehicleDuration, long[] historicalDurations, int numberDays, double lastPredictionError) {
+        evaluate(
+                0,
+                lastVehicleDuration,
+                historicalDurations,
+                0,
+                numberDays,
+                lastPredictionError,
+                PredictionConfig.useaverage.getValue());
+        return predictions[0];
+    }
+
+    /**
+     * Does the Kalman prediction for multiple stop paths. Afterwards the results for stop path i
+     * are available from getPrediction(i) and getFilterError(i).
+     *
+     * @param numberStopPaths
+     * @param lastVehicleDurations For each stop path the time in msec the last vehicle took
+     * @param historicalDurations For each stop path the times in msec of the previous days, most
+     *     recent first. The durations for stop path i start at i * daysPerStopPath.
+     * @param daysPerStopPath Space used for the durations of each stop path in
+     *     historicalDurations
+     * @param numberDays For each stop path how many of the historical durations to use. Must be
+     *     at least 1 and no more than daysPerStopPath.
+     * @param lastPredictionErrors For each stop path the filter error from the previous prediction
+     */
+    public void predict(
+            int numberStopPaths,
+            long[] lastVehicleDurations,
+            long[] historicalDurations,
+            int daysPerStopPath,
+            int[] numberDays,
+            double[] lastPredictionErrors) {
+        if (predictions.length < numberStopPaths) {
+            predictions = new double[numberStopPaths];
+            filterErrors = new double[numberStopPaths];
+        }
+
+        boolean useAverage = PredictionConfig.useaverage.getValue();
+        for (int i = 0; i < numberStopPaths; ++i) {
+            evaluate(
+                    i,
+                    lastVehicleDurations[i],
+                    historicalDurations,
+                    i * daysPerStopPath,
+                    numberDays[i],
+                    lastPredictionErrors[i],
+                    useAverage);
+        }
+    }
+
+    private void evaluate(
+            int index,
+            long lastVehicleDuration,
+            long[] historicalDurations,
+            int offset,
+            int numberDays,
+            double lastPredictionError,
+            boolean useAverage) {
+        if (numberDays <= 0) throw new IllegalArgumentException("Cannot average nothing");
+
+        // Average is done with long division, same as it always has been
+        long total = 0;
+        for (int day = 0; day < numberDays; ++day) total += historicalDurations[offset + day];
+        double average = (double) (total / numberDays);
+
+        double totalSquaredDiffs = 0;
+        for (int day = 0; day < numberDays; ++day) {
+            double diff = historicalDurations[offset + day] - average;
+            totalSquaredDiffs += diff * diff;
+        }
+        double variance = totalSquaredDiffs / numberDays;
+
+        double gain = (lastPredictionError + variance) / (lastPredictionError + (2 * variance));
+        double loopGain = 1 - gain;
+
+        // Either the average or the most recent day
+        double historicalDuration = useAverage ? average : historicalDurations[offset];
+
+        predictions[index] = (loopGain * lastVehicleDuration) + (gain * historicalDuration);
+        filterErrors[index] = variance * gain;
+    }
+
+    /**
+     * @param index Index of the stop path within the ones predicted
+     * @return The predicted travel time in msec from the last call to predict()
+     */
+    public double getPrediction(int index) {
+        return predictions[index];
+    }
+
+    /**
+     * @param index Index of the stop path within the ones predicted
+     * @return The filter error, to be used for the next prediction, from the last call to predict()
+     */
+    public double getFilterError(int index) {
+        return filterErrors[index];
+    }
+}
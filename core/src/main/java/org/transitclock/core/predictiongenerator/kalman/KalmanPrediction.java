@@ -1,8 +1,6 @@
 /* (C)2023 */
 package org.transitclock.core.predictiongenerator.kalman;
 
-import org.transitclock.config.data.PredictionConfig;
-
 /**
  * @author Sean Óg Crudden
  */
@@ -22,83 +20,21 @@ public class KalmanPrediction {
     public KalmanPredictionResult predict(
             TripSegment last_vehicle_segment, TripSegment[] historical_segments, double last_prediction_error)
             throws Exception {
-        KalmanPredictionResult result = null;
-
-        double average = historicalAverage(historical_segments);
-
-        double variance = historicalVariance(historical_segments, average);
-
-        double gain = gain(average, variance, last_prediction_error);
-
-        double loop_gain = 1 - gain;
-
-        result = new KalmanPredictionResult(
-                prediction(gain, loop_gain, historical_segments, last_vehicle_segment, average),
-                filterError(variance, gain));
+        if (historical_segments.length == 0) throw new Exception("Cannot average nothing");
 
-        return result;
-    }
-
-    private double historicalAverage(TripSegment[] historical_segments) throws Exception {
-        if (historical_segments.length > 0) {
-            long total = 0;
-            for (TripSegment historicalSegment : historical_segments) {
-                long duration = historicalSegment.getDestination().getTime() - historicalSegment.getOrigin().getTime();
-                total = total + duration;
-            }
-            return (double) (total / historical_segments.length);
-        } else {
-            throw new Exception("Cannot average nothing");
+        // The most recent day is the last of the historical segments
+        long[] historicalDurations = new long[historical_segments.length];
+        for (int i = 0; i < historical_segments.length; ++i) {
+            historicalDurations[historical_segments.length - i - 1] = duration(historical_segments[i]);
         }
-    }
-
-    private double historicalVariance(TripSegment[] historical_segments, double average) {
-        double total = 0;
-
-        for (TripSegment historicalSegment : historical_segments) {
-            long duration = historicalSegment.getDestination().getTime()
-                    - historicalSegment.getOrigin().getTime();
-
-            double diff = duration - average;
 
-            double long_diff_squared = diff * diff;
-
-            total = total + long_diff_squared;
-        }
-        return total / historical_segments.length;
-    }
-
-    private double filterError(double variance, double loop_gain) {
-        return variance * loop_gain;
-    }
-
-    private double gain(double average, double variance, double last_prediction_error) {
-        return (last_prediction_error + variance) / (last_prediction_error + (2 * variance));
+        KalmanFilter filter = KalmanFilter.forCurrentThread();
+        filter.predict(
+                duration(last_vehicle_segment), historicalDurations, historicalDurations.length, last_prediction_error);
+        return new KalmanPredictionResult(filter.getPrediction(0), filter.getFilterError(0));
     }
 
-    private double prediction(
-            double gain,
-            double loop_gain,
-            TripSegment[] historical_segments,
-            TripSegment last_vechicle_segment,
-            double average_duration) {
-
-        double historical_duration = average_duration;
-
-        /* This may be better use the historical average rather than just the vehicle on previous day. This would damping issues with last days value being dramatically different. */
-        if (!PredictionConfig.useaverage.getValue()) {
-            historical_duration = historical_segments[historical_segments.length - 1]
-                            .getDestination()
-                            .getTime()
-                    - historical_segments[historical_segments.length - 1]
-                            .getOrigin()
-                            .getTime();
-        }
-
-        long last_vehicle_duration = last_vechicle_segment.getDestination().getTime()
-                - last_vechicle_segment.getOrigin().getTime();
-
-        // prediction
-        return (loop_gain * last_vehicle_duration) + (gain * historical_duration);
+    private static long duration(TripSegment segment) {
+        return segment.getDestination().getTime() - segment.getOrigin().getTime();
     }
 }
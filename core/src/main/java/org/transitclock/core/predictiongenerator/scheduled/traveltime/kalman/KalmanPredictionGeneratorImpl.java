@@ -10,10 +10,13 @@ import org.transitclock.core.*;
 import org.transitclock.core.dataCache.*;
 import org.transitclock.core.predictiongenerator.kalman.*;
 import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Block;
 import org.transitclock.domain.structs.PredictionEvent;
 import org.transitclock.domain.structs.PredictionForStopPath;
+import org.transitclock.service.dto.IpcPrediction;
 import org.transitclock.utils.SystemTime;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -28,6 +31,167 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 
     private final String alternative = "PredictionGeneratorDefaultImpl";
 
+    // The Kalman predictions for the remaining stop paths of the trip of the
+    // vehicle that predictions are currently being generated for
+    private final ThreadLocal<RemainingStopPaths> remainingStopPaths = new ThreadLocal<>();
+
+    /**
+     * The Kalman predictions for the remaining stop paths of the trip of a vehicle, determined
+     * with a single KalmanFilter call when generating predictions for the vehicle starts and then
+     * used by getTravelTimeForPath() as it gets to each of the stop paths.
+     */
+    private static class RemainingStopPaths {
+        private final KalmanFilter kalmanFilter = new KalmanFilter();
+        private final Block block;
+        private final int tripIndex;
+        private final int firstStopPathIndex;
+        private final int daysPerStopPath;
+
+        // For each remaining stop path the index of its Kalman prediction, or
+        // -1 if it doesn't have one
+        private final int[] predictionIndices;
+        private int numberPredictions;
+
+        // Inputs of the Kalman filter for each prediction
+        private final TravelTimeDetails[] travelTimeDetails;
+        private final long[] lastVehicleDurations;
+        private final long[] historicalDurations;
+        private final int[] numberDays;
+        private final double[] lastPredictionErrors;
+
+        private RemainingStopPaths(Indices firstIndices, int daysPerStopPath) {
+            this.block = firstIndices.getBlock();
+            this.tripIndex = firstIndices.getTripIndex();
+            this.firstStopPathIndex = firstIndices.getStopPathIndex();
+            this.daysPerStopPath = daysPerStopPath;
+
+            int numberStopPaths = Math.max(firstIndices.getTrip().getNumberStopPaths() - firstStopPathIndex, 0);
+            predictionIndices = new int[numberStopPaths];
+            Arrays.fill(predictionIndices, -1);
+            travelTimeDetails = new TravelTimeDetails[numberStopPaths];
+            lastVehicleDurations = new long[numberStopPaths];
+            historicalDurations = new long[numberStopPaths * daysPerStopPath];
+            numberDays = new int[numberStopPaths];
+            lastPredictionErrors = new double[numberStopPaths];
+        }
+
+        private int numberStopPaths() {
+            return predictionIndices.length;
+        }
+
+        private void add(
+                int stopPathIndex,
+                TravelTimeDetails details,
+                long[] lastDaysTimes,
+                int days,
+                double lastPredictionError) {
+            int i = numberPredictions++;
+            predictionIndices[stopPathIndex - firstStopPathIndex] = i;
+            travelTimeDetails[i] = details;
+            lastVehicleDurations[i] = details.getTravelTime();
+            System.arraycopy(lastDaysTimes, 0, historicalDurations, i * daysPerStopPath, days);
+            numberDays[i] = days;
+            lastPredictionErrors[i] = lastPredictionError;
+        }
+
+        private void predict() {
+            kalmanFilter.predict(
+                    numberPredictions,
+                    lastVehicleDurations,
+                    historicalDurations,
+                    daysPerStopPath,
+                    numberDays,
+                    lastPredictionErrors);
+        }
+
+        /**
+         * @return Index of the Kalman prediction for the stop path of the indices, or -1 if it is
+         *     not one of the remaining stop paths or doesn't have one
+         */
+        private int getPredictionIndex(Indices indices) {
+            if (indices.getBlock() != block || indices.getTripIndex() != tripIndex) return -1;
+            int i = indices.getStopPathIndex() - firstStopPathIndex;
+            return i >= 0 && i < predictionIndices.length ? predictionIndices[i] : -1;
+        }
+    }
+
+    /**
+     * Determines the Kalman predictions for all the remaining stop paths of the trip in a single
+     * KalmanFilter call before generating the predictions. The predictions for subsequent trips of
+     * the block are still determined one stop path at a time.
+     */
+    @Override
+    public List<IpcPrediction> generate(VehicleState vehicleState) {
+        try {
+            remainingStopPaths.set(predictRemainingStopPaths(vehicleState));
+        } catch (Exception e) {
+            logger.error("Error predicting remaining stop paths for vehicleId={}", vehicleState.getVehicleId(), e);
+        }
+
+        try {
+            return super.generate(vehicleState);
+        } finally {
+            remainingStopPaths.remove();
+        }
+    }
+
+    /**
+     * Gathers what the Kalman filter needs for each remaining stop path of the trip of the match of
+     * the vehicle, the same way as getTravelTimeForPath() does for a single stop path, and then
+     * does the predictions for all of them. Stop paths that can't be predicted by the Kalman filter
+     * are skipped so that getTravelTimeForPath() handles them as before.
+     *
+     * @param vehicleState
+     * @return The predictions for the remaining stop paths
+     */
+    private RemainingStopPaths predictRemainingStopPaths(VehicleState vehicleState) {
+        var tripCache = TripDataHistoryCacheFactory.getInstance();
+        var kalmanErrorCache = ErrorCacheFactory.getInstance();
+        var currentVehicleState = VehicleStateManager.getInstance().getVehicleState(vehicleState.getVehicleId());
+
+        Indices firstIndices = vehicleState.getMatch().getIndices();
+        int daysPerStopPath = PredictionConfig.maxKalmanDays.getValue();
+        RemainingStopPaths remaining = new RemainingStopPaths(firstIndices, daysPerStopPath);
+        Date nearestDay = DateUtils.truncate(vehicleState.getAvlReport().getDate(), Calendar.DAY_OF_MONTH);
+
+        for (int i = 0; i < remaining.numberStopPaths(); ++i) {
+            Indices indices = new Indices(
+                    firstIndices.getBlock(), firstIndices.getTripIndex(), firstIndices.getStopPathIndex() + i, 0);
+
+            TravelTimeDetails travelTimeDetails = getLastTraversal(currentVehicleState, indices);
+            if (travelTimeDetails == null
+                    || travelTimeDetails.getArrival() == null
+                    || travelTimeDetails.getTravelTime() <= 0) continue;
+
+            long[] lastDaysTimes = lastDaysTravelTimes(
+                    tripCache,
+                    currentVehicleState.getTrip().getId(),
+                    currentVehicleState.getTrip().getDirectionId(),
+                    indices.getStopPathIndex(),
+                    nearestDay,
+                    currentVehicleState.getTrip().getStartTime(),
+                    PredictionConfig.maxKalmanDaysToSearch.getValue(),
+                    daysPerStopPath);
+            if (lastDaysTimes == null || lastDaysTimes.length < PredictionConfig.minKalmanDays.getValue()) continue;
+            int numberDays = Math.min(lastDaysTimes.length, daysPerStopPath);
+            if (numberDays == 0) continue;
+
+            KalmanError lastPredictionError =
+                    lastVehiclePredictionError(kalmanErrorCache, new Indices(travelTimeDetails.getArrival()));
+            if (lastPredictionError == null) continue;
+
+            remaining.add(
+                    indices.getStopPathIndex(),
+                    travelTimeDetails,
+                    lastDaysTimes,
+                    numberDays,
+                    lastPredictionError.getError());
+        }
+
+        remaining.predict();
+        return remaining;
+    }
+
 
     /*
      * (non-Javadoc)
@@ -47,6 +211,25 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
         var vehicleStateManager = VehicleStateManager.getInstance();
         var currentVehicleState = vehicleStateManager.getVehicleState(avlReport.getVehicleId());
 
+        RemainingStopPaths remaining = remainingStopPaths.get();
+        int predictionIndex = remaining == null ? -1 : remaining.getPredictionIndex(indices);
+        if (predictionIndex >= 0) {
+            logger.debug("Using Kalman prediction of remaining stop paths for : {}", indices);
+            try {
+                return useKalmanPrediction(
+                        indices,
+                        avlReport,
+                        vehicleState,
+                        remaining.travelTimeDetails[predictionIndex],
+                        remaining.kalmanFilter.getPrediction(predictionIndex),
+                        remaining.kalmanFilter.getFilterError(predictionIndex),
+                        alternatePrediction);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                return alternatePrediction;
+            }
+        }
+
         try {
             TravelTimeDetails travelTimeDetails = this.getLastVehicleTravelTime(currentVehicleState, indices);
 
@@ -59,7 +242,7 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
                 logger.debug("Kalman has last vehicle info for : {} : {}", indices, travelTimeDetails);
                 Date nearestDay = DateUtils.truncate(avlReport.getDate(), Calendar.DAY_OF_MONTH);
 
-                List<TravelTimeDetails> lastDaysTimes = lastDaysTimes(
+                long[] lastDaysTimes = lastDaysTravelTimes(
                         tripCache,
                         currentVehicleState.getTrip().getId(),
                         currentVehicleState.getTrip().getDirectionId(),
@@ -70,95 +253,54 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
                         PredictionConfig.maxKalmanDays.getValue());
 
                 if (lastDaysTimes != null) {
-                    logger.debug("Kalman has {} historical values for : {}", lastDaysTimes.size(), indices);
+                    logger.debug("Kalman has {} historical values for : {}", lastDaysTimes.length, indices);
                 }
 
                 /*
                  * if we have enough data start using Kalman filter otherwise revert
                  * to extended class for prediction.
                  */
-                if (lastDaysTimes != null && lastDaysTimes.size() >= PredictionConfig.minKalmanDays.getValue()) {
+                if (lastDaysTimes != null && lastDaysTimes.length >= PredictionConfig.minKalmanDays.getValue()) {
 
                     logger.debug("Generating Kalman prediction for : {}", indices);
                     try {
-                        KalmanPrediction kalmanPrediction = new KalmanPrediction();
-                        KalmanPredictionResult kalmanPredictionResult;
-                        Vehicle vehicle = new Vehicle(avlReport.getVehicleId());
-                        VehicleStopDetail originDetail = new VehicleStopDetail(null, 0, vehicle);
-                        TripSegment[] historical_segments_k = new TripSegment[lastDaysTimes.size()];
-
-                        for (int i = 0; i < lastDaysTimes.size() && i < PredictionConfig.maxKalmanDays.getValue(); i++) {
-                            logger.debug("Kalman is using historical value : {} for : {}", lastDaysTimes.get(i), indices);
-
-                            VehicleStopDetail destinationDetail = new VehicleStopDetail(null, lastDaysTimes.get(i).getTravelTime(), vehicle);
-                            historical_segments_k[lastDaysTimes.size() - i - 1] = new TripSegment(originDetail, destinationDetail);
+                        int numberDays = Math.min(lastDaysTimes.length, PredictionConfig.maxKalmanDays.getValue());
+                        if (logger.isDebugEnabled()) {
+                            for (int i = 0; i < numberDays; i++) {
+                                logger.debug("Kalman is using historical value : {} for : {}", lastDaysTimes[i], indices);
+                            }
                         }
 
-                        VehicleStopDetail destinationDetail_0_k_1 =
-                                new VehicleStopDetail(null, travelTimeDetails.getTravelTime(), vehicle);
-
-                        TripSegment ts_day_0_k_1 = new TripSegment(originDetail, destinationDetail_0_k_1);
-                        TripSegment last_vehicle_segment = ts_day_0_k_1;
                         Indices previousVehicleIndices = new Indices(travelTimeDetails.getArrival());
 
                         KalmanError last_prediction_error =
                                 lastVehiclePredictionError(kalmanErrorCache, previousVehicleIndices);
 
-                        logger.debug("Using error value: {} found with vehicle id {} from: {}",
-                                last_prediction_error, travelTimeDetails.getArrival().getVehicleId(),
-                                new KalmanErrorCacheKey(previousVehicleIndices));
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Using error value: {} found with vehicle id {} from: {}",
+                                    last_prediction_error, travelTimeDetails.getArrival().getVehicleId(),
+                                    new KalmanErrorCacheKey(previousVehicleIndices));
+                        }
 
                         // TODO this should also display the detail of which vehicle it choose as
                         // the last one.
                         logger.debug("Using last vehicle value: {} for : {}", travelTimeDetails, indices);
 
-                        kalmanPredictionResult = kalmanPrediction.predict(
-                                last_vehicle_segment, historical_segments_k, last_prediction_error.getError());
-
-                        long predictionTime = (long) kalmanPredictionResult.getResult();
-
-                        logger.debug("Setting Kalman error value: {} for : {}", kalmanPredictionResult.getFilterError(), new KalmanErrorCacheKey(indices));
-
-                        kalmanErrorCache.putErrorValue(indices, kalmanPredictionResult.getFilterError());
-
-                        double percentageDifferecence =
-                                Math.abs(100 * ((predictionTime - alternatePrediction) / (double) alternatePrediction));
-
-                        if (((percentageDifferecence * alternatePrediction) / 100) > PredictionConfig.tresholdForDifferenceEventLog.getValue()) {
-                            if (percentageDifferecence > PredictionConfig.percentagePredictionMethodDifferenceneEventLog.getValue()) {
-                                String description = "Kalman predicts : " + predictionTime + " Super predicts : " + alternatePrediction;
-
-                                logger.warn(description);
-
-                                PredictionEvent.create(
-                                        avlReport,
-                                        vehicleState.getMatch(),
-                                        PredictionEvent.PREDICTION_VARIATION,
-                                        description,
-                                        travelTimeDetails.getArrival().getStopId(),
-                                        travelTimeDetails.getDeparture().getStopId(),
-                                        travelTimeDetails.getArrival().getVehicleId(),
-                                        travelTimeDetails.getArrival().getTime(),
-                                        travelTimeDetails.getDeparture().getTime());
-                            }
-                        }
-
-                        logger.debug("Using Kalman prediction: {} instead of " + alternative + " prediction: {} for : {}", predictionTime, alternatePrediction, indices);
-
-                        if (CoreConfig.storeTravelTimeStopPathPredictions.getValue()) {
-                            PredictionForStopPath predictionForStopPath = new PredictionForStopPath(
-                                    vehicleState.getVehicleId(),
-                                    SystemTime.getDate(),
-                                    (double) Long.valueOf(predictionTime).intValue(),
-                                    indices.getTrip().getId(),
-                                    indices.getStopPathIndex(),
-                                    "KALMAN",
-                                    true,
-                                    null);
-                            Core.getInstance().getDbLogger().add(predictionForStopPath);
-                            StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
-                        }
-                        return predictionTime;
+                        KalmanFilter kalmanFilter = KalmanFilter.forCurrentThread();
+                        kalmanFilter.predict(
+                                travelTimeDetails.getTravelTime(),
+                                lastDaysTimes,
+                                numberDays,
+                                last_prediction_error.getError());
+
+                        return useKalmanPrediction(
+                                indices,
+                                avlReport,
+                                vehicleState,
+                                travelTimeDetails,
+                                kalmanFilter.getPrediction(0),
+                                kalmanFilter.getFilterError(0),
+                                alternatePrediction);
 
                     } catch (Exception e) {
                         logger.error(e.getMessage(), e);
@@ -172,6 +314,69 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
         return alternatePrediction;
     }
 
+    /**
+     * Stores the filter error of the Kalman prediction for the stop path so that it can be used
+     * by the next vehicle, logs it if it differs a lot from the alternate prediction and stores it
+     * if so configured.
+     *
+     * @return The Kalman prediction of the travel time, to be used instead of the alternate one
+     */
+    private long useKalmanPrediction(
+            Indices indices,
+            AvlReport avlReport,
+            VehicleState vehicleState,
+            TravelTimeDetails travelTimeDetails,
+            double prediction,
+            double filterError,
+            long alternatePrediction) {
+        long predictionTime = (long) prediction;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Setting Kalman error value: {} for : {}", filterError, new KalmanErrorCacheKey(indices));
+        }
+
+        ErrorCacheFactory.getInstance().putErrorValue(indices, filterError);
+
+        double percentageDifferecence =
+                Math.abs(100 * ((predictionTime - alternatePrediction) / (double) alternatePrediction));
+
+        if (((percentageDifferecence * alternatePrediction) / 100) > PredictionConfig.tresholdForDifferenceEventLog.getValue()) {
+            if (percentageDifferecence > PredictionConfig.percentagePredictionMethodDifferenceneEventLog.getValue()) {
+                String description = "Kalman predicts : " + predictionTime + " Super predicts : " + alternatePrediction;
+
+                logger.warn(description);
+
+                PredictionEvent.create(
+                        avlReport,
+                        vehicleState.getMatch(),
+                        PredictionEvent.PREDICTION_VARIATION,
+                        description,
+                        travelTimeDetails.getArrival().getStopId(),
+                        travelTimeDetails.getDeparture().getStopId(),
+                        travelTimeDetails.getArrival().getVehicleId(),
+                        travelTimeDetails.getArrival().getTime(),
+                        travelTimeDetails.getDeparture().getTime());
+            }
+        }
+
+        logger.debug("Using Kalman prediction: {} instead of " + alternative + " prediction: {} for : {}", predictionTime, alternatePrediction, indices);
+
+        if (CoreConfig.storeTravelTimeStopPathPredictions.getValue()) {
+            PredictionForStopPath predictionForStopPath = new PredictionForStopPath(
+                    vehicleState.getVehicleId(),
+                    SystemTime.getDate(),
+                    (double) Long.valueOf(predictionTime).intValue(),
+                    indices.getTrip().getId(),
+                    indices.getStopPathIndex(),
+                    "KALMAN",
+                    true,
+                    null);
+            Core.getInstance().getDbLogger().add(predictionForStopPath);
+            StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
+        }
+        return predictionTime;
+    }
+
     @Override
     public long expectedTravelTimeFromMatchToEndOfStopPath(AvlReport avlReport, SpatialMatch match) {
 
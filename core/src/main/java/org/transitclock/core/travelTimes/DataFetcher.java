@@ -2,7 +2,13 @@
 package org.transitclock.core.travelTimes;
 
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.transitclock.config.data.TraveltimesConfig;
 import org.transitclock.config.data.UpdatesConfig;
+import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.structs.ActiveRevision;
 import org.transitclock.domain.structs.Agency;
 import org.transitclock.domain.structs.ArrivalDeparture;
@@ -12,21 +18,49 @@ import org.transitclock.utils.MapKey;
 import org.transitclock.utils.Time;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * For retrieving historic AVL based data from database so that travel times can be determined.
  *
+ * <p>The arrivals/departures and the matches are streamed from the database using cursors,
+ * ordered by time, and are grouped per vehicle trip as they are read in. Once the data for a
+ * vehicle trip is complete it is handed off to be processed and is no longer retained. This way
+ * the memory needed is bounded by the number of vehicle trips that are active at the same time
+ * instead of by the length of the time period being processed.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
 public class DataFetcher {
 
-    // The data ends up in arrivalDepartureMap and matchesMap.
-    // It is keyed by DbDataMapKey which means that data is grouped
-    // per vehicle trip. This way can later subsequent arrivals/departures
-    // for a vehicle trip to determine travel and stop times.
-    private Map<DbDataMapKey, List<ArrivalDeparture>> arrivalDepartureMap;
-    private Map<DbDataMapKey, List<Match>> matchesMap;
+    // How often to log progress while reading in data
+    private static final int LOG_EVERY_N_ROWS = 500_000;
+
+    /** The data read in so far for a vehicle trip */
+    private static class TripData {
+        private final List<ArrivalDeparture> arrivalDepartures = new ArrayList<>();
+        private final List<Match> matches = new ArrayList<>();
+        // Time of the last data read in for the trip
+        private long lastTime;
+        // When the service day of the trip ends. No more data for the trip
+        // can be read in after this time since it would be for another day.
+        private long serviceDayEnd;
+    }
+
+    // The vehicle trips that data is currently being read in for. Keyed by
+    // DbDataMapKey which means that data is grouped per vehicle trip. This
+    // way can later process subsequent arrivals/departures for a vehicle
+    // trip to determine travel and stop times. Access ordered so that the
+    // trips that haven't had data for the longest time come first.
+    private final LinkedHashMap<DbDataMapKey, TripData> activeTrips = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long arrivalsDeparturesRead = 0;
+    private long matchesRead = 0;
+
+    private long maxTripIdleMsec;
 
     //	private Map<String, Calendar> gtfsCalendars = null;
 
@@ -49,6 +83,18 @@ public class DataFetcher {
         List<Agency> agencies = Agency.getAgencies(dbName, configRev);
         TimeZone timezone = agencies.get(0).getTimeZone();
         calendar = new GregorianCalendar(timezone);
+        maxTripIdleMsec = TraveltimesConfig.maxTripIdleMsec.getValue();
+    }
+
+    /**
+     * For grouping data without reading the agency from the db.
+     *
+     * @param timezone Timezone of the agency, for determining the service days
+     * @param maxTripIdleMsec See TraveltimesConfig.maxTripIdleMsec
+     */
+    DataFetcher(TimeZone timezone, long maxTripIdleMsec) {
+        calendar = new GregorianCalendar(timezone);
+        this.maxTripIdleMsec = maxTripIdleMsec;
     }
 
     /**
@@ -164,256 +210,192 @@ public class DataFetcher {
     }
 
     /**
-     * Adds the arrival/departure to the map.
+     * Returns when the service day for the date ends. Consistent with dayOfYear() so that all data
+     * with the same day of year are within the same service day.
      *
-     * @param map
-     * @param arrDep
+     * @param date
+     * @return epoch time of the end of the service day
+     */
+    private long serviceDayEnd(Date date) {
+        calendar.setTime(new Date(date.getTime() - 3 * Time.MS_PER_HOUR));
+        calendar.set(java.util.Calendar.HOUR_OF_DAY, 0);
+        calendar.set(java.util.Calendar.MINUTE, 0);
+        calendar.set(java.util.Calendar.SECOND, 0);
+        calendar.set(java.util.Calendar.MILLISECOND, 0);
+        calendar.add(java.util.Calendar.DAY_OF_YEAR, 1);
+        return calendar.getTimeInMillis() + 3 * Time.MS_PER_HOUR;
+    }
+
+    /**
+     * Returns the data for the vehicle trip, creating it if there isn't data for the trip yet.
      */
-    private void addArrivalDepartureToMap(Map<DbDataMapKey, List<ArrivalDeparture>> map, ArrivalDeparture arrDep) {
-        DbDataMapKey key = getKey(arrDep.getServiceId(), arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId());
-        List<ArrivalDeparture> list = map.get(key);
-        if (list == null) {
-            list = new ArrayList<ArrivalDeparture>();
-            map.put(key, list);
+    private TripData getTripData(String serviceId, Date date, String tripId, String vehicleId) {
+        DbDataMapKey key = getKey(serviceId, date, tripId, vehicleId);
+        TripData tripData = activeTrips.get(key);
+        if (tripData == null) {
+            tripData = new TripData();
+            tripData.serviceDayEnd = serviceDayEnd(date);
+            activeTrips.put(key, tripData);
         }
-        list.add(arrDep);
+        tripData.lastTime = date.getTime();
+        return tripData;
     }
 
     /**
-     * Reads arrivals/departures from db into so can be processed.
+     * Hands off the data for the vehicle trips that are complete. A trip is complete once the
+     * current time is past the end of its service day, or if maxTripIdleMsec is set, once there
+     * hasn't been any data for the trip for that long. Since the active trips are ordered by when
+     * they last had data only the first ones need to be checked.
      *
-     * @param dbName
-     * @param beginTime
-     * @param endTime
-     * @return
+     * @param currentTime Time of the data currently being read in, or Long.MAX_VALUE to hand off
+     *     all of the trips
+     * @param tripDataConsumer
      */
-    public Map<DbDataMapKey, List<ArrivalDeparture>> readArrivalsDepartures(
-            String dbName, Date beginTime, Date endTime) {
-        IntervalTimer timer = new IntervalTimer();
-
-        // For returning the results
-        Map<DbDataMapKey, List<ArrivalDeparture>> resultsMap = new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
-
-        // For keeping track of which rows should be returned by the batch.
-        int firstResult = 0;
-        // Batch size of 50k found to be significantly faster than 10k,
-        // by about a factor of 2. Since sometimes using really large
-        // batches of data using 500k
-        int batchSize = UpdatesConfig.pageSize.getValue(); // Also known as maxResults
-        // The temporary list for the loop that contains a batch of results
-
-        logger.info("counting arrival/departures");
-        Long count = ArrivalDeparture.getArrivalsDeparturesCountFromDb(dbName, beginTime, endTime, null);
-        logger.info("retrieving {} arrival/departures", count);
-        List<ArrivalDeparture> arrDepBatchList;
-
-        if (!UpdatesConfig.pageDbReads()) {
-            // page by day for MySql -- its batch impl falls down on large data
-            Date pageBeginTime = beginTime;
-            Date pageEndTime = new Date(beginTime.getTime() + Time.MS_PER_DAY);
-            int runningCount = 0;
-            do {
-                logger.info("querying a/d for between {} and {}", pageBeginTime, pageEndTime);
-                arrDepBatchList = ArrivalDeparture.getArrivalsDeparturesFromDb(
-                        dbName,
-                        pageBeginTime,
-                        pageEndTime,
-                        // Order results by time so that process them in the same
-                        // way that a vehicle travels.
-                        "ORDER BY time", // SQL clause
-                        null,
-                        null,
-                        null); // arrivalOrDeparture. Null means read in both
-
-                // Add arrivals/departures to map
-                for (ArrivalDeparture arrDep : arrDepBatchList) {
-                    addArrivalDepartureToMap(resultsMap, arrDep);
-                }
-                runningCount += arrDepBatchList.size();
-                logger.info(
-                        "Read in total of {} a/ds of {} {}%", runningCount, count, (0.0 + runningCount) / count * 100);
-
-                pageBeginTime = pageEndTime;
-                pageEndTime = new Date(Math.min(pageBeginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
-
-            } while (pageEndTime.before(endTime));
-        } else {
-            // Read in batch of 50k rows of data and process it
-            do {
-                arrDepBatchList = ArrivalDeparture.getArrivalsDeparturesFromDb(
-                        dbName,
-                        beginTime,
-                        endTime,
-                        // Order results by time so that process them in the same
-                        // way that a vehicle travels.
-                        "ORDER BY time", // SQL clause
-                        firstResult,
-                        batchSize,
-                        null); // arrivalOrDeparture. Null means read in both
-
-                // Add arrivals/departures to map
-                for (ArrivalDeparture arrDep : arrDepBatchList) {
-                    addArrivalDepartureToMap(resultsMap, arrDep);
-                }
-
-                logger.info(
-                        "Read in total of {} arrival/departures of {} {}%",
-                        firstResult + arrDepBatchList.size(),
-                        count,
-                        (0.0 + firstResult + arrDepBatchList.size()) / count * 100);
-
-                // Update firstResult for reading next batch of data
-                firstResult += batchSize;
-            } while (arrDepBatchList.size() == batchSize);
+    private void completeTrips(long currentTime, BiConsumer<List<ArrivalDeparture>, List<Match>> tripDataConsumer) {
+        Iterator<TripData> iterator = activeTrips.values().iterator();
+        while (iterator.hasNext()) {
+            TripData tripData = iterator.next();
+            if (currentTime < tripData.serviceDayEnd
+                    && (maxTripIdleMsec <= 0 || currentTime - tripData.lastTime <= maxTripIdleMsec)) return;
+
+            iterator.remove();
+            // Without arrivals/departures there is nothing to process
+            if (!tripData.arrivalDepartures.isEmpty())
+                tripDataConsumer.accept(tripData.arrivalDepartures, tripData.matches);
         }
-        logger.info("Reading arrival/departures took {} msec", timer.elapsedMsec());
-
-        // Return the resulting map of arrivals/departures
-        return resultsMap;
     }
 
     /**
-     * Adds the arrival/departure to the map.
+     * Returns the next object, with its strings interned. Reading through a StatelessSession
+     * skips the Lifecycle.onLoad() callback, which is what interns the strings when reading
+     * through a regular session, so they are interned here. Otherwise each of the many objects
+     * retained while their trip is active would have its own copy of the IDs.
      *
-     * @param map
-     * @param arrDep
+     * @param results
+     * @param internStrings Interns the strings of an object, such as Match::internStrings
+     * @return The next object, or null if there are no more
      */
-    private void addMatchToMap(Map<DbDataMapKey, List<Match>> map, Match match) {
-        DbDataMapKey key = getKey(match.getServiceId(), match.getDate(), match.getTripId(), match.getVehicleId());
-        List<Match> list = map.computeIfAbsent(key, k -> new ArrayList<>());
-        list.add(match);
+    private static <T> T next(ScrollableResults<T> results, Consumer<T> internStrings) {
+        if (!results.next()) return null;
+        T result = results.get();
+        internStrings.accept(result);
+        return result;
     }
 
     /**
-     * Reads matches from db into so can be processed.
+     * Merges the arrivals/departures and the matches, each ordered by time, by time and groups
+     * them per vehicle trip. The data for a vehicle trip is handed to tripDataConsumer once it is
+     * complete, and the data for all remaining trips at the end.
      *
-     * @param projectId
-     * @param beginTime
-     * @param endTime
-     * @return
+     * @param nextArrDep Returns the next arrival/departure, or null if there are no more
+     * @param nextMatch Returns the next match, or null if there are no more
+     * @param count Number of matches, for logging progress
+     * @param tripDataConsumer Called with the arrivals/departures and the matches of each vehicle
+     *     trip
      */
-    private Map<DbDataMapKey, List<Match>> readMatches(String projectId, Date beginTime, Date endTime) {
-        IntervalTimer timer = new IntervalTimer();
-
-        // For returning the results
-        Map<DbDataMapKey, List<Match>> resultsMap = new HashMap<DbDataMapKey, List<Match>>();
-
-        // For keeping track of which rows should be returned by the batch.
-        int firstResult = 0;
-        // Batch size of 50k found to be significantly faster than 10k,
-        // by about a factor of 2.  Since sometimes using really large
-        // batches of data using 500k
-        int batchSize = UpdatesConfig.pageSize(); // Also known as maxResults
-        String sqlClause = "AND atStop = false ORDER BY avlTime";
-        logger.info("counting matches...");
-        Long count = Match.getMatchesCountFromDb(projectId, beginTime, endTime, "AND atStop = false");
-        logger.info("found {} matches", count);
-
-        // The temporary list for the loop that contains a batch of results
-        List<Match> matchBatchList;
-
-        if (!UpdatesConfig.pageDbReads()) {
-            // page by day for MySql -- its batch impl falls down on large data
-            Date pageBeginTime = beginTime;
-            Date pageEndTime = new Date(beginTime.getTime() + Time.MS_PER_DAY);
-            int runningCount = 0;
-            do {
-                logger.info("querying matches for between {} and {}", pageBeginTime, pageEndTime);
-                matchBatchList = Match.getMatchesFromDb(projectId, pageBeginTime, pageEndTime, sqlClause, null, null);
-                // Add arrivals/departures to map
-                for (Match match : matchBatchList) {
-                    addMatchToMap(resultsMap, match);
-                }
-                runningCount += matchBatchList.size();
-                logger.info(
-                        "Read in total of {} matches of {} {}%",
-                        runningCount, count, (0.0 + runningCount) / count * 100);
-
-                pageBeginTime = pageEndTime;
-                pageEndTime = new Date(Math.min(pageBeginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
-
-            } while (pageEndTime.before(endTime));
-        } else {
-            // Read in batch of 50k rows of data and process it
-            do {
-                matchBatchList = Match.getMatchesFromDb(
-                        projectId,
-                        beginTime,
-                        endTime,
-                        // Only want matches that are not at a stop since for that
-                        // situation instead using arrivals/departures.
-                        // Order results by time so that process them in the same
-                        // way that a vehicle travels.
-                        sqlClause, // SQL clause
-                        firstResult,
-                        batchSize);
-
-                // Add arrivals/departures to map
-                for (Match match : matchBatchList) {
-                    addMatchToMap(resultsMap, match);
-                }
-
-                logger.info(
-                        "Read in total of {} matches of {} {}%",
-                        firstResult + matchBatchList.size(),
-                        count,
-                        (0.0 + firstResult + matchBatchList.size()) / count * 100);
-
-                // Update firstResult for reading next batch of data
-                firstResult += batchSize;
-            } while (matchBatchList.size() == batchSize);
+    void groupByTrip(
+            Supplier<ArrivalDeparture> nextArrDep,
+            Supplier<Match> nextMatch,
+            long count,
+            BiConsumer<List<ArrivalDeparture>, List<Match>> tripDataConsumer) {
+        // Merge the two streams by time so that the data for a
+        // trip is complete once the time is far enough past it
+        ArrivalDeparture arrDep = nextArrDep.get();
+        Match match = nextMatch.get();
+        while (arrDep != null || match != null) {
+            long currentTime;
+            if (match == null || (arrDep != null && arrDep.getTime() <= match.getTime())) {
+                currentTime = arrDep.getTime();
+                getTripData(arrDep.getServiceId(), arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId())
+                        .arrivalDepartures.add(arrDep);
+                ++arrivalsDeparturesRead;
+                arrDep = nextArrDep.get();
+            } else {
+                currentTime = match.getTime();
+                getTripData(match.getServiceId(), match.getDate(), match.getTripId(), match.getVehicleId())
+                        .matches.add(match);
+                ++matchesRead;
+                match = nextMatch.get();
+            }
+
+            completeTrips(currentTime, tripDataConsumer);
+
+            if ((arrivalsDeparturesRead + matchesRead) % LOG_EVERY_N_ROWS == 0) {
+                logger.info("Read in total of {} arrival/departures and {} of {} matches {}%. "
+                                + "Currently {} active vehicle trips.",
+                        arrivalsDeparturesRead, matchesRead, count, (0.0 + matchesRead) / count * 100,
+                        activeTrips.size());
+            }
         }
-        logger.info("Reading matches took {} msec", timer.elapsedMsec());
-
-        // Return the resulting map of arrivals/departures
-        return resultsMap;
+        completeTrips(Long.MAX_VALUE, tripDataConsumer);
     }
 
     /**
-     * Reads arrival/departure times and matches from the db and puts the data into the
-     * arrivalDepartureMap and matchesMap members.
+     * Reads arrival/departure times and matches from the db and hands the data for each vehicle
+     * trip to tripDataConsumer once it is complete. The arrivals/departures and the matches for a
+     * trip are in time order. Only matches that are not at a stop are used since for that
+     * situation the arrivals/departures are used instead. The consumer is called by the calling
+     * thread.
      *
      * @param agencyId
      * @param beginTime
      * @param endTime
+     * @param tripDataConsumer Called with the arrivals/departures and the matches of each vehicle
+     *     trip
+     * @return Number of matches read in. If there are no matches then no data is handed off.
      */
-    public void readData(String agencyId, Date beginTime, Date endTime) {
-        // Read in arrival/departure times and matches from db
-        logger.info("Reading historic data from db...");
-        matchesMap = readMatches(agencyId, beginTime, endTime);
-        if (matchesMap == null || matchesMap.isEmpty()) {
+    public long readData(
+            String agencyId,
+            Date beginTime,
+            Date endTime,
+            BiConsumer<List<ArrivalDeparture>, List<Match>> tripDataConsumer) {
+        IntervalTimer timer = new IntervalTimer();
+        logger.info("counting matches...");
+        Long count = Match.getMatchesCountFromDb(agencyId, beginTime, endTime, "AND atStop = false");
+        logger.info("found {} matches", count);
+        if (count == null || count == 0) {
             logger.info("No Matches present in db");
-            return;
+            return 0;
         }
-        arrivalDepartureMap = readArrivalsDepartures(agencyId, beginTime, endTime);
-    }
-
-    /**
-     * Provides the arrival/departure data in a map. The values in the map are Lists of
-     * ArrivalDeparture times, one list for each trip where there was historic data.
-     *
-     * @return arrival/departure data
-     */
-    public Map<DbDataMapKey, List<ArrivalDeparture>> getArrivalDepartureMap() {
-        // Make sure data was read in
-        if (arrivalDepartureMap == null)
-            throw new RuntimeException(
-                    "Called getArrivalDepartureMap() before " + "data was read in using readData().");
 
-        return arrivalDepartureMap;
-    }
-
-    /**
-     * Provides the Match data in a map. The values in the map are Lists of Match objects, one list
-     * for each trip where there was historic data.
-     *
-     * @return match data
-     */
-    public Map<DbDataMapKey, List<Match>> getMatchesMap() {
-        // Make sure data was read in
-        if (matchesMap == null)
-            throw new RuntimeException("Called getMatchesMap() before " + "data was read in using readData().");
+        logger.info("Reading historic data from db...");
+        int fetchSize = UpdatesConfig.pageSize();
+        try (StatelessSession arrDepSession = HibernateUtils.getSessionFactory(agencyId).openStatelessSession();
+                StatelessSession matchSession = HibernateUtils.getSessionFactory(agencyId).openStatelessSession()) {
+            // Need to be in a transaction for postgres to actually use a
+            // cursor instead of reading in all of the rows at once
+            Transaction arrDepTx = arrDepSession.beginTransaction();
+            Transaction matchTx = matchSession.beginTransaction();
+            try (ScrollableResults<ArrivalDeparture> arrDeps = arrDepSession.createQuery(
+                                    "FROM ArrivalDeparture WHERE time between :beginDate AND :endDate ORDER BY time",
+                                    ArrivalDeparture.class)
+                            .setParameter("beginDate", beginTime)
+                            .setParameter("endDate", endTime)
+                            .setFetchSize(fetchSize)
+                            .setReadOnly(true)
+                            .scroll(ScrollMode.FORWARD_ONLY);
+                    ScrollableResults<Match> matches = matchSession.createQuery(
+                                    "FROM Match WHERE avlTime between :beginDate AND :endDate "
+                                            + "AND atStop = false ORDER BY avlTime",
+                                    Match.class)
+                            .setParameter("beginDate", beginTime)
+                            .setParameter("endDate", endTime)
+                            .setFetchSize(fetchSize)
+                            .setReadOnly(true)
+                            .scroll(ScrollMode.FORWARD_ONLY)) {
+                groupByTrip(
+                        () -> next(arrDeps, ArrivalDeparture::internStrings),
+                        () -> next(matches, Match::internStrings),
+                        count,
+                        tripDataConsumer);
+            } finally {
+                arrDepTx.rollback();
+                matchTx.rollback();
+            }
+        }
 
-        return matchesMap;
+        logger.info("Reading {} arrival/departures and {} matches took {} msec",
+                arrivalsDeparturesRead, matchesRead, timer.elapsedMsec());
+        return matchesRead;
     }
 }
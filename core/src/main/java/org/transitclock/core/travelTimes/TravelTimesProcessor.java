@@ -4,15 +4,20 @@ package org.transitclock.core.travelTimes;
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.config.data.TraveltimesConfig;
 import org.transitclock.core.TemporalDifference;
-import org.transitclock.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.Match;
 import org.transitclock.domain.structs.StopPath;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.statistics.Statistics;
 import org.transitclock.utils.*;
+import org.transitclock.utils.threading.BoundedExecutor;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Takes arrival/departure times plus the matches (where vehicle is matched to a route between
@@ -24,6 +29,10 @@ import java.util.*;
  * by day of the week in order to get greater accuracy (assuming that buses might consistently
  * travel differently on Monday compared to Friday even though they have the same service ID.
  *
+ * <p>The data for each vehicle trip is processed by multiple threads as soon as the DataFetcher
+ * has read it in, so the data for the whole time period never needs to be in memory at once. The
+ * resulting stop and travel times are aggregated into concurrent maps.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
@@ -57,14 +66,12 @@ public class TravelTimesProcessor {
     // with the departure time for each stop for each trip. There is one
     // entry per data point, hence a List of Integers with one Integer
     // per data point.
-    private static final Map<ProcessedDataMapKey, List<Integer>> stopTimesMap =
-            new HashMap<ProcessedDataMapKey, List<Integer>>();
+    private final Map<ProcessedDataMapKey, List<Integer>> stopTimesMap = new ConcurrentHashMap<>();
     // Values are List of List of times where outer List is by single trip and
     // inner List is by travel time segment. For every trip that has historical
     // data we get a single entry in the outer List. For every travel time
     // segment we have historical data for we get an entry in the inner List.
-    private static final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap =
-            new HashMap<ProcessedDataMapKey, List<List<Integer>>>();
+    private final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap = new ConcurrentHashMap<>();
 
     private boolean isEmpty = true;
 
@@ -115,13 +122,13 @@ public class TravelTimesProcessor {
      * @param mapKey
      * @param stopTimeMsec
      */
-    private static void addStopTimeToMap(ProcessedDataMapKey mapKey, int stopTimeMsec) {
-        List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
-        if (stopTimesForStop == null) {
-            stopTimesForStop = new ArrayList<Integer>();
-            stopTimesMap.put(mapKey, stopTimesForStop);
-        }
-        stopTimesForStop.add(stopTimeMsec);
+    private void addStopTimeToMap(ProcessedDataMapKey mapKey, int stopTimeMsec) {
+        // Added atomically since trips are processed by multiple threads
+        stopTimesMap.compute(mapKey, (key, stopTimesForStop) -> {
+            if (stopTimesForStop == null) stopTimesForStop = new ArrayList<Integer>();
+            stopTimesForStop.add(stopTimeMsec);
+            return stopTimesForStop;
+        });
     }
 
     /**
@@ -130,12 +137,16 @@ public class TravelTimesProcessor {
      * @param mapKey
      * @param travelTimesForStopPath
      */
-    private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, List<Integer> travelTimesForStopPath) {
+    private void addTravelTimesToMap(ProcessedDataMapKey mapKey, List<Integer> travelTimesForStopPath) {
         // If there is no data then simply return
         if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty()) return;
 
-        List<List<Integer>> travelTimesForStop = travelTimesMap.computeIfAbsent(mapKey, k -> new ArrayList<>());
-        travelTimesForStop.add(travelTimesForStopPath);
+        // Added atomically since trips are processed by multiple threads
+        travelTimesMap.compute(mapKey, (key, travelTimesForStop) -> {
+            if (travelTimesForStop == null) travelTimesForStop = new ArrayList<>();
+            travelTimesForStop.add(travelTimesForStopPath);
+            return travelTimesForStop;
+        });
     }
 
     /**
@@ -156,7 +167,7 @@ public class TravelTimesProcessor {
      *
      * @param arrDep
      */
-    private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+    private void processFirstStopOfTrip(ArrivalDeparture arrDep) {
         // Only need to handle departure for first stop in trip
         if (arrDep.getStopPathIndex() != 0) return;
 
@@ -189,28 +200,14 @@ public class TravelTimesProcessor {
     /**
      * Returns the matches for the particular stopPath for the service ID and trip.
      *
-     * <p>Note: This is pretty inefficient. Seems that should be able to get list of matches for the
-     * stopPath directly from the map instead of getting all the matches for the trip and then
-     * filtering them.
-     *
-     * @param dataFetcher
+     * @param matchesForTrip The matches for the vehicle trip, in time order
      * @param arrDep
      * @return List of Match objects. Never returns null.
      */
-    private static List<Match> getMatchesForStopPath(DataFetcher dataFetcher, ArrivalDeparture arrDep) {
+    private static List<Match> getMatchesForStopPath(List<Match> matchesForTrip, ArrivalDeparture arrDep) {
         // For returning the results
         List<Match> matchesForStopPath = new ArrayList<Match>();
 
-        // Get the matches for the entire trip since that is
-        // how the data is available
-        DbDataMapKey mapKey =
-                dataFetcher.getKey(arrDep.getServiceId(), arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId());
-        List<Match> matchesForTrip = dataFetcher.getMatchesMap().get(mapKey);
-
-        // If no matches were found for this trip then return empty
-        // array (don't continue since would get NPE).
-        if (matchesForTrip == null) return matchesForStopPath;
-
         for (Match match : matchesForTrip) {
             if (match.getStopPathIndex() == arrDep.getStopPathIndex()) matchesForStopPath.add(match);
             else {
@@ -325,14 +322,14 @@ public class TravelTimesProcessor {
      * day of the year). The returned matches will include the departure time from the first stop
      * (arrDep1), in between matches, and the arrival time as the second stop (arrDep2).
      *
-     * @param dataFetcher
+     * @param matchesForTrip The matches for the vehicle trip
      * @param arrDep1 The departure stop
      * @param arrDep2 The arrival stop. Also defines which stop path working with.
      * @return List of MatchPoints, which contain the basic Match info needed for determining travel
      *     times.
      */
     private static List<MatchPoint> getMatchPoints(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+            List<Match> matchesForTrip, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
         // The array to be returned
         List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
 
@@ -341,7 +338,7 @@ public class TravelTimesProcessor {
 
         // Stop path is long enough such that have more than one travel
         // time segment. Get the corresponding matches
-        List<Match> matchesForStopPath = getMatchesForStopPath(dataFetcher, arrDep2);
+        List<Match> matchesForStopPath = getMatchesForStopPath(matchesForTrip, arrDep2);
 
         // Add the matches that are in between the arrival and the departure.
         for (Match match : matchesForStopPath) {
@@ -368,14 +365,14 @@ public class TravelTimesProcessor {
      * ends of the stop path, to determine the travel time for each travel time segment for this
      * particular trip.
      *
-     * @param dataFetcher
+     * @param matchesForTrip The matches for the vehicle trip
      * @param arrDep1 The departure stop
      * @param arrDep2 The arrival stop. Also defines which stop path working with.
      * @return List of travel times in msec. There is a separate travel time for each travel time
      *     segment. If the match points are garbled and go backwards in time then null is returned.
      */
     private List<Integer> determineTravelTimesForStopPath(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+            List<Match> matchesForTrip, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
         // Determine departure time. If shouldn't use departures times
         // for terminal departure that are earlier then schedule time
         // then use the scheduled departure time. This prevents creating
@@ -410,7 +407,7 @@ public class TravelTimesProcessor {
         // segment.
         double travelTimeSegmentLength = getTravelTimeSegmentLength(arrDep2);
 
-        List<MatchPoint> matchPoints = getMatchPoints(dataFetcher, arrDep1, arrDep2);
+        List<MatchPoint> matchPoints = getMatchPoints(matchesForTrip, arrDep1, arrDep2);
 
         // The times when a travel time segment vertex is crossed.
         // Will include the departure time, the middle vertices, and
@@ -528,12 +525,12 @@ public class TravelTimesProcessor {
      * data is ignored. If schedule adherence is acceptable then the resulting travel and stop/dwell
      * times are put into the stopTimesMap and travelTimesMap members for further processing.
      *
-     * @param dataFetcher Contains the AVL based historic data in maps
+     * @param matchesForTrip The matches for the vehicle trip
      * @param arrDep1 The first arrival/departure
      * @param arrDep2 The second arrival/departure
      */
     private void processDataBetweenTwoArrivalDepartures(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+            List<Match> matchesForTrip, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
         // If schedule adherence is really far off then ignore the data
         // point because it would skew the results.
         TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -572,7 +569,7 @@ public class TravelTimesProcessor {
                 && arrDep1.isDeparture()
                 && arrDep2.isArrival()) {
             // Determine the travel times and add them to the map
-            List<Integer> travelTimesForStopPath = determineTravelTimesForStopPath(dataFetcher, arrDep1, arrDep2);
+            List<Integer> travelTimesForStopPath = determineTravelTimesForStopPath(matchesForTrip, arrDep1, arrDep2);
 
             // Ignore a stop path if any segment travel time is negative. Nulls will
             // be ignored downstream anyway so can also ignore those.
@@ -599,10 +596,10 @@ public class TravelTimesProcessor {
      * Process historic data from database for single trip. Puts resulting data into stopTimesMap
      * and travelTimesMap.
      *
-     * @param dataFetcher Contains arrival/departures and matches fetched from database
      * @param arrDepList List of ArrivalDepartures for vehicle for a trip
+     * @param matchesForTrip List of Matches for vehicle for the trip
      */
-    private void aggregateTripDataIntoMaps(DataFetcher dataFetcher, List<ArrivalDeparture> arrDepList) {
+    private void aggregateTripDataIntoMaps(List<ArrivalDeparture> arrDepList, List<Match> matchesForTrip) {
 
         for (int i = 0; i < arrDepList.size() - 1; ++i) {
             ArrivalDeparture arrDep1 = arrDepList.get(i);
@@ -619,7 +616,7 @@ public class TravelTimesProcessor {
 
             // Deal with normal travel times
             ArrivalDeparture arrDep2 = arrDepList.get(i + 1);
-            processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);
+            processDataBetweenTwoArrivalDepartures(matchesForTrip, arrDep1, arrDep2);
         }
     }
 
@@ -839,8 +836,9 @@ public class TravelTimesProcessor {
     }
 
     /**
-     * Reads in the Matches and the ArrivalDepartures from the database for the time specified. Puts
-     * the data into the stopTimesMap and the travelTimesMap for further processing.
+     * Reads in the Matches and the ArrivalDepartures from the database for the time specified. The
+     * data for each vehicle trip is processed by multiple threads as soon as it has been read in.
+     * Puts the data into the stopTimesMap and the travelTimesMap for further processing.
      *
      * @param projectId
      * @param specialDaysOfWeek
@@ -849,33 +847,54 @@ public class TravelTimesProcessor {
      */
     public void readAndProcessHistoricData(
             String projectId, List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
-        // Read the arrivals/departures and matches into a DataFetcher
+        int numberThreads = Math.max(1, TraveltimesConfig.processingThreads.getValue());
+        ExecutorService executorService =
+                Executors.newFixedThreadPool(numberThreads, new NamedThreadFactory("travelTimesProcessor"));
+        // Limit how many trips can be waiting to be processed so that the
+        // reading of the data doesn't get too far ahead of the processing
+        BoundedExecutor executor = new BoundedExecutor(executorService, 4 * numberThreads);
+
+        // Read the arrivals/departures and matches and process all the
+        // historic data for each trip. Puts resulting data into stopTimesMap
+        // and travelTimesMap.
+        logger.info("Reading and processing data into travel time maps using {} threads...", numberThreads);
+        IntervalTimer intervalTimer = new IntervalTimer();
         DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
-        dataFetcher.readData(projectId, beginTime, endTime);
+        long numberMatches;
+        try {
+            numberMatches = dataFetcher.readData(projectId, beginTime, endTime, (arrDepList, matchesForTrip) -> {
+                try {
+                    executor.execute(() -> {
+                        debugLogTrip(arrDepList);
+                        aggregateTripDataIntoMaps(arrDepList, matchesForTrip);
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while processing travel times", e);
+                }
+            });
+        } finally {
+            // Wait for the trips already read in to be processed
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         // exit here if no matches are present
         // no further work can be done!
-        if (dataFetcher.getMatchesMap() == null || dataFetcher.getMatchesMap().isEmpty()) {
+        if (numberMatches == 0) {
             logger.error("No Matches:  Nothing to do!");
             isEmpty = true;
             return;
         }
         isEmpty = false;
 
-        // Process all the historic data read from the database. Puts
-        // resulting data into stopTimesMap and travelTimesMap.
-        logger.info("Processing data into travel time maps...");
-        IntervalTimer intervalTimer = new IntervalTimer();
-        Collection<List<ArrivalDeparture>> arrivalDepartures =
-                dataFetcher.getArrivalDepartureMap().values();
-        for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-            debugLogTrip(arrDepList);
-            aggregateTripDataIntoMaps(dataFetcher, arrDepList);
-        }
-
         // Nice to log how long things took so can see progress and bottle necks
         logger.info(
-                "Processing data from db into the travel times and stop " + "times map took {} msec.",
+                "Reading and processing data from db into the travel times and stop " + "times map took {} msec.",
                 intervalTimer.elapsedMsec());
     }
 }
@@ -0,0 +1,177 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.temporal.Temporal;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.postgresql.PGConnection;
+
+/**
+ * Writes objects using PostgreSQL COPY FROM STDIN, which is the fastest way to load rows into
+ * PostgreSQL. COPY fails for the whole batch if any row conflicts with one already stored, so the
+ * COPY is done within a savepoint and if it fails the rows are written using the multi-row INSERT
+ * ... ON CONFLICT DO NOTHING of {@link InsertDbBulkWriter} instead. If the database is not
+ * PostgreSQL then the INSERT is always used.
+ *
+ * <p>The values are bound using the Hibernate mapping, just like for INSERT, but into a statement
+ * that only records the values so that they can then be written in the COPY text format.
+ */
+@Slf4j
+public class CopyDbBulkWriter extends InsertDbBulkWriter {
+
+    @Override
+    public void write(Session session, List<?> objects) {
+        if (objects.isEmpty()) return;
+
+        SharedSessionContractImplementor sessionImpl = session.unwrap(SharedSessionContractImplementor.class);
+        if (!(sessionImpl.getJdbcServices().getDialect() instanceof PostgreSQLDialect)) {
+            super.write(session, objects);
+            return;
+        }
+
+        for (Map.Entry<Class<?>, List<Object>> entry : groupByClass(objects).entrySet()) {
+            EntityInsertMapping mapping = getMapping(sessionImpl.getFactory(), entry.getKey());
+            if (mapping == null) {
+                super.write(session, entry.getValue());
+                continue;
+            }
+
+            boolean copied = session.doReturningWork(connection -> copyRows(connection, mapping, entry.getValue(), sessionImpl));
+            if (!copied) super.write(session, entry.getValue());
+        }
+    }
+
+    /**
+     * Copies the rows for a single entity class. Done within a savepoint so that if the COPY fails,
+     * such as because of a duplicate key, the transaction can still be used.
+     *
+     * @return true if successful, false if the rows should be written some other way
+     */
+    private boolean copyRows(
+            Connection connection,
+            EntityInsertMapping mapping,
+            List<Object> rows,
+            SharedSessionContractImplementor session)
+            throws SQLException {
+        String data;
+        try {
+            data = copyData(mapping, rows, session);
+        } catch (SQLFeatureNotSupportedException e) {
+            logger.debug("Can't use COPY for {} so using INSERT instead. {}", mapping.getTableName(), e.getMessage());
+            return false;
+        }
+
+        String sql = "COPY " + mapping.getTableName() + " (" + String.join(",", mapping.getColumnNames()) + ") FROM STDIN";
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            long copied = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, new StringReader(data));
+            connection.releaseSavepoint(savepoint);
+            logger.debug("Copied {} rows into {}", copied, mapping.getTableName());
+            return true;
+        } catch (SQLException | IOException e) {
+            connection.rollback(savepoint);
+            logger.debug("COPY into {} failed so using INSERT instead. {}", mapping.getTableName(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Creates the data for the COPY, one line per row in the PostgreSQL text format.
+     *
+     * @throws SQLFeatureNotSupportedException if a value can't be represented in the text format
+     */
+    private static String copyData(EntityInsertMapping mapping, List<Object> rows, SharedSessionContractImplementor session)
+            throws SQLException {
+        int boundColumns = mapping.getBoundColumnCount();
+        Object[] values = new Object[boundColumns];
+        PreparedStatement recorder = recordingStatement(values);
+
+        StringBuilder data = new StringBuilder(rows.size() * boundColumns * 12);
+        for (Object row : rows) {
+            mapping.bind(recorder, 1, row, session);
+            for (int i = 0; i < boundColumns; ++i) {
+                if (i > 0) data.append('\t');
+                appendCopyValue(data, values[i]);
+            }
+            if (mapping.getDiscriminatorValue() != null) {
+                data.append('\t');
+                appendCopyValue(data, mapping.getDiscriminatorValue());
+            }
+            data.append('\n');
+        }
+        return data.toString();
+    }
+
+    /**
+     * Returns a PreparedStatement that just records the values set into the array, with JDBC index 1
+     * going into element 0.
+     */
+    private static PreparedStatement recordingStatement(Object[] values) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (method.getDeclaringClass() == Object.class) {
+                        return switch (name) {
+                            case "equals" -> proxy == args[0];
+                            case "hashCode" -> System.identityHashCode(proxy);
+                            default -> "RecordingStatement";
+                        };
+                    }
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index) {
+                        // A Calendar means the value has to be converted to a
+                        // different time zone, which the text format can't express
+                        if (args.length == 3 && args[2] instanceof Calendar)
+                            throw new SQLFeatureNotSupportedException(name + " with Calendar");
+                        values[index - 1] = name.equals("setNull") ? null : args[1];
+                        return null;
+                    }
+                    throw new SQLFeatureNotSupportedException(name);
+                });
+    }
+
+    /** Appends the value in the PostgreSQL COPY text format */
+    private static void appendCopyValue(StringBuilder data, Object value) throws SQLFeatureNotSupportedException {
+        if (value == null) {
+            data.append("\\N");
+        } else if (value instanceof Boolean b) {
+            data.append(b ? 't' : 'f');
+        } else if (value instanceof Number
+                || value instanceof Timestamp
+                || value instanceof java.sql.Date
+                || value instanceof Time
+                || value instanceof Temporal) {
+            // Numbers, the java.sql time classes and java.time values all
+            // have a toString() that PostgreSQL can parse
+            data.append(value);
+        } else if (value instanceof String || value instanceof Character || value instanceof Enum) {
+            String s = value.toString();
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '\\' -> data.append("\\\\");
+                    case '\t' -> data.append("\\t");
+                    case '\n' -> data.append("\\n");
+                    case '\r' -> data.append("\\r");
+                    default -> data.append(c);
+                }
+            }
+        } else {
+            throw new SQLFeatureNotSupportedException("Value of type " + value.getClass().getName());
+        }
+    }
+}
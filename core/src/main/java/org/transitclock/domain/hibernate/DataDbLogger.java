@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.concurrent.*;
 
 import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.DbSetupConfig;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.AvlReport;
 import org.transitclock.domain.structs.Match;
@@ -29,7 +30,9 @@ import org.transitclock.utils.threading.NamedThreadFactory;
  * to database issues. The application simply calls add(Object o) to add the object to be stored to
  * the queue.
  *
- * <p>A separate thread is used to read from the queue and write the data to the database. If the
+ * <p>Separate threads are used to read from the queues and write the data to the database. Each
+ * type of data has its own queue that is flushed at an adaptive interval, and if a queue backs up
+ * then additional writers are used for it so that the data is written in parallel. If the
  * queue starts filling up then error messages are e-mailed to users alerting them that there is a
  * problem. E-mail messages are also sent out when the queue level is going down again.
  *
@@ -91,7 +94,7 @@ public class DataDbLogger {
      */
     private DataDbLogger(String agencyId, boolean shouldStoreToDb, boolean shouldPauseToReduceQueue) {
         NamedThreadFactory threadFactory = new NamedThreadFactory("DataWriter");
-        ExtendedScheduledThreadPoolExecutor executor = new ExtendedScheduledThreadPoolExecutor(5, threadFactory, new RejectedExecutionHandler() {
+        ExtendedScheduledThreadPoolExecutor executor = new ExtendedScheduledThreadPoolExecutor(DbSetupConfig.numberDataWriterThreads.getValue(), threadFactory, new RejectedExecutionHandler() {
             @Override
             public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
                 logger.error("Execution of {} was rejected by {}", r, executor);
@@ -104,17 +107,20 @@ public class DataDbLogger {
         // derived data into the database because that would interfere with the
         // derived data that was already stored in real time. For that situation
         // shouldStoreToDb should be set to false.
-        // Used by add(). If queue filling up to 25% and shouldPauseToReduceQueue is
-        // true then will pause the calling thread for a few seconds so that more
-        // objects can be written out and not have the queue fill up.
-        arrivalDepartureQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, ArrivalDeparture.class);
-        avlReportQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, AvlReport.class);
+        // Used by add(). If queue filling up to 20% and shouldPauseToReduceQueue is
+        // true then will pause the calling thread until the writers have written
+        // out enough objects so that the queue doesn't fill up.
+        // The append only data can use the faster bulk writer. Data that
+        // can be updated, such as VehicleConfig, needs to be merged.
+        DbBulkWriter bulkWriter = DbBulkWriterFactory.getInstance();
+        arrivalDepartureQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, ArrivalDeparture.class, bulkWriter);
+        avlReportQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, AvlReport.class, bulkWriter);
         vehicleConfigQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleConfig.class);
-        predictionQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Prediction.class);
-        matchQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Match.class);
-        predictionAccuracyQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, PredictionAccuracy.class);
-        monitoringEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, MonitoringEvent.class);
-        vehicleEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleEvent.class);
+        predictionQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Prediction.class, bulkWriter);
+        matchQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Match.class, bulkWriter);
+        predictionAccuracyQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, PredictionAccuracy.class, bulkWriter);
+        monitoringEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, MonitoringEvent.class, bulkWriter);
+        vehicleEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleEvent.class, bulkWriter);
         vehicleStateQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleState.class);
         genericQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Object.class);
     }
@@ -0,0 +1,27 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.util.List;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * Strategy used by {@link DbQueue} for writing a batch of objects to the database. The write is
+ * done within the transaction of the passed in session, so the objects are only actually stored
+ * once DbQueue commits it. If the batch can't be written then a HibernateException is thrown and
+ * DbQueue falls back to merging the objects individually so that the good data is still stored.
+ *
+ * <p>The class used is set by transitclock.db.bulkWriterClass via the {@link DbBulkWriterFactory}.
+ * Implementations need to be thread safe since a single writer is shared by the queues.
+ */
+public interface DbBulkWriter {
+
+    /**
+     * Writes the objects to the database using the session's current transaction.
+     *
+     * @param session Session with an active transaction
+     * @param objects The objects to be stored. Can be of different entity classes.
+     * @throws HibernateException If the batch could not be written
+     */
+    void write(Session session, List<?> objects) throws HibernateException;
+}
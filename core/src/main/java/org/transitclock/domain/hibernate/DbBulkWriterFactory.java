@@ -0,0 +1,38 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import org.transitclock.config.ClassConfigValue;
+import org.transitclock.utils.ClassInstantiator;
+
+/**
+ * For instantiating the DbBulkWriter used by DbQueue for writing the append only data, such as AVL
+ * reports, arrivals/departures and predictions. The class to be instantiated can be set using the
+ * config variable transitclock.db.bulkWriterClass
+ */
+public class DbBulkWriterFactory {
+
+    // The name of the class to instantiate
+    private static final ClassConfigValue className = new ClassConfigValue(
+            "transitclock.db.bulkWriterClass",
+            MergeDbBulkWriter.class,
+            "Specifies the name of the class used by the DataDbLogger for "
+                    + "writing batches of append only data such as AVL reports, "
+                    + "arrivals/departures and predictions. "
+                    + "org.transitclock.domain.hibernate.InsertDbBulkWriter uses "
+                    + "multi-row INSERT ... ON CONFLICT DO NOTHING and "
+                    + "org.transitclock.domain.hibernate.CopyDbBulkWriter uses "
+                    + "PostgreSQL COPY, both of which are much faster than the "
+                    + "default merge. If a batch fails then the objects are "
+                    + "still merged individually.");
+
+    private static DbBulkWriter singleton = null;
+
+    public static synchronized DbBulkWriter getInstance() {
+        // If the DbBulkWriter hasn't been created yet then do so now
+        if (singleton == null) {
+            singleton = ClassInstantiator.instantiate(className.getValue(), DbBulkWriter.class);
+        }
+
+        return singleton;
+    }
+}
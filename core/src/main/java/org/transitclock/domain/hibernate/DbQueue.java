@@ -1,12 +1,19 @@
 /* (C)2023 */
 package org.transitclock.domain.hibernate;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
@@ -14,7 +21,6 @@ import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
-import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.exception.GenericJDBCException;
 import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.exception.SQLGrammarException;
@@ -45,10 +51,15 @@ public class DbQueue<T> {
     // shouldStoreToDb should be set to false.
     private final boolean shouldStoreToDb;
 
-    // Used by add(). If queue filling up to 25% and shouldPauseToReduceQueue is
-    // true then will pause the calling thread for a few seconds so that more
-    // objects can be written out and not have the queue fill up.
-    private final boolean shouldPauseToReduceQueue;
+    // Used by add(). If queue filling up to 20% and startWritersWhenFilling is
+    // true then the writers are started right away instead of waiting for the
+    // next flush, so that the queue doesn't fill up. The calling thread is
+    // never blocked since it can be the thread processing AVL reports.
+    private final boolean startWritersWhenFilling;
+
+    // Queue level above which the writers are started right away when
+    // startWritersWhenFilling is set
+    private static final double START_WRITERS_QUEUE_LEVEL = 0.2;
 
     // The queue capacity levels when an error message should be e-mailed out.
     // The max value should be 1.0.
@@ -56,47 +67,244 @@ public class DbQueue<T> {
 
     // For keeping track of index into levels, which level of capacity of
     // queue being used. When level changes then an e-mail is sent out warning
-    // the operators.
-    private double indexOfLevelWhenMessageLogged = 0;
+    // the operators. Atomic since updated by the producers and the writers.
+    private final AtomicInteger indexOfLevelWhenMessageLogged = new AtomicInteger();
 
     // For keeping track of maximum capacity of queue that was used.
-    // Used for logging when queue use is going down.
-    private double maxQueueLevel = 0.0;
+    // Used for logging when queue use is going down. Holds the bits of
+    // the double value so that it can be updated atomically.
+    private final AtomicLong maxQueueLevelBits = new AtomicLong(Double.doubleToLongBits(0.0));
 
     // So can access projectId for logging messages
     private final String projectId;
 
     // collect some statistics on how the db is performing
-    private long throughputCount = 0;
-    private long throughputTimestamp = System.currentTimeMillis();
+    private final AtomicLong throughputCount = new AtomicLong();
+    private final AtomicLong throughputTimestamp = new AtomicLong(System.currentTimeMillis());
     private final Class<?> shortType;
 
-    public DbQueue(ScheduledExecutorService executor, String projectId, boolean shouldStoreToDb, boolean shouldPauseToReduceQueue, Class<?> shortType) {
+    // For scheduling the flushes and any additional writers
+    private final ScheduledExecutorService executor;
+
+    // Number of writers currently writing data from this queue
+    private final AtomicInteger activeWriters = new AtomicInteger();
+
+    // Set while add() has started a writer that hasn't finished yet, so that
+    // a burst of adds doesn't start lots of them
+    private final AtomicBoolean writerStartedByAdd = new AtomicBoolean();
+
+    // Time to wait before next flush. Doubled while the queue is quiet.
+    private long flushIntervalMsec = DbSetupConfig.minFlushIntervalMsec.getValue();
+
+    // How a batch of objects is written. If it fails then objects are
+    // still merged individually.
+    private final DbBulkWriter bulkWriter;
+
+    // For data that can't be written because db is down or because the
+    // queue is full. Null if transitclock.db.spillDirectory not set.
+    private final DbSpillJournal spillJournal;
+
+    // So that only one writer at a time replays the spill journal, which
+    // keeps the data in order
+    private final ReentrantLock replayLock = new ReentrantLock();
+
+    public DbQueue(ScheduledExecutorService executor, String projectId, boolean shouldStoreToDb, boolean startWritersWhenFilling, Class<?> shortType) {
+        this(executor, projectId, shouldStoreToDb, startWritersWhenFilling, shortType, new MergeDbBulkWriter());
+    }
+
+    public DbQueue(ScheduledExecutorService executor, String projectId, boolean shouldStoreToDb, boolean startWritersWhenFilling, Class<?> shortType, DbBulkWriter bulkWriter) {
+        this.bulkWriter = bulkWriter;
         this.projectId = projectId;
         this.shouldStoreToDb = shouldStoreToDb;
-        this.shouldPauseToReduceQueue = shouldPauseToReduceQueue;
+        this.startWritersWhenFilling = startWritersWhenFilling;
         this.shortType = shortType;
+        this.executor = executor;
+        this.spillJournal = shouldStoreToDb ? openSpillJournal(projectId, shortType) : null;
 
-        // Start up separate thread that reads from the queue and
-        // actually stores the data
-        executor.scheduleAtFixedRate(this::processBatchOfData, 0, TIME_BETWEEN_RETRIES, TimeUnit.MILLISECONDS);
+        // Start up the flushing that reads from the queue and actually
+        // stores the data. Each flush schedules the next one.
+        executor.schedule(this::flush, 0, TimeUnit.MILLISECONDS);
         executor.scheduleAtFixedRate(this::logThroughputInfo, 1, 1, TimeUnit.MINUTES);
     }
 
+    /**
+     * Opens the spill journal for the queue if transitclock.db.spillDirectory is set and the type of
+     * data can be serialized.
+     *
+     * @return The journal, or null if not to be used
+     */
+    private static DbSpillJournal openSpillJournal(String projectId, Class<?> shortType) {
+        String directory = DbSetupConfig.spillDirectory.getValue();
+        if (directory == null || directory.isBlank()) return null;
+
+        if (!Serializable.class.isAssignableFrom(shortType)) {
+            logger.info("Not using spill journal for type {} since it is not Serializable", shortType);
+            return null;
+        }
+
+        Path file = Path.of(directory, "dbQueue-" + projectId + "-" + shortType.getSimpleName() + ".journal");
+        try {
+            int maxBytes = (int) Math.min(Integer.MAX_VALUE, DbSetupConfig.spillJournalMaxMB.getValue() * 1024L * 1024L);
+            return DbSpillJournal.open(file, maxBytes);
+        } catch (IOException e) {
+            logger.error("Could not open spill journal {} so data will only be queued in memory", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes out the data in the queue and then schedules the next flush. The flush cadence adapts
+     * to the load: while the queue is receiving data it is flushed every
+     * transitclock.db.minFlushIntervalMsec but when it is quiet the interval is doubled each time,
+     * up to transitclock.db.maxFlushIntervalMsec.
+     */
+    private void flush() {
+        try {
+            boolean wroteData = writeWhileBacklogged();
+            flushIntervalMsec = nextFlushIntervalMsec(
+                    wroteData,
+                    flushIntervalMsec,
+                    DbSetupConfig.minFlushIntervalMsec.getValue(),
+                    DbSetupConfig.maxFlushIntervalMsec.getValue());
+        } catch (Exception e) {
+            logger.error("Exception when flushing queue for type {}", shortType, e);
+        } finally {
+            if (spillJournal != null) spillJournal.force();
+            executor.schedule(this::flush, flushIntervalMsec, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the time to wait before the next flush: the minimum interval if data was written,
+     * otherwise double the current interval but no more than the maximum.
+     *
+     * @param wroteData Whether the flush just done wrote any data
+     * @param currentIntervalMsec The interval used before the flush just done
+     * @param minIntervalMsec
+     * @param maxIntervalMsec
+     * @return The interval in msec
+     */
+    static long nextFlushIntervalMsec(
+            boolean wroteData, long currentIntervalMsec, long minIntervalMsec, long maxIntervalMsec) {
+        if (wroteData) return minIntervalMsec;
+        return Math.max(minIntervalMsec, Math.min(currentIntervalMsec * 2, maxIntervalMsec));
+    }
+
+    /**
+     * Writes batches of data until there is no longer a full batch in the queue. If the queue is
+     * backed up then additional writers are started so that the data is written in parallel.
+     *
+     * @return true if any data was written
+     */
+    private boolean writeWhileBacklogged() {
+        activeWriters.incrementAndGet();
+        try {
+            boolean wroteData = false;
+            int count;
+            do {
+                addWritersIfBacklogged();
+                count = processBatchOfData();
+                wroteData |= count > 0;
+            } while (shouldKeepWriting(count, queue.size(), DbSetupConfig.getBatchSize(), hasSpilledData()));
+            return wroteData;
+        } finally {
+            activeWriters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns whether a flush should write another batch right away instead of waiting for the
+     * next flush. True if the last batch wrote data and there is at least a full batch still
+     * queued or there is spilled data to replay.
+     *
+     * @param lastBatchCount Number of objects written by the last batch
+     * @param queueSize Number of objects still in the queue
+     * @param batchSize
+     * @param hasSpilledData Whether the spill journal has data
+     * @return true if another batch should be written
+     */
+    static boolean shouldKeepWriting(int lastBatchCount, int queueSize, int batchSize, boolean hasSpilledData) {
+        return lastBatchCount > 0 && (queueSize >= batchSize || hasSpilledData);
+    }
+
+    /**
+     * Returns how many writers should be writing data from this queue. Only a single one unless the
+     * queue is filled past transitclock.db.parallelWriteQueueLevel.
+     *
+     * @return target number of writers
+     */
+    private int targetWriters() {
+        return targetWriters(
+                queueLevel(),
+                DbSetupConfig.parallelWriteQueueLevel.getValue(),
+                DbSetupConfig.maxWritersPerQueue.getValue());
+    }
+
+    /**
+     * Returns how many writers should be writing data from a queue.
+     *
+     * @param queueLevel How full the queue is, between 0.0 and 1.0
+     * @param parallelWriteQueueLevel Level above which multiple writers are used
+     * @param maxWriters Number of writers to use when above that level
+     * @return target number of writers, at least 1
+     */
+    static int targetWriters(double queueLevel, double parallelWriteQueueLevel, int maxWriters) {
+        if (queueLevel <= parallelWriteQueueLevel) return 1;
+        return Math.max(1, maxWriters);
+    }
+
+    /** Starts additional writers if the queue is backed up and there aren't enough of them. */
+    private void addWritersIfBacklogged() {
+        int target = targetWriters();
+        int current;
+        while ((current = activeWriters.get()) < target) {
+            if (activeWriters.compareAndSet(current, current + 1)) {
+                logger.debug("Adding writer for type {} since queue level is {}", shortType, queueLevel());
+                executor.execute(this::writeAsAdditionalWriter);
+            }
+        }
+    }
+
+    /**
+     * For the additional writers. Writes batches as long as the queue is still backed up enough to
+     * warrant multiple writers.
+     */
+    private void writeAsAdditionalWriter() {
+        try {
+            while (queueLevel() > DbSetupConfig.parallelWriteQueueLevel.getValue()) {
+                if (processBatchOfData() == 0) break;
+            }
+        } finally {
+            activeWriters.decrementAndGet();
+        }
+    }
+
     public boolean add(T t) {
         // If in playback mode then don't want to store the
         // derived data because it would interfere with the
         // derived data already stored when was running in real time.
         if (!shouldStoreToDb) return true;
 
-        // Add the object to the queue
-        boolean success = queue.offer(t);
+        // Add the object to the queue. If data has already been spilled to
+        // the journal then the object goes there too so that the data stays
+        // in order. And if the queue is full then spill it instead of losing it.
+        boolean success;
+        if (spillJournal != null && spillJournal.appendIfNotEmpty(t)) {
+            success = true;
+        } else {
+            success = queue.offer(t);
+            if (!success && spillJournal != null) {
+                success = spillJournal.append(List.of(t));
+                if (success) logger.warn("DataDbLogger queue for type {} is full so spilling data to journal", shortType);
+            }
+        }
 
         double level = queueLevel();
         int levelIndex = indexOfLevel(level);
-        // If reached a new level then output message e-mail to warn users
-        if (levelIndex > indexOfLevelWhenMessageLogged) {
-            indexOfLevelWhenMessageLogged = levelIndex;
+        // If reached a new level then output message e-mail to warn users.
+        // Only the thread that updates the level logs the message.
+        int loggedLevelIndex = indexOfLevelWhenMessageLogged.get();
+        if (levelIndex > loggedLevelIndex && indexOfLevelWhenMessageLogged.compareAndSet(loggedLevelIndex, levelIndex)) {
             String message = success
                     ? "DataDbLogger queue filling up "
                             + " for projectId="
@@ -119,16 +327,27 @@ public class DbQueue<T> {
 
         // Keep track of max queue level so can log it when queue level
         // is decreasing again.
-        if (level > maxQueueLevel) maxQueueLevel = level;
-
-        // If shouldPauseToReduceQueue (because in batch mode or such) and
-        // if queue is starting to get more full then pause the calling
-        // thread for 10 seconds so that separate thread can clear out
-        // queue a bit.
-        if (shouldPauseToReduceQueue && level > 0.2) {
-            logger.info("Pausing thread adding data to DataDbLogger queue so that queue can be cleared out. Level={}%, type={}",
+        long levelBits = Double.doubleToLongBits(level);
+        maxQueueLevelBits.accumulateAndGet(
+                levelBits, (maxBits, bits) -> Double.longBitsToDouble(bits) > Double.longBitsToDouble(maxBits) ? bits : maxBits);
+
+        // If startWritersWhenFilling (because in batch mode or such) and
+        // if queue is starting to get more full then make sure writers are
+        // running now instead of waiting for the next flush. Doesn't wait
+        // for them so the calling thread is never held up.
+        if (startWritersWhenFilling
+                && level > START_WRITERS_QUEUE_LEVEL
+                && activeWriters.get() == 0
+                && writerStartedByAdd.compareAndSet(false, true)) {
+            logger.debug("Starting writer for DataDbLogger queue so that queue can be cleared out. Level={}%, type={}",
                     level * 100.0, shortType);
-            Time.sleep(10 * Time.MS_PER_SEC);
+            executor.execute(() -> {
+                try {
+                    writeWhileBacklogged();
+                } finally {
+                    writerStartedByAdd.set(false);
+                }
+            });
         }
 
         // Return whether was successful in adding object to queue
@@ -143,7 +362,7 @@ public class DbQueue<T> {
             return new ArrayList<>();
         }
 
-        throughputCount += count;
+        throughputCount.addAndGet(count);
         logger.debug("drained {} elements", count);
         // Log if went below a capacity level
         // See if queue dropped to 10% less than the previously logged level.
@@ -151,12 +370,12 @@ public class DbQueue<T> {
         // oscillating around a level.
         double level = queueLevel();
         int levelIndexIncludingMargin = indexOfLevel(level + 0.10);
-        if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
+        int loggedLevelIndex = indexOfLevelWhenMessageLogged.get();
+        if (levelIndexIncludingMargin < loggedLevelIndex
+                && indexOfLevelWhenMessageLogged.compareAndSet(loggedLevelIndex, levelIndexIncludingMargin)) {
+            // Reset the max queue level so can determine what next peak is
+            double maxQueueLevel = Double.longBitsToDouble(maxQueueLevelBits.getAndSet(Double.doubleToLongBits(level)));
             logger.error("DataDbLogger queue emptying out somewhat  for projectId={} and type {}. It is now at {}% capacity with {} elements already in the queue. The maximum capacity was {}%.", projectId, shortType, String.format("%.1f", level * 100), queue.size(), String.format("%.1f", maxQueueLevel * 100));
-            indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
-
-            // Reset the maxQueueLevel so can determine what next peak is
-            maxQueueLevel = level;
         }
 
         // Return the result
@@ -168,16 +387,28 @@ public class DbQueue<T> {
      * writes together to reduce load on network and on db machines. There this method will try to
      * store multiple objects from the queue at once, up to the BATCH_SIZE.
      *
-     * <p>If there is an exception with an object being written then the batch of objects will be
-     * written individually so that all of the good data will still be stored.
+     * <p>The batch is written using the DbBulkWriter for the queue. If there is an exception with an
+     * object being written then the batch of objects will be merged individually so that all of
+     * the good data will still be stored.
      *
      * <p>When looked at Hibernate documentation on batch writing there is mention of using: if
      * (++batchingCounter % BATCH_SIZE == 0) { session.flush(); session.clear(); } But the above
      * doesn't commit the data to the db until the transaction commit is done. Therefore the need
      * here isn't true Hibernate batch processing. Instead, need to use a transaction for each
      * batch.
+     *
+     * @return Number of objects taken from the queue
      */
-    public void processBatchOfData() {
+    public int processBatchOfData() {
+        // Spilled data is older than what is in the queue so write it first
+        if (hasSpilledData() && replayLock.tryLock()) {
+            try {
+                return replaySpilledBatch();
+            } finally {
+                replayLock.unlock();
+            }
+        }
+
         // Create an array for holding what is being written to db. If there
         // is an exception with one of the objects, such as a constraint violation,
         // then can try to write the objects one at a time to make sure that the
@@ -196,13 +427,7 @@ public class DbQueue<T> {
             List<T> objectsToBeStored = drain();
 
             objectsForThisBatch.addAll(objectsToBeStored);
-            for (Object objectToBeStored : objectsForThisBatch) {
-                // Write the data to the session. This doesn't yet
-                // actually write the data to the db though. That is only
-                // done when the session is flushed or committed.
-                logger.trace("DataDbLogger batch saving object={}", objectToBeStored);
-                session.merge(objectToBeStored);
-            }
+            bulkWriter.write(session, objectsForThisBatch);
 
             // Sometimes useful for debugging via the console
             logger.debug("Committing {} objects. {} objects still in queue.", objectsForThisBatch.size(), queueSize());
@@ -215,20 +440,30 @@ public class DbQueue<T> {
             logger.debug("Done committing. Took {} msec", timer.elapsedMsec());
 
             session.close();
+            return objectsForThisBatch.size();
         } catch (HibernateException e) {
             // If there was a connection problem then create a whole session
             // factory so that get new connections.
             Throwable rootCause = ExceptionUtils.getRootCause(e);
 
-            if (rootCause instanceof SocketTimeoutException
-                    || rootCause instanceof SocketException
-                    || (rootCause instanceof SQLException && rootCause.getMessage().contains("statement closed"))) {
+            if (isConnectionProblem(rootCause)) {
                 logger.error("Had a connection problem to the database. Likely "
                         + "means that the db was rebooted or that the "
                         + "connection to it was lost. Therefore creating a new "
                         + "SessionFactory so get new connections.");
                 HibernateUtils.clearSessionFactory();
-            } else {
+            }
+
+            // If can't reach the db then instead of retrying the objects
+            // individually until the db is back spill them to the journal
+            if (spillJournal != null
+                    && (isConnectionProblem(rootCause) || shouldKeepTryingBecauseConnectionException(e))
+                    && spillBatch(objectsForThisBatch)) {
+                closeQuietly(tx, session);
+                return objectsForThisBatch.size();
+            }
+
+            if (!isConnectionProblem(rootCause)) {
                 // Rollback the transaction since it likely was not committed.
                 // Otherwise can get an error when using Postgres "ERROR:
                 // current transaction is aborted, commands ignored until end of
@@ -265,43 +500,134 @@ public class DbQueue<T> {
             }
 
             // Write each object individually so that the valid ones will be
-            // successfully written.
-            for (Object o : objectsForThisBatch) {
-                boolean shouldKeepTrying = false;
-                do {
-                    try {
-                        processSingleObject(o);
-                        shouldKeepTrying = false;
-                    } catch (HibernateException e2) {
-                        if (e instanceof ConstraintViolationException && e2 instanceof GenericJDBCException) {
-                            shouldKeepTrying = false;
-                        } else {
-                            // Need to know if it is a problem with the database not
-                            // being accessible or if there is a problem with the SQL/data.
-                            // If there is a problem accessibility of the database then
-                            // want to keep trying writing the old data. But if it is
-                            // a problem with the SQL/data then only want to try to write
-                            // the good data from the batch a single time to make sure
-                            // all good data is written.
-                            if (shouldKeepTryingBecauseConnectionException(e2)) {
-                                shouldKeepTrying = true;
-                                logger.error(
-                                        "Encountered database connection "
-                                                + "exception so will sleep for {} msec and "
-                                                + "will then try again.",
-                                        TIME_BETWEEN_RETRIES, e2);
-                                Time.sleep(TIME_BETWEEN_RETRIES);
-                            }
-                        }
-                        // Output message on what is going on
-                        Throwable cause2 = ExceptionUtils.getRootCause(e2);
-                        logger.error("{} when individually writing object {}. {}msg={}", e2.getClass().getSimpleName(), o, shouldKeepTrying ? "Will keep trying. " : "", cause2.getMessage(), e2);
+            // successfully written. If the connection to the db is lost part
+            // way through then spill the rest to the journal so that they are
+            // written once the db is back. Without a journal keep trying the
+            // object until the db is back so that the data isn't lost.
+            for (int i = 0; i < objectsForThisBatch.size(); ++i) {
+                Object o = objectsForThisBatch.get(i);
+                while (!processSingleObject(o)) {
+                    if (spillJournal != null
+                            && spillBatch(new ArrayList<>(objectsForThisBatch.subList(i, objectsForThisBatch.size())))) {
+                        return objectsForThisBatch.size();
                     }
-                } while (shouldKeepTrying);
+                    logger.error(
+                            "Encountered database connection exception when individually writing object {} so "
+                                    + "will sleep for {} msec and will then try again.",
+                            o,
+                            TIME_BETWEEN_RETRIES);
+                    Time.sleep(TIME_BETWEEN_RETRIES);
+                }
             }
+            return objectsForThisBatch.size();
         }
     }
 
+    /** @return true if there is data in the spill journal that still needs to be written */
+    private boolean hasSpilledData() {
+        return spillJournal != null && !spillJournal.isEmpty();
+    }
+
+    /**
+     * Writes the oldest batch of data from the spill journal. The data is only removed from the
+     * journal once it has been committed. If the db still can't be reached then nothing is written
+     * and the batch will be tried again with the next flush. If the batch has to be written object
+     * by object and the connection is lost part way through then only the objects already written
+     * are removed from the journal.
+     *
+     * @return Number of objects written
+     */
+    private int replaySpilledBatch() {
+        List<Object> objects = spillJournal.read(DbSetupConfig.getBatchSize());
+        int written;
+        Transaction tx = null;
+        Session session = null;
+        try {
+            session = HibernateUtils.getSession();
+            tx = session.beginTransaction();
+            bulkWriter.write(session, objects);
+            tx.commit();
+            session.close();
+            written = objects.size();
+        } catch (HibernateException e) {
+            closeQuietly(tx, session);
+            Throwable rootCause = ExceptionUtils.getRootCause(e);
+            if (isConnectionProblem(rootCause) || shouldKeepTryingBecauseConnectionException(e)) {
+                logger.warn("Still can't write spilled data for type {} to database. {} objects in journal. {}",
+                        shortType, spillJournal.size(), rootCause.getMessage());
+                if (isConnectionProblem(rootCause)) HibernateUtils.clearSessionFactory();
+                return 0;
+            }
+
+            // Problem with the data so write objects individually so that
+            // the good ones are still stored. Stop if the connection is lost
+            // so that the rest stay in the journal.
+            logger.warn("{} when writing spilled data for type {}. Will write each object individually. {}",
+                    e.getClass().getSimpleName(), shortType, rootCause.getMessage());
+            written = 0;
+            while (written < objects.size() && processSingleObject(objects.get(written))) ++written;
+        }
+
+        spillJournal.commit(written);
+        throughputCount.addAndGet(written);
+        if (written < objects.size()) {
+            logger.warn("Lost connection to database while writing spilled data for type {}. {} objects in journal.",
+                    shortType, spillJournal.size());
+        } else if (spillJournal.isEmpty()) {
+            logger.info("All spilled data for type {} has now been written to the database", shortType);
+        }
+        return written;
+    }
+
+    /**
+     * Spills a batch that couldn't be written to the journal, followed by what is currently in the
+     * queue so that the data stays in order and so that heap use stays flat while the db is down.
+     *
+     * @return true if the batch was spilled
+     */
+    private boolean spillBatch(List<Object> objectsForThisBatch) {
+        if (!spillJournal.append(objectsForThisBatch)) return false;
+
+        List<T> queued = new ArrayList<>(queue.size());
+        queue.drainTo(queued);
+        if (!spillJournal.append(queued)) {
+            // Journal is full so keep them in memory instead
+            for (T t : queued) {
+                if (!queue.offer(t)) logger.error("DataDbLogger queue full for type {}. LOSING DATA!!! {}", shortType, t);
+            }
+        }
+        spillJournal.force();
+        logger.error("Could not write to database so spilled {} objects of type {} to journal. {} objects in journal.",
+                objectsForThisBatch.size() + queued.size(), shortType, spillJournal.size());
+        return true;
+    }
+
+    /** Rolls back the transaction and closes the session, only logging any problem */
+    private void closeQuietly(Transaction tx, Session session) {
+        try {
+            if (tx != null && tx.isActive()) tx.rollback();
+        } catch (HibernateException e) {
+            logger.debug("Error rolling back transaction", e);
+        }
+        try {
+            if (session != null && session.isOpen()) session.close();
+        } catch (HibernateException e) {
+            logger.debug("Error closing session", e);
+        }
+    }
+
+    /**
+     * Returns true if the root cause of an exception indicates that the connection to the db was
+     * lost, such as when the db was rebooted.
+     */
+    private static boolean isConnectionProblem(Throwable rootCause) {
+        return rootCause instanceof SocketTimeoutException
+                || rootCause instanceof SocketException
+                || (rootCause instanceof SQLException
+                        && rootCause.getMessage() != null
+                        && rootCause.getMessage().contains("statement closed"));
+    }
+
     /**
      * Returns how much capacity of the queue is being used up.
      *
@@ -391,28 +717,38 @@ public class DbQueue<T> {
      * from a batch.
      *
      * @param objectToBeStored
+     * @return false if the object could not be written because of a problem connecting to the
+     *     database, meaning it should be tried again later. True if it was written or if it could
+     *     not be written because of a problem with the data.
      */
-    private void processSingleObject(Object objectToBeStored) {
+    private boolean processSingleObject(Object objectToBeStored) {
         try (Session session = HibernateUtils.getSession()) {
             Transaction tx = session.beginTransaction();
             logger.debug("Individually saving object {}", objectToBeStored);
             session.merge(objectToBeStored);
             tx.commit();
+            return true;
+        } catch (HibernateException e) {
+            logger.error("Something happened while processing {}", objectToBeStored, e);
+            boolean connectionProblem = isConnectionProblem(ExceptionUtils.getRootCause(e));
+            // Get new connections for when the object is tried again
+            if (connectionProblem) HibernateUtils.clearSessionFactory();
+            return !(connectionProblem || shouldKeepTryingBecauseConnectionException(e));
         } catch (Exception e) {
             logger.error("Something happened while processing {}", objectToBeStored, e);
+            return true;
         }
     }
 
     private void logThroughputInfo() {
-        long delta = (System.currentTimeMillis() - throughputTimestamp) / 1000;
-        if (throughputCount == 0) {
+        long delta = (System.currentTimeMillis() - throughputTimestamp.get()) / 1000;
+        if (throughputCount.get() == 0) {
             logger.debug("wrote nothing");
             return;
         }
 
-        long throughput = throughputCount;
-        throughputCount = 0;
-        throughputTimestamp = System.currentTimeMillis();
+        long throughput = throughputCount.getAndSet(0);
+        throughputTimestamp.set(System.currentTimeMillis());
         double rate = (double) throughput / delta;
         logger.info("wrote {} {} messages in {}s, ({}/s) ", throughput, shortType, delta / 1000, (long) rate);
     }
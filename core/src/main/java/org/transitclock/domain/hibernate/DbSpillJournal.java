@@ -0,0 +1,354 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A durable, append only journal for objects that DbQueue could not write to the database, such as
+ * when the database is down for a while. Objects are serialized into a memory-mapped file so that
+ * heap usage stays flat during a long outage and so that the data survives a restart. Once the
+ * database is available again the objects are read back in the order they were appended.
+ *
+ * <p>The file starts with a header containing the read and write positions followed by the
+ * records. Each record is the length of the serialized object, a CRC32 of it, and then the
+ * serialized object itself. Once all records have been read and committed the positions are reset
+ * so that the file space is reused. If the journal fills up the records already read are compacted
+ * away before giving up.
+ *
+ * <p>All methods that change the journal are synchronized so the journal can be shared by the
+ * threads adding to and writing from a DbQueue. Whether the journal is empty can be checked without
+ * locking since that is done for every object added to the DbQueue.
+ */
+@Slf4j
+class DbSpillJournal {
+
+    private static final int MAGIC = 0x54434a31; // "TCJ1"
+
+    // Header is magic, readPosition, writePosition, numberRecords
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    private static final int NUMBER_RECORDS_OFFSET = 12;
+
+    // Each record has length and CRC32 before the data
+    private static final int RECORD_OVERHEAD = 8;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+
+    // Position of the first record not yet committed as written to db
+    private int readPosition;
+    // Position after the last record appended
+    private int writePosition;
+    // Number of records between readPosition and writePosition. Only changed
+    // while synchronized but volatile so that it can be checked without locking.
+    private volatile int numberRecords;
+
+    // Set by read() so that commit() knows how far to advance
+    private int pendingReadPosition;
+    private int pendingNumberRecords;
+
+    // Set by read() for each object returned: the position after its record
+    // and the number of records up to and including it. So that commit(int)
+    // can commit just some of the objects.
+    private int pendingNumberObjects;
+    private int[] pendingObjectEndPositions = new int[0];
+    private int[] pendingObjectRecordCounts = new int[0];
+
+    private DbSpillJournal(Path file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the journal, creating the file if it doesn't yet exist. If the file already contains
+     * records, such as from before a restart, then they will be returned by read().
+     *
+     * @param file The journal file
+     * @param maxBytes Size of the journal. The file is mapped at this size but on most file systems
+     *     only the space actually written to is used.
+     * @return The journal
+     * @throws IOException if the file can't be created or mapped
+     */
+    static DbSpillJournal open(Path file, int maxBytes) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping remains valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(maxBytes, HEADER_SIZE + 1024));
+        }
+
+        DbSpillJournal journal = new DbSpillJournal(file, buffer);
+        journal.recover();
+        return journal;
+    }
+
+    /**
+     * Reads the header of an existing journal, or initializes a new one. If the header is not
+     * valid, such as if the journal was written with a different size, it is reset.
+     */
+    private void recover() {
+        int magic = buffer.getInt(0);
+        int read = buffer.getInt(READ_POSITION_OFFSET);
+        int write = buffer.getInt(WRITE_POSITION_OFFSET);
+        int records = buffer.getInt(NUMBER_RECORDS_OFFSET);
+        if (magic == MAGIC && read >= HEADER_SIZE && read <= write && write <= buffer.capacity() && records >= 0) {
+            readPosition = read;
+            writePosition = write;
+            numberRecords = records;
+            if (numberRecords > 0) {
+                logger.info("Spill journal {} contains {} objects from before restart that will be written to db.",
+                        file, numberRecords);
+            }
+        } else {
+            if (magic != 0) logger.error("Spill journal {} has an invalid header so it is being reset.", file);
+            buffer.putInt(0, MAGIC);
+            reset();
+        }
+        pendingReadPosition = readPosition;
+        pendingNumberRecords = 0;
+    }
+
+    /** Sets the journal to be empty so that the file space is reused */
+    private void reset() {
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+        numberRecords = 0;
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(READ_POSITION_OFFSET, readPosition);
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+        buffer.putInt(NUMBER_RECORDS_OFFSET, numberRecords);
+    }
+
+    /** @return true if there are no records that still need to be written to the db */
+    boolean isEmpty() {
+        return numberRecords == 0;
+    }
+
+    /** @return Number of records that still need to be written to the db */
+    int size() {
+        return numberRecords;
+    }
+
+    /**
+     * Appends the objects, but only if the journal already contains records. This way once
+     * objects have been spilled the subsequent ones are also spilled and the order is kept. Only
+     * locks if the journal is not empty.
+     *
+     * @return true if the object was appended
+     */
+    boolean appendIfNotEmpty(Object object) {
+        if (numberRecords == 0) return false;
+
+        synchronized (this) {
+            return numberRecords > 0 && append(Collections.singletonList(object));
+        }
+    }
+
+    /**
+     * Appends the objects to the journal. Either all of the objects are appended or none of them.
+     *
+     * @param objects Objects to be appended. Must be Serializable.
+     * @return true if appended, false if there is not enough space or an object couldn't be
+     *     serialized
+     */
+    synchronized boolean append(List<?> objects) {
+        if (objects.isEmpty()) return true;
+
+        List<byte[]> records = new ArrayList<>(objects.size());
+        long bytesNeeded = 0;
+        for (Object object : objects) {
+            byte[] data;
+            try {
+                data = serialize(object);
+            } catch (IOException e) {
+                logger.error("Could not serialize {} for spill journal {}", object, file, e);
+                return false;
+            }
+            records.add(data);
+            bytesNeeded += RECORD_OVERHEAD + data.length;
+        }
+
+        if (writePosition + bytesNeeded > buffer.capacity()) {
+            compact();
+            if (writePosition + bytesNeeded > buffer.capacity()) return false;
+        }
+
+        CRC32 crc = new CRC32();
+        int position = writePosition;
+        for (byte[] data : records) {
+            crc.reset();
+            crc.update(data);
+            buffer.putInt(position, data.length);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.put(position + RECORD_OVERHEAD, data);
+            position += RECORD_OVERHEAD + data.length;
+        }
+
+        // Only update the header once the records are there
+        writePosition = position;
+        numberRecords += records.size();
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Moves the records that haven't been committed to the beginning of the journal so that the
+     * space of the committed ones can be reused. Not done while records are being read.
+     */
+    private void compact() {
+        if (readPosition == HEADER_SIZE || pendingNumberRecords > 0) return;
+
+        int length = writePosition - readPosition;
+        byte[] remaining = new byte[length];
+        buffer.get(readPosition, remaining);
+        buffer.put(HEADER_SIZE, remaining);
+        readPosition = HEADER_SIZE;
+        pendingReadPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE + length;
+        writeHeader();
+    }
+
+    /**
+     * Reads up to maxObjects of the oldest objects. They are not removed from the journal until
+     * commit() is called, so if they cannot be written to the db then calling read() again returns
+     * the same objects.
+     *
+     * @param maxObjects Max number of objects to return
+     * @return The objects. Empty if the journal is empty.
+     */
+    synchronized List<Object> read(int maxObjects) {
+        List<Object> objects = new ArrayList<>(Math.min(maxObjects, numberRecords));
+        int[] objectEndPositions = new int[Math.min(maxObjects, numberRecords)];
+        int[] objectRecordCounts = new int[objectEndPositions.length];
+        CRC32 crc = new CRC32();
+        int position = readPosition;
+        int count = 0;
+        while (count < maxObjects && count < numberRecords) {
+            int length = buffer.getInt(position);
+            int expectedCrc = buffer.getInt(position + 4);
+            if (length < 0 || position + RECORD_OVERHEAD + length > writePosition) {
+                discardCorruptRecords(position, count);
+                break;
+            }
+
+            byte[] data = new byte[length];
+            buffer.get(position + RECORD_OVERHEAD, data);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != expectedCrc) {
+                discardCorruptRecords(position, count);
+                break;
+            }
+
+            position += RECORD_OVERHEAD + length;
+            ++count;
+            try {
+                objects.add(deserialize(data));
+                objectEndPositions[objects.size() - 1] = position;
+                objectRecordCounts[objects.size() - 1] = count;
+            } catch (IOException | ClassNotFoundException e) {
+                logger.error("Could not deserialize object from spill journal {} so skipping it.", file, e);
+            }
+        }
+
+        pendingReadPosition = position;
+        pendingNumberRecords = count;
+        pendingNumberObjects = objects.size();
+        pendingObjectEndPositions = objectEndPositions;
+        pendingObjectRecordCounts = objectRecordCounts;
+        return objects;
+    }
+
+    /**
+     * Records that the data returned by the last read() was written to the db so that it is
+     * removed from the journal.
+     */
+    synchronized void commit() {
+        commit(pendingReadPosition, pendingNumberRecords);
+    }
+
+    /**
+     * Records that only the first numberObjects of the objects returned by the last read() were
+     * written to the db. They are removed from the journal while the others are returned again by
+     * the next read().
+     *
+     * @param numberObjects How many of the objects returned by read() were written
+     */
+    synchronized void commit(int numberObjects) {
+        if (numberObjects >= pendingNumberObjects) {
+            // All of the objects, plus any records after them that couldn't
+            // be deserialized
+            commit();
+        } else if (numberObjects > 0) {
+            commit(pendingObjectEndPositions[numberObjects - 1], pendingObjectRecordCounts[numberObjects - 1]);
+        }
+        pendingNumberRecords = 0;
+        pendingReadPosition = readPosition;
+    }
+
+    private void commit(int newReadPosition, int numberCommitted) {
+        if (numberCommitted == 0) return;
+
+        readPosition = newReadPosition;
+        numberRecords -= numberCommitted;
+        pendingNumberRecords = 0;
+        pendingReadPosition = readPosition;
+        if (numberRecords == 0) {
+            reset();
+            pendingReadPosition = readPosition;
+        } else {
+            writeHeader();
+        }
+    }
+
+    /**
+     * If a record is corrupt, such as from the system crashing while it was being written, then it
+     * and the records after it can't be trusted. Therefore they are discarded.
+     */
+    private void discardCorruptRecords(int position, int numberGoodRecords) {
+        logger.error("Spill journal {} has a corrupt record at position {} so discarding the remaining {} records.",
+                file, position, numberRecords - numberGoodRecords);
+        writePosition = position;
+        numberRecords = numberGoodRecords;
+        writeHeader();
+    }
+
+    /** Makes sure the journal is actually written to the disk */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.generator.Generator;
+import org.hibernate.metamodel.mapping.EntityMappingType;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+/**
+ * Describes how an entity class maps onto the columns of its table so that objects can be inserted
+ * with plain JDBC instead of going through session.merge(). The column names and the binding of
+ * values come from the Hibernate mapping so that converters, embedded objects and discriminators
+ * are handled the same way as when Hibernate does the insert.
+ *
+ * <p>Only simple mappings are supported: a single table, no version column and an id that is
+ * either assigned or generated before the insert (such as from a sequence). For other mappings
+ * {@link #create(SessionFactoryImplementor, Class)} throws UnsupportedOperationException.
+ */
+class EntityInsertMapping {
+
+    private final AbstractEntityPersister persister;
+    private final String tableName;
+    private final List<String> columnNames;
+    private final int[] insertableProperties;
+    private final Type[] propertyTypes;
+
+    // Null if the entity doesn't use a discriminator
+    private final String discriminatorSqlValue;
+    private final Object discriminatorValue;
+
+    // Null if the id is assigned
+    private final BeforeExecutionGenerator idGenerator;
+
+    private EntityInsertMapping(AbstractEntityPersister persister) {
+        this.persister = persister;
+        this.tableName = persister.getTableName();
+        this.propertyTypes = persister.getPropertyTypes();
+
+        List<String> columns = new ArrayList<>();
+        Collections.addAll(columns, persister.getIdentifierColumnNames());
+
+        boolean[] insertability = persister.getPropertyInsertability();
+        List<Integer> properties = new ArrayList<>();
+        for (int i = 0; i < insertability.length; ++i) {
+            if (!insertability[i] || persister.getPropertyColumnSpan(i) == 0) continue;
+            properties.add(i);
+            Collections.addAll(columns, persister.getPropertyColumnNames(i));
+        }
+        this.insertableProperties = properties.stream().mapToInt(Integer::intValue).toArray();
+
+        String discriminatorColumn = persister.getDiscriminatorColumnName();
+        if (discriminatorColumn != null && persister.getDiscriminatorSQLValue() != null) {
+            columns.add(discriminatorColumn);
+            this.discriminatorSqlValue = persister.getDiscriminatorSQLValue();
+            // Called through EntityMappingType since the Loadable version is deprecated
+            this.discriminatorValue = ((EntityMappingType) persister).getDiscriminatorValue();
+        } else {
+            this.discriminatorSqlValue = null;
+            this.discriminatorValue = null;
+        }
+        this.columnNames = Collections.unmodifiableList(columns);
+
+        Generator generator = persister.getGenerator();
+        this.idGenerator = generator instanceof BeforeExecutionGenerator beforeExecutionGenerator
+                ? beforeExecutionGenerator
+                : null;
+    }
+
+    /**
+     * Creates the mapping for the entity class.
+     *
+     * @param sessionFactory
+     * @param entityClass The concrete class of the objects to be inserted
+     * @return The mapping
+     * @throws UnsupportedOperationException if the entity mapping is too complicated to be inserted
+     *     with plain JDBC
+     */
+    static EntityInsertMapping create(SessionFactoryImplementor sessionFactory, Class<?> entityClass) {
+        EntityPersister entityPersister = sessionFactory.getMappingMetamodel().getEntityDescriptor(entityClass);
+        if (!(entityPersister instanceof AbstractEntityPersister persister)
+                || persister.getTableSpan() > 1
+                || persister.isVersioned()) {
+            throw new UnsupportedOperationException("Entity " + entityClass.getName() + " can't be bulk inserted");
+        }
+
+        Generator generator = persister.getGenerator();
+        if (generator != null && generator.generatedOnExecution()) {
+            throw new UnsupportedOperationException(
+                    "Entity " + entityClass.getName() + " has an id generated by the database so can't be bulk inserted");
+        }
+
+        return new EntityInsertMapping(persister);
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /** @return Number of columns that need to be bound, which excludes the discriminator column */
+    int getBoundColumnCount() {
+        return discriminatorSqlValue != null ? columnNames.size() - 1 : columnNames.size();
+    }
+
+    /** @return The SQL literal for the discriminator, or null if entity doesn't use one */
+    String getDiscriminatorSqlValue() {
+        return discriminatorSqlValue;
+    }
+
+    /** @return The raw discriminator value, or null if entity doesn't use one */
+    Object getDiscriminatorValue() {
+        return discriminatorValue;
+    }
+
+    /**
+     * Returns true if the id is the unsaved value, such as null or 0 for a primitive long id, and
+     * therefore needs to be generated.
+     */
+    private boolean isUnsaved(Object id) {
+        if (id == null) return true;
+        Boolean unsaved = persister.getIdentifierMapping().getUnsavedStrategy().isUnsaved(id);
+        return unsaved != null && unsaved;
+    }
+
+    /**
+     * Binds the id and the insertable properties of the entity to the statement. If the id is
+     * generated, such as from a sequence, and still has the unsaved value then it is generated and
+     * set on the entity first.
+     *
+     * @param statement Statement to bind the values to
+     * @param startIndex JDBC index of the first column for the entity
+     * @param entity
+     * @param session
+     * @return The JDBC index following the last column that was bound
+     */
+    int bind(PreparedStatement statement, int startIndex, Object entity, SharedSessionContractImplementor session)
+            throws SQLException {
+        Object id = persister.getIdentifier(entity, session);
+        if (idGenerator != null && isUnsaved(id)) {
+            id = idGenerator.generate(session, entity, null, EventType.INSERT);
+            persister.setIdentifier(entity, id, session);
+        }
+
+        int index = startIndex;
+        persister.getIdentifierType().nullSafeSet(statement, id, index, session);
+        index += persister.getIdentifierColumnSpan();
+
+        Object[] values = persister.getPropertyValues(entity);
+        for (int property : insertableProperties) {
+            propertyTypes[property].nullSafeSet(statement, values[property], index, session);
+            index += persister.getPropertyColumnSpan(property);
+        }
+        return index;
+    }
+}
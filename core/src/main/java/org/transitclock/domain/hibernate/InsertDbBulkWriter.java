@@ -0,0 +1,149 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+/**
+ * Writes objects using multi-row INSERT statements, one per entity class and chunk of rows. For
+ * PostgreSQL ON CONFLICT DO NOTHING is appended so that rows that were already stored, such as
+ * when a batch is retried after a connection problem, are simply skipped. This avoids the SELECT
+ * and dirty check that session.merge() does for every object.
+ *
+ * <p>Entity classes that can't be inserted with plain JDBC (see {@link EntityInsertMapping}) are
+ * written using session.merge() instead.
+ */
+@Slf4j
+public class InsertDbBulkWriter implements DbBulkWriter {
+
+    // Max number of bind parameters in a single statement. PostgreSQL allows
+    // 65535 but keep well below that.
+    private static final int MAX_PARAMETERS_PER_STATEMENT = 30000;
+
+    // Mapping per entity class. Classes that can't be inserted with plain
+    // JDBC are remembered separately so that only warn about them once.
+    private final Map<Class<?>, EntityInsertMapping> mappings = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Boolean> unsupportedClasses = new ConcurrentHashMap<>();
+
+    private final MergeDbBulkWriter mergeWriter = new MergeDbBulkWriter();
+
+    @Override
+    public void write(Session session, List<?> objects) {
+        if (objects.isEmpty()) return;
+
+        SharedSessionContractImplementor sessionImpl = session.unwrap(SharedSessionContractImplementor.class);
+        boolean isPostgres = sessionImpl.getJdbcServices().getDialect() instanceof PostgreSQLDialect;
+
+        for (Map.Entry<Class<?>, List<Object>> entry : groupByClass(objects).entrySet()) {
+            EntityInsertMapping mapping = getMapping(sessionImpl.getFactory(), entry.getKey());
+            if (mapping == null) {
+                mergeWriter.write(session, entry.getValue());
+                continue;
+            }
+
+            session.doWork(connection -> writeRows(connection, mapping, entry.getValue(), isPostgres, sessionImpl));
+        }
+    }
+
+    /**
+     * Groups the objects by their concrete class, keeping the order, since each class can map to a
+     * different table or discriminator value.
+     */
+    static Map<Class<?>, List<Object>> groupByClass(List<?> objects) {
+        Map<Class<?>, List<Object>> objectsByClass = new LinkedHashMap<>();
+        for (Object object : objects) {
+            objectsByClass.computeIfAbsent(object.getClass(), c -> new ArrayList<>()).add(object);
+        }
+        return objectsByClass;
+    }
+
+    /**
+     * Returns the insert mapping for the class, or null if the class can't be inserted with plain
+     * JDBC. The result is cached.
+     */
+    EntityInsertMapping getMapping(SessionFactoryImplementor sessionFactory, Class<?> entityClass) {
+        if (unsupportedClasses.containsKey(entityClass)) return null;
+
+        EntityInsertMapping mapping = mappings.get(entityClass);
+        if (mapping != null) return mapping;
+
+        try {
+            mapping = EntityInsertMapping.create(sessionFactory, entityClass);
+            mappings.put(entityClass, mapping);
+            return mapping;
+        } catch (UnsupportedOperationException e) {
+            logger.warn("{}. Will use merge for it instead.", e.getMessage());
+            unsupportedClasses.put(entityClass, Boolean.TRUE);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the rows for a single entity class, chunked so that the number of bind parameters per
+     * statement stays reasonable.
+     */
+    private void writeRows(
+            Connection connection,
+            EntityInsertMapping mapping,
+            List<Object> rows,
+            boolean isPostgres,
+            SharedSessionContractImplementor session)
+            throws SQLException {
+        int rowsPerStatement = Math.max(1, MAX_PARAMETERS_PER_STATEMENT / mapping.getBoundColumnCount());
+        for (int start = 0; start < rows.size(); start += rowsPerStatement) {
+            List<Object> chunk = rows.subList(start, Math.min(rows.size(), start + rowsPerStatement));
+            String sql = insertSql(mapping, chunk.size(), isPostgres);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int index = 1;
+                for (Object row : chunk) {
+                    index = mapping.bind(statement, index, row, session);
+                }
+                int inserted = statement.executeUpdate();
+                logger.debug("Inserted {} of {} rows into {}", inserted, chunk.size(), mapping.getTableName());
+            }
+        }
+    }
+
+    /**
+     * Creates the SQL for inserting the specified number of rows.
+     *
+     * @param mapping
+     * @param numberRows
+     * @param isPostgres If true then ON CONFLICT DO NOTHING is added
+     * @return the SQL
+     */
+    static String insertSql(EntityInsertMapping mapping, int numberRows, boolean isPostgres) {
+        StringBuilder rowValues = new StringBuilder("(");
+        for (int i = 0; i < mapping.getBoundColumnCount(); ++i) {
+            if (i > 0) rowValues.append(',');
+            rowValues.append('?');
+        }
+        if (mapping.getDiscriminatorSqlValue() != null) {
+            rowValues.append(',').append(mapping.getDiscriminatorSqlValue());
+        }
+        rowValues.append(')');
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(mapping.getTableName())
+                .append(" (")
+                .append(String.join(",", mapping.getColumnNames()))
+                .append(") VALUES ");
+        for (int i = 0; i < numberRows; ++i) {
+            if (i > 0) sql.append(',');
+            sql.append(rowValues);
+        }
+        if (isPostgres) sql.append(" ON CONFLICT DO NOTHING");
+        return sql.toString();
+    }
+}
@@ -0,0 +1,26 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+
+/**
+ * Writes each object using session.merge(). Works for any entity and updates rows that already
+ * exist, but costs a SELECT plus a dirty check per object. Therefore used for data that can change,
+ * such as VehicleConfig, and as the fallback when one of the faster writers fails.
+ */
+@Slf4j
+public class MergeDbBulkWriter implements DbBulkWriter {
+
+    @Override
+    public void write(Session session, List<?> objects) {
+        for (Object objectToBeStored : objects) {
+            // Write the data to the session. This doesn't yet
+            // actually write the data to the db though. That is only
+            // done when the session is flushed or committed.
+            logger.trace("DataDbLogger batch saving object={}", objectToBeStored);
+            session.merge(objectToBeStored);
+        }
+    }
+}
@@ -332,11 +332,11 @@ public abstract class ArrivalDeparture implements Lifecycle, Serializable {
     }
 
     /**
-     * Callback due to implementing Lifecycle interface. Used to compact string members by interning
-     * them.
+     * Compacts the string members by interning them. Called by onLoad() when read in by a session,
+     * and needs to be called directly when read in some other way, such as by a StatelessSession,
+     * since then onLoad() isn't called.
      */
-    @Override
-    public void onLoad(Session s, Object id) throws CallbackException {
+    public void internStrings() {
         if (vehicleId != null) vehicleId = vehicleId.intern();
         if (stopId != null) stopId = stopId.intern();
         if (tripId != null) tripId = tripId.intern();
@@ -347,6 +347,15 @@ public abstract class ArrivalDeparture implements Lifecycle, Serializable {
         if (directionId != null) directionId = directionId.intern();
     }
 
+    /**
+     * Callback due to implementing Lifecycle interface. Used to compact string members by interning
+     * them.
+     */
+    @Override
+    public void onLoad(Session s, Object id) throws CallbackException {
+        internStrings();
+    }
+
     @Override
     public String toString() {
         return (isArrival ? "Arrival  " : "Departure")
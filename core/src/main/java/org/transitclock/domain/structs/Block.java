@@ -192,6 +192,25 @@ public class Block implements Serializable {
         return query.list();
     }
 
+    /**
+     * Returns the blocks with their trips collections already initialized so that getTrips() never
+     * needs to lazy load them. Intended to be called with the same session after
+     * Trip.getTripGraph() so that the trips, and all of their sub-data, are already in the session
+     * and the result is a fully initialized graph.
+     *
+     * @param session
+     * @param configRev
+     * @return List of Block objects
+     * @throws HibernateException
+     */
+    public static List<Block> getBlocksWithTrips(Session session, int configRev) throws HibernateException {
+        return session.createQuery("SELECT DISTINCT b FROM Block b "
+                        + "LEFT JOIN FETCH b.trips "
+                        + "WHERE b.configRev = :configRev", Block.class)
+                .setParameter("configRev", configRev)
+                .list();
+    }
+
     /**
      * Deletes rev from the Blocks, Trips, and Block_to_Trip_joinTable
      */
@@ -441,16 +460,11 @@ public class Block implements Serializable {
     public boolean isActive(Date date, int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
         int secsInDay = Core.getInstance().getTime().getSecondsIntoDay(date);
 
-        // Determine the allowable start and end times for when the block
-        // is to be considered active
-        int allowableStartTime = startTime - allowableBeforeTimeSecs;
-        int allowableEndTime = allowableAfterStartTimeSecs < 0 ? endTime : startTime + allowableAfterStartTimeSecs;
-
         // Handle normal situation where times are between midnight in the
         // morning and midnight in the evening
         boolean serviceClassValidToday = serviceClassIsValidForDay(date, 0);
         if (serviceClassValidToday) {
-            if (secsInDay > allowableStartTime && secsInDay < allowableEndTime) {
+            if (isActiveForSecsInDay(secsInDay, allowableBeforeTimeSecs, allowableAfterStartTimeSecs)) {
                 return true;
             }
         }
@@ -461,7 +475,7 @@ public class Block implements Serializable {
         boolean serviceClassValidYesterday = serviceClassIsValidForDay(date, -Time.DAY_IN_MSECS);
         if (serviceClassValidYesterday) {
             int secsInDayPastMidnight = secsInDay + Time.DAY_IN_SECS;
-            if (secsInDayPastMidnight > allowableStartTime && secsInDayPastMidnight < allowableEndTime) {
+            if (isActiveForSecsInDay(secsInDayPastMidnight, allowableBeforeTimeSecs, allowableAfterStartTimeSecs)) {
                 return true;
             }
         }
@@ -473,13 +487,35 @@ public class Block implements Serializable {
         boolean serviceClassValidTomorrow = serviceClassIsValidForDay(date, Time.DAY_IN_MSECS);
         if (serviceClassValidTomorrow) {
             int secsInDayBeforeMidnight = secsInDay - Time.SEC_PER_DAY;
-            return secsInDayBeforeMidnight > allowableStartTime && secsInDayBeforeMidnight < allowableEndTime;
+            return isActiveForSecsInDay(secsInDayBeforeMidnight, allowableBeforeTimeSecs, allowableAfterStartTimeSecs);
         }
 
         // It simply ain't active
         return false;
     }
 
+    /**
+     * Returns true if the time of day is between allowableBeforeTimeSecs before the startTime and
+     * the endTime for the block, for a single service day. Doesn't look at the service IDs.
+     *
+     * @param secsInDay Time of day relative to the service day. Can be negative or greater than a
+     *     day when checking against the next or previous service day.
+     * @param allowableBeforeTimeSecs Block considered active if within this number of seconds
+     *     before the block start time
+     * @param allowableAfterStartTimeSecs If set to value greater than or equal to zero then block
+     *     considered active only if within this number of seconds after the start time. If less
+     *     then zero then block considered active up to the block end time.
+     * @return True if the block is active at the time of day
+     */
+    public boolean isActiveForSecsInDay(int secsInDay, int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
+        // Determine the allowable start and end times for when the block
+        // is to be considered active
+        int allowableStartTime = startTime - allowableBeforeTimeSecs;
+        int allowableEndTime = allowableAfterStartTimeSecs < 0 ? endTime : startTime + allowableAfterStartTimeSecs;
+
+        return secsInDay > allowableStartTime && secsInDay < allowableEndTime;
+    }
+
     /**
      * Returns true if the time of day of the date passed in is between allowableBeforeTimeSecs
      * before the startTime and the endTime for the block. No leeway is provided for the end time.
@@ -547,7 +583,18 @@ public class Block implements Serializable {
      */
     public boolean isBeforeStartTime(Date date, int allowableBeforeTimeSecs) {
         int secsInDayForAvlReport = Core.getInstance().getTime().getSecondsIntoDay(date);
+        return isBeforeStartTime(secsInDayForAvlReport, allowableBeforeTimeSecs);
+    }
 
+    /**
+     * Returns true if the time of day is between allowableBeforeTimeSecs before the start time and
+     * the start time.
+     *
+     * @param secsInDayForAvlReport
+     * @param allowableBeforeTimeSecs
+     * @return true if within allowableBeforeTimeSecs before the start time of the block
+     */
+    public boolean isBeforeStartTime(int secsInDayForAvlReport, int allowableBeforeTimeSecs) {
         return (secsInDayForAvlReport > startTime - allowableBeforeTimeSecs && secsInDayForAvlReport < startTime)
                 // also handle where date before midnight but start time is after
                 || (secsInDayForAvlReport > startTime + Time.SEC_PER_DAY - allowableBeforeTimeSecs
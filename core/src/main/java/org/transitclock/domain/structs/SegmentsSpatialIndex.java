@@ -0,0 +1,164 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.transitclock.utils.Geo;
+
+/**
+ * A spatial index of the segments of the stop paths of a trip pattern. The area is divided into a
+ * grid of cells and each cell contains the segments whose extent overlaps it. This way the
+ * segments near a location can be determined by only looking at the few cells near the location
+ * instead of at every segment of the trip pattern, which is important when auto assigning since
+ * then every active trip needs to be looked at for each AVL report.
+ *
+ * <p>Segments are identified by a single index into all the segments of the trip pattern, in
+ * order, so the segments of the first stop path come first. Use getSegmentOffset() to convert a
+ * stop path index and segment index to this index.
+ *
+ * <p>Immutable once created so can be used by multiple threads.
+ */
+public class SegmentsSpatialIndex {
+
+    // Size of cells in degrees of latitude and longitude. About 220m north
+    // to south, less east to west away from the equator.
+    private static final double CELL_SIZE_DEGREES = 0.002;
+
+    // Conservative conversion, and using twice the distance for the cells to
+    // look at, so that no segments are missed due to the approximations used
+    // by Geo.distance().
+    private static final double METERS_PER_DEGREE_LAT = Math.PI * Geo.RADIUS_OF_EARTH_IN_METERS / 180.0;
+    private static final double CELL_SEARCH_FACTOR = 2.0;
+
+    // The segments of the trip pattern
+    private final TripPatternGeometry geometry;
+    // Largest StopPath.getMaxDistance() for the trip pattern, or NaN if none
+    private final double maxStopPathMaxDistance;
+    // Indices of the segments in each cell
+    private final Map<Long, int[]> segmentsByCell;
+
+    private static int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+
+    /**
+     * Creates the index for the segments of the stop paths of the trip pattern.
+     *
+     * @param geometry The segments of the trip pattern
+     * @param stopPaths The stop paths of the trip pattern
+     */
+    SegmentsSpatialIndex(TripPatternGeometry geometry, List<StopPath> stopPaths) {
+        this.geometry = geometry;
+        List<VectorWithHeading> segments = new ArrayList<>(geometry.getNumberSegments());
+        double maxDistance = Double.NaN;
+        for (StopPath stopPath : stopPaths) {
+            segments.addAll(stopPath.getSegmentVectors());
+            if (stopPath.getMaxDistance() != null
+                    && (Double.isNaN(maxDistance) || stopPath.getMaxDistance() > maxDistance))
+                maxDistance = stopPath.getMaxDistance();
+        }
+        maxStopPathMaxDistance = maxDistance;
+
+        Map<Long, List<Integer>> segmentListsByCell = new HashMap<>();
+        for (int segment = 0; segment < segments.size(); ++segment) {
+            Location l1 = segments.get(segment).getL1();
+            Location l2 = segments.get(segment).getL2();
+            int minLatIndex = cellIndex(Math.min(l1.getLat(), l2.getLat()));
+            int maxLatIndex = cellIndex(Math.max(l1.getLat(), l2.getLat()));
+            int minLonIndex = cellIndex(Math.min(l1.getLon(), l2.getLon()));
+            int maxLonIndex = cellIndex(Math.max(l1.getLon(), l2.getLon()));
+            for (int latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+                for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                    segmentListsByCell
+                            .computeIfAbsent(cellKey(latIndex, lonIndex), k -> new ArrayList<>())
+                            .add(segment);
+                }
+            }
+        }
+
+        segmentsByCell = new HashMap<>(segmentListsByCell.size() * 4 / 3 + 1);
+        segmentListsByCell.forEach((cell, segmentList) -> segmentsByCell.put(
+                cell, segmentList.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    /**
+     * Returns the segments whose distance to the location, as determined by
+     * VectorWithHeading.distance(), is less than maxDistance. Only the cells near the location are
+     * looked at.
+     *
+     * @param loc
+     * @param maxDistance In meters
+     * @return The segments, using the index of the segment within the trip pattern
+     */
+    public BitSet getSegmentsNear(Location loc, double maxDistance) {
+        double deltaLat = CELL_SEARCH_FACTOR * maxDistance / METERS_PER_DEGREE_LAT;
+        double cosLat = Math.max(Math.cos(Math.toRadians(loc.getLat())), 0.01);
+        double deltaLon = deltaLat / cosLat;
+
+        int minLatIndex = cellIndex(loc.getLat() - deltaLat);
+        int maxLatIndex = cellIndex(loc.getLat() + deltaLat);
+        int minLonIndex = cellIndex(loc.getLon() - deltaLon);
+        int maxLonIndex = cellIndex(loc.getLon() + deltaLon);
+
+        int numberSegments = geometry.getNumberSegments();
+        double latRadians = Math.toRadians(loc.getLat());
+        double lonRadians = Math.toRadians(loc.getLon());
+        BitSet nearbySegments = new BitSet(numberSegments);
+
+        // If maxDistance is so large that would have to look at more cells
+        // than there are segments then simply look at all the segments
+        long numberOfCells = (long) (maxLatIndex - minLatIndex + 1) * (maxLonIndex - minLonIndex + 1);
+        if (numberOfCells > numberSegments) {
+            for (int segment = 0; segment < numberSegments; ++segment) {
+                if (geometry.distance(segment, latRadians, lonRadians) < maxDistance) nearbySegments.set(segment);
+            }
+            return nearbySegments;
+        }
+
+        BitSet examined = new BitSet(numberSegments);
+        for (int latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+            for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                int[] segmentsInCell = segmentsByCell.get(cellKey(latIndex, lonIndex));
+                if (segmentsInCell == null) continue;
+
+                for (int segment : segmentsInCell) {
+                    // Segments can be in multiple cells
+                    if (examined.get(segment)) continue;
+                    examined.set(segment);
+
+                    if (geometry.distance(segment, latRadians, lonRadians) < maxDistance) nearbySegments.set(segment);
+                }
+            }
+        }
+        return nearbySegments;
+    }
+
+    /**
+     * @param stopPathIndex
+     * @param segmentIndex
+     * @return The index of the segment within the whole trip pattern
+     */
+    public int getSegmentOffset(int stopPathIndex, int segmentIndex) {
+        return geometry.getSegmentOffset(stopPathIndex, segmentIndex);
+    }
+
+    /**
+     * @return The largest StopPath.getMaxDistance() of the stop paths of the trip pattern, or NaN
+     *     if none of the stop paths have a max distance set
+     */
+    public double getMaxStopPathMaxDistance() {
+        return maxStopPathMaxDistance;
+    }
+
+    /** @return The packed segments of the trip pattern that the index is for */
+    public TripPatternGeometry getGeometry() {
+        return geometry;
+    }
+}
@@ -418,6 +418,54 @@ public class Trip implements Lifecycle, Serializable {
         return tripsMap;
     }
 
+    /**
+     * Like getTrips() but also reads in all of the sub-data of the trips, the stop paths with
+     * their locations, the trip patterns, the travel times, and the schedule times, using a few
+     * set based queries instead of lazy loading each trip separately. The queries are done leaf
+     * data first so that each subsequent query finds the data it refers to already in the
+     * session. The result is that the trips are fully initialized and can be used by multiple
+     * threads without any further access to the database.
+     *
+     * @param session
+     * @param configRev
+     * @return map of fully initialized trips keyed on trip ID
+     * @throws HibernateException
+     */
+    public static Map<String, Trip> getTripGraph(Session session, int configRev) throws HibernateException {
+        session.createQuery("SELECT DISTINCT sp FROM StopPath sp "
+                        + "LEFT JOIN FETCH sp.locations "
+                        + "WHERE sp.configRev = :configRev", StopPath.class)
+                .setParameter("configRev", configRev)
+                .list();
+
+        session.createQuery("SELECT DISTINCT tp FROM TripPattern tp "
+                        + "LEFT JOIN FETCH tp.stopPaths "
+                        + "WHERE tp.configRev = :configRev", TripPattern.class)
+                .setParameter("configRev", configRev)
+                .list();
+
+        session.createQuery("SELECT DISTINCT tt FROM Trip t "
+                        + "JOIN t.travelTimes tt "
+                        + "LEFT JOIN FETCH tt.travelTimesForStopPaths "
+                        + "WHERE t.configRev = :configRev", TravelTimesForTrip.class)
+                .setParameter("configRev", configRev)
+                .list();
+
+        List<Trip> tripsList = session.createQuery("SELECT DISTINCT t FROM Trip t "
+                        + "LEFT JOIN FETCH t.tripPattern "
+                        + "LEFT JOIN FETCH t.travelTimes "
+                        + "LEFT JOIN FETCH t.scheduledTimesList "
+                        + "WHERE t.configRev = :configRev", Trip.class)
+                .setParameter("configRev", configRev)
+                .list();
+
+        Map<String, Trip> tripsMap = new HashMap<>();
+        for (Trip trip : tripsList) {
+            tripsMap.put(trip.getId(), trip);
+        }
+        return tripsMap;
+    }
+
     /**
      * Returns specified Trip object for the specified configRev and tripId.
      *
@@ -97,6 +97,16 @@ public class TripPattern implements Serializable, Lifecycle {
     @Transient
     protected final Map<String, StopPath> stopPathsMap = new HashMap<>();
 
+    // For quickly determining which segments are near a location. Created
+    // when first needed. Not serialized since it can simply be recreated.
+    @Transient
+    private transient volatile SegmentsSpatialIndex segmentsSpatialIndex = null;
+
+    // The segments packed into arrays for quickly determining distances.
+    // Created when first needed.
+    @Transient
+    private transient volatile TripPatternGeometry geometry = null;
+
     /**
      * Create a TripPattern. For when processing GTFS data.
      *
@@ -657,6 +667,38 @@ public class TripPattern implements Serializable, Lifecycle {
         this.headsign = headsign.length() <= HEADSIGN_LENGTH ? headsign : headsign.substring(0, HEADSIGN_LENGTH);
     }
 
+    /**
+     * Returns the spatial index of the segments of the stop paths of this trip pattern. Created the
+     * first time it is needed. If multiple threads create it at the same time the result is the
+     * same so no synchronization is needed.
+     *
+     * @return the spatial index of the segments
+     */
+    public SegmentsSpatialIndex getSegmentsSpatialIndex() {
+        SegmentsSpatialIndex index = segmentsSpatialIndex;
+        if (index == null) {
+            index = new SegmentsSpatialIndex(getGeometry(), stopPaths);
+            segmentsSpatialIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the segments of the stop paths of this trip pattern packed into arrays so that
+     * distances to them can be determined without allocating. Created the first time it is
+     * needed.
+     *
+     * @return the geometry of the trip pattern
+     */
+    public TripPatternGeometry getGeometry() {
+        TripPatternGeometry tripPatternGeometry = geometry;
+        if (tripPatternGeometry == null) {
+            tripPatternGeometry = new TripPatternGeometry(stopPaths);
+            geometry = tripPatternGeometry;
+        }
+        return tripPatternGeometry;
+    }
+
     @Override
     public void onLoad(Session arg0, Object arg1) {
         // Initialize the transient member stopPathsMaps
@@ -0,0 +1,127 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import java.util.List;
+import org.transitclock.utils.Geo;
+
+/**
+ * The segments of the stop paths of a trip pattern packed into primitive arrays. The ends of the
+ * segments are kept in radians, along with the lengths and headings of the segments, so that the
+ * distance between a location and a segment can be determined without going through Location
+ * and Vector objects and without recomputing the length of the segment. The results are exactly
+ * the same as for the corresponding Geo methods for Vectors since the same formulas are used.
+ *
+ * <p>Segments are identified by a single index into all the segments of the trip pattern, in
+ * order, so the segments of the first stop path come first. Use getSegmentOffset() to convert a
+ * stop path index and segment index to this index.
+ *
+ * <p>Immutable once created so can be used by multiple threads.
+ */
+public class TripPatternGeometry {
+
+    // For each stop path the index of its first segment
+    private final int[] segmentOffsets;
+    // For each segment the latitude and longitude, in radians, of its first
+    // and then its second location. So four values per segment.
+    private final double[] coordinates;
+    // Length of each segment in meters
+    private final double[] lengths;
+    // Heading of each segment in degrees clockwise from due North
+    private final float[] headings;
+
+    /**
+     * Creates the geometry for the segments of the stop paths of a trip pattern.
+     *
+     * @param stopPaths The stop paths of the trip pattern
+     */
+    TripPatternGeometry(List<StopPath> stopPaths) {
+        segmentOffsets = new int[stopPaths.size()];
+        int numberSegments = 0;
+        for (int stopPathIndex = 0; stopPathIndex < stopPaths.size(); ++stopPathIndex) {
+            segmentOffsets[stopPathIndex] = numberSegments;
+            numberSegments += stopPaths.get(stopPathIndex).getSegmentVectors().size();
+        }
+
+        coordinates = new double[4 * numberSegments];
+        lengths = new double[numberSegments];
+        headings = new float[numberSegments];
+        int segment = 0;
+        for (StopPath stopPath : stopPaths) {
+            for (VectorWithHeading vector : stopPath.getSegmentVectors()) {
+                coordinates[4 * segment] = Math.toRadians(vector.getL1().getLat());
+                coordinates[4 * segment + 1] = Math.toRadians(vector.getL1().getLon());
+                coordinates[4 * segment + 2] = Math.toRadians(vector.getL2().getLat());
+                coordinates[4 * segment + 3] = Math.toRadians(vector.getL2().getLon());
+                lengths[segment] = Geo.distance(
+                        coordinates[4 * segment],
+                        coordinates[4 * segment + 1],
+                        coordinates[4 * segment + 2],
+                        coordinates[4 * segment + 3]);
+                headings[segment] = vector.getHeading();
+                ++segment;
+            }
+        }
+    }
+
+    /** @return Number of segments of the whole trip pattern */
+    public int getNumberSegments() {
+        return lengths.length;
+    }
+
+    /**
+     * @param stopPathIndex
+     * @param segmentIndex
+     * @return The index of the segment within the whole trip pattern
+     */
+    public int getSegmentOffset(int stopPathIndex, int segmentIndex) {
+        return segmentOffsets[stopPathIndex] + segmentIndex;
+    }
+
+    /**
+     * @param segment Index of the segment within the trip pattern
+     * @return Length of the segment in meters
+     */
+    public double getLength(int segment) {
+        return lengths[segment];
+    }
+
+    /**
+     * @param segment Index of the segment within the trip pattern
+     * @return Heading of the segment in degrees clockwise from due North
+     */
+    public float getHeading(int segment) {
+        return headings[segment];
+    }
+
+    /**
+     * Returns the distance between the location and the segment. Same as
+     * VectorWithHeading.distance().
+     *
+     * @param segment Index of the segment within the trip pattern
+     * @param latRadians Latitude of the location in radians
+     * @param lonRadians Longitude of the location in radians
+     * @return Distance in meters from the location to the segment
+     */
+    public double distance(int segment, double latRadians, double lonRadians) {
+        int i = 4 * segment;
+        double d1 = Geo.distance(latRadians, lonRadians, coordinates[i], coordinates[i + 1]);
+        double d2 = Geo.distance(latRadians, lonRadians, coordinates[i + 2], coordinates[i + 3]);
+        return Geo.distanceToVector(d1, d2, lengths[segment]);
+    }
+
+    /**
+     * Returns the distance along the segment where the location best matches. Same as
+     * VectorWithHeading.matchDistanceAlongVector().
+     *
+     * @param segment Index of the segment within the trip pattern
+     * @param latRadians Latitude of the location in radians
+     * @param lonRadians Longitude of the location in radians
+     * @return Distance in meters along the segment
+     */
+    public double matchDistanceAlongSegment(int segment, double latRadians, double lonRadians) {
+        int i = 4 * segment;
+        double d1 = Geo.distance(latRadians, lonRadians, coordinates[i], coordinates[i + 1]);
+        double d2 = Geo.distance(latRadians, lonRadians, coordinates[i + 2], coordinates[i + 3]);
+        return Geo.matchDistanceAlongVector(d1, d2, lengths[segment]);
+    }
+}
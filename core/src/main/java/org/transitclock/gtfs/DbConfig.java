@@ -1,6 +1,7 @@
 /* (C)2023 */
 package org.transitclock.gtfs;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,6 +11,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import lombok.Getter;
 import lombok.Synchronized;
@@ -17,6 +22,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.transitclock.Core;
+import org.transitclock.config.data.CoreConfig;
 import org.transitclock.core.ServiceUtils;
 import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.structs.Agency;
@@ -32,6 +38,7 @@ import org.transitclock.domain.structs.Transfer;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.domain.structs.TripPattern;
 import org.transitclock.utils.*;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS but is heavily
@@ -39,7 +46,8 @@ import org.transitclock.utils.*;
  *
  * <p>DbConfig is intended for the core application such that the necessary top level data can be
  * read in at system startup. This doesn't read in all the low-level data such as paths and travel
- * times. Those items are very voluminous and are therefore lazy loaded.
+ * times. Those items are very voluminous and are therefore lazy loaded, unless
+ * transitclock.blockLoading.eagerGraph is set in which case they are all read in at startup.
  *
  * @author SkiBu Smith
  */
@@ -52,6 +60,10 @@ public class DbConfig {
     // Keeps track of which revision of config data was read in
     private final int configRev;
 
+    // Which revision of travel times is being used. Only needed for the
+    // configuration snapshot. Negative if the snapshot is not to be used.
+    private final int travelTimesRev;
+
     // Following is for all the data read from the database
     private List<Block> blocks;
 
@@ -80,6 +92,11 @@ public class DbConfig {
     // For trips that have been read in individually. Keyed on trip short name.
     // Contains
     private final Map<String, List<Trip>> individualTripsByShortNameMap = new HashMap<>();
+    // When the complete block graph is read in at startup. Keyed on trip
+    // short name. Null if the trips are instead read in individually.
+    private Map<String, List<Trip>> tripsByShortNameMap = null;
+    // For quickly finding the trip patterns with stops near a location
+    private StopsSpatialIndex stopsSpatialIndex;
 
     private List<Agency> agencies;
     private List<Calendar> calendars;
@@ -105,7 +122,22 @@ public class DbConfig {
     private final Time time;
 
     public DbConfig(String agencyId, int configRev) {
+        this(agencyId, configRev, -1);
+    }
+
+    /**
+     * Reads in the configuration data. If transitclock.core.configSnapshotDirectory is set then the
+     * data is read from the snapshot for the configRev and travelTimesRev, if there is one, instead
+     * of from the db. If the data has to be read from the db then a new snapshot is written.
+     *
+     * @param agencyId
+     * @param configRev
+     * @param travelTimesRev The travel times rev. Part of the key for the snapshot since the travel
+     *     times are part of the snapshot. If negative then the snapshot is not used.
+     */
+    public DbConfig(String agencyId, int configRev, int travelTimesRev) {
         this.agencyId = agencyId;
+        this.travelTimesRev = travelTimesRev;
         // For logging how long things take
         IntervalTimer timer = new IntervalTimer();
 
@@ -117,7 +149,11 @@ public class DbConfig {
 
         // Do the low-level processing
         try {
-            actuallyReadData(configRev);
+            if (!readSnapshot()) {
+                actuallyReadData(configRev);
+                writeSnapshot();
+            }
+            createStopsSpatialIndex();
         } catch (HibernateException e) {
             logger.error(
                     "Error reading configuration data from db for "
@@ -135,6 +171,28 @@ public class DbConfig {
         this.time = new Time(this);
     }
 
+    /**
+     * Creates the spatial index of the stops of all the trip patterns.
+     */
+    private void createStopsSpatialIndex() {
+        IntervalTimer timer = new IntervalTimer();
+        List<TripPattern> tripPatterns = new ArrayList<>();
+        tripPatternsByRouteMap.values().forEach(tripPatterns::addAll);
+        stopsSpatialIndex = new StopsSpatialIndex(tripPatterns);
+        logger.info("Creating spatial index of stops for {} trip patterns, using {} cells, took {} msec",
+                tripPatterns.size(), stopsSpatialIndex.getNumberOfCells(), timer.elapsedMsec());
+    }
+
+    /**
+     * Returns the spatial index of the stops of all the trip patterns. Not synchronized since the
+     * index is created in the constructor and never modified.
+     *
+     * @return the spatial index of the stops
+     */
+    public StopsSpatialIndex getStopsSpatialIndex() {
+        return stopsSpatialIndex;
+    }
+
     /**
      * Returns the global session used for lazy loading data. Useful for determining if the global
      * session has changed.
@@ -422,6 +480,14 @@ public class DbConfig {
      * @return The trip, or null if no such trip
      */
     public Trip getTrip(String tripIdOrShortName) {
+        // If the complete block graph was read in at startup then simply
+        // look up the trip. No need to access the db or to synchronize.
+        if (tripsByShortNameMap != null) {
+            Trip trip = tripsMap.get(tripIdOrShortName);
+            if (trip == null) trip = getTripUsingTripShortName(tripIdOrShortName);
+            return trip;
+        }
+
         Trip trip = individualTripsMap.get(tripIdOrShortName);
 
         // If trip not read in yet, do so now
@@ -492,6 +558,11 @@ public class DbConfig {
      * @return
      */
     public Trip getTripUsingTripShortName(String tripShortName) {
+        if (tripsByShortNameMap != null) {
+            List<Trip> trips = tripsByShortNameMap.get(tripShortName);
+            return trips != null ? getTripForCurrentService(trips) : null;
+        }
+
         // Find trip with the tripShortName with a currently active service ID
         // from the map. If found, return it.
         List<Trip> trips = individualTripsByShortNameMap.get(tripShortName);
@@ -598,45 +669,207 @@ public class DbConfig {
         // stopPaths = StopPath.getPaths(session, configRev);
         // logger.debug("Reading stopPaths took {} msec", timer.elapsedMsec());
 
+        // A snapshot can only be written if the block graph is completely
+        // read in, so always do so if using snapshots
+        if (CoreConfig.blockGraphLoading.getValue() || getSnapshotFile() != null) {
+            readBlockGraphAndRemainingDataInParallel();
+            return;
+        }
+
         timer = new IntervalTimer();
         blocks = Block.getBlocks(globalSession, configRev);
         blocksByServiceMap = putBlocksIntoMap(blocks);
         blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
         logger.debug("Reading blocks took {} msec", timer.elapsedMsec());
 
-        timer = new IntervalTimer();
-        routes = Route.getRoutes(globalSession, configRev);
+        readRemainingData(globalSession);
+
+        tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+        routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+    }
+
+    /**
+     * Reads in the complete graph of blocks, trips, trip patterns, stop paths, and schedule times
+     * using the global session while the remaining configuration data is read in parallel using a
+     * separate session. The remaining data doesn't have any lazy loaded members so it doesn't
+     * matter that it is read using a different session. Since the block graph is then fully
+     * initialized Block.getTrips(), getTrips(), and getTrip() never need to access the db and
+     * therefore don't need to synchronize on Block.getLazyLoadingSyncObject().
+     */
+    private void readBlockGraphAndRemainingDataInParallel() {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("dbConfigReader"));
+        try {
+            Future<?> remainingDataFuture = executor.submit(() -> {
+                Session session = HibernateUtils.getSession(agencyId);
+                try {
+                    readRemainingData(session);
+                } finally {
+                    session.close();
+                }
+            });
+
+            IntervalTimer timer = new IntervalTimer();
+            tripsMap = Collections.unmodifiableMap(Trip.getTripGraph(globalSession, configRev));
+            tripsByShortNameMap = putTripsIntoMapByShortName(tripsMap.values());
+            blocks = Collections.unmodifiableList(Block.getBlocksWithTrips(globalSession, configRev));
+            blocksByServiceMap = putBlocksIntoMap(blocks);
+            blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+            tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+            logger.info("Reading block graph of {} blocks and {} trips took {} msec",
+                    blocks.size(), tripsMap.size(), timer.elapsedMsec());
+
+            remainingDataFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Interrupted while reading configuration data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new HibernateException("Could not read configuration data", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+    }
+
+    /**
+     * Reads the configuration data other than the blocks and trip patterns from the database.
+     *
+     * @param session
+     */
+    private void readRemainingData(Session session) {
+        IntervalTimer timer = new IntervalTimer();
+        routes = Route.getRoutes(session, configRev);
         routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
         routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
         logger.debug("Reading routes took {} msec", timer.elapsedMsec());
 
-        tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
-
         timer = new IntervalTimer();
-        List<Stop> stopsList = Stop.getStops(globalSession, configRev);
+        List<Stop> stopsList = Stop.getStops(session, configRev);
         stopsMap = putStopsIntoMap(stopsList);
         stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
-        routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
         logger.debug("Reading stops took {} msec", timer.elapsedMsec());
 
         timer = new IntervalTimer();
-        agencies = Agency.getAgencies(globalSession, configRev);
-        calendars = Calendar.getCalendars(globalSession, configRev);
-        calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
+        agencies = Agency.getAgencies(session, configRev);
+        calendars = Calendar.getCalendars(session, configRev);
+        calendarDates = CalendarDate.getCalendarDates(session, configRev);
+
+        calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+
+        fareAttributes = FareAttribute.getFareAttributes(session, configRev);
+        fareRules = FareRule.getFareRules(session, configRev);
+        frequencies = Frequency.getFrequencies(session, configRev);
+        transfers = Transfer.getTransfers(session, configRev);
 
-        calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
+        logger.debug("Reading everything else took {} msec", timer.elapsedMsec());
+    }
+
+    /**
+     * Creates map of calendar dates keyed on the date so that can efficiently look up calendar
+     * dates.
+     *
+     * @param calendarDates
+     * @return map, keyed on date, of calendar dates
+     */
+    private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(List<CalendarDate> calendarDates) {
+        Map<Long, List<CalendarDate>> map = new HashMap<>();
         for (CalendarDate calendarDate : calendarDates) {
             Long time = calendarDate.getTime();
-            List<CalendarDate> calendarDatesForDate = calendarDatesMap.computeIfAbsent(time, k -> new ArrayList<>(1));
+            List<CalendarDate> calendarDatesForDate = map.computeIfAbsent(time, k -> new ArrayList<>(1));
             calendarDatesForDate.add(calendarDate);
         }
+        return map;
+    }
 
-        fareAttributes = FareAttribute.getFareAttributes(globalSession, configRev);
-        fareRules = FareRule.getFareRules(globalSession, configRev);
-        frequencies = Frequency.getFrequencies(globalSession, configRev);
-        transfers = Transfer.getTransfers(globalSession, configRev);
+    /**
+     * @return The configuration snapshot file, or null if snapshots are not to be used
+     */
+    private Path getSnapshotFile() {
+        String directory = CoreConfig.configSnapshotDirectory.getValue();
+        if (directory == null || directory.isBlank() || travelTimesRev < 0) return null;
 
-        logger.debug("Reading everything else took {} msec", timer.elapsedMsec());
+        return DbConfigSnapshot.file(directory, agencyId);
+    }
+
+    /**
+     * Reads the configuration data from the snapshot file if there is one for the configRev and
+     * travelTimesRev.
+     *
+     * @return true if the data was read from the snapshot
+     */
+    private boolean readSnapshot() {
+        Path file = getSnapshotFile();
+        if (file == null) return false;
+
+        DbConfigSnapshot snapshot = DbConfigSnapshot.read(file, configRev, travelTimesRev);
+        if (snapshot == null) return false;
+
+        // Still need a session for anything that is read in later
+        globalSession = HibernateUtils.getSession(agencyId);
+
+        tripsMap = Collections.unmodifiableMap(snapshot.trips);
+        tripsByShortNameMap = putTripsIntoMapByShortName(tripsMap.values());
+        blocks = Collections.unmodifiableList(snapshot.blocks);
+        blocksByServiceMap = putBlocksIntoMap(blocks);
+        blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+        tripPatternsByRouteMap = putTripPatternsIntoMap(snapshot.tripPatterns);
+
+        routes = snapshot.routes;
+        routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+        routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+        stopsMap = putStopsIntoMap(snapshot.stops);
+        stopsByStopCode = putStopsIntoMapByStopCode(snapshot.stops);
+        routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+
+        agencies = snapshot.agencies;
+        calendars = snapshot.calendars;
+        calendarDates = snapshot.calendarDates;
+        calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+        fareAttributes = snapshot.fareAttributes;
+        fareRules = snapshot.fareRules;
+        frequencies = snapshot.frequencies;
+        transfers = snapshot.transfers;
+        return true;
+    }
+
+    /** Writes the configuration data that was just read from the db to the snapshot file. */
+    private void writeSnapshot() {
+        Path file = getSnapshotFile();
+        if (file == null) return;
+
+        List<TripPattern> tripPatterns = new ArrayList<>();
+        tripPatternsByRouteMap.values().forEach(tripPatterns::addAll);
+        new DbConfigSnapshot(
+                        blocks,
+                        tripsMap,
+                        tripPatterns,
+                        routes,
+                        new ArrayList<>(stopsMap.values()),
+                        agencies,
+                        calendars,
+                        calendarDates,
+                        fareAttributes,
+                        fareRules,
+                        frequencies,
+                        transfers)
+                .write(file, configRev, travelTimesRev);
+    }
+
+    /**
+     * Creates map of trips keyed on trip short name so that trips can be looked up by short name
+     * without accessing the db.
+     *
+     * @param trips
+     * @return map, keyed on trip short name, of trips
+     */
+    private static Map<String, List<Trip>> putTripsIntoMapByShortName(Collection<Trip> trips) {
+        Map<String, List<Trip>> map = new HashMap<>();
+        for (Trip trip : trips) {
+            if (trip.getShortName() == null) continue;
+            map.computeIfAbsent(trip.getShortName(), k -> new ArrayList<>()).add(trip);
+        }
+        return map;
     }
 
     /**
@@ -0,0 +1,415 @@
+/* (C)2023 */
+package org.transitclock.gtfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+import org.hibernate.proxy.HibernateProxy;
+import org.transitclock.domain.structs.Agency;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Calendar;
+import org.transitclock.domain.structs.CalendarDate;
+import org.transitclock.domain.structs.FareAttribute;
+import org.transitclock.domain.structs.FareRule;
+import org.transitclock.domain.structs.Frequency;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.Transfer;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * A binary snapshot of the configuration data read in by DbConfig so that on a restart the data
+ * can be read from a local file instead of doing the many queries needed to read it from the
+ * database. This makes restarting the core much quicker for large agencies.
+ *
+ * <p>The file starts with a header containing a magic number, the format version, a hash of the
+ * shape of the serialized classes, the configRev, and the travelTimesRev. If any of these don't
+ * match what is expected, such as when new GTFS data has been processed, when the travel times
+ * have been updated, or when the entity classes have changed, then the snapshot is ignored and the
+ * data is read from the db instead. The header is followed by the serialized data. The entities
+ * are already Serializable. A snapshot is only written if the whole graph of entities is
+ * initialized so no lazy loading is needed after the snapshot has been read in.
+ */
+@Slf4j
+class DbConfigSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x54434453; // "TCDS"
+
+    // Needs to be incremented whenever the contents of the snapshot change
+    // so that snapshots written by an older version are ignored
+    private static final int FORMAT_VERSION = 2;
+
+    // Changes whenever the serialized fields of any of the classes in the
+    // snapshot change
+    static final long CLASSES_HASH = classesHash();
+
+    final List<Block> blocks;
+    final Map<String, Trip> trips;
+    final List<TripPattern> tripPatterns;
+    final List<Route> routes;
+    final List<Stop> stops;
+    final List<Agency> agencies;
+    final List<Calendar> calendars;
+    final List<CalendarDate> calendarDates;
+    final List<FareAttribute> fareAttributes;
+    final List<FareRule> fareRules;
+    final List<Frequency> frequencies;
+    final List<Transfer> transfers;
+
+    DbConfigSnapshot(
+            List<Block> blocks,
+            Map<String, Trip> trips,
+            List<TripPattern> tripPatterns,
+            List<Route> routes,
+            List<Stop> stops,
+            List<Agency> agencies,
+            List<Calendar> calendars,
+            List<CalendarDate> calendarDates,
+            List<FareAttribute> fareAttributes,
+            List<FareRule> fareRules,
+            List<Frequency> frequencies,
+            List<Transfer> transfers) {
+        // Copy into plain collections so that unmodifiable wrappers and
+        // such are not part of the serialized data
+        this.blocks = new ArrayList<>(blocks);
+        this.trips = new HashMap<>(trips);
+        this.tripPatterns = new ArrayList<>(tripPatterns);
+        this.routes = new ArrayList<>(routes);
+        this.stops = new ArrayList<>(stops);
+        this.agencies = new ArrayList<>(agencies);
+        this.calendars = new ArrayList<>(calendars);
+        this.calendarDates = new ArrayList<>(calendarDates);
+        this.fareAttributes = new ArrayList<>(fareAttributes);
+        this.fareRules = new ArrayList<>(fareRules);
+        this.frequencies = new ArrayList<>(frequencies);
+        this.transfers = new ArrayList<>(transfers);
+    }
+
+    /**
+     * @param directory Directory where snapshots are stored
+     * @param agencyId
+     * @return The snapshot file for the agency
+     */
+    static Path file(String directory, String agencyId) {
+        return Path.of(directory, "dbConfig-" + agencyId + ".snapshot");
+    }
+
+    /**
+     * Writes the snapshot to the file. Written to a temporary file first and then moved so that a
+     * partially written snapshot is never read. Not written if any part of the graph of entities is
+     * not initialized.
+     *
+     * @param file
+     * @param configRev
+     * @param travelTimesRev
+     */
+    void write(Path file, int configRev, int travelTimesRev) {
+        IntervalTimer timer = new IntervalTimer();
+
+        // Serializing something that isn't initialized would either fail or
+        // read it in from the db using a session that might be in use by
+        // another thread
+        String uninitialized = findUninitialized(this);
+        if (uninitialized != null) {
+            logger.error("Not writing configuration snapshot {} since {} is not initialized.", file, uninitialized);
+            return;
+        }
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16)) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                header.writeLong(CLASSES_HASH);
+                header.writeInt(configRev);
+                header.writeInt(travelTimesRev);
+                header.flush();
+
+                ObjectOutputStream objectOut = new ObjectOutputStream(out);
+                objectOut.writeObject(this);
+                objectOut.flush();
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote configuration snapshot {} for configRev={} travelTimesRev={}. Size={} bytes. Took {} msec.",
+                    file, configRev, travelTimesRev, Files.size(file), timer.elapsedMsec());
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not write configuration snapshot {}", file, e);
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot from the file. The file is memory-mapped so that it is read efficiently.
+     *
+     * @param file
+     * @param configRev The configRev the snapshot must be for
+     * @param travelTimesRev The travelTimesRev the snapshot must be for
+     * @return The snapshot, or null if there is no usable snapshot
+     */
+    static DbConfigSnapshot read(Path file, int configRev, int travelTimesRev) {
+        if (!Files.isReadable(file)) {
+            logger.info("No configuration snapshot {} so reading configuration from db.", file);
+            return null;
+        }
+
+        IntervalTimer timer = new IntervalTimer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                InputStream in = openStream(channel)) {
+            DataInputStream header = new DataInputStream(in);
+            int magic = header.readInt();
+            int formatVersion = header.readInt();
+            if (magic != MAGIC || formatVersion != FORMAT_VERSION) {
+                logger.info("Configuration snapshot {} is for format={} but need format={} so reading "
+                                + "configuration from db.",
+                        file, formatVersion, FORMAT_VERSION);
+                return null;
+            }
+            long classesHash = header.readLong();
+            int snapshotConfigRev = header.readInt();
+            int snapshotTravelTimesRev = header.readInt();
+            if (classesHash != CLASSES_HASH
+                    || snapshotConfigRev != configRev
+                    || snapshotTravelTimesRev != travelTimesRev) {
+                logger.info("Configuration snapshot {} is for configRev={} travelTimesRev={} classesHash={} but "
+                                + "need configRev={} travelTimesRev={} classesHash={} so reading configuration "
+                                + "from db.",
+                        file, snapshotConfigRev, snapshotTravelTimesRev, classesHash,
+                        configRev, travelTimesRev, CLASSES_HASH);
+                return null;
+            }
+
+            DbConfigSnapshot snapshot = (DbConfigSnapshot) new ObjectInputStream(in).readObject();
+            logger.info("Read configuration snapshot {} for configRev={} travelTimesRev={}. Took {} msec.",
+                    file, configRev, travelTimesRev, timer.elapsedMsec());
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // Most likely the classes have changed such that the snapshot
+            // can no longer be deserialized
+            logger.error("Could not read configuration snapshot {} so reading configuration from db.", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Goes through the whole graph of objects to find any Hibernate proxy or collection that has not
+     * been initialized.
+     *
+     * @param root
+     * @return Description of the first member found that is not initialized, or null if everything
+     *     is initialized
+     */
+    static String findUninitialized(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<Class<?>, List<Field>> fieldsByClass = new HashMap<>();
+        Deque<Object> objects = new ArrayDeque<>();
+        Deque<String> descriptions = new ArrayDeque<>();
+        objects.push(root);
+        descriptions.push(root.getClass().getSimpleName());
+        while (!objects.isEmpty()) {
+            Object object = objects.pop();
+            String description = descriptions.pop();
+            if (!Hibernate.isInitialized(object)) return description;
+            if (!visited.add(object)) continue;
+
+            if (object instanceof HibernateProxy proxy) {
+                objects.push(proxy.getHibernateLazyInitializer().getImplementation());
+                descriptions.push(description);
+            } else if (object instanceof Collection<?> collection) {
+                for (Object element : collection) {
+                    if (element == null) continue;
+                    objects.push(element);
+                    descriptions.push(description);
+                }
+            } else if (object instanceof Map<?, ?> map) {
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (entry.getKey() != null) {
+                        objects.push(entry.getKey());
+                        descriptions.push(description);
+                    }
+                    if (entry.getValue() != null) {
+                        objects.push(entry.getValue());
+                        descriptions.push(description);
+                    }
+                }
+            } else if (object instanceof Object[] array) {
+                for (Object element : array) {
+                    if (element == null) continue;
+                    objects.push(element);
+                    descriptions.push(description);
+                }
+            } else if (isSnapshotClass(object.getClass())) {
+                for (Field field : fieldsByClass.computeIfAbsent(object.getClass(), DbConfigSnapshot::instanceFields)) {
+                    Object value;
+                    try {
+                        value = field.get(object);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (value == null || field.getType().isPrimitive()) continue;
+                    objects.push(value);
+                    descriptions.push(field.getDeclaringClass().getSimpleName() + "." + field.getName());
+                }
+            }
+        }
+        return null;
+    }
+
+    /** The classes whose members are part of the snapshot */
+    private static boolean isSnapshotClass(Class<?> c) {
+        return c.getName().startsWith("org.transitclock.") && !c.isEnum();
+    }
+
+    /** Whether the field is serialized as part of its object */
+    private static boolean isSerialized(Field field) {
+        return !Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers());
+    }
+
+    /** The serialized fields of the class and its superclasses, made accessible */
+    private static List<Field> instanceFields(Class<?> c) {
+        List<Field> fields = new ArrayList<>();
+        for (; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!isSerialized(field)) continue;
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Determines a hash of the serialized form of the classes that are part of the snapshot, found
+     * by going through the declared types of the fields starting with this class. Includes the
+     * serialVersionUID and the serialized fields of each class so that it changes whenever a class
+     * changes such that an older snapshot can't be read in properly.
+     */
+    private static long classesHash() {
+        Map<String, Class<?>> classes = new TreeMap<>();
+        Deque<Type> types = new ArrayDeque<>();
+        types.push(DbConfigSnapshot.class);
+        while (!types.isEmpty()) {
+            Type type = types.pop();
+            if (type instanceof ParameterizedType parameterized) {
+                types.push(parameterized.getRawType());
+                for (Type argument : parameterized.getActualTypeArguments()) types.push(argument);
+            } else if (type instanceof GenericArrayType array) {
+                types.push(array.getGenericComponentType());
+            } else if (type instanceof Class<?> c) {
+                if (c.isArray()) {
+                    types.push(c.getComponentType());
+                } else if (isSnapshotClass(c) && classes.put(c.getName(), c) == null) {
+                    for (Class<?> s = c; s != null && s != Object.class; s = s.getSuperclass()) {
+                        if (s != c) types.push(s);
+                        for (Field field : s.getDeclaredFields()) {
+                            if (isSerialized(field)) types.push(field.getGenericType());
+                        }
+                    }
+                }
+            }
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Class<?> c : classes.values()) {
+                digest.update(c.getName().getBytes(StandardCharsets.UTF_8));
+                ObjectStreamClass streamClass = ObjectStreamClass.lookup(c);
+                if (streamClass == null) continue;
+                digest.update(ByteBuffer.allocate(Long.BYTES).putLong(streamClass.getSerialVersionUID()).array());
+                for (ObjectStreamField field : streamClass.getFields()) {
+                    digest.update((field.getName() + ":" + field.getType().getName()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a stream for reading the file. If the file can be memory-mapped it is, otherwise it
+     * is simply read using a buffered stream.
+     */
+    private static InputStream openStream(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            return new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+        }
+
+        return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    /** For reading from a memory-mapped file */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
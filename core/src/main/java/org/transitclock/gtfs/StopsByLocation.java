@@ -2,7 +2,9 @@
 package org.transitclock.gtfs;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.transitclock.Core;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.domain.structs.Location;
@@ -145,8 +147,9 @@ public class StopsByLocation {
 
     /**
      * Gets list of stops that are within maxDistance of the specified location. Looks at every trip
-     * pattern so can deal with complicated cases such as routes with school service stops just for
-     * part of the day.
+     * pattern near the location so can deal with complicated cases such as routes with school
+     * service stops just for part of the day. The trip patterns near the location are determined
+     * using the spatial index of the stops so that only those trip patterns need to be looked at.
      *
      * @param loc
      * @param maxDistance
@@ -156,12 +159,20 @@ public class StopsByLocation {
         // For returning the results
         List<StopInfo> results = new ArrayList<StopInfo>();
 
-        // Find closest stops for every route...
+        // Determine which trip patterns, and therefore which routes, have a
+        // stop within maxDistance. A trip pattern without such a stop
+        // cannot have a closest stop that is within maxDistance.
         DbConfig dbConfig = Core.getInstance().getDbConfig();
+        Set<TripPattern> nearbyTripPatterns = dbConfig.getStopsSpatialIndex().getTripPatternsNear(loc, maxDistance);
+        if (nearbyTripPatterns.isEmpty()) return results;
+
+        Set<String> nearbyRouteIds = new HashSet<>();
+        for (TripPattern tripPattern : nearbyTripPatterns) nearbyRouteIds.add(tripPattern.getRouteId());
+
+        // Find closest stops for every nearby route. Going through the
+        // routes in order so that the results are ordered by route.
         for (Route route : dbConfig.getRoutes()) {
-            // If the specified location is not within the distance of the route
-            // then can skip this route
-            if (!route.getExtent().isWithinDistance(loc, maxDistance)) continue;
+            if (!nearbyRouteIds.contains(route.getId())) continue;
 
             // Need to look at trip patterns separately since don't just want
             // to match to a closest stop that happens to not be in service
@@ -177,6 +188,9 @@ public class StopsByLocation {
 
                 List<TripPattern> tripPatternsForDirection = route.getTripPatterns(directionId);
                 for (TripPattern tripPattern : tripPatternsForDirection) {
+                    // Only trip patterns with a nearby stop can match
+                    if (!nearbyTripPatterns.contains(tripPattern)) continue;
+
                     // Determine the closest stop for the trip pattern
                     StopInfo stopInfo = determineClosestStop(tripPattern, loc, maxDistance);
 
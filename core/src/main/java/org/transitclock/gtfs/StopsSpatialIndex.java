@@ -0,0 +1,109 @@
+/* (C)2023 */
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.utils.Geo;
+
+/**
+ * A spatial index of the stops of all the trip patterns so that can quickly determine which trip
+ * patterns have a stop near a location. The area is divided into a grid of cells and each cell
+ * contains the stops within it, along with the trip pattern each stop is for. This way finding the
+ * trip patterns near a location only requires looking at the few cells near the location instead
+ * of at every stop of every trip pattern.
+ *
+ * <p>The index is created once when DbConfig reads in the configuration and is not modified
+ * afterwards so it can be accessed by multiple threads without synchronization.
+ */
+public class StopsSpatialIndex {
+
+    // Size of cells in degrees of latitude and longitude. About 1.1km north
+    // to south, less east to west away from the equator.
+    private static final double CELL_SIZE_DEGREES = 0.01;
+
+    private static final double METERS_PER_DEGREE_LAT = Math.PI * Geo.RADIUS_OF_EARTH_IN_METERS / 180.0;
+
+    /** A stop of a trip pattern */
+    private record StopEntry(TripPattern tripPattern, Location location) {}
+
+    // The stops in each cell
+    private final Map<Long, List<StopEntry>> stopsByCell = new HashMap<>();
+
+    private static int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+
+    /**
+     * Creates the index for the stops of the trip patterns. The last stop of each trip pattern is
+     * not included since passengers cannot board there.
+     *
+     * @param tripPatterns All the trip patterns
+     */
+    StopsSpatialIndex(Collection<TripPattern> tripPatterns) {
+        for (TripPattern tripPattern : tripPatterns) {
+            List<StopPath> stopPaths = tripPattern.getStopPaths();
+            for (int i = 0; i < stopPaths.size() - 1; ++i) {
+                Location loc = stopPaths.get(i).getStopLocation();
+                if (loc == null) continue;
+
+                long cell = cellKey(cellIndex(loc.getLat()), cellIndex(loc.getLon()));
+                stopsByCell
+                        .computeIfAbsent(cell, k -> new ArrayList<>())
+                        .add(new StopEntry(tripPattern, loc));
+            }
+        }
+    }
+
+    /**
+     * Returns the trip patterns that have a stop, other than the last stop of the trip pattern,
+     * within maxDistance of the location. Only the cells that could contain such stops are looked
+     * at.
+     *
+     * @param loc
+     * @param maxDistance In meters
+     * @return The trip patterns. Can be empty but not null.
+     */
+    public Set<TripPattern> getTripPatternsNear(Location loc, double maxDistance) {
+        double deltaLat = maxDistance / METERS_PER_DEGREE_LAT;
+        double cosLat = Math.max(Math.cos(Math.toRadians(loc.getLat())), 0.01);
+        double deltaLon = deltaLat / cosLat;
+
+        int minLatIndex = cellIndex(loc.getLat() - deltaLat);
+        int maxLatIndex = cellIndex(loc.getLat() + deltaLat);
+        int minLonIndex = cellIndex(loc.getLon() - deltaLon);
+        int maxLonIndex = cellIndex(loc.getLon() + deltaLon);
+
+        // TripPattern equality compares all the members so use identity
+        Set<TripPattern> nearbyTripPatterns = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int latIndex = minLatIndex; latIndex <= maxLatIndex; ++latIndex) {
+            for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; ++lonIndex) {
+                List<StopEntry> stops = stopsByCell.get(cellKey(latIndex, lonIndex));
+                if (stops == null) continue;
+
+                for (StopEntry stop : stops) {
+                    if (nearbyTripPatterns.contains(stop.tripPattern)) continue;
+                    if (stop.location.distance(loc) <= maxDistance) nearbyTripPatterns.add(stop.tripPattern);
+                }
+            }
+        }
+        return nearbyTripPatterns;
+    }
+
+    /** @return Number of cells that contain stops */
+    public int getNumberOfCells() {
+        return stopsByCell.size();
+    }
+}
@@ -42,6 +42,7 @@ public class AgencyMonitor {
         monitors.add(new AvlFeedMonitor(agencyId));
         monitors.add(new PredictabilityMonitor(agencyId));
         monitors.add(new DatabaseQueueMonitor(agencyId));
+        monitors.add(new AvlQueueMonitor(agencyId));
         monitors.add(new ActiveBlocksMonitor(agencyId));
         if (enableSystemMonitoring != null && enableSystemMonitoring.equalsIgnoreCase("true")) {
             monitors.add(new SystemMemoryMonitor(agencyId));
@@ -0,0 +1,72 @@
+/* (C)2023 */
+package org.transitclock.monitoring;
+
+import org.transitclock.config.data.MonitoringConfig;
+import org.transitclock.core.avl.AvlExecutor;
+import org.transitclock.utils.StringUtils;
+
+/**
+ * For monitoring backpressure in the AVL queue. Examines how full the queue of AVL reports waiting
+ * to be processed is, and reports how many reports were coalesced, rejected, and how long they
+ * waited in the queue.
+ */
+public class AvlQueueMonitor extends MonitorBase {
+
+    /**
+     * Simple constructor
+     *
+     * @param agencyId
+     */
+    public AvlQueueMonitor(String agencyId) {
+        super(agencyId);
+    }
+
+    /* (non-Javadoc)
+     * @see org.transitclock.monitoring.MonitorBase#triggered()
+     */
+    @Override
+    protected boolean triggered() {
+        // Don't want monitoring to create the executor and start its threads
+        AvlExecutor avlExecutor = AvlExecutor.getInstanceIfCreated();
+        if (avlExecutor == null) {
+            setMessage("AVL executor not started.", 0.0);
+            return false;
+        }
+        double queueLevel = avlExecutor.queueLevel();
+
+        setMessage(
+                "AVL queue fraction="
+                        + StringUtils.twoDigitFormat(queueLevel)
+                        + " while max allowed fraction="
+                        + StringUtils.twoDigitFormat(MonitoringConfig.maxAvlQueueFraction.getValue())
+                        + ", items in queue="
+                        + avlExecutor.getQueueSize()
+                        + ", coalesced="
+                        + avlExecutor.getCoalescedCount()
+                        + ", rejected="
+                        + avlExecutor.getRejectedCount()
+                        + ", average queue wait="
+                        + StringUtils.twoDigitFormat(avlExecutor.getAverageQueueWaitMsec())
+                        + " msec, max queue wait="
+                        + avlExecutor.getMaxQueueWaitMsec()
+                        + " msec.",
+                queueLevel);
+
+        // Determine the threshold for triggering. If already triggered
+        // then lower the threshold by maxAvlQueueFractionGap in order
+        // to prevent lots of e-mail being sent out if the value is
+        // dithering around maxAvlQueueFraction.
+        double threshold = MonitoringConfig.maxAvlQueueFraction.getValue();
+        if (wasTriggered()) threshold -= MonitoringConfig.maxAvlQueueFractionGap.getValue();
+
+        return queueLevel > threshold;
+    }
+
+    /* (non-Javadoc)
+     * @see org.transitclock.monitoring.MonitorBase#type()
+     */
+    @Override
+    protected String type() {
+        return "AVL Queue";
+    }
+}
@@ -147,6 +147,14 @@ public class VehiclesServiceImpl implements VehiclesInterface {
         return getCompleteSerializableCollection(vehicleDataCache.getVehiclesForRoute(routeIdsOrShortNames));
     }
 
+    /* (non-Javadoc)
+     * @see org.transitclock.ipc.interfaces.VehiclesInterface#getNearLocation(org.transitclock.domain.structs.Location, double)
+     */
+    @Override
+    public Collection<IpcVehicle> getNearLocation(Location loc, double maxDistance) {
+        return getSerializableCollection(vehicleDataCache.getVehiclesNearLocation(loc, maxDistance));
+    }
+
     /*
      * This class returns Collections of Vehicles that are to be serialized.
      * But sometimes these collections come from Map<K, T>.values(), which
@@ -1,6 +1,7 @@
 /* (C)2023 */
 package org.transitclock.service.contract;
 
+import org.transitclock.domain.structs.Location;
 import org.transitclock.service.dto.IpcActiveBlock;
 import org.transitclock.service.dto.IpcVehicle;
 import org.transitclock.service.dto.IpcVehicleComplete;
@@ -154,6 +155,15 @@ public interface VehiclesInterface {
      */
     Collection<IpcVehicleComplete> getCompleteForRoute(Collection<String> routeIdsOrShortNames);
 
+    /**
+     * Gets from server IpcVehicle info for all vehicles currently near the location.
+     *
+     * @param loc The location
+     * @param maxDistance How far in meters a vehicle can be from the location
+     * @return Collection of Vehicle objects
+     */
+    Collection<IpcVehicle> getNearLocation(Location loc, double maxDistance);
+
     /**
      * Gets from the server IpcActiveBlocks for blocks that are currently active.
      *
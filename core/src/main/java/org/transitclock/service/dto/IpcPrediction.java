@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Date;
 
 import org.transitclock.Core;
 import org.transitclock.domain.structs.AvlReport;
@@ -116,6 +115,50 @@ public class IpcPrediction implements Serializable {
             long freqStartTime,
             int tripCounter,
             boolean isCanceled) {
+        this(
+                avlReport,
+                stopId,
+                gtfsStopSeq,
+                trip,
+                predictionTime,
+                actualPredictionTime,
+                atEndOfTrip,
+                affectedByWaitStop,
+                isDelayed,
+                lateAndSubsequentTripSoMarkAsUncertain,
+                arrivalOrDeparture,
+                delay,
+                freqStartTime,
+                tripCounter,
+                isCanceled,
+                Core.getInstance().getTime().getEpochTime(trip.getStartTime(), SystemTime.getDate()));
+    }
+
+    /**
+     * Constructs a Prediction object when the start time of the trip is already known, so doesn't
+     * need Core to determine it.
+     *
+     * @param tripStartEpochTime Epoch time of the start of the trip
+     * @see #IpcPrediction(AvlReport, String, int, Trip, long, long, boolean, boolean, boolean,
+     *     boolean, ArrivalOrDeparture, Integer, long, int, boolean)
+     */
+    public IpcPrediction(
+            AvlReport avlReport,
+            String stopId,
+            int gtfsStopSeq,
+            Trip trip,
+            long predictionTime,
+            long actualPredictionTime,
+            boolean atEndOfTrip,
+            boolean affectedByWaitStop,
+            boolean isDelayed,
+            boolean lateAndSubsequentTripSoMarkAsUncertain,
+            ArrivalOrDeparture arrivalOrDeparture,
+            Integer delay,
+            long freqStartTime,
+            int tripCounter,
+            boolean isCanceled,
+            long tripStartEpochTime) {
         this.vehicleId = avlReport.getVehicleId();
         this.routeId = trip.getRouteId();
         this.stopId = stopId;
@@ -135,8 +178,7 @@ public class IpcPrediction implements Serializable {
         this.avlTime = avlReport.getTime();
         this.creationTime = avlReport.getTimeProcessed();
 
-        Date currentTime = SystemTime.getDate();
-        this.tripStartEpochTime = Core.getInstance().getTime().getEpochTime(trip.getStartTime(), currentTime);
+        this.tripStartEpochTime = tripStartEpochTime;
 
         this.affectedByWaitStop = affectedByWaitStop;
         this.driverId = avlReport.getDriverId();
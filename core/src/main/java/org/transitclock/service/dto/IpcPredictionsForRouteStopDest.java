@@ -6,7 +6,6 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import org.transitclock.Core;
 import org.transitclock.core.VehicleState;
@@ -16,11 +15,14 @@ import org.transitclock.domain.structs.Stop;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.domain.structs.TripPattern;
 import org.transitclock.utils.Geo;
-import org.transitclock.utils.TrimmableArrayList;
 
 /**
  * Contains list of predictions for a route/stop/destination.
  *
+ * <p>Immutable. Changing the predictions creates a new object, sharing the route/stop info, that
+ * the PredictionDataCache then publishes. This way readers don't need to synchronize and always
+ * see a coherent set of predictions.
+ *
  * @author SkiBu Smith
  */
 public class IpcPredictionsForRouteStopDest implements Serializable {
@@ -42,11 +44,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
     // For when providing predictions based on location
     private final double distanceToStop;
 
-    // The predictions associated with the route/stop/dest
+    // The predictions associated with the route/stop/dest. An immutable
+    // list ordered by prediction time.
     private final List<IpcPrediction> predictionsForRouteStopDest;
 
-    private static final int INITIAL_CAPACITY = 5;
-
     /**
      * Constructor for creating a IpcPredictionsForRouteStopDest on the server side.
      *
@@ -59,17 +60,19 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
         this.routeId = trip != null ? trip.getRouteId() : null;
         this.routeShortName = trip != null ? trip.getRouteShortName() : null;
         this.routeName = trip != null ? trip.getRouteName() : null;
-        this.routeOrder = trip != null ? trip.getRoute().getRouteOrder() : -1;
+        Route route = trip != null ? trip.getRoute() : null;
+        this.routeOrder = route != null ? route.getRouteOrder() : -1;
         this.stopId = stopId;
 
-        Stop stop = Core.getInstance().getDbConfig().getStop(stopId);
+        // Stop info only available when running the core application
+        Stop stop = Core.isCoreApplication() ? Core.getInstance().getDbConfig().getStop(stopId) : null;
         this.stopName = stop != null ? stop.getName() : null;
         this.stopCode = stop != null ? stop.getCode() : null;
 
         this.headsign = trip != null ? trip.getHeadsign() : null;
         this.directionId = trip != null ? trip.getDirectionId() : null;
         this.distanceToStop = distanceToStop;
-        this.predictionsForRouteStopDest = new TrimmableArrayList<>(INITIAL_CAPACITY);
+        this.predictionsForRouteStopDest = List.of();
     }
 
     /**
@@ -96,46 +99,29 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
         this.headsign = tripPattern.getHeadsign();
         this.directionId = tripPattern.getDirectionId();
         this.distanceToStop = distanceToStop;
-        this.predictionsForRouteStopDest = new TrimmableArrayList<>(0);
+        this.predictionsForRouteStopDest = List.of();
     }
 
     /**
-     * Constructor for cloning a PredictionsForRouteStop object.
+     * Constructor for copying a PredictionsForRouteStop object but with different predictions.
      *
-     * @param toClone
-     * @param maxPredictionsPerStop
-     * @param maxSystemTimeForPrediction Max point in future want predictions for. This way can
-     *     limit predictions when requesting a large number of them.
-     * @param distanceFromStop For when getting predictions by location
+     * @param toCopy
+     * @param predictions Immutable list of the predictions
+     * @param distanceToStop For when getting predictions by location
      */
     private IpcPredictionsForRouteStopDest(
-            IpcPredictionsForRouteStopDest toClone,
-            int maxPredictionsPerStop,
-            long maxSystemTimeForPrediction,
-            double distanceToStop) {
-        this.routeId = toClone.routeId;
-        this.routeShortName = toClone.routeShortName;
-        this.routeName = toClone.routeName;
-        this.routeOrder = toClone.routeOrder;
-        this.stopId = toClone.stopId;
-        this.stopName = toClone.stopName;
-        this.stopCode = toClone.stopCode;
-        this.headsign = toClone.headsign;
-        this.directionId = toClone.directionId;
+            IpcPredictionsForRouteStopDest toCopy, List<IpcPrediction> predictions, double distanceToStop) {
+        this.routeId = toCopy.routeId;
+        this.routeShortName = toCopy.routeShortName;
+        this.routeName = toCopy.routeName;
+        this.routeOrder = toCopy.routeOrder;
+        this.stopId = toCopy.stopId;
+        this.stopName = toCopy.stopName;
+        this.stopCode = toCopy.stopCode;
+        this.headsign = toCopy.headsign;
+        this.directionId = toCopy.directionId;
         this.distanceToStop = distanceToStop;
-
-        // Copy all the prediction info. Do while synchronized since another
-        // thread could otherwise be changing the data.
-        synchronized (toClone) {
-            int size = Math.min(toClone.predictionsForRouteStopDest.size(), maxPredictionsPerStop);
-            this.predictionsForRouteStopDest = new ArrayList<>(size);
-            for (int i = 0; i < size; ++i) {
-                IpcPrediction prediction = toClone.predictionsForRouteStopDest.get(i);
-                // If prediction exceeds max time then done
-                if (prediction.getPredictionTime() > maxSystemTimeForPrediction) break;
-                this.predictionsForRouteStopDest.add(i, prediction);
-            }
-        }
+        this.predictionsForRouteStopDest = predictions;
     }
 
     /**
@@ -208,7 +194,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
         this.headsign = null;
         this.directionId = directionId;
         this.distanceToStop = distanceToStop;
-        this.predictionsForRouteStopDest = new TrimmableArrayList<>(0);
+        this.predictionsForRouteStopDest = List.of();
     }
 
     /**
@@ -344,26 +330,23 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
     }
 
     /**
-     * Gets a copy of this object. This is done with the object being copied synchronized so that
-     * the predictions remain coherent. Limits number of predictions to maxPredictionsPerStop.
+     * Gets a copy of this object limited to maxPredictionsPerStop predictions. Since the object is
+     * immutable it is returned as is if no predictions are being left out and the distance to the
+     * stop is the same.
      *
      * @param maxPredictionsPerStop
-     * @param distanceFromStop For when getting predictions by location
+     * @param distanceToStop For when getting predictions by location
      * @return
      */
     public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop, double distanceToStop) {
-        // Get copy of predictions. Don't limit by how far predictions
-        // are into the future. Therefore maxPredictionTime set to
-        // Integer.MAX_VALUE and currentTime set to 0L because it
-        // doesn't matter.
-        IpcPredictionsForRouteStopDest clone =
-                new IpcPredictionsForRouteStopDest(this, maxPredictionsPerStop, Long.MAX_VALUE, distanceToStop);
-        return clone;
+        // Don't limit by how far predictions are into the future
+        return getClone(maxPredictionsPerStop, Long.MAX_VALUE, distanceToStop);
     }
 
     /**
-     * Gets a copy of this object. This is done with the object being copied synchronized so that
-     * the predictions remain coherent. Limits number of predictions to maxPredictionsPerStop.
+     * Gets a copy of this object limited to maxPredictionsPerStop predictions. Since the object is
+     * immutable it is returned as is if no predictions are being left out and the distance to the
+     * stop is the same. Otherwise the predictions list is only copied if limiting the predictions.
      *
      * @param maxPredictionsPerStop Won't copy more then this number of predictions
      * @param maxSystemTimeForPrediction Max point in future want predictions for. This way can
@@ -372,12 +355,23 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
      * @return
      */
     public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop, long maxSystemTimeForPrediction, double distanceToStop) {
-        return new IpcPredictionsForRouteStopDest(this, maxPredictionsPerStop, maxSystemTimeForPrediction, distanceToStop);
+        List<IpcPrediction> predictions = predictionsForRouteStopDest;
+        int size = Math.min(predictions.size(), maxPredictionsPerStop);
+        int end = 0;
+        // If prediction exceeds max time then done
+        while (end < size && predictions.get(end).getPredictionTime() <= maxSystemTimeForPrediction) ++end;
+
+        if (end == predictions.size() && Double.compare(distanceToStop, this.distanceToStop) == 0) return this;
+
+        return new IpcPredictionsForRouteStopDest(
+                this,
+                end == predictions.size() ? predictions : List.copyOf(predictions.subList(0, end)),
+                distanceToStop);
     }
 
     /**
-     * Gets a copy of this object. This is done with the object being copied synchronized so that
-     * the predictions remain coherent. Limits number of predictions to maxPredictionsPerStop.
+     * Gets a copy of this object limited to maxPredictionsPerStop predictions. Since the object is
+     * immutable it is returned as is if no predictions are being left out.
      *
      * @param maxPredictionsPerStop Won't copy more then this number of predictions
      * @param maxSystemTimeForPrediction Max point in future want predictions for. This way can
@@ -389,106 +383,94 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
     }
 
     /**
-     * Removes a prediction.
-     *
-     * <p>Not sure if really need to synchronize removal of predictions from list since it is only a
-     * single operation. But synching it is certainly the safe thing to do.
+     * Returns a copy of this object without the specified prediction.
      *
      * @param oldPrediction
+     * @return The new object, or this one if it doesn't contain the prediction
      */
-    public synchronized void removePrediction(IpcPrediction oldPrediction) {
-        predictionsForRouteStopDest.remove(oldPrediction);
+    public IpcPredictionsForRouteStopDest withoutPrediction(IpcPrediction oldPrediction) {
+        if (!predictionsForRouteStopDest.contains(oldPrediction)) return this;
+
+        List<IpcPrediction> predictions = new ArrayList<>(predictionsForRouteStopDest);
+        predictions.remove(oldPrediction);
+        return new IpcPredictionsForRouteStopDest(this, List.copyOf(predictions), distanceToStop);
     }
 
     /**
-     * Removes predictions that are older than the current time. Useful for when getting
-     * predictions. Synchronized because don't want predictions list to be changing by another
-     * thread when removing predictions.
+     * Returns a copy of this object without the predictions that are older than the current time.
+     * Useful for when getting predictions. Since called for every request the common case of the
+     * first prediction not having expired is determined first and doesn't create anything.
      *
      * @param currentTime Should use PredictionDataCache.systemTime.get() so that works even when in
      *     playback mode.
+     * @return The new object, or this one if no predictions have expired
      */
-    public synchronized void removeExpiredPredictions(long currentTime) {
-        Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-        while (iterator.hasNext()) {
-            IpcPrediction currentPrediction = iterator.next();
-
-            // Remove predictions that are expired. It makes sense to do this
-            // here when adding predictions since only need to take out
-            // predictions if more are being added.
-            VehicleStateManager vehicleStateManager = VehicleStateManager.getInstance();
+    public IpcPredictionsForRouteStopDest withoutExpiredPredictions(long currentTime) {
+        List<IpcPrediction> predictions = predictionsForRouteStopDest;
+        if (predictions.isEmpty() || predictions.get(0).getPredictionTime() >= currentTime) return this;
+
+        // The predictions are ordered by prediction time so only need to
+        // look at the ones before the first one that is into the future
+        List<IpcPrediction> remaining = new ArrayList<>(predictions.size());
+        VehicleStateManager vehicleStateManager = VehicleStateManager.getInstance();
+        for (IpcPrediction currentPrediction : predictions) {
             if (currentPrediction.getPredictionTime() < currentTime) {
                 // TODO This is a change for VIA. This needs to be in HoldingTimeGenerator.
                 VehicleState vehicleState = vehicleStateManager.getVehicleState(currentPrediction.getVehicleId());
-                if (vehicleState != null) {
-
-                    if ((currentPrediction.getStopId().equals("20097")
-                                    || currentPrediction.getStopId().equals("93296"))
-                            && vehicleState.getHoldingTime() == null) {
-                        // do nothing
-                    } else {
-                        iterator.remove();
-                    }
+                if (vehicleState == null
+                        || ((currentPrediction.getStopId().equals("20097")
+                                        || currentPrediction.getStopId().equals("93296"))
+                                && vehicleState.getHoldingTime() == null)) {
+                    // Keep the expired prediction
+                    remaining.add(currentPrediction);
                 }
-
             } else {
-                // The subsequent predictions are later so if this one is
-                // into the future then the remaining ones are too.
-                // Therefore done.
-                return;
+                remaining.add(currentPrediction);
             }
         }
+
+        if (remaining.size() == predictions.size()) return this;
+        return new IpcPredictionsForRouteStopDest(this, List.copyOf(remaining), distanceToStop);
     }
 
     /**
-     * Updates the predictions for this object with the new predictions for a vehicle.
-     *
-     * <p>Synchronized because there are multiple steps in removing old predictions and creating new
-     * ones.
+     * Returns a copy of this object where the predictions for a vehicle are replaced by the new
+     * predictions for the vehicle. Predictions that have expired are removed as well.
      *
      * @param newPredsForRouteStopDest The new predictions for the vehicle
      * @param currentTime So can get rid of predictions that have expired.
+     * @return The new object, or this one if there are no new predictions
      */
-    public synchronized void updatePredictionsForVehicle(
+    public IpcPredictionsForRouteStopDest withPredictionsForVehicle(
             List<IpcPrediction> newPredsForRouteStopDest, long currentTime) {
         // If no predictions then nothing to do so return.
-        if (newPredsForRouteStopDest == null || newPredsForRouteStopDest.isEmpty()) return;
+        if (newPredsForRouteStopDest == null || newPredsForRouteStopDest.isEmpty()) return this;
 
         // Determine which vehicle we are updating predictions for
         String vehicleId = newPredsForRouteStopDest.get(0).getVehicleId();
 
-        // Go through current predictions and get rid of existing ones for
-        // this vehicle or ones that have expired
-        Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-        while (iterator.hasNext()) {
-            IpcPrediction currentPrediction = iterator.next();
-
-            // Remove existing predictions for this vehicle
-            if (currentPrediction.getVehicleId().equals(vehicleId)) {
-                iterator.remove();
-                continue;
-            }
-
-            // Remove predictions that are expired. It makes sense to do this
-            // here when adding predictions since only need to take out
-            // predictions if more are being added.
-            if (currentPrediction.getPredictionTime() < currentTime) {
-                iterator.remove();
-                continue;
-            }
+        // Go through current predictions and keep the ones not for this
+        // vehicle that haven't expired. It makes sense to remove expired
+        // ones here since only need to take out predictions if more are
+        // being added.
+        List<IpcPrediction> predictions =
+                new ArrayList<>(predictionsForRouteStopDest.size() + newPredsForRouteStopDest.size());
+        for (IpcPrediction currentPrediction : predictionsForRouteStopDest) {
+            if (!currentPrediction.getVehicleId().equals(vehicleId)
+                    && currentPrediction.getPredictionTime() >= currentTime) predictions.add(currentPrediction);
         }
 
         // Go through list and insert the new predictions into the
         // appropriate places
         for (IpcPrediction newPredForRouteStop : newPredsForRouteStopDest) {
             boolean insertedPrediction = false;
-            for (int i = 0; i < predictionsForRouteStopDest.size(); ++i) {
+            for (int i = 0; i < predictions.size(); ++i) {
                 // If the new prediction is before the previous prediction
                 // in currentPredsForRouteStop then insert it.
                 if (newPredForRouteStop.getPredictionTime()
-                        < predictionsForRouteStopDest.get(i).getPredictionTime()) {
+                        < predictions.get(i).getPredictionTime()) {
                     // Actually add the prediction to the list
-                    predictionsForRouteStopDest.add(i, newPredForRouteStop);
+                    predictions.add(i, newPredForRouteStop);
                     insertedPrediction = true;
 
                     // Done with the inner for loop so break out of loop
@@ -500,9 +482,11 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
             // If didn't find that the prediction was before one of the
             // existing ones then insert it onto the end
             if (!insertedPrediction) {
-                predictionsForRouteStopDest.add(newPredForRouteStop);
+                predictions.add(newPredForRouteStop);
             }
         }
+
+        return new IpcPredictionsForRouteStopDest(this, List.copyOf(predictions), distanceToStop);
     }
 
     @Override
@@ -601,6 +585,12 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
         return distanceToStop;
     }
 
+    /**
+     * Returns the predictions. The list is an immutable snapshot so it can be accessed without
+     * synchronizing.
+     *
+     * @return
+     */
     public List<IpcPrediction> getPredictionsForRouteStop() {
         return predictionsForRouteStopDest;
     }
@@ -2,6 +2,7 @@
 package org.transitclock.utils;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 /**
  * Inherits from ConcurrentHashMap but allows null key to be used. The methods that use the key are
@@ -65,6 +66,14 @@ public class ConcurrentHashMapNullKeyOk<K, V> extends ConcurrentHashMap<K, V> {
         return super.remove(modKey(key), value);
     }
 
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.compute(modKey(key), remappingFunction);
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.computeIfPresent(modKey(key), remappingFunction);
+    }
+
     public V replace(K key, V value) {
         return super.replace(key, value);
     }
@@ -149,11 +149,25 @@ public class Geo {
      * @return
      */
     public static double distance(Location l1, Location l2) {
-        double lat1 = Math.toRadians(l1.getLat());
-        double lon1 = Math.toRadians(l1.getLon());
-        double lat2 = Math.toRadians(l2.getLat());
-        double lon2 = Math.toRadians(l2.getLon());
+        return distance(
+                Math.toRadians(l1.getLat()),
+                Math.toRadians(l1.getLon()),
+                Math.toRadians(l2.getLat()),
+                Math.toRadians(l2.getLon()));
+    }
 
+    /**
+     * Same as distance(Location, Location) but for latitudes and longitudes that are already in
+     * radians. For when the radians can be determined just once, such as for the packed geometry
+     * of a trip pattern, so that no Location objects are needed.
+     *
+     * @param lat1 In radians
+     * @param lon1 In radians
+     * @param lat2 In radians
+     * @param lon2 In radians
+     * @return distance in meters
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
         double x = (lon2 - lon1) * Math.cos((lat1 + lat2) / 2);
         double y = (lat2 - lat1);
         double d = Math.sqrt(x * x + y * y) * RADIUS_OF_EARTH_IN_METERS;
@@ -213,6 +227,20 @@ public class Geo {
         // v is length of the vector
         double v = distance(vector.getL1(), vector.getL2());
 
+        return distanceToVector(d1, d2, v);
+    }
+
+    /**
+     * Determines the distance between a location and a vector, as for distance(Location, Vector),
+     * but using the distances from the location to the ends of the vector and the length of the
+     * vector. This way the distances can be determined without Location and Vector objects.
+     *
+     * @param d1 Distance from the location to the first location of the vector
+     * @param d2 Distance from the location to the second location of the vector
+     * @param v Length of the vector
+     * @return Distance from the location to the vector
+     */
+    public static double distanceToVector(double d1, double d2, double v) {
         // Handle v==0 where we have a zero length vector as a special case
         // so that don't divide by zero and end up with a NaN.
         if (v == 0.0) return d1;
@@ -334,6 +362,19 @@ public class Geo {
         // v is length of the vector
         double v = distance(vector.getL1(), vector.getL2());
 
+        return matchDistanceAlongVector(d1, d2, v);
+    }
+
+    /**
+     * Same as matchDistanceAlongVector(Location, Vector) but using the distances from the location
+     * to the ends of the vector and the length of the vector.
+     *
+     * @param d1 Distance from the location to the first location of the vector
+     * @param d2 Distance from the location to the second location of the vector
+     * @param v Length of the vector
+     * @return Distance along the vector that the location best matches
+     */
+    public static double matchDistanceAlongVector(double d1, double d2, double v) {
         // Handle v==0 where we have a zero length vector as a special case
         // so that don't divide by zero and end up with a NaN.
         if (v == 0.0) return 0.0;
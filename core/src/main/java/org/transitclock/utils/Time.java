@@ -9,6 +9,7 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -100,10 +101,17 @@ public class Time {
     // Have a shared calendar so don't have to keep creating one
     private Calendar calendar;
 
+    // For converting between epoch times and times of day without having to
+    // use and synchronize the calendar
+    private final ZoneOffsetTable zoneOffsets;
+
+    // For the static getStartOfDay(). Replaced if the default timezone changes.
+    private static volatile ZoneOffsetTable defaultZoneOffsets;
 
     public Time(DbConfig dbConfig) {
         Agency agency = dbConfig.getFirstAgency();
         this.calendar = agency != null ? new GregorianCalendar(agency.getTimeZone()) : new GregorianCalendar();
+        this.zoneOffsets = new ZoneOffsetTable(calendar.getTimeZone().toZoneId());
     }
 
     /**
@@ -116,11 +124,14 @@ public class Time {
      */
     public Time(String timeZoneStr) {
         // If no time zone string specified then use local timezone
-        if (timeZoneStr == null)
+        if (timeZoneStr == null) {
+            this.zoneOffsets = new ZoneOffsetTable(ZoneId.systemDefault());
             return;
+        }
 
         TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
         this.calendar = new GregorianCalendar(timeZone);
+        this.zoneOffsets = new ZoneOffsetTable(timeZone.toZoneId());
 
         readableDateFormat24MsecForTimeZone.setCalendar(this.calendar);
         readableTimeFormatForTimeZone.setCalendar(this.calendar);
@@ -134,15 +145,7 @@ public class Time {
      * @return seconds into the day
      */
     public int getSecondsIntoDay(long epochTime) {
-        // Since setting and then getting time and this method might be called
-        // by multiple threads need to synchronize.
-        synchronized (calendar) {
-            // Get seconds into day
-            calendar.setTimeInMillis(epochTime);
-            return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60
-                    + calendar.get(Calendar.MINUTE) * 60
-                    + calendar.get(Calendar.SECOND);
-        }
+        return zoneOffsets.getSecondsIntoDay(epochTime);
     }
 
     /**
@@ -175,16 +178,18 @@ public class Time {
      * @return msec into the day
      */
     public int getMsecsIntoDay(Date epochTime) {
-        // Since setting and then getting time and this method might be called
-        // by multiple threads need to synchronize.
-        synchronized (calendar) {
-            // Get seconds into day
-            calendar.setTime(epochTime);
-            return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000
-                    + calendar.get(Calendar.MINUTE) * 60 * 1000
-                    + calendar.get(Calendar.SECOND) * 1000
-                    + calendar.get(Calendar.MILLISECOND);
-        }
+        return zoneOffsets.getMsecsIntoDay(epochTime.getTime());
+    }
+
+    /**
+     * Returns the table used for converting between epoch times and times of day for the timezone
+     * of this Time object. For hot paths that only have a long epoch time and so don't want to
+     * create Date objects.
+     *
+     * @return the ZoneOffsetTable for the timezone
+     */
+    public ZoneOffsetTable getZoneOffsets() {
+        return zoneOffsets;
     }
 
     /**
@@ -216,16 +221,13 @@ public class Time {
      * @return start of the current day
      */
     public static long getStartOfDay(Date date) {
-        Calendar calendar = new GregorianCalendar();
-        calendar.setTime(date);
-
-        calendar.set(Calendar.MILLISECOND, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-
-        // Get the epoch time
-        return calendar.getTimeInMillis();
+        ZoneOffsetTable offsets = defaultZoneOffsets;
+        ZoneId defaultZoneId = ZoneId.systemDefault();
+        if (offsets == null || !offsets.getZoneId().equals(defaultZoneId)) {
+            offsets = new ZoneOffsetTable(defaultZoneId);
+            defaultZoneOffsets = offsets;
+        }
+        return offsets.getStartOfDay(date.getTime());
     }
 
     /**
@@ -237,56 +239,7 @@ public class Time {
      * @return epoch time
      */
     public long getEpochTime(int secondsIntoDay, Date referenceDate) {
-        // Need to sync the calendar since reusing it.
-        synchronized (calendar) {
-            // Determine seconds, minutes, and hours
-            int seconds = secondsIntoDay % 60;
-            int minutesIntoDay = secondsIntoDay / 60;
-            int minutes = minutesIntoDay % 60;
-            int hoursIntoDay = minutesIntoDay / 60;
-            int hours = hoursIntoDay % 24;
-
-            // Set the calendar to use the reference time so that get the
-            // proper date.
-            calendar.setTime(referenceDate);
-
-            // Set the seconds, minutes, and hours so that the calendar has
-            // the proper time. Need to also set milliseconds because otherwise
-            // would use milliseconds from the referenceDate.
-            calendar.set(Calendar.MILLISECOND, 0);
-            calendar.set(Calendar.SECOND, seconds);
-            calendar.set(Calendar.MINUTE, minutes);
-            calendar.set(Calendar.HOUR_OF_DAY, hours);
-
-            // Get the epoch time
-            long epochTime = calendar.getTimeInMillis();
-
-            // Need to make sure that didn't have a problem around midnight.
-            // For example, a vehicle is supposed to depart a layover at
-            // 00:05:00 right after midnight but the AVL time might be for
-            // 23:57:13, which is actually for the previous day. If would
-            // simply set the hours, minutes and seconds then would wrongly
-            // get an epoch time for the previous day. Could have the same
-            // problem if the AVL time is right after midnight but the
-            // secondsIntoDay is just before midnight. Therefore if the
-            // resulting epoch time is too far away then adjust the epoch
-            // time by plus or minus day. Note: originally used 12 hours
-            // instead of 20 hours but that caused problems when trying to
-            // determine if a block is active because it might have started
-            // more than 12 hours ago. By using 20 hours we are much more likely
-            // to get the correct day because will only correct if really far
-            // off.
-            if (epochTime > referenceDate.getTime() + 20 * MS_PER_HOUR) {
-                // subtract a day
-                epochTime -= MS_PER_DAY;
-            } else if (epochTime < referenceDate.getTime() - 20 * MS_PER_HOUR) {
-                // add a day
-                epochTime += MS_PER_DAY;
-            }
-
-            // Get the results
-            return epochTime;
-        }
+        return getEpochTime(secondsIntoDay, referenceDate.getTime());
     }
 
     /**
@@ -298,7 +251,14 @@ public class Time {
      * @return epoch time
      */
     public long getEpochTime(int secondsIntoDay, long referenceTime) {
-        return getEpochTime(secondsIntoDay, new Date(referenceTime));
+        // The result is adjusted by a day if it is more than 20 hours from
+        // the reference time. This handles a vehicle that is supposed to
+        // depart a layover at 00:05:00 right after midnight but where the AVL
+        // time is 23:57:13, which is actually for the previous day. Note:
+        // originally used 12 hours instead of 20 hours but that caused
+        // problems when trying to determine if a block is active because it
+        // might have started more than 12 hours ago.
+        return zoneOffsets.getEpochTime(secondsIntoDay, referenceTime);
     }
 
     /**
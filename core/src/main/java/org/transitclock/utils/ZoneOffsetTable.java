@@ -0,0 +1,219 @@
+/* (C)2023 */
+package org.transitclock.utils;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * For quickly converting between epoch times and times of day for a timezone. The UTC offset
+ * transitions, such as for daylight savings time, of the timezone are determined once and kept in
+ * arrays so that the conversions only require a binary search of the transitions and some long
+ * arithmetic. This way no Calendar or Date objects need to be created and, since the object is
+ * immutable, no synchronization is needed. This is important because the conversions are done many
+ * times for each AVL report.
+ *
+ * <p>Times outside of the range of the table, which is from 1900 to 2200, are handled using the
+ * ZoneRules of the timezone, which is slower.
+ *
+ * <p>Times of day are wall clock times, as with Calendar.HOUR_OF_DAY. When a local time is
+ * ambiguous because clocks are set back the earlier time is used, and when a local time doesn't
+ * exist because clocks are set forward the time is moved forward by the length of the gap. This
+ * is the same as for ZonedDateTime.
+ */
+public class ZoneOffsetTable {
+
+    private static final long FIRST_TABLE_TIME = Instant.parse("1900-01-01T00:00:00Z").toEpochMilli();
+    private static final long LAST_TABLE_TIME = Instant.parse("2200-01-01T00:00:00Z").toEpochMilli();
+
+    private final ZoneId zoneId;
+    private final ZoneRules rules;
+
+    // Epoch times of the transitions, in msec, and the UTC offsets in msec
+    // before and after each transition
+    private final long[] transitionTimes;
+    private final int[] offsetsBefore;
+    private final int[] offsetsAfter;
+    // Local time where each transition starts to affect local times, which
+    // is the earlier of the local times just before and after the transition
+    private final long[] transitionLocalTimes;
+    // The offset before the first transition
+    private final int initialOffset;
+
+    /**
+     * Creates the table of offsets for the timezone.
+     *
+     * @param zoneId The timezone
+     */
+    public ZoneOffsetTable(ZoneId zoneId) {
+        this.zoneId = zoneId;
+        this.rules = zoneId.getRules();
+
+        List<ZoneOffsetTransition> transitions = new ArrayList<>();
+        ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochMilli(FIRST_TABLE_TIME));
+        while (transition != null && transition.getInstant().toEpochMilli() < LAST_TABLE_TIME) {
+            transitions.add(transition);
+            transition = rules.nextTransition(transition.getInstant());
+        }
+
+        int numberOfTransitions = transitions.size();
+        transitionTimes = new long[numberOfTransitions];
+        offsetsBefore = new int[numberOfTransitions];
+        offsetsAfter = new int[numberOfTransitions];
+        transitionLocalTimes = new long[numberOfTransitions];
+        for (int i = 0; i < numberOfTransitions; ++i) {
+            transition = transitions.get(i);
+            transitionTimes[i] = transition.getInstant().toEpochMilli();
+            offsetsBefore[i] = transition.getOffsetBefore().getTotalSeconds() * Time.MS_PER_SEC;
+            offsetsAfter[i] = transition.getOffsetAfter().getTotalSeconds() * Time.MS_PER_SEC;
+            transitionLocalTimes[i] = transitionTimes[i] + Math.min(offsetsBefore[i], offsetsAfter[i]);
+        }
+        initialOffset = rules.getOffset(Instant.ofEpochMilli(FIRST_TABLE_TIME)).getTotalSeconds() * Time.MS_PER_SEC;
+    }
+
+    /** @return The timezone of the table */
+    public ZoneId getZoneId() {
+        return zoneId;
+    }
+
+    /**
+     * Returns index of the last element of the sorted array that is less than or equal to the
+     * value, or -1 if there is no such element.
+     */
+    private static int lastIndexAtOrBefore(long[] sortedValues, long value) {
+        int low = 0;
+        int high = sortedValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedValues[mid] <= value) low = mid + 1;
+            else high = mid;
+        }
+        return low - 1;
+    }
+
+    /**
+     * Returns the UTC offset of the timezone at the specified time.
+     *
+     * @param epochTime
+     * @return offset in msec, to be added to the epoch time to get the local time
+     */
+    public int getOffsetMsecs(long epochTime) {
+        if (epochTime < FIRST_TABLE_TIME || epochTime >= LAST_TABLE_TIME)
+            return rules.getOffset(Instant.ofEpochMilli(epochTime)).getTotalSeconds() * Time.MS_PER_SEC;
+
+        int index = lastIndexAtOrBefore(transitionTimes, epochTime);
+        return index < 0 ? initialOffset : offsetsAfter[index];
+    }
+
+    /**
+     * Returns the local time, as msec since 1970-01-01T00:00 local time, for the epoch time.
+     *
+     * @param epochTime
+     * @return the local time in msec
+     */
+    public long getLocalTime(long epochTime) {
+        return epochTime + getOffsetMsecs(epochTime);
+    }
+
+    /**
+     * Returns the epoch time for the local time, as msec since 1970-01-01T00:00 local time.
+     *
+     * @param localTime
+     * @return the epoch time in msec
+     */
+    public long getEpochTimeForLocalTime(long localTime) {
+        if (localTime < FIRST_TABLE_TIME + Time.MS_PER_DAY || localTime >= LAST_TABLE_TIME - Time.MS_PER_DAY) {
+            LocalDateTime localDateTime = LocalDateTime.ofEpochSecond(
+                    Math.floorDiv(localTime, Time.MS_PER_SEC),
+                    (int) Math.floorMod(localTime, Time.MS_PER_SEC) * (int) Time.NSEC_PER_MSEC,
+                    ZoneOffset.UTC);
+            return ZonedDateTime.ofLocal(localDateTime, zoneId, null).toInstant().toEpochMilli();
+        }
+
+        int index = lastIndexAtOrBefore(transitionLocalTimes, localTime);
+        if (index < 0) return localTime - initialOffset;
+
+        // If after the gap or overlap of the transition then the offset after
+        // the transition applies. Otherwise the local time doesn't exist or is
+        // ambiguous, and in both cases using the offset before the transition
+        // gives the desired result.
+        if (localTime >= transitionTimes[index] + Math.max(offsetsBefore[index], offsetsAfter[index]))
+            return localTime - offsetsAfter[index];
+        return localTime - offsetsBefore[index];
+    }
+
+    /**
+     * Converts the epoch time into number of msec into the day.
+     *
+     * @param epochTime
+     * @return msec into the day
+     */
+    public int getMsecsIntoDay(long epochTime) {
+        return (int) Math.floorMod(getLocalTime(epochTime), Time.MS_PER_DAY);
+    }
+
+    /**
+     * Converts the epoch time into number of seconds into the day.
+     *
+     * @param epochTime
+     * @return seconds into the day
+     */
+    public int getSecondsIntoDay(long epochTime) {
+        return getMsecsIntoDay(epochTime) / Time.MS_PER_SEC;
+    }
+
+    /**
+     * Returns the number of days since 1970-01-01 of the local date of the epoch time.
+     *
+     * @param epochTime
+     * @return the epoch day
+     */
+    public long getEpochDay(long epochTime) {
+        return Math.floorDiv(getLocalTime(epochTime), Time.MS_PER_DAY);
+    }
+
+    /**
+     * Returns the epoch time of the start of the day of the epoch time.
+     *
+     * @param epochTime
+     * @return start of the day
+     */
+    public long getStartOfDay(long epochTime) {
+        return getEpochTimeForLocalTime(getEpochDay(epochTime) * Time.MS_PER_DAY);
+    }
+
+    /**
+     * Converts secondsIntoDay into an epoch time for the day of the reference time. If the result
+     * is more than 20 hours away from the reference time then it is adjusted by a day so that
+     * times before and after midnight are handled. Same as Time.getEpochTime().
+     *
+     * @param secondsIntoDay To be converted into epoch time. Can be greater than a day.
+     * @param referenceTime The approximate epoch time
+     * @return epoch time
+     */
+    public long getEpochTime(int secondsIntoDay, long referenceTime) {
+        // Only the time of day is used, so times past midnight map to the
+        // same day, which is then adjusted below
+        int seconds = secondsIntoDay % 60;
+        int minutesIntoDay = secondsIntoDay / 60;
+        int minutes = minutesIntoDay % 60;
+        int hours = (minutesIntoDay / 60) % 24;
+
+        long localTime = getEpochDay(referenceTime) * Time.MS_PER_DAY
+                + ((long) hours * Time.SEC_PER_HOUR + minutes * Time.SEC_PER_MIN + seconds) * Time.MS_PER_SEC;
+        long epochTime = getEpochTimeForLocalTime(localTime);
+
+        if (epochTime > referenceTime + 20 * Time.MS_PER_HOUR) {
+            epochTime -= Time.MS_PER_DAY;
+        } else if (epochTime < referenceTime - 20 * Time.MS_PER_HOUR) {
+            epochTime += Time.MS_PER_DAY;
+        }
+        return epochTime;
+    }
+}
@@ -0,0 +1,155 @@
+package org.transitclock.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.utils.Time;
+
+class ActiveBlocksIndexTest {
+
+    private static final String SERVICE_ID = "weekday";
+
+    private static final int[] BEFORE_SECS = {0, 1, 10 * Time.SEC_PER_MIN, 90 * Time.SEC_PER_MIN};
+    private static final int[] AFTER_START_SECS = {-1, 0, 1, 30 * Time.SEC_PER_MIN, 5 * Time.SEC_PER_HOUR};
+
+    private static Block block(String blockId, int startTime, int endTime) {
+        return new Block(0, blockId, SERVICE_ID, startTime, endTime, List.of());
+    }
+
+    private static List<Block> blocks() {
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(block("morning", 6 * Time.SEC_PER_HOUR, 9 * Time.SEC_PER_HOUR));
+        blocks.add(block("allDay", 5 * Time.SEC_PER_HOUR, 23 * Time.SEC_PER_HOUR));
+        // Runs past midnight, so times greater than a day
+        blocks.add(block("owl", 23 * Time.SEC_PER_HOUR + 30 * Time.SEC_PER_MIN, 26 * Time.SEC_PER_HOUR));
+        blocks.add(block("lateNight", 22 * Time.SEC_PER_HOUR, 25 * Time.SEC_PER_HOUR + 17));
+        blocks.add(block("startsAtMidnight", 0, Time.SEC_PER_HOUR));
+        // Ends exactly on a bucket boundary
+        blocks.add(block("bucketBoundary", 10 * Time.SEC_PER_HOUR, 10 * Time.SEC_PER_HOUR + 5 * Time.SEC_PER_MIN));
+        blocks.add(block("oneSecond", 12 * Time.SEC_PER_HOUR, 12 * Time.SEC_PER_HOUR + 1));
+        blocks.add(block("twoSeconds", 12 * Time.SEC_PER_HOUR, 12 * Time.SEC_PER_HOUR + 2));
+        blocks.add(block("empty", 13 * Time.SEC_PER_HOUR, 13 * Time.SEC_PER_HOUR));
+        // Same start time as another block
+        blocks.add(block("sameStart", 6 * Time.SEC_PER_HOUR, 7 * Time.SEC_PER_HOUR));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 50; ++i) {
+            int startTime = random.nextInt(28 * Time.SEC_PER_HOUR);
+            int endTime = startTime + random.nextInt(10 * Time.SEC_PER_HOUR);
+            blocks.add(block("random" + i, startTime, endTime));
+        }
+        return blocks;
+    }
+
+    /** The times to check. Includes the times around each block start and end time. */
+    private static Collection<Integer> timesToCheck(List<Block> blocks) {
+        TreeSet<Integer> times = new TreeSet<>();
+        for (int secs = -Time.SEC_PER_DAY; secs <= 2 * Time.SEC_PER_DAY; secs += 97) times.add(secs);
+        for (Block block : blocks) {
+            for (int offset = -1; offset <= 1; ++offset) {
+                for (int delta : new int[] {0, Time.SEC_PER_DAY, -Time.SEC_PER_DAY}) {
+                    times.add(block.getStartTime() + offset + delta);
+                    times.add(block.getEndTime() + offset + delta);
+                    for (int before : BEFORE_SECS) times.add(block.getStartTime() - before + offset + delta);
+                    for (int after : AFTER_START_SECS) times.add(block.getStartTime() + after + offset + delta);
+                }
+            }
+        }
+        return times;
+    }
+
+    private static ActiveBlocksIndex index(List<Block> blocks) {
+        return new ActiveBlocksIndex(null, serviceId -> SERVICE_ID.equals(serviceId) ? blocks : List.of());
+    }
+
+    @Test
+    public void addActiveMatchesBlockIsActive() {
+        List<Block> blocks = blocks();
+        ActiveBlocksIndex index = index(blocks);
+
+        for (int secsInDay : timesToCheck(blocks)) {
+            for (int before : BEFORE_SECS) {
+                for (int after : AFTER_START_SECS) {
+                    BitSet expected = new BitSet();
+                    for (int position = 0; position < blocks.size(); ++position) {
+                        if (blocks.get(position).isActiveForSecsInDay(secsInDay, before, after)) expected.set(position);
+                    }
+
+                    BitSet positions = new BitSet();
+                    index.addActive(SERVICE_ID, positions, secsInDay, before, after);
+                    assertThat(positions)
+                            .as("secsInDay=%d before=%d after=%d", secsInDay, before, after)
+                            .isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addAboutToStartMatchesBlockIsBeforeStartTime() {
+        List<Block> blocks = blocks();
+        ActiveBlocksIndex index = index(blocks);
+
+        // Times of day are within a day for the about to start check
+        for (int secsInDay : timesToCheck(blocks)) {
+            if (secsInDay < 0 || secsInDay >= Time.SEC_PER_DAY) continue;
+            for (int before : BEFORE_SECS) {
+                BitSet expected = new BitSet();
+                for (int position = 0; position < blocks.size(); ++position) {
+                    if (blocks.get(position).isBeforeStartTime(secsInDay, before)) expected.set(position);
+                }
+
+                BitSet positions = new BitSet();
+                index.addAboutToStart(SERVICE_ID, positions, secsInDay, before);
+                assertThat(positions)
+                        .as("secsInDay=%d before=%d", secsInDay, before)
+                        .isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void blockPastMidnightActiveForPreviousServiceDay() {
+        List<Block> blocks = blocks();
+        ActiveBlocksIndex index = index(blocks);
+        Map<String, Integer> positionByBlockId = new HashMap<>();
+        for (int position = 0; position < blocks.size(); ++position) {
+            positionByBlockId.put(blocks.get(position).getId(), position);
+        }
+
+        // 00:30 is within the owl block of the previous service day, which
+        // is checked by adding a day to the time of day
+        BitSet positions = new BitSet();
+        index.addActive(SERVICE_ID, positions, 30 * Time.SEC_PER_MIN + Time.SEC_PER_DAY, 0, -1);
+        assertThat(positions.get(positionByBlockId.get("owl"))).isTrue();
+        assertThat(positions.get(positionByBlockId.get("morning"))).isFalse();
+
+        // Just before midnight the startsAtMidnight block of the next
+        // service day is about to start
+        positions = new BitSet();
+        index.addActive(SERVICE_ID, positions, -5 * Time.SEC_PER_MIN, 10 * Time.SEC_PER_MIN, -1);
+        assertThat(positions.get(positionByBlockId.get("startsAtMidnight"))).isTrue();
+        positions = new BitSet();
+        index.addActive(SERVICE_ID, positions, -5 * Time.SEC_PER_MIN, 0, -1);
+        assertThat(positions.get(positionByBlockId.get("startsAtMidnight"))).isFalse();
+    }
+
+    @Test
+    public void unknownServiceIdHasNoBlocks() {
+        ActiveBlocksIndex index = index(blocks());
+
+        BitSet positions = new BitSet();
+        index.addActive("holiday", positions, 8 * Time.SEC_PER_HOUR, 0, -1);
+        index.addAboutToStart("holiday", positions, 8 * Time.SEC_PER_HOUR, Time.SEC_PER_HOUR);
+        assertThat(positions.isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,164 @@
+package org.transitclock.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Calendar;
+import org.transitclock.domain.structs.CalendarDate;
+import org.transitclock.gtfs.model.GtfsCalendar;
+import org.transitclock.utils.Time;
+
+class ServiceUtilsTest {
+
+    // Has DST changes on 2024-03-31 and 2024-10-27
+    private static final ZoneId ZONE = ZoneId.of("Europe/Warsaw");
+
+    private TimeZone originalDefault;
+
+    // Days that getServiceIdsForDayNoCache() was called for
+    private final List<Date> daysDetermined = new ArrayList<>();
+
+    private ServiceUtils serviceUtils;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // The service day is determined using the default timezone
+        originalDefault = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone(ZONE));
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        List<Calendar> calendars = List.of(
+                new Calendar(1, new GtfsCalendar("weekday", "1", "1", "1", "1", "1", "0", "0", "20240101", "20251231"),
+                        dateFormat),
+                new Calendar(1, new GtfsCalendar("weekend", "0", "0", "0", "0", "0", "1", "1", "20240101", "20251231"),
+                        dateFormat));
+
+        // Easter Monday 2024 has weekend service
+        Map<Long, List<CalendarDate>> calendarDates = new HashMap<>();
+        calendarDates.put(
+                time(LocalDate.of(2024, 4, 1), LocalTime.MIDNIGHT).getTime(),
+                List.of(calendarDate("weekday", false), calendarDate("weekend", true)));
+
+        serviceUtils = new ServiceUtils(ZONE, calendars, date -> calendarDates.get(Time.getStartOfDay(date))) {
+            @Override
+            public List<String> getServiceIdsForDayNoCache(Date epochTime) {
+                daysDetermined.add(epochTime);
+                return super.getServiceIdsForDayNoCache(epochTime);
+            }
+        };
+    }
+
+    @AfterEach
+    public void tearDown() {
+        TimeZone.setDefault(originalDefault);
+    }
+
+    private static CalendarDate calendarDate(String serviceId, boolean add) {
+        return new CalendarDate() {
+            @Override
+            public String getServiceId() {
+                return serviceId;
+            }
+
+            @Override
+            public boolean addService() {
+                return add;
+            }
+        };
+    }
+
+    private static Date time(LocalDate day, LocalTime timeOfDay) {
+        return Date.from(LocalDateTime.of(day, timeOfDay).atZone(ZONE).toInstant());
+    }
+
+    private static boolean isStartOfDay(Date date) {
+        return date.toInstant().atZone(ZONE).toLocalTime().equals(LocalTime.MIDNIGHT);
+    }
+
+    @Test
+    public void afternoonUsesServiceIdsOfStartOfDay() {
+        LocalDate easterMonday = LocalDate.of(2024, 4, 1);
+
+        assertThat(serviceUtils.getServiceIdsForDay(time(easterMonday, LocalTime.of(15, 30))))
+                .containsExactly("weekend");
+        assertThat(serviceUtils.getServiceIdsForDay(time(easterMonday, LocalTime.of(23, 59))))
+                .containsExactly("weekend");
+        assertThat(serviceUtils.getServiceIdsForDay(time(easterMonday.plusDays(1), LocalTime.of(0, 0))))
+                .containsExactly("weekday");
+
+        // The days are determined for the start of the day, not for noon
+        assertThat(daysDetermined).isNotEmpty().allMatch(ServiceUtilsTest::isStartOfDay);
+    }
+
+    @Test
+    public void tableExtendedWithOnlyNewDays() {
+        LocalDate day = LocalDate.of(2024, 3, 20);
+        serviceUtils.getServiceIdsForDay(time(day, LocalTime.NOON));
+        int initialDays = daysDetermined.size();
+        assertThat(initialDays).isGreaterThan(1);
+
+        // Days around the first one are already in the table
+        serviceUtils.getServiceIdsForDay(time(day.plusDays(5), LocalTime.NOON));
+        serviceUtils.getServiceIdsForDay(time(day.minusDays(3), LocalTime.NOON));
+        assertThat(daysDetermined).hasSize(initialDays);
+
+        // A later day extends the table but the days already determined are kept
+        daysDetermined.clear();
+        serviceUtils.getServiceIdsForDay(time(day.plusDays(100), LocalTime.NOON));
+        assertThat(daysDetermined).isNotEmpty().allMatch(date -> date.after(time(day.plusDays(5), LocalTime.NOON)));
+        daysDetermined.clear();
+        serviceUtils.getServiceIdsForDay(time(day.plusDays(50), LocalTime.NOON));
+        serviceUtils.getServiceIdsForDay(time(day, LocalTime.NOON));
+        assertThat(daysDetermined).isEmpty();
+    }
+
+    @Test
+    public void tableRecentredWhenItWouldGetTooLarge() {
+        LocalDate day = LocalDate.of(2024, 1, 10);
+        serviceUtils.getServiceIdsForDay(time(day, LocalTime.NOON));
+
+        // Too far away to extend the table so a new one is created around the
+        // requested day instead of one covering all the days in between
+        daysDetermined.clear();
+        LocalDate farDay = day.plusDays(600);
+        assertThat(serviceUtils.getServiceIdsForDay(time(farDay, LocalTime.NOON)))
+                .isEqualTo(serviceUtils.getServiceIdsForDayNoCache(time(farDay, LocalTime.MIDNIGHT)));
+        assertThat(daysDetermined).hasSizeLessThan(100);
+
+        // So the original day has to be determined again
+        daysDetermined.clear();
+        serviceUtils.getServiceIdsForDay(time(day, LocalTime.NOON));
+        assertThat(daysDetermined).isNotEmpty();
+    }
+
+    @Test
+    public void sameAsWithoutCacheAcrossDstChanges() {
+        for (LocalDate start : new LocalDate[] {LocalDate.of(2024, 3, 20), LocalDate.of(2024, 10, 20)}) {
+            for (LocalDate day = start; day.isBefore(start.plusDays(21)); day = day.plusDays(1)) {
+                Date startOfDay = time(day, LocalTime.MIDNIGHT);
+                List<String> expected = serviceUtils.getServiceIdsForDayNoCache(startOfDay);
+                // Every half hour, including the ones around the DST changes
+                for (long msec = startOfDay.getTime();
+                        msec < time(day.plusDays(1), LocalTime.MIDNIGHT).getTime();
+                        msec += 30 * Time.MS_PER_MIN) {
+                    Date date = new Date(msec);
+                    assertThat(serviceUtils.getServiceIdsForDay(date)).as(date.toString()).isEqualTo(expected);
+                    assertThat(serviceUtils.getServiceIdsForDayNoCache(date)).as(date.toString()).isEqualTo(expected);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.transitclock.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.SpatialMatcher.MatchingType;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+
+class SpatialMatcherTest {
+
+    private static final double LAT = 52.0;
+    private static final double LON = 21.0;
+    // Inbound direction runs back along the outbound one, about 33m north
+    private static final double INBOUND_LAT = 52.0003;
+
+    private static final long AVL_TIME = 1_700_000_000_000L;
+
+    /** Trip that knows its block without needing the core */
+    private static class TestTrip extends Trip {
+        private Block block;
+
+        @Override
+        public Block getBlock() {
+            return block;
+        }
+    }
+
+    private static Block block;
+    private static List<Trip> trips;
+
+    private static StopPath stopPath(int stopSeq, boolean layover, double maxDistance, Location... locations) {
+        StopPath stopPath = new StopPath(
+                1, "p" + stopSeq, "s" + stopSeq, stopSeq, false, "r1", layover, false, false, null, maxDistance, null, null);
+        stopPath.setLocations(new ArrayList<>(List.of(locations)));
+        // Creates the segment vectors, as when read from the db
+        stopPath.onLoad(null, (Object) null);
+        return stopPath;
+    }
+
+    /**
+     * A loop-back route: starts with a layover, goes east along a street, has a layover at the far
+     * end and then comes back west along a parallel street close enough that an AVL report can
+     * match both directions.
+     */
+    private static List<StopPath> loopBackStopPaths() {
+        List<StopPath> stopPaths = new ArrayList<>();
+        int stopSeq = 1;
+        stopPaths.add(stopPath(stopSeq++, true, 50.0, new Location(LAT - 0.0004, LON - 0.0005), new Location(LAT, LON)));
+        for (int i = 1; i <= 4; ++i) {
+            double fromLon = LON + 0.003 * (i - 1);
+            double toLon = LON + 0.003 * i;
+            stopPaths.add(stopPath(
+                    stopSeq++,
+                    false,
+                    i % 2 == 0 ? 40.0 : 70.0,
+                    new Location(LAT, fromLon),
+                    new Location(LAT + 0.00005, (fromLon + toLon) / 2),
+                    new Location(LAT, toLon)));
+        }
+        // Layover at the far end of the route
+        double endLon = LON + 0.012;
+        stopPaths.add(stopPath(
+                stopSeq++,
+                true,
+                50.0,
+                new Location(LAT, endLon),
+                new Location((LAT + INBOUND_LAT) / 2, endLon + 0.0005),
+                new Location(INBOUND_LAT, endLon)));
+        for (int i = 3; i >= 0; --i) {
+            double fromLon = LON + 0.003 * (i + 1);
+            double toLon = LON + 0.003 * i;
+            stopPaths.add(stopPath(
+                    stopSeq++,
+                    false,
+                    60.0,
+                    new Location(INBOUND_LAT, fromLon),
+                    new Location(INBOUND_LAT - 0.00002, (fromLon + toLon) / 2),
+                    new Location(INBOUND_LAT, toLon)));
+        }
+        return stopPaths;
+    }
+
+    @BeforeAll
+    public static void createBlock() throws Exception {
+        TripPattern tripPattern = new TripPattern() {};
+        Field stopPathsField = TripPattern.class.getDeclaredField("stopPaths");
+        stopPathsField.setAccessible(true);
+        stopPathsField.set(tripPattern, loopBackStopPaths());
+
+        // Two trips on the same trip pattern so that the layover at the start
+        // of the second one has a previous stop path
+        TestTrip trip1 = new TestTrip();
+        TestTrip trip2 = new TestTrip();
+        trips = List.of(trip1, trip2);
+        for (Trip trip : trips) {
+            trip.setTripPattern(tripPattern);
+            trip.setRouteId("r1");
+        }
+        block = new Block(1, "b1", "weekday", 0, 86400, trips) {
+            @Override
+            public int numStopPaths(int tripIndex) {
+                return getTrip(tripIndex).getNumberStopPaths();
+            }
+        };
+        trip1.block = block;
+        trip2.block = block;
+    }
+
+    private static void assertSameMatches(List<SpatialMatch> actual, List<SpatialMatch> expected, String description) {
+        assertThat(actual).as(description).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); ++i) {
+            SpatialMatch a = actual.get(i);
+            SpatialMatch e = expected.get(i);
+            assertThat(a.getIndices())
+                    .as(description)
+                    .usingRecursiveComparison()
+                    .comparingOnlyFields("tripIndex", "stopPathIndex", "segmentIndex")
+                    .isEqualTo(e.getIndices());
+            assertThat(a.getDistanceToSegment()).as(description).isEqualTo(e.getDistanceToSegment());
+            assertThat(a.getDistanceAlongSegment()).as(description).isEqualTo(e.getDistanceAlongSegment());
+        }
+    }
+
+    @Test
+    public void sameMatchesWithAndWithoutSegmentIndex() {
+        int numberOfMatches = 0;
+        boolean matchedBothDirections = false;
+        boolean matchedFarLayover = false;
+
+        List<Location> locations = new ArrayList<>();
+        for (double lat = LAT - 0.0010; lat <= LAT + 0.0014; lat += 0.0001) {
+            for (double lon = LON - 0.001; lon <= LON + 0.0135; lon += 0.0005) locations.add(new Location(lat, lon));
+        }
+        // Far away from the route, where only layovers can match
+        locations.add(new Location(LAT + 0.03, LON + 0.006));
+
+        for (Location loc : locations) {
+            for (float heading : new float[] {Float.NaN, 90.0f, 270.0f}) {
+                AvlReport avlReport =
+                        new AvlReport("v1", AVL_TIME, loc.getLat(), loc.getLon(), Float.NaN, heading, null);
+                for (Trip trip : trips) {
+                    List<SpatialMatch> expected = SpatialMatcher.getSpatialMatchesForTrip(
+                            avlReport, trip, MatchingType.AUTO_ASSIGNING_MATCHING, false);
+                    List<SpatialMatch> actual = SpatialMatcher.getSpatialMatchesForTrip(
+                            avlReport, trip, MatchingType.AUTO_ASSIGNING_MATCHING, true);
+                    assertSameMatches(actual, expected, loc + " heading " + heading + " trip " + trips.indexOf(trip));
+
+                    numberOfMatches += expected.size();
+                    boolean outbound = expected.stream()
+                            .anyMatch(m -> !m.isLayover() && m.getStopPathIndex() < 5);
+                    boolean inbound = expected.stream()
+                            .anyMatch(m -> !m.isLayover() && m.getStopPathIndex() > 5);
+                    matchedBothDirections |= outbound && inbound;
+                    matchedFarLayover |= expected.stream()
+                            .anyMatch(m -> m.isLayover() && m.getStopPathIndex() == 5);
+                }
+            }
+        }
+
+        // Make sure the route actually exercises the interesting cases
+        assertThat(numberOfMatches).isGreaterThan(locations.size());
+        assertThat(matchedBothDirections).isTrue();
+        assertThat(matchedFarLayover).isTrue();
+    }
+
+    @Test
+    public void onlyLayoversMatchFarFromRoute() {
+        AvlReport avlReport = new AvlReport("v1", AVL_TIME, LAT + 0.03, LON + 0.006, Float.NaN, Float.NaN, null);
+
+        List<SpatialMatch> matches = SpatialMatcher.getSpatialMatchesForTrip(
+                avlReport, trips.get(0), MatchingType.AUTO_ASSIGNING_MATCHING, true);
+
+        // Only the first layover of the block since then the vehicle is deadheading
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0).isLayover()).isTrue();
+        assertThat(matches.get(0).getStopPathIndex()).isZero();
+    }
+}
@@ -0,0 +1,112 @@
+package org.transitclock.core.avl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+
+class AvlReportProcessorQueueTest {
+
+    private static AvlReportProcessor processor(String vehicleId, long time) {
+        return new AvlReportProcessor(new AvlReport(vehicleId, time, 12.34, 43.21, null));
+    }
+
+    @Test
+    public void coalescesReportsForSameVehicle() {
+        AvlReportProcessorQueue queue = new AvlReportProcessorQueue(10);
+
+        assertThat(queue.offer(processor("v1", 1000))).isTrue();
+        assertThat(queue.offer(processor("v2", 1000))).isTrue();
+        assertThat(queue.offer(processor("v1", 3000))).isTrue();
+        // Older report doesn't replace the newer pending one
+        assertThat(queue.offer(processor("v1", 2000))).isTrue();
+
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.getCoalescedCount()).isEqualTo(2);
+
+        AvlReportProcessor first = queue.poll();
+        assertThat(first.getAvlReport().getVehicleId()).isEqualTo("v1");
+        assertThat(first.getAvlReport().getTime()).isEqualTo(3000);
+        assertThat(queue.poll().getAvlReport().getVehicleId()).isEqualTo("v2");
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.getDequeuedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void rejectsNewVehiclesWhenFull() {
+        AvlReportProcessorQueue queue = new AvlReportProcessorQueue(1);
+
+        assertThat(queue.offer(processor("v1", 1000))).isTrue();
+        assertThat(queue.offer(processor("v2", 1000))).isFalse();
+        // Vehicle that is already pending can still be updated
+        assertThat(queue.offer(processor("v1", 2000))).isTrue();
+
+        assertThat(queue.getRejectedCount()).isEqualTo(1);
+        assertThat(queue.remainingCapacity()).isZero();
+    }
+
+    @Test
+    public void rejectedVehicleLeavesNoPendingReport() {
+        AvlReportProcessorQueue queue = new AvlReportProcessorQueue(1);
+
+        assertThat(queue.offer(processor("v1", 1000))).isTrue();
+        assertThat(queue.offer(processor("v2", 1000))).isFalse();
+        assertThat(queue.poll().getAvlReport().getVehicleId()).isEqualTo("v1");
+
+        // The rejected report must not have been kept, otherwise the next
+        // report for v2 would be coalesced into it instead of being queued
+        assertThat(queue.remainingCapacity()).isEqualTo(1);
+        assertThat(queue.offer(processor("v2", 2000))).isTrue();
+        assertThat(queue.getCoalescedCount()).isZero();
+        AvlReportProcessor next = queue.poll();
+        assertThat(next.getAvlReport().getVehicleId()).isEqualTo("v2");
+        assertThat(next.getAvlReport().getTime()).isEqualTo(2000);
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void acceptedReportsAreNeverLostWhenRejectingConcurrently() throws Exception {
+        AvlReportProcessorQueue queue = new AvlReportProcessorQueue(2);
+        int numberVehicles = 8;
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            int threadNumber = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 20_000; ++i) {
+                    queue.offer(processor("v" + ((i + threadNumber) % numberVehicles), i));
+                }
+            }));
+        }
+        Thread consumer = new Thread(() -> {
+            while (running.get()) queue.poll();
+        });
+        threads.forEach(Thread::start);
+        consumer.start();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        running.set(false);
+        consumer.join();
+        while (queue.poll() != null) {}
+
+        // Every vehicle must be able to get a report queued again. A report
+        // that was accepted but left without a place in the queue would
+        // swallow all later reports for its vehicle.
+        assertThat(queue.remainingCapacity()).isEqualTo(2);
+        for (int v = 0; v < numberVehicles; ++v) {
+            assertThat(queue.offer(processor("v" + v, Long.MAX_VALUE))).isTrue();
+            assertThat(queue.poll().getAvlReport().getVehicleId()).isEqualTo("v" + v);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.transitclock.core.avl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+
+class VehicleShardedAvlExecutorTest {
+
+    @Test
+    public void latestReportPerVehicleWins() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<Long> processedTimes = new CopyOnWriteArrayList<>();
+
+        VehicleShardedAvlExecutor executor = new VehicleShardedAvlExecutor(1, 10);
+
+        // First report blocks the only lane so that the following ones pile up
+        executor.execute(new RecordingProcessor(new AvlReport("v1", 0, 12.34, 43.21, null), processedTimes, blocker, done) {
+            @Override
+            public void run() {
+                started.countDown();
+                super.run();
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.execute(new RecordingProcessor(new AvlReport("v1", 1000, 12.34, 43.21, null), processedTimes, null, done));
+        executor.execute(new RecordingProcessor(new AvlReport("v1", 3000, 12.34, 43.21, null), processedTimes, null, done));
+        executor.execute(new RecordingProcessor(new AvlReport("v1", 2000, 12.34, 43.21, null), processedTimes, null, done));
+        blocker.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(processedTimes).containsExactly(0L, 3000L);
+        assertThat(executor.getQueues().get(0).getCoalescedCount()).isEqualTo(2);
+    }
+
+    /** Returns a vehicle ID for each lane of the executor */
+    private static List<String> vehicleIdPerLane(VehicleShardedAvlExecutor executor) {
+        String[] vehicleIds = new String[executor.getNumberLanes()];
+        int found = 0;
+        for (int i = 0; found < vehicleIds.length; ++i) {
+            String vehicleId = "v" + i;
+            int lane = executor.laneIndex(vehicleId);
+            if (vehicleIds[lane] == null) {
+                vehicleIds[lane] = vehicleId;
+                ++found;
+            }
+        }
+        return List.of(vehicleIds);
+    }
+
+    @Test
+    public void reportsForVehicleProcessedInOrderBySameLane() throws InterruptedException {
+        int numberVehicles = 20;
+        int reportsPerVehicle = 500;
+        VehicleShardedAvlExecutor executor = new VehicleShardedAvlExecutor(4, numberVehicles);
+        Map<String, List<Long>> timesByVehicle = new ConcurrentHashMap<>();
+        Map<String, List<String>> threadsByVehicle = new ConcurrentHashMap<>();
+        CountDownLatch lastReportsProcessed = new CountDownLatch(numberVehicles);
+        long lastTime = reportsPerVehicle * 1000L;
+
+        for (int report = 1; report <= reportsPerVehicle; ++report) {
+            for (int vehicle = 0; vehicle < numberVehicles; ++vehicle) {
+                String vehicleId = "v" + vehicle;
+                executor.execute(new AvlReportProcessor(new AvlReport(vehicleId, report * 1000L, 12.34, 43.21, null)) {
+                    @Override
+                    public void run() {
+                        long time = getAvlReport().getTime();
+                        timesByVehicle.computeIfAbsent(vehicleId, k -> new CopyOnWriteArrayList<>()).add(time);
+                        threadsByVehicle
+                                .computeIfAbsent(vehicleId, k -> new CopyOnWriteArrayList<>())
+                                .add(Thread.currentThread().getName());
+                        if (time == lastTime) lastReportsProcessed.countDown();
+                    }
+                });
+            }
+        }
+
+        assertThat(lastReportsProcessed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(timesByVehicle).hasSize(numberVehicles);
+        for (int vehicle = 0; vehicle < numberVehicles; ++vehicle) {
+            String vehicleId = "v" + vehicle;
+            // Reports might be replaced by newer ones but never processed out of order
+            assertThat(timesByVehicle.get(vehicleId)).isSorted().doesNotHaveDuplicates().endsWith(lastTime);
+            assertThat(threadsByVehicle.get(vehicleId)).containsOnly(threadsByVehicle.get(vehicleId).get(0));
+        }
+        // The vehicles are spread across the lanes
+        assertThat(threadsByVehicle.values().stream().map(threads -> threads.get(0)).distinct())
+                .hasSize(4);
+    }
+
+    @Test
+    public void vehiclesInDifferentLanesProcessedInParallel() throws InterruptedException {
+        VehicleShardedAvlExecutor executor = new VehicleShardedAvlExecutor(2, 10);
+        List<String> vehicleIds = vehicleIdPerLane(executor);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch blockedDone = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        List<Long> processedTimes = new CopyOnWriteArrayList<>();
+
+        executor.execute(new RecordingProcessor(
+                new AvlReport(vehicleIds.get(0), 1000, 12.34, 43.21, null), processedTimes, blocker, blockedDone));
+        executor.execute(new RecordingProcessor(
+                new AvlReport(vehicleIds.get(1), 2000, 12.34, 43.21, null), processedTimes, null, otherDone));
+
+        // The vehicle in the other lane isn't held up by the blocked lane
+        assertThat(otherDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(processedTimes).containsExactly(2000L);
+        blocker.countDown();
+        assertThat(blockedDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(processedTimes).containsExactly(2000L, 1000L);
+    }
+
+    @Test
+    public void latestReportPerVehicleWinsInEachLane() throws InterruptedException {
+        VehicleShardedAvlExecutor executor = new VehicleShardedAvlExecutor(2, 10);
+        List<String> vehicleIds = vehicleIdPerLane(executor);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch done = new CountDownLatch(4);
+        Map<String, List<Long>> timesByVehicle = new ConcurrentHashMap<>();
+        for (String vehicleId : vehicleIds) timesByVehicle.put(vehicleId, new CopyOnWriteArrayList<>());
+
+        // Block both lanes so that the following reports pile up
+        for (String vehicleId : vehicleIds) {
+            executor.execute(new RecordingProcessor(
+                    new AvlReport(vehicleId, 0, 12.34, 43.21, null), timesByVehicle.get(vehicleId), blocker, done) {
+                @Override
+                public void run() {
+                    started.countDown();
+                    super.run();
+                }
+            });
+        }
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        for (long time : new long[] {1000, 4000, 2000, 3000}) {
+            for (String vehicleId : vehicleIds) {
+                executor.execute(new RecordingProcessor(
+                        new AvlReport(vehicleId, time, 12.34, 43.21, null), timesByVehicle.get(vehicleId), null, done));
+            }
+        }
+        blocker.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        for (String vehicleId : vehicleIds) {
+            assertThat(timesByVehicle.get(vehicleId)).containsExactly(0L, 4000L);
+        }
+        for (AvlReportProcessorQueue queue : executor.getQueues()) {
+            assertThat(queue.getCoalescedCount()).isEqualTo(3);
+        }
+    }
+
+    private static class RecordingProcessor extends AvlReportProcessor {
+        private final List<Long> processedTimes;
+        private final CountDownLatch blocker;
+        private final CountDownLatch done;
+
+        private RecordingProcessor(AvlReport avlReport, List<Long> processedTimes, CountDownLatch blocker, CountDownLatch done) {
+            super(avlReport);
+            this.processedTimes = processedTimes;
+            this.blocker = blocker;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (blocker != null) blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processedTimes.add(getAvlReport().getTime());
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.transitclock.core.dataCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.HistoricalCacheWarmUp.NamedCacheLoader;
+import org.transitclock.core.dataCache.HistoricalCacheWarmUp.RangeReader;
+import org.transitclock.domain.structs.Arrival;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+class HistoricalCacheWarmUpTest {
+
+    private static final Date START = Date.from(LocalDate.of(2024, 3, 20).atStartOfDay().toInstant(ZoneOffset.UTC));
+    private static final Date END = new Date(START.getTime() + 3 * Time.MS_PER_DAY);
+
+    private static final int ROWS_PER_DAY = 5;
+
+    private static ArrivalDeparture arrival(String vehicleId) {
+        ArrivalDeparture arrival = new Arrival() {};
+        arrival.setVehicleId(vehicleId);
+        return arrival;
+    }
+
+    private static int day(Date startDate) {
+        return (int) ((startDate.getTime() - START.getTime()) / Time.MS_PER_DAY);
+    }
+
+    /** Puts ROWS_PER_DAY arrivals, identified by day and row, into the queue */
+    private static void putRows(int day, BlockingQueue<Object> queue, Runnable afterRow)
+            throws InterruptedException {
+        for (int row = 0; row < ROWS_PER_DAY; ++row) {
+            queue.put(arrival("d" + day + "-" + row));
+            afterRow.run();
+        }
+    }
+
+    private static List<String> expectedRows(int days) {
+        List<String> rows = new ArrayList<>();
+        for (int day = 0; day < days; ++day) {
+            for (int row = 0; row < ROWS_PER_DAY; ++row) rows.add("d" + day + "-" + row);
+        }
+        return rows;
+    }
+
+    @Test
+    public void daysDrainedInTimeOrderEvenWhenLaterDaysReadFirst() throws Exception {
+        int queueCapacity = 2;
+        // Released once the later days have filled their queues
+        CountDownLatch laterDaysQueued = new CountDownLatch(2 * queueCapacity);
+        RangeReader reader = (startDate, endDate, queue) -> {
+            int day = day(startDate);
+            if (day == 0) {
+                assertThat(laterDaysQueued.await(10, TimeUnit.SECONDS)).isTrue();
+                putRows(day, queue, () -> {});
+            } else {
+                putRows(day, queue, laterDaysQueued::countDown);
+            }
+        };
+        List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+        HistoricalCacheWarmUp warmUp = new HistoricalCacheWarmUp(
+                List.of(new NamedCacheLoader("test", arrivalDeparture -> loaded.add(arrivalDeparture.getVehicleId()))),
+                reader,
+                3,
+                queueCapacity);
+
+        warmUp.populate(START, END);
+
+        assertThat(loaded).containsExactlyElementsOf(expectedRows(3));
+        assertThat(warmUp.isComplete()).isTrue();
+    }
+
+    @Test
+    public void eachLoaderGetsRowsInOrderDespiteErrorsInOthers() throws Exception {
+        RangeReader reader = (startDate, endDate, queue) -> putRows(day(startDate), queue, () -> {});
+        List<String> loaded = new ArrayList<>();
+        NamedCacheLoader failing = new NamedCacheLoader("failing", arrivalDeparture -> {
+            throw new IllegalStateException("bad row");
+        });
+        NamedCacheLoader working = new NamedCacheLoader("working", arrivalDeparture -> loaded.add(arrivalDeparture.getVehicleId()));
+        HistoricalCacheWarmUp warmUp = new HistoricalCacheWarmUp(List.of(failing, working), reader, 2, 1);
+
+        warmUp.populate(START, END);
+
+        assertThat(loaded).containsExactlyElementsOf(expectedRows(3));
+        assertThat(failing.errorCount().get()).isEqualTo(3 * ROWS_PER_DAY);
+        assertThat(working.errorCount().get()).isZero();
+    }
+
+    @Test
+    public void failureReadingDayStopsAfterEarlierDays() {
+        RangeReader reader = (startDate, endDate, queue) -> {
+            int day = day(startDate);
+            if (day == 1) throw new IllegalStateException("db gone");
+            putRows(day, queue, () -> {});
+        };
+        List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+        HistoricalCacheWarmUp warmUp = new HistoricalCacheWarmUp(
+                List.of(new NamedCacheLoader("test", arrivalDeparture -> loaded.add(arrivalDeparture.getVehicleId()))),
+                reader,
+                3,
+                ROWS_PER_DAY);
+
+        assertThatThrownBy(() -> warmUp.populate(START, END))
+                .isInstanceOf(ExecutionException.class)
+                .hasRootCauseMessage("db gone");
+        assertThat(loaded).containsExactlyElementsOf(expectedRows(1));
+        assertThat(warmUp.isComplete()).isFalse();
+    }
+}
@@ -0,0 +1,157 @@
+package org.transitclock.core.dataCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+class InMemoryKalmanErrorCacheTest {
+
+    private static final long MAX_IDLE_MSEC = 21 * Time.MS_PER_DAY;
+
+    @TempDir
+    Path tempDir;
+
+    private static KalmanErrorCacheKey key(String tripId, int stopPathIndex) {
+        return new KalmanErrorCacheKey(tripId, stopPathIndex);
+    }
+
+    @Test
+    public void keyPacking() {
+        int[] tripNumbers = {0, 1, 12345, Integer.MAX_VALUE};
+        int[] stopPathIndices = {0, 1, 57, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int tripNumber : tripNumbers) {
+            for (int stopPathIndex : stopPathIndices) {
+                long key = InMemoryKalmanErrorCache.key(tripNumber, stopPathIndex);
+                assertThat(InMemoryKalmanErrorCache.tripNumber(key)).isEqualTo(tripNumber);
+                assertThat(InMemoryKalmanErrorCache.stopPathIndex(key)).isEqualTo(stopPathIndex);
+            }
+        }
+        // A negative stop path index must not spill into the trip number
+        assertThat(InMemoryKalmanErrorCache.key(1, -1)).isNotEqualTo(InMemoryKalmanErrorCache.key(0, -1));
+    }
+
+    @Test
+    public void putAndGet() {
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(null, MAX_IDLE_MSEC);
+
+        assertThat(cache.getErrorValue(key("t1", 3))).isNull();
+        cache.putErrorValue(key("t1", 3), 10.0);
+        cache.putErrorValue(key("t1", 4), 20.0);
+        cache.putErrorValue(key("t2", 3), 30.0);
+
+        assertThat(cache.getErrorValue(key("t1", 3)).getError()).isEqualTo(10.0);
+        assertThat(cache.getErrorValue(key("t1", 4)).getError()).isEqualTo(20.0);
+        assertThat(cache.getErrorValue(key("t2", 3)).getError()).isEqualTo(30.0);
+        assertThat(cache.getKeys()).containsExactlyInAnyOrder(key("t1", 3), key("t1", 4), key("t2", 3));
+    }
+
+    @Test
+    public void putStoresNewValue() {
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(null, MAX_IDLE_MSEC);
+
+        cache.putErrorValue(key("t1", 0), 10.0);
+        KalmanError first = cache.getErrorValue(key("t1", 0));
+        assertThat(first.getUpdates()).isZero();
+
+        cache.putErrorValue(key("t1", 0), 12.0);
+        KalmanError second = cache.getErrorValue(key("t1", 0));
+        assertThat(second.getError()).isEqualTo(12.0);
+        assertThat(second.getUpdates()).isEqualTo(1);
+        // The value returned earlier isn't changed
+        assertThat(first.getError()).isEqualTo(10.0);
+        assertThat(first.getUpdates()).isZero();
+
+        // Same as KalmanError.setError() updates only counted if changed
+        cache.putErrorValue(key("t1", 0), 12.0);
+        assertThat(cache.getErrorValue(key("t1", 0)).getUpdates()).isEqualTo(1);
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        Path snapshotFile = tempDir.resolve("kalman/errors.snapshot");
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(snapshotFile, MAX_IDLE_MSEC);
+        cache.putErrorValue(key("t1", 0), 10.0);
+        cache.putErrorValue(key("t1", 0), 11.0);
+        cache.putErrorValue(key("t1", 7), 20.0);
+        cache.putErrorValue(key("t2", Integer.MAX_VALUE), 30.0);
+        cache.writeSnapshot();
+        assertThat(Files.exists(snapshotFile)).isTrue();
+
+        // Trip numbers are assigned in a different order when read back in
+        InMemoryKalmanErrorCache restored = new InMemoryKalmanErrorCache(null, MAX_IDLE_MSEC);
+        restored.putErrorValue(key("t2", 1), 5.0);
+        restored = new InMemoryKalmanErrorCache(snapshotFile, MAX_IDLE_MSEC);
+
+        assertThat(restored.getKeys())
+                .containsExactlyInAnyOrder(key("t1", 0), key("t1", 7), key("t2", Integer.MAX_VALUE));
+        assertThat(restored.getErrorValue(key("t1", 0))).isEqualTo(cache.getErrorValue(key("t1", 0)));
+        assertThat(restored.getErrorValue(key("t1", 0)).getUpdates()).isEqualTo(1);
+        assertThat(restored.getErrorValue(key("t1", 7))).isEqualTo(cache.getErrorValue(key("t1", 7)));
+        assertThat(restored.getErrorValue(key("t2", Integer.MAX_VALUE)).getError()).isEqualTo(30.0);
+    }
+
+    @Test
+    public void snapshotRoundTripAfterTripsRemoved() throws Exception {
+        Path snapshotFile = tempDir.resolve("removed.snapshot");
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(snapshotFile, MAX_IDLE_MSEC);
+        cache.putErrorValue(key("old", 0), 1.0);
+        cache.removeIdle(SystemTime.getMillis() + MAX_IDLE_MSEC + Time.MS_PER_MIN);
+        cache.putErrorValue(key("new", 0), 2.0);
+        cache.writeSnapshot();
+
+        // Trip numbers in the snapshot don't start at 0 anymore
+        InMemoryKalmanErrorCache restored = new InMemoryKalmanErrorCache(snapshotFile, MAX_IDLE_MSEC);
+        assertThat(restored.getKeys()).containsExactly(key("new", 0));
+        assertThat(restored.getErrorValue(key("new", 0)).getError()).isEqualTo(2.0);
+    }
+
+    @Test
+    public void invalidSnapshotIgnored() throws Exception {
+        Path snapshotFile = tempDir.resolve("invalid.snapshot");
+        Files.write(snapshotFile, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(snapshotFile, MAX_IDLE_MSEC);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void removesIdleErrorsAndTrips() {
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(null, MAX_IDLE_MSEC);
+        cache.putErrorValue(key("t1", 0), 10.0);
+        cache.putErrorValue(key("t1", 1), 11.0);
+        cache.putErrorValue(key("t2", 0), 20.0);
+        long now = SystemTime.getMillis();
+
+        assertThat(cache.removeIdle(now)).isZero();
+        assertThat(cache.size()).isEqualTo(3);
+        assertThat(cache.numberTrips()).isEqualTo(2);
+
+        assertThat(cache.removeIdle(now + MAX_IDLE_MSEC + Time.MS_PER_MIN)).isEqualTo(3);
+        assertThat(cache.size()).isZero();
+        assertThat(cache.numberTrips()).isZero();
+        assertThat(cache.getKeys()).isEmpty();
+
+        // A trip that is used again gets a new number
+        cache.putErrorValue(key("t1", 0), 12.0);
+        assertThat(cache.getErrorValue(key("t1", 0)).getError()).isEqualTo(12.0);
+        assertThat(cache.getKeys()).containsExactly(key("t1", 0));
+    }
+
+    @Test
+    public void keepsTripsThatStillHaveErrors() {
+        InMemoryKalmanErrorCache cache = new InMemoryKalmanErrorCache(null, MAX_IDLE_MSEC);
+        cache.putErrorValue(key("t1", 0), 10.0);
+        // Looking up a trip without errors assigns it a number
+        assertThat(cache.getErrorValue(key("unused", 0))).isNull();
+        assertThat(cache.numberTrips()).isEqualTo(2);
+
+        assertThat(cache.removeIdle(SystemTime.getMillis())).isZero();
+        assertThat(cache.numberTrips()).isEqualTo(1);
+        assertThat(cache.getErrorValue(key("t1", 0)).getError()).isEqualTo(10.0);
+    }
+}
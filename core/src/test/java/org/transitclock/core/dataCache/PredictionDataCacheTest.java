@@ -1,51 +1,164 @@
 package org.transitclock.core.dataCache;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
 import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.service.dto.IpcPrediction;
+import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.utils.Time;
 
 class PredictionDataCacheTest {
+
+    private final PredictionDataCache cache = new PredictionDataCache();
+
+    private final long now = System.currentTimeMillis();
+
+    private static Trip trip(String headsign, String directionId) {
+        Trip trip = new Trip() {};
+        trip.setTripId("t-" + headsign);
+        trip.setRouteId("r1");
+        trip.setRouteShortName("1");
+        trip.setHeadsign(headsign);
+        trip.setDirectionId(directionId);
+        trip.setTripPattern(new TripPattern() {});
+        return trip;
+    }
+
+    private static final Trip TO_DOWNTOWN = trip("Downtown", "0");
+    private static final Trip TO_AIRPORT = trip("Airport", "1");
+
+    private IpcPrediction prediction(String vehicleId, Trip trip, String stopId, long predictionTime) {
+        AvlReport avlReport = new AvlReport(vehicleId, now, 12.34, 43.21, null);
+        avlReport.setTimeProcessed();
+        return new IpcPrediction(
+                avlReport,
+                stopId,
+                1,
+                trip,
+                predictionTime,
+                predictionTime,
+                false,
+                false,
+                false,
+                false,
+                IpcPrediction.ArrivalOrDeparture.DEPARTURE,
+                null,
+                0,
+                0,
+                false,
+                now);
+    }
+
+    private List<IpcPredictionsForRouteStopDest> predictionsForStop(String stopId) {
+        return cache.getPredictionsForRouteStop("1", stopId);
+    }
+
+    @Test
+    public void updatePublishesNewSnapshotWithoutChangingPrevious() {
+        IpcPrediction v1s1 = prediction("v1", TO_DOWNTOWN, "s1", now + 2 * Time.MS_PER_MIN);
+        IpcPrediction v1s2 = prediction("v1", TO_DOWNTOWN, "s2", now + 4 * Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(v1s1, v1s2));
+
+        List<IpcPredictionsForRouteStopDest> s1Before = predictionsForStop("s1");
+        List<IpcPredictionsForRouteStopDest> s2Before = predictionsForStop("s2");
+        assertThat(s1Before).hasSize(1);
+        assertThat(s1Before.get(0).getPredictionsForRouteStop()).containsExactly(v1s1);
+
+        // Another vehicle with an earlier prediction for s1 only
+        IpcPrediction v2s1 = prediction("v2", TO_DOWNTOWN, "s1", now + Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(v2s1));
+
+        // The earlier snapshot is unchanged, the new one has both ordered by time
+        assertThat(s1Before.get(0).getPredictionsForRouteStop()).containsExactly(v1s1);
+        assertThat(predictionsForStop("s1").get(0).getPredictionsForRouteStop()).containsExactly(v2s1, v1s1);
+        // Untouched route/stops are shared with the previous snapshot
+        assertThat(predictionsForStop("s2")).isSameAs(s2Before);
+
+        // New predictions for v1 replace its old ones and the one for s2
+        // without a new prediction is removed
+        IpcPrediction v1s1New = prediction("v1", TO_DOWNTOWN, "s1", now + 30 * Time.MS_PER_SEC);
+        cache.updatePredictions(List.of(v1s1, v1s2), List.of(v1s1New));
+        assertThat(predictionsForStop("s1").get(0).getPredictionsForRouteStop()).containsExactly(v1s1New, v2s1);
+        assertThat(predictionsForStop("s2").get(0).getPredictionsForRouteStop()).isEmpty();
+        assertThat(s2Before.get(0).getPredictionsForRouteStop()).containsExactly(v1s2);
+
+        // Removing all predictions for v2
+        cache.updatePredictions(List.of(v2s1), null);
+        assertThat(predictionsForStop("s1").get(0).getPredictionsForRouteStop()).containsExactly(v1s1New);
+    }
+
+    @Test
+    public void destinationsKeptSeparate() {
+        IpcPrediction downtown = prediction("v1", TO_DOWNTOWN, "s1", now + 2 * Time.MS_PER_MIN);
+        IpcPrediction airport = prediction("v2", TO_AIRPORT, "s1", now + Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(downtown));
+        cache.updatePredictions(null, List.of(airport));
+
+        List<IpcPredictionsForRouteStopDest> predictions = predictionsForStop("s1");
+        assertThat(predictions).extracting(IpcPredictionsForRouteStopDest::getHeadsign)
+                .containsExactly("Downtown", "Airport");
+        assertThat(predictions.get(0).getPredictionsForRouteStop()).containsExactly(downtown);
+        assertThat(predictions.get(1).getPredictionsForRouteStop()).containsExactly(airport);
+    }
+
+    @Test
+    public void readsDontCopyWhenNothingFilteredOut() {
+        cache.updatePredictions(null, List.of(prediction("v1", TO_DOWNTOWN, "s1", now + 2 * Time.MS_PER_MIN)));
+        cache.updatePredictions(null, List.of(prediction("v2", TO_AIRPORT, "s1", now + Time.MS_PER_MIN)));
+        List<IpcPredictionsForRouteStopDest> predictions = predictionsForStop("s1");
+
+        assertThat(cache.filterPredictions(predictions, null, Integer.MAX_VALUE, Double.NaN))
+                .isSameAs(predictions);
+
+        List<IpcPredictionsForRouteStopDest> allPredictions = cache.getAllPredictions(Integer.MAX_VALUE, Long.MAX_VALUE);
+        assertThat(allPredictions).hasSize(2);
+        assertThat(allPredictions).allMatch(preds -> preds == predictions.get(0) || preds == predictions.get(1));
+    }
+
     @Test
-    void test() {
-//        String projectId = args.length > 0 ? args[0] : "testProjectId";
-//
-//        PredictionDataCache testManager = new PredictionDataCache();
-//        PredictionsServiceImpl.start(testManager);
-//        List<Prediction> predsV1 = new ArrayList<Prediction>();
-//        predsV1.add(new Prediction("v1", "s1", 1, null, 100, 99, 0, false, null, 0, 0.0f, true));
-//        predsV1.add(new Prediction("v1", "s2", 2, null, 200, 99, 0, false, null, 0, 0.0f, true));
-//        predsV1.add(new Prediction("v1", "s1", 1, null, 300, 99, 0, false, null, 0, 0.0f, true));
-//        testManager.updatePredictions(null, predsV1);
-//
-//        List<Prediction> predsForS1 = testManager.getPredictions(null, "s1");
-//        System.err.println("after v1 predsForS1=" + predsForS1);
-//
-//        List<Prediction> predsV2 = new ArrayList<Prediction>();
-//        predsV2.add(new Prediction("v2", "s1", 1, null, 150, 99, 0, false, null, 0, 0.0f, true));
-//        predsV2.add(new Prediction("v2", "s2", 2, null, 250, 99, 0, false, null, 0, 0.0f, true));
-//        predsV2.add(new Prediction("v2", "s1", 1, null, 350, 99, 0, false, null, 0, 0.0f, true));
-//        testManager.updatePredictions(null, predsV2);
-//
-//        predsForS1 = testManager.getPredictions(null, "s1");
-//        System.err.println("after v2 predsForS1=" + predsForS1);
-//
-//        List<Prediction> predsV1new = new ArrayList<Prediction>();
-//        predsV1new.add(new Prediction("v1", "s1", 1, null, 110, 99, 0, false, null, 0, 0.0f, true));
-//        predsV1new.add(new Prediction("v1", "s2", 2, null, 210, 99, 0, false, null, 0, 0.0f, true));
-//        predsV1new.add(new Prediction("v1", "s1", 1, null, 310, 99, 0, false, null, 0, 0.0f, true));
-//        testManager.updatePredictions(predsV1, predsV1new);
-
-//        predsForS1 = testManager.getPredictions(null, "s1");
-//        System.err.println("after v1 update predsForS1=" + predsForS1);
-//
-//        List<Prediction> predsV3 = new ArrayList<Prediction>();
-//        predsV3.add(new Prediction("v3", "s1", 1, null, 120, 99, 0, false, null, 0, 0.0f, true));
-//        predsV3.add(new Prediction("v3", "s2", 2, null, 220, 99, 0, false, null, 0, 0.0f, true));
-//        predsV3.add(new Prediction("v3", "s1", 1, null, 310, 99, 0, false, null, 0, 0.0f, true));
-//        predsV3.add(new Prediction("v3", "s1", 1, null, 410, 99, 0, false, null, 0, 0.0f, true));
-//        predsV3.add(new Prediction("v3", "s1", 1, null, 510, 99, 0, false, null, 0, 0.0f, true));
-//        testManager.updatePredictions(null, predsV3);
-//
-//        predsForS1 = testManager.getPredictions(null, "s1");
-//        System.err.println("after v3 predsForS1=" + predsForS1);
-    }
-
-}
\ No newline at end of file
+    public void readsCopyOnlyWhatIsFilteredOut() {
+        IpcPrediction v1 = prediction("v1", TO_DOWNTOWN, "s1", now + Time.MS_PER_MIN);
+        IpcPrediction v2 = prediction("v2", TO_DOWNTOWN, "s1", now + 2 * Time.MS_PER_MIN);
+        IpcPrediction v3 = prediction("v3", TO_AIRPORT, "s1", now + 3 * Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(v1));
+        cache.updatePredictions(null, List.of(v2));
+        cache.updatePredictions(null, List.of(v3));
+        List<IpcPredictionsForRouteStopDest> predictions = predictionsForStop("s1");
+
+        // Other direction left out but the predictions object is shared
+        List<IpcPredictionsForRouteStopDest> forDirection = cache.filterPredictions(predictions, "1", Integer.MAX_VALUE, Double.NaN);
+        assertThat(forDirection).hasSize(1);
+        assertThat(forDirection.get(0)).isSameAs(predictions.get(1));
+
+        // Limiting the number of predictions copies only the destination that has too many
+        List<IpcPredictionsForRouteStopDest> limited = cache.filterPredictions(predictions, null, 1, Double.NaN);
+        assertThat(limited.get(0).getPredictionsForRouteStop()).containsExactly(v1);
+        assertThat(limited.get(1)).isSameAs(predictions.get(1));
+        assertThat(predictions.get(0).getPredictionsForRouteStop()).containsExactly(v1, v2);
+
+        // The distance to the stop is set on a copy
+        List<IpcPredictionsForRouteStopDest> byLocation = cache.filterPredictions(predictions, null, Integer.MAX_VALUE, 100.0);
+        assertThat(byLocation).extracting(IpcPredictionsForRouteStopDest::getDistanceToStop).containsExactly(100.0, 100.0);
+        assertThat(byLocation.get(0).getPredictionsForRouteStop()).isSameAs(predictions.get(0).getPredictionsForRouteStop());
+        assertThat(predictions.get(0).getDistanceToStop()).isNaN();
+    }
+
+    @Test
+    public void expiredPredictionsLeftOutOfReads() {
+        IpcPrediction expired = prediction("v1", TO_DOWNTOWN, "s1", now - Time.MS_PER_MIN);
+        IpcPrediction current = prediction("v2", TO_DOWNTOWN, "s1", now + Time.MS_PER_MIN);
+        // Updating predictions drops expired ones of other vehicles so add the expired one last
+        cache.updatePredictions(null, List.of(current));
+        cache.updatePredictions(null, List.of(expired));
+        List<IpcPredictionsForRouteStopDest> predictions = predictionsForStop("s1");
+
+        List<IpcPredictionsForRouteStopDest> filtered = cache.filterPredictions(predictions, null, Integer.MAX_VALUE, Double.NaN);
+        assertThat(filtered.get(0).getPredictionsForRouteStop()).containsExactly(current);
+        // Reading doesn't change the snapshot
+        assertThat(predictions.get(0).getPredictionsForRouteStop()).containsExactly(expired, current);
+    }
+}
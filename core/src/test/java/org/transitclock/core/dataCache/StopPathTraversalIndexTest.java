@@ -0,0 +1,265 @@
+package org.transitclock.core.dataCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Field;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache;
+import org.transitclock.domain.structs.Arrival;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+class StopPathTraversalIndexTest {
+
+    private static final long NOON =
+            LocalDate.of(2024, 3, 20).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+    private CacheManager cacheManager;
+    private StopArrivalDepartureCache stopCache;
+    private StopPathTraversalIndex index;
+
+    /** The departure from the previous stop and the arrival at the stop, which can be null */
+    private record Traversal(IpcArrivalDeparture departure, IpcArrivalDeparture arrival) {}
+
+    @BeforeEach
+    void createCaches() {
+        cacheManager = CacheManagerBuilder.newCacheManagerBuilder().build(true);
+        stopCache = new StopArrivalDepartureCache(cacheManager.createCache(
+                "arrivalDeparturesByStop",
+                CacheConfigurationBuilder.newCacheConfigurationBuilder(
+                        StopArrivalDepartureCacheKey.class, StopEvents.class, ResourcePoolsBuilder.heap(1000))));
+        index = new StopPathTraversalIndex();
+    }
+
+    @AfterEach
+    void closeCaches() {
+        cacheManager.close();
+    }
+
+    private static void set(ArrivalDeparture arrivalDeparture, String fieldName, Object value) throws Exception {
+        Field field = ArrivalDeparture.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(arrivalDeparture, value);
+    }
+
+    private static ArrivalDeparture event(
+            boolean isArrival, String stopId, String vehicleId, String tripId, String directionId, long time)
+            throws Exception {
+        Stop stop = new Stop() {
+            @Override
+            public String getId() {
+                return stopId;
+            }
+        };
+        // Gets the stop without needing the core
+        ArrivalDeparture arrivalDeparture = isArrival
+                ? new Arrival() {
+                    @Override
+                    public Stop getStop() {
+                        return stop;
+                    }
+                }
+                : new Departure() {
+                    @Override
+                    public Stop getStop() {
+                        return stop;
+                    }
+                };
+        set(arrivalDeparture, "isArrival", isArrival);
+        set(arrivalDeparture, "stopId", stopId);
+        set(arrivalDeparture, "vehicleId", vehicleId);
+        set(arrivalDeparture, "tripId", tripId);
+        set(arrivalDeparture, "directionId", directionId);
+        set(arrivalDeparture, "time", new Date(time));
+        return arrivalDeparture;
+    }
+
+    private static ArrivalDeparture departure(String stopId, String vehicleId, String tripId, String directionId, long time)
+            throws Exception {
+        return event(false, stopId, vehicleId, tripId, directionId, time);
+    }
+
+    private static ArrivalDeparture arrival(String stopId, String vehicleId, String tripId, String directionId, long time)
+            throws Exception {
+        return event(true, stopId, vehicleId, tripId, directionId, time);
+    }
+
+    private void put(ArrivalDeparture... arrivalDepartures) {
+        for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+            stopCache.putArrivalDeparture(arrivalDeparture);
+            index.putArrivalDeparture(arrivalDeparture);
+        }
+    }
+
+    /**
+     * How PredictionGenerator.getLastVehicleTravelTime() found the traversal before the index, by
+     * going through the sorted history of both stops for the day.
+     */
+    private Traversal traversalFromStopCache(
+            String previousStopId, String stopId, Date time, String directionId, String vehicleId) {
+        List<IpcArrivalDeparture> previousStopList =
+                stopCache.getStopHistory(new StopArrivalDepartureCacheKey(previousStopId, time));
+        List<IpcArrivalDeparture> stopList = stopCache.getStopHistory(new StopArrivalDepartureCacheKey(stopId, time));
+        if (previousStopList == null) return null;
+
+        for (IpcArrivalDeparture departure : previousStopList) {
+            if (departure.isDeparture()
+                    && !departure.getVehicleId().equals(vehicleId)
+                    && (directionId == null || directionId.equals(departure.getDirectionId()))) {
+                if (stopList != null) {
+                    for (IpcArrivalDeparture arrival : stopList) {
+                        if (arrival.isArrival()
+                                && arrival.getVehicleId().equals(departure.getVehicleId())
+                                && arrival.getTripId().equals(departure.getTripId()))
+                            return new Traversal(departure, arrival);
+                    }
+                }
+                return new Traversal(departure, null);
+            }
+        }
+        return null;
+    }
+
+    /** How PredictionGenerator finds the traversal using the index */
+    private Traversal traversalFromIndex(
+            String previousStopId, String stopId, Date time, String directionId, String vehicleId) {
+        IpcArrivalDeparture departure = index.getLastDeparture(previousStopId, time, directionId, vehicleId);
+        if (departure == null) return null;
+        return new Traversal(
+                departure, index.getLastArrival(stopId, time, departure.getVehicleId(), departure.getTripId()));
+    }
+
+    private Traversal assertSameTraversal(String previousStopId, String stopId, String directionId, String vehicleId) {
+        Date time = new Date(NOON + Time.MS_PER_HOUR);
+        Traversal expected = traversalFromStopCache(previousStopId, stopId, time, directionId, vehicleId);
+        assertThat(traversalFromIndex(previousStopId, stopId, time, directionId, vehicleId))
+                .as("%s to %s direction %s excluding %s", previousStopId, stopId, directionId, vehicleId)
+                .isEqualTo(expected);
+        return expected;
+    }
+
+    @Test
+    public void sameVehicleExcluded() throws Exception {
+        put(departure("s1", "v2", "t2", "0", NOON),
+                arrival("s2", "v2", "t2", "0", NOON + 60_000),
+                departure("s1", "v1", "t1", "0", NOON + 120_000),
+                arrival("s2", "v1", "t1", "0", NOON + 200_000));
+
+        Traversal traversal = assertSameTraversal("s1", "s2", "0", "v1");
+        assertThat(traversal.departure().getVehicleId()).isEqualTo("v2");
+        assertThat(traversal.arrival().getTime()).isEqualTo(new Date(NOON + 60_000));
+
+        assertThat(assertSameTraversal("s1", "s2", "0", "v2").departure().getVehicleId())
+                .isEqualTo("v1");
+        assertThat(assertSameTraversal("s1", "s2", "0", "v3").departure().getVehicleId())
+                .isEqualTo("v1");
+    }
+
+    @Test
+    public void onlyDeparturesInDirectionUsed() throws Exception {
+        put(departure("s1", "v1", "t1", "0", NOON),
+                arrival("s2", "v1", "t1", "0", NOON + 60_000),
+                departure("s1", "v2", "t2", "1", NOON + 120_000),
+                arrival("s2", "v2", "t2", "1", NOON + 200_000),
+                departure("s1", "v3", "t3", null, NOON + 300_000));
+
+        assertThat(assertSameTraversal("s1", "s2", "0", "v9").departure().getVehicleId())
+                .isEqualTo("v1");
+        assertThat(assertSameTraversal("s1", "s2", "1", "v9").departure().getVehicleId())
+                .isEqualTo("v2");
+        // All directions, including events without one
+        assertThat(assertSameTraversal("s1", "s2", null, "v9").departure().getVehicleId())
+                .isEqualTo("v3");
+        assertThat(assertSameTraversal("s1", "s2", "2", "v9")).isNull();
+    }
+
+    @Test
+    public void firstAddedUsedWhenTimesEqual() throws Exception {
+        put(departure("s1", "v1", "t1", "0", NOON),
+                departure("s1", "v2", "t2", "0", NOON),
+                departure("s1", "v3", "t3", "0", NOON),
+                arrival("s2", "v1", "t1", "0", NOON + 60_000),
+                arrival("s2", "v2", "t2", "0", NOON + 60_000));
+        // A second arrival for the same trip at the same time
+        ArrivalDeparture secondArrival = arrival("s2", "v1", "t1", "0", NOON + 60_000);
+        set(secondArrival, "stopPathIndex", 7);
+        put(secondArrival);
+
+        Traversal traversal = assertSameTraversal("s1", "s2", "0", "v9");
+        assertThat(traversal.departure().getVehicleId()).isEqualTo("v1");
+        assertThat(traversal.arrival().getStopPathIndex()).isNotEqualTo(7);
+        assertThat(assertSameTraversal("s1", "s2", "0", "v1").departure().getVehicleId())
+                .isEqualTo("v2");
+        assertThat(assertSameTraversal("s1", "s2", "0", "v2").departure().getVehicleId())
+                .isEqualTo("v1");
+    }
+
+    @Test
+    public void departureWithoutArrivalYet() throws Exception {
+        put(departure("s1", "v1", "t1", "0", NOON),
+                arrival("s2", "v1", "t1", "0", NOON + 60_000),
+                departure("s1", "v2", "t2", "0", NOON + 120_000));
+
+        // The vehicle that departed most recently is still between the stops,
+        // so an earlier vehicle that did arrive isn't used instead
+        Traversal traversal = assertSameTraversal("s1", "s2", "0", "v9");
+        assertThat(traversal.departure().getVehicleId()).isEqualTo("v2");
+        assertThat(traversal.arrival()).isNull();
+
+        // Arrival for a different trip of the vehicle doesn't count
+        put(arrival("s2", "v2", "t1", "0", NOON + 180_000));
+        assertThat(assertSameTraversal("s1", "s2", "0", "v9").arrival()).isNull();
+
+        put(arrival("s2", "v2", "t2", "0", NOON + 200_000));
+        assertThat(assertSameTraversal("s1", "s2", "0", "v9").arrival().getTime())
+                .isEqualTo(new Date(NOON + 200_000));
+    }
+
+    @Test
+    public void sameAsStopCacheForRandomEvents() throws Exception {
+        Random random = new Random(21);
+        String[] stops = {"s1", "s2", "s3"};
+        String[] directions = {"0", "1", null};
+
+        List<ArrivalDeparture> events = new ArrayList<>();
+        for (int i = 0; i < 400; ++i) {
+            String stopId = stops[random.nextInt(stops.length)];
+            String vehicleId = "v" + random.nextInt(5);
+            String tripId = "t" + random.nextInt(4);
+            String directionId = directions[random.nextInt(directions.length)];
+            // Coarse times so that there are plenty of ties
+            long time = NOON + random.nextInt(30) * Time.MS_PER_MIN;
+            events.add(event(random.nextBoolean(), stopId, vehicleId, tripId, directionId, time));
+        }
+        Collections.shuffle(events, random);
+
+        for (int i = 0; i < events.size(); ++i) {
+            put(events.get(i));
+            if (i % 20 != 0) continue;
+            for (String previousStopId : stops) {
+                for (String stopId : stops) {
+                    for (String directionId : Arrays.asList("0", "1", "2", null)) {
+                        for (int v = 0; v < 6; ++v) assertSameTraversal(previousStopId, stopId, directionId, "v" + v);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.transitclock.core.dataCache;
+
+import org.transitclock.core.VehicleState;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.service.dto.IpcVehicleComplete;
+import org.transitclock.utils.SystemTime;
+
+/** Creates vehicles for the tests without needing a block or trip */
+final class TestVehicles {
+
+    private TestVehicles() {}
+
+    /**
+     * @param vehicleId
+     * @param routeShortName Route the vehicle is on. Can be null.
+     * @param lat
+     * @param lon
+     * @return VehicleState with a current AVL report at the location
+     */
+    static VehicleState vehicleState(String vehicleId, String routeShortName, double lat, double lon) {
+        VehicleState vehicleState = new VehicleState(vehicleId) {
+            @Override
+            public String getRouteShortName() {
+                return routeShortName;
+            }
+        };
+        vehicleState.setAvlReport(new AvlReport(vehicleId, SystemTime.getMillis(), lat, lon, "test"));
+        return vehicleState;
+    }
+
+    static IpcVehicleComplete vehicle(String vehicleId, double lat, double lon) {
+        return new IpcVehicleComplete(vehicleState(vehicleId, null, lat, lon));
+    }
+}
@@ -0,0 +1,54 @@
+package org.transitclock.core.dataCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.TestVehicles.vehicleState;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Location;
+
+class VehicleDataCacheTest {
+
+    // The cache is a singleton so each test uses its own vehicles and routes
+    private final VehicleDataCache cache = VehicleDataCache.getInstance();
+
+    @Test
+    void vehiclesByRoute() {
+        cache.updateVehicle(vehicleState("routeTest1", "routeA", 44.0, 26.0));
+        cache.updateVehicle(vehicleState("routeTest2", "routeA", 44.0, 26.0));
+        cache.updateVehicle(vehicleState("routeTest3", "routeB", 44.0, 26.0));
+
+        assertThat(cache.getVehiclesForRoute("routeA")).extracting("id").containsExactlyInAnyOrder("routeTest1", "routeTest2");
+        assertThat(cache.getVehiclesForRoute("routeB")).extracting("id").containsExactly("routeTest3");
+
+        // Updating a vehicle on the same route replaces it
+        cache.updateVehicle(vehicleState("routeTest1", "routeA", 44.1, 26.1));
+        assertThat(cache.getVehiclesForRoute("routeA")).hasSize(2);
+    }
+
+    @Test
+    void vehicleChangingRoutes() {
+        cache.updateVehicle(vehicleState("changeTest1", "routeC", 44.0, 26.0));
+        cache.updateVehicle(vehicleState("changeTest1", "routeD", 44.0, 26.0));
+
+        assertThat(cache.getVehiclesForRoute("routeC")).isEmpty();
+        assertThat(cache.getVehiclesForRoute("routeD")).extracting("id").containsExactly("changeTest1");
+
+        // Vehicles not assigned to a route are keyed by null
+        cache.updateVehicle(vehicleState("changeTest1", null, 44.0, 26.0));
+        assertThat(cache.getVehiclesForRoute("routeD")).isEmpty();
+        assertThat(cache.getVehiclesForRoute("")).extracting("id").contains("changeTest1");
+    }
+
+    @Test
+    void vehiclesNearLocation() {
+        cache.updateVehicle(vehicleState("nearTest1", "routeE", 10.0, 10.0));
+        assertThat(cache.getVehiclesNearLocation(new Location(10.0, 10.0), 100)).extracting("id").containsExactly("nearTest1");
+
+        cache.updateVehicle(vehicleState("nearTest1", "routeE", 10.5, 10.5));
+        assertThat(cache.getVehiclesNearLocation(new Location(10.0, 10.0), 100)).isEmpty();
+        assertThat(cache.getVehiclesNearLocation(new Location(10.5, 10.5), 100)).extracting("id").containsExactly("nearTest1");
+
+        cache.removeVehicle("nearTest1");
+        assertThat(cache.getVehiclesNearLocation(new Location(10.5, 10.5), 100)).isEmpty();
+    }
+}
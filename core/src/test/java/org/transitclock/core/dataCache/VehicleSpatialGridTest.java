@@ -0,0 +1,84 @@
+package org.transitclock.core.dataCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.TestVehicles.vehicle;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.service.dto.IpcVehicleComplete;
+
+class VehicleSpatialGridTest {
+
+    private static final Location CENTER = new Location(44.0, 26.0);
+
+    @Test
+    void findsOnlyVehiclesWithinDistance() {
+        VehicleSpatialGrid grid = new VehicleSpatialGrid();
+        grid.update(vehicle("near", 44.001, 26.001));
+        // In a neighboring cell but still close
+        grid.update(vehicle("neighborCell", 43.9995, 25.9995));
+        grid.update(vehicle("far", 44.1, 26.1));
+
+        assertThat(grid.getVehiclesNear(CENTER, 500)).extracting("id").containsExactlyInAnyOrder("near", "neighborCell");
+        assertThat(grid.getVehiclesNear(CENTER, 20_000)).extracting("id").contains("far");
+    }
+
+    @Test
+    void vehicleChangingCellsIsOnlyInNewCell() {
+        VehicleSpatialGrid grid = new VehicleSpatialGrid();
+        grid.update(vehicle("v1", 44.001, 26.001));
+        grid.update(vehicle("v1", 44.051, 26.051));
+
+        assertThat(grid.getVehiclesNear(CENTER, 500)).isEmpty();
+        assertThat(grid.getVehiclesNear(new Location(44.051, 26.051), 500)).extracting("id").containsExactly("v1");
+        assertThat(grid.getVehiclesNear(CENTER, 20_000)).extracting("id").containsExactly("v1");
+    }
+
+    @Test
+    void removedVehicleIsNotFound() {
+        VehicleSpatialGrid grid = new VehicleSpatialGrid();
+        grid.update(vehicle("v1", 44.001, 26.001));
+        grid.remove("v1");
+        grid.remove("unknown");
+
+        assertThat(grid.getVehiclesNear(CENTER, 500)).isEmpty();
+    }
+
+    @Test
+    void hugeDistanceGoesThroughAllVehicles() {
+        VehicleSpatialGrid grid = new VehicleSpatialGrid();
+        grid.update(vehicle("near", 44.001, 26.001));
+        grid.update(vehicle("otherContinent", -33.9, 151.2));
+        grid.update(vehicle("nearPole", 89.99, -170.0));
+
+        // Would be far more cells than there are vehicles, or overflow the
+        // cell indexes, if going through the cells in range
+        assertThat(grid.getVehiclesNear(CENTER, 30_000_000)).extracting("id")
+                .containsExactlyInAnyOrder("near", "otherContinent", "nearPole");
+        assertThat(grid.getVehiclesNear(CENTER, Double.MAX_VALUE)).hasSize(3);
+        assertThat(grid.getVehiclesNear(new Location(89.999, 0.0), 5_000)).extracting("id")
+                .containsExactly("nearPole");
+        assertThat(grid.getVehiclesNear(CENTER, Double.NaN)).isEmpty();
+    }
+
+    @Test
+    void concurrentUpdatesOfSameVehicleLeaveItInOneCell() throws Exception {
+        VehicleSpatialGrid grid = new VehicleSpatialGrid();
+        IpcVehicleComplete inFirstCell = vehicle("v1", 44.001, 26.001);
+        IpcVehicleComplete inSecondCell = vehicle("v1", 44.031, 26.031);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            IpcVehicleComplete vehicle = t % 2 == 0 ? inFirstCell : inSecondCell;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; ++i) grid.update(vehicle);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+
+        assertThat(grid.getVehiclesNear(CENTER, 20_000)).hasSize(1);
+    }
+}
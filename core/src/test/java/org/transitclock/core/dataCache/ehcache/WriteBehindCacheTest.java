@@ -0,0 +1,149 @@
+package org.transitclock.core.dataCache.ehcache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.event.EventType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WriteBehindCacheTest {
+
+    // Long enough that the timer doesn't flush during a test
+    private static final long WRITE_BEHIND_MSEC = 60 * 60 * 1000L;
+
+    private CacheManager cacheManager;
+    private Cache<String, ArrayList> cache;
+    private final List<String> writtenKeys = new ArrayList<>();
+
+    @BeforeEach
+    void createCache() {
+        cacheManager = CacheManagerBuilder.newCacheManagerBuilder().build(true);
+        cache = cacheManager.createCache(
+                "test",
+                CacheConfigurationBuilder.newCacheConfigurationBuilder(
+                                String.class, ArrayList.class, ResourcePoolsBuilder.heap(100))
+                        .withService(CacheEventListenerConfigurationBuilder.newEventListenerConfiguration(
+                                        event -> {
+                                            synchronized (writtenKeys) {
+                                                writtenKeys.add((String) event.getKey());
+                                            }
+                                        },
+                                        EventType.CREATED,
+                                        EventType.UPDATED)
+                                .synchronous()
+                                .ordered()));
+    }
+
+    @AfterEach
+    void closeCache() {
+        cacheManager.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void add(WriteBehindCache<String, ArrayList> writeBehindCache, String key, int value) {
+        writeBehindCache.update(key, ArrayList::new, list -> list.add(value));
+    }
+
+    @Test
+    public void coalescesUpdatesUntilFlushed() {
+        WriteBehindCache<String, ArrayList> writeBehindCache = new WriteBehindCache<>(cache, WRITE_BEHIND_MSEC);
+
+        add(writeBehindCache, "a", 1);
+        add(writeBehindCache, "a", 2);
+        add(writeBehindCache, "b", 3);
+        add(writeBehindCache, "a", 4);
+
+        // Reads see the updates right away but nothing written yet
+        assertThat(writeBehindCache.get("a")).containsExactly(1, 2, 4);
+        assertThat(writeBehindCache.get("b")).containsExactly(3);
+        assertThat(writeBehindCache.get("c")).isNull();
+        assertThat(cache.get("a")).isNull();
+        assertThat(writtenKeys).isEmpty();
+
+        // Each key is written just once no matter how often it was updated
+        writeBehindCache.flush();
+        assertThat(writtenKeys).containsExactlyInAnyOrder("a", "b");
+        assertThat(cache.get("a")).containsExactly(1, 2, 4);
+        assertThat(cache.get("b")).containsExactly(3);
+
+        // Nothing left to write
+        writeBehindCache.flush();
+        assertThat(writtenKeys).hasSize(2);
+    }
+
+    @Test
+    public void updatesValueAlreadyInCache() {
+        WriteBehindCache<String, ArrayList> writeBehindCache = new WriteBehindCache<>(cache, WRITE_BEHIND_MSEC);
+        ArrayList<Integer> existing = new ArrayList<>(List.of(1));
+        cache.put("a", existing);
+        writtenKeys.clear();
+
+        add(writeBehindCache, "a", 2);
+        assertThat(writeBehindCache.get("a")).containsExactly(1, 2);
+
+        writeBehindCache.flush();
+        assertThat(writtenKeys).containsExactly("a");
+        assertThat(cache.get("a")).containsExactly(1, 2);
+    }
+
+    @Test
+    public void writesRightAwayWithoutWriteBehind() {
+        WriteBehindCache<String, ArrayList> writeBehindCache = new WriteBehindCache<>(cache, 0);
+
+        add(writeBehindCache, "a", 1);
+        add(writeBehindCache, "a", 2);
+
+        assertThat(writtenKeys).containsExactly("a", "a");
+        assertThat(cache.get("a")).containsExactly(1, 2);
+        assertThat(writeBehindCache.get("a")).containsExactly(1, 2);
+    }
+
+    @Test
+    public void noUpdatesLostWhenFlushingConcurrently() throws Exception {
+        WriteBehindCache<String, ArrayList> writeBehindCache = new WriteBehindCache<>(cache, WRITE_BEHIND_MSEC);
+        int numberThreads = 4;
+        int updatesPerThread = 5_000;
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numberThreads; ++t) {
+            int threadNumber = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < updatesPerThread; ++i) {
+                    add(writeBehindCache, "key" + (i % 3), threadNumber * updatesPerThread + i);
+                }
+            }));
+        }
+        Thread flusher = new Thread(() -> {
+            while (running.get()) writeBehindCache.flush();
+        });
+        threads.forEach(Thread::start);
+        flusher.start();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        running.set(false);
+        flusher.join();
+        writeBehindCache.flush();
+
+        int total = 0;
+        for (int k = 0; k < 3; ++k) total += cache.get("key" + k).size();
+        assertThat(total).isEqualTo(numberThreads * updatesPerThread);
+    }
+}
@@ -0,0 +1,161 @@
+package org.transitclock.core.dataCache.scheduled;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+class StopPathTravelTimeHistoryTest {
+
+    private static final String TRIP_ID = "trip1";
+    private static final Integer START_TIME = 8 * Time.SEC_PER_HOUR;
+    private static final LocalDate TODAY = LocalDate.of(2024, 3, 20);
+
+    /** Trip history kept in a map */
+    private static class TripHistory implements TripDataHistoryCacheInterface {
+        private final Map<TripKey, List<IpcArrivalDeparture>> eventsByTrip = new HashMap<>();
+        private int numberLookups = 0;
+
+        @Override
+        public List<IpcArrivalDeparture> getTripHistory(TripKey tripKey) {
+            ++numberLookups;
+            return eventsByTrip.get(tripKey);
+        }
+
+        @Override
+        public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IpcArrivalDeparture findPreviousArrivalEvent(
+                List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IpcArrivalDeparture findPreviousDepartureEvent(
+                List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current) {
+            for (IpcArrivalDeparture event : arrivalDepartures) {
+                if (event.isDeparture() && event.getStopPathIndex() == current.getStopPathIndex() - 1) return event;
+            }
+            return null;
+        }
+
+        @Override
+        public List<TripKey> getKeys() {
+            return new ArrayList<>(eventsByTrip.keySet());
+        }
+    }
+
+    private static Date startOfDay(LocalDate day) {
+        return Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static TripKey tripKey(LocalDate day) {
+        return new TripKey(TRIP_ID, startOfDay(day), START_TIME);
+    }
+
+    private static IpcArrivalDeparture event(LocalDate day, boolean isArrival, int stopPathIndex, long secsIntoTrip) {
+        IpcArrivalDeparture event = new IpcArrivalDeparture();
+        event.setTripId(TRIP_ID);
+        event.setArrival(isArrival);
+        event.setStopPathIndex(stopPathIndex);
+        event.setTime(new Date(startOfDay(day).getTime() + (START_TIME + secsIntoTrip) * Time.MS_PER_SEC));
+        return event;
+    }
+
+    /** Adds a departure from stop path 0 and an arrival at stop path 1 taking travelSecs */
+    private static void addTrip(TripHistory history, LocalDate day, long travelSecs) {
+        history.eventsByTrip.put(
+                tripKey(day), new ArrayList<>(List.of(event(day, false, 0, 0), event(day, true, 1, travelSecs))));
+    }
+
+    private static long[] lastDaysTravelTimes(StopPathTravelTimeHistory travelTimes, int numDaysLookBack) {
+        return travelTimes.getLastDaysTravelTimes(TRIP_ID, START_TIME, 1, startOfDay(TODAY), numDaysLookBack, 3);
+    }
+
+    @Test
+    public void searchesHistoryOnceAndThenUsesUpdates() {
+        TripHistory history = new TripHistory();
+        addTrip(history, TODAY.minusDays(1), 60);
+        addTrip(history, TODAY.minusDays(3), 90);
+        StopPathTravelTimeHistory travelTimes = new StopPathTravelTimeHistory(history, 3, 30);
+
+        assertThat(lastDaysTravelTimes(travelTimes, 30)).containsExactly(60_000, 90_000);
+        int numberLookups = history.numberLookups;
+        assertThat(lastDaysTravelTimes(travelTimes, 30)).containsExactly(60_000, 90_000);
+        assertThat(history.numberLookups).isEqualTo(numberLookups);
+
+        // New arrival for a day is used without searching the history
+        LocalDate day = TODAY.minusDays(2);
+        addTrip(history, day, 75);
+        List<IpcArrivalDeparture> events = history.eventsByTrip.get(tripKey(day));
+        travelTimes.update(tripKey(day), events.get(1), events);
+        assertThat(lastDaysTravelTimes(travelTimes, 30)).containsExactly(60_000, 75_000, 90_000);
+        assertThat(history.numberLookups).isEqualTo(numberLookups);
+
+        // Days outside the look back aren't returned
+        assertThat(lastDaysTravelTimes(travelTimes, 2)).containsExactly(60_000, 75_000);
+    }
+
+    @Test
+    public void keepsOnlyMostRecentDays() {
+        TripHistory history = new TripHistory();
+        StopPathTravelTimeHistory travelTimes = new StopPathTravelTimeHistory(history, 2, 30);
+
+        for (int daysAgo = 5; daysAgo >= 0; --daysAgo) {
+            LocalDate day = TODAY.minusDays(daysAgo);
+            addTrip(history, day, 60 + daysAgo);
+            List<IpcArrivalDeparture> events = history.eventsByTrip.get(tripKey(day));
+            travelTimes.update(tripKey(day), events.get(1), events);
+        }
+
+        // The current day is kept but not returned
+        assertThat(travelTimes.getLastDaysTravelTimes(TRIP_ID, START_TIME, 1, startOfDay(TODAY), 30, 2))
+                .containsExactly(61_000, 62_000);
+        // More days than are kept so the trip history needs to be used
+        assertThat(travelTimes.getLastDaysTravelTimes(TRIP_ID, START_TIME, 1, startOfDay(TODAY), 30, 3))
+                .isNull();
+    }
+
+    @Test
+    public void removesStopPathsNoLongerUsed() {
+        TripHistory history = new TripHistory();
+        addTrip(history, TODAY.minusDays(1), 60);
+        StopPathTravelTimeHistory travelTimes = new StopPathTravelTimeHistory(history, 3, 7);
+
+        // Requested today, and a different trip only updated long ago
+        assertThat(lastDaysTravelTimes(travelTimes, 7)).containsExactly(60_000);
+        LocalDate longAgo = TODAY.minusDays(20);
+        TripKey oldTripKey = new TripKey("oldTrip", startOfDay(longAgo), START_TIME);
+        List<IpcArrivalDeparture> oldEvents = new ArrayList<>(
+                List.of(event(longAgo, false, 0, 0), event(longAgo, true, 1, 60)));
+        travelTimes.update(oldTripKey, oldEvents.get(1), oldEvents);
+        assertThat(travelTimes.size()).isEqualTo(2);
+
+        assertThat(travelTimes.removeStale(startOfDay(TODAY))).isEqualTo(1);
+        assertThat(travelTimes.size()).isEqualTo(1);
+
+        // Once no longer requested within the look back it is removed too
+        assertThat(travelTimes.removeStale(startOfDay(TODAY.plusDays(7)))).isZero();
+        assertThat(travelTimes.removeStale(startOfDay(TODAY.plusDays(8)))).isEqualTo(1);
+        assertThat(travelTimes.size()).isZero();
+
+        // Requesting again searches the history again
+        int numberLookups = history.numberLookups;
+        assertThat(lastDaysTravelTimes(travelTimes, 7)).containsExactly(60_000);
+        assertThat(history.numberLookups).isGreaterThan(numberLookups);
+    }
+}
@@ -0,0 +1,81 @@
+/* (C)2023 */
+package org.transitclock.core.predictiongenerator.kalman;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class KalmanFilterTest {
+
+    @Test
+    void predict() {
+        KalmanFilter filter = KalmanFilter.forCurrentThread();
+        double prediction = filter.predict(300, new long[] {400, 420, 380}, 3, 72.40);
+
+        assertEquals(355.98, prediction, 0.01);
+        assertEquals(prediction, filter.getPrediction(0));
+        assertEquals(149.27, filter.getFilterError(0), 0.01);
+    }
+
+    @Test
+    void predictMatchesKalmanPrediction() throws Exception {
+        Vehicle vehicle = new Vehicle("RIY 30");
+        VehicleStopDetail origin = new VehicleStopDetail(null, 0, vehicle);
+        TripSegment[] historicalSegments = {
+            new TripSegment(origin, new VehicleStopDetail(null, 381, vehicle)),
+            new TripSegment(origin, new VehicleStopDetail(null, 420, vehicle)),
+            new TripSegment(origin, new VehicleStopDetail(null, 400, vehicle))
+        };
+        TripSegment lastVehicleSegment = new TripSegment(origin, new VehicleStopDetail(null, 500, vehicle));
+        KalmanPredictionResult result = new KalmanPrediction().predict(lastVehicleSegment, historicalSegments, 10.5);
+
+        // Values from the original KalmanPrediction formula: average 400
+        // using long division, variance 761 / 3 and gain
+        // (10.5 + variance) / (10.5 + 2 * variance)
+        assertEquals(448.98616028323147, result.getResult(), 1e-9);
+        assertEquals(129.40510674820297, result.getFilterError(), 1e-9);
+
+        // Most recent day is last for KalmanPrediction but first for KalmanFilter
+        KalmanFilter filter = KalmanFilter.forCurrentThread();
+        filter.predict(500, new long[] {400, 420, 381}, 3, 10.5);
+        assertEquals(448.98616028323147, filter.getPrediction(0), 1e-9);
+        assertEquals(129.40510674820297, filter.getFilterError(0), 1e-9);
+    }
+
+    @Test
+    void singleDayHasNoVariance() {
+        KalmanFilter filter = KalmanFilter.forCurrentThread();
+
+        // With no variance the gain is 1 so the historical duration is used
+        assertEquals(400.0, filter.predict(300, new long[] {400, 999}, 1, 5.0));
+        assertEquals(0.0, filter.getFilterError(0));
+    }
+
+    @Test
+    void batchMatchesSingle() {
+        long[] lastVehicleDurations = {300, 500, 120_000};
+        long[] historicalDurations = {400, 420, 380, 401, 0, 0, 110_000, 125_000, 0};
+        int[] numberDays = {3, 1, 2};
+        double[] lastPredictionErrors = {72.4, 5.0, 1000.0};
+
+        double[] expectedPredictions = new double[3];
+        double[] expectedFilterErrors = new double[3];
+        KalmanFilter filter = KalmanFilter.forCurrentThread();
+        for (int i = 0; i < 3; ++i) {
+            long[] days = new long[numberDays[i]];
+            System.arraycopy(historicalDurations, 3 * i, days, 0, numberDays[i]);
+            expectedPredictions[i] = filter.predict(lastVehicleDurations[i], days, numberDays[i], lastPredictionErrors[i]);
+            expectedFilterErrors[i] = filter.getFilterError(0);
+        }
+        assertEquals(355.98, expectedPredictions[0], 0.01);
+
+        // Separate filter so that the results of the single predictions
+        // aren't what is checked
+        KalmanFilter batchFilter = new KalmanFilter();
+        batchFilter.predict(3, lastVehicleDurations, historicalDurations, 3, numberDays, lastPredictionErrors);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(expectedPredictions[i], batchFilter.getPrediction(i));
+            assertEquals(expectedFilterErrors[i], batchFilter.getFilterError(i));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.transitclock.core.travelTimes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Arrival;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Match;
+import org.transitclock.utils.Time;
+
+class DataFetcherTest {
+
+    private static final String SERVICE_ID = "weekday";
+
+    /**
+     * The data handed off for a vehicle trip and how many objects had been read at that point.
+     * Since the next object of each stream is read ahead that includes those.
+     */
+    private record TripData(List<ArrivalDeparture> arrivalDepartures, List<Match> matches, int numberRead) {
+        String vehicleId() {
+            return arrivalDepartures.get(0).getVehicleId();
+        }
+    }
+
+    /** Supplies the objects in order and then null, counting how many were read */
+    private static class Reader {
+        private int numberRead = 0;
+
+        <T> Supplier<T> of(List<T> objects) {
+            Iterator<T> iterator = objects.iterator();
+            return () -> {
+                if (!iterator.hasNext()) return null;
+                ++numberRead;
+                return iterator.next();
+            };
+        }
+    }
+
+    private static Date time(int day, int hour, int minute) {
+        return Date.from(LocalDateTime.of(2024, 3, day, hour, minute).toInstant(ZoneOffset.UTC));
+    }
+
+    private static ArrivalDeparture arrival(String vehicleId, String tripId, Date time) {
+        ArrivalDeparture arrival = new Arrival() {
+            @Override
+            public Date getDate() {
+                return time;
+            }
+
+            @Override
+            public long getTime() {
+                return time.getTime();
+            }
+        };
+        arrival.setVehicleId(vehicleId);
+        arrival.setTripId(tripId);
+        arrival.setServiceId(SERVICE_ID);
+        return arrival;
+    }
+
+    private static Match match(String vehicleId, String tripId, Date time) {
+        Match match = new Match() {
+            @Override
+            public Date getDate() {
+                return time;
+            }
+
+            @Override
+            public long getTime() {
+                return time.getTime();
+            }
+        };
+        match.setVehicleId(vehicleId);
+        match.setTripId(tripId);
+        match.setServiceId(SERVICE_ID);
+        return match;
+    }
+
+    /** The test entities don't have the members needed for equals() or toString() so compare identity */
+    @SafeVarargs
+    private static <T> void assertSameElements(List<T> actual, T... expected) {
+        assertThat(actual).hasSize(expected.length);
+        for (int i = 0; i < expected.length; ++i) assertThat(actual.get(i) == expected[i]).isTrue();
+    }
+
+    private static List<TripData> groupByTrip(
+            long maxTripIdleMsec, List<ArrivalDeparture> arrivalDepartures, List<Match> matches) {
+        DataFetcher dataFetcher = new DataFetcher(TimeZone.getTimeZone("UTC"), maxTripIdleMsec);
+        Reader reader = new Reader();
+        List<TripData> tripDatas = new ArrayList<>();
+        dataFetcher.groupByTrip(
+                reader.of(arrivalDepartures),
+                reader.of(matches),
+                matches.size(),
+                (arrDeps, tripMatches) -> tripDatas.add(new TripData(arrDeps, tripMatches, reader.numberRead)));
+        return tripDatas;
+    }
+
+    @Test
+    public void groupsDataPerVehicleTrip() {
+        ArrivalDeparture a1 = arrival("v1", "t1", time(20, 8, 0));
+        ArrivalDeparture a2 = arrival("v2", "t1", time(20, 8, 5));
+        ArrivalDeparture a3 = arrival("v1", "t1", time(20, 8, 10));
+        ArrivalDeparture a4 = arrival("v1", "t2", time(20, 9, 0));
+        Match m1 = match("v1", "t1", time(20, 8, 2));
+        Match m2 = match("v2", "t1", time(20, 8, 6));
+        Match m3 = match("v1", "t1", time(20, 8, 7));
+        // Trip without arrivals/departures isn't handed off
+        Match m4 = match("v3", "t3", time(20, 8, 8));
+
+        List<TripData> tripDatas = groupByTrip(0, List.of(a1, a2, a3, a4), List.of(m1, m2, m3, m4));
+
+        // Handed off in the order the trips last had data
+        assertThat(tripDatas).hasSize(3);
+        assertSameElements(tripDatas.get(0).arrivalDepartures(), a2);
+        assertSameElements(tripDatas.get(0).matches(), m2);
+        assertSameElements(tripDatas.get(1).arrivalDepartures(), a1, a3);
+        assertSameElements(tripDatas.get(1).matches(), m1, m3);
+        assertSameElements(tripDatas.get(2).arrivalDepartures(), a4);
+        assertThat(tripDatas.get(2).matches()).isEmpty();
+    }
+
+    @Test
+    public void sameTripOnDifferentServiceDaysSeparate() {
+        ArrivalDeparture a1 = arrival("v1", "t1", time(20, 8, 0));
+        // After midnight but still the same service day
+        ArrivalDeparture a2 = arrival("v1", "t1", time(21, 1, 0));
+        ArrivalDeparture a3 = arrival("v1", "t1", time(21, 8, 0));
+
+        List<TripData> tripDatas = groupByTrip(0, List.of(a1, a2, a3), List.of());
+
+        assertThat(tripDatas).hasSize(2);
+        assertSameElements(tripDatas.get(0).arrivalDepartures(), a1, a2);
+        assertSameElements(tripDatas.get(1).arrivalDepartures(), a3);
+    }
+
+    @Test
+    public void completesTripsAtEndOfServiceDay() {
+        List<ArrivalDeparture> arrivalDepartures = List.of(
+                arrival("v1", "t1", time(20, 8, 0)),
+                arrival("v2", "t2", time(20, 22, 0)),
+                // Service day of the 20th ends at 3:00 on the 21st
+                arrival("v2", "t2", time(21, 2, 59)),
+                arrival("v3", "t3", time(21, 3, 0)),
+                arrival("v3", "t3", time(21, 4, 0)),
+                arrival("v3", "t3", time(21, 5, 0)));
+
+        List<TripData> tripDatas = groupByTrip(0, arrivalDepartures, List.of());
+
+        // Without maxTripIdleMsec the trips are only complete once the next
+        // service day starts
+        assertThat(tripDatas).extracting(TripData::vehicleId).containsExactly("v1", "v2", "v3");
+        assertThat(tripDatas.get(0).numberRead()).isEqualTo(5);
+        assertThat(tripDatas.get(1).numberRead()).isEqualTo(5);
+        assertThat(tripDatas.get(1).arrivalDepartures()).hasSize(2);
+        assertThat(tripDatas.get(2).numberRead()).isEqualTo(6);
+    }
+
+    @Test
+    public void completesIdleTripsWhenMaxTripIdleSet() {
+        List<ArrivalDeparture> arrivalDepartures = List.of(
+                arrival("v1", "t1", time(20, 8, 0)),
+                arrival("v2", "t2", time(20, 8, 30)),
+                arrival("v2", "t2", time(20, 9, 0)),
+                arrival("v2", "t2", time(20, 9, 1)),
+                arrival("v2", "t2", time(20, 9, 2)),
+                arrival("v2", "t2", time(20, 9, 3)));
+
+        List<TripData> tripDatas = groupByTrip(Time.MS_PER_HOUR, arrivalDepartures, List.of());
+
+        // Handed off as soon as the trip has been idle for more than an hour
+        assertThat(tripDatas).extracting(TripData::vehicleId).containsExactly("v1", "v2");
+        assertThat(tripDatas.get(0).numberRead()).isEqualTo(5);
+        assertThat(tripDatas.get(1).arrivalDepartures()).hasSize(5);
+        assertThat(tripDatas.get(1).numberRead()).isEqualTo(6);
+    }
+
+    @Test
+    public void completesTripOnlyAfterMatchesReadUpToItsTime() {
+        ArrivalDeparture a1 = arrival("v1", "t1", time(20, 8, 0));
+        ArrivalDeparture a2 = arrival("v2", "t2", time(20, 9, 30));
+        // Match read after the arrival even though in the other stream
+        Match m1 = match("v1", "t1", time(20, 8, 50));
+
+        List<TripData> tripDatas = groupByTrip(Time.MS_PER_HOUR, List.of(a1, a2), List.of(m1));
+
+        assertThat(tripDatas).extracting(TripData::vehicleId).containsExactly("v1", "v2");
+        assertSameElements(tripDatas.get(0).matches(), m1);
+    }
+}
@@ -0,0 +1,52 @@
+package org.transitclock.domain.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class DbQueueTest {
+
+    @Test
+    public void flushIntervalBacksOffWhileQuiet() {
+        long interval = 500;
+        interval = DbQueue.nextFlushIntervalMsec(false, interval, 500, 10000);
+        assertThat(interval).isEqualTo(1000);
+        interval = DbQueue.nextFlushIntervalMsec(false, interval, 500, 10000);
+        assertThat(interval).isEqualTo(2000);
+
+        // Capped at the max
+        assertThat(DbQueue.nextFlushIntervalMsec(false, 8000, 500, 10000)).isEqualTo(10000);
+        assertThat(DbQueue.nextFlushIntervalMsec(false, 10000, 500, 10000)).isEqualTo(10000);
+
+        // Back to the min as soon as data is written
+        assertThat(DbQueue.nextFlushIntervalMsec(true, 10000, 500, 10000)).isEqualTo(500);
+    }
+
+    @Test
+    public void flushIntervalStaysWithinLimits() {
+        // Such as when the limits were changed
+        assertThat(DbQueue.nextFlushIntervalMsec(false, 100, 500, 10000)).isEqualTo(500);
+        assertThat(DbQueue.nextFlushIntervalMsec(false, 60000, 500, 10000)).isEqualTo(10000);
+    }
+
+    @Test
+    public void singleWriterUnlessBacklogged() {
+        assertThat(DbQueue.targetWriters(0.0, 0.1, 4)).isEqualTo(1);
+        assertThat(DbQueue.targetWriters(0.1, 0.1, 4)).isEqualTo(1);
+        assertThat(DbQueue.targetWriters(0.11, 0.1, 4)).isEqualTo(4);
+        assertThat(DbQueue.targetWriters(1.0, 0.1, 4)).isEqualTo(4);
+
+        // Always at least one writer even if misconfigured
+        assertThat(DbQueue.targetWriters(0.5, 0.1, 0)).isEqualTo(1);
+    }
+
+    @Test
+    public void keepsWritingOnlyWhileFullBatchOrSpilledData() {
+        assertThat(DbQueue.shouldKeepWriting(100, 100, 100, false)).isTrue();
+        assertThat(DbQueue.shouldKeepWriting(100, 99, 100, false)).isFalse();
+        assertThat(DbQueue.shouldKeepWriting(100, 0, 100, true)).isTrue();
+
+        // Nothing written, such as when the db is down, so wait for next flush
+        assertThat(DbQueue.shouldKeepWriting(0, 1000, 100, true)).isFalse();
+    }
+}
@@ -0,0 +1,95 @@
+package org.transitclock.domain.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.domain.structs.AvlReport;
+
+class DbSpillJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static AvlReport report(String vehicleId, long time) {
+        return new AvlReport(vehicleId, time, 12.34, 43.21, null);
+    }
+
+    @Test
+    public void replaysInOrderAndOnlyRemovesCommitted() throws IOException {
+        DbSpillJournal journal = DbSpillJournal.open(tempDir.resolve("test.journal"), 1024 * 1024);
+        assertThat(journal.isEmpty()).isTrue();
+        assertThat(journal.appendIfNotEmpty(report("v0", 0))).isFalse();
+
+        assertThat(journal.append(List.of(report("v1", 1000), report("v2", 2000)))).isTrue();
+        assertThat(journal.appendIfNotEmpty(report("v3", 3000))).isTrue();
+        assertThat(journal.size()).isEqualTo(3);
+
+        // Not committed so reading again returns the same objects
+        assertThat(journal.read(2)).extracting("vehicleId").containsExactly("v1", "v2");
+        assertThat(journal.read(2)).extracting("vehicleId").containsExactly("v1", "v2");
+        journal.commit();
+        assertThat(journal.size()).isEqualTo(1);
+
+        assertThat(journal.read(2)).extracting("vehicleId").containsExactly("v3");
+        journal.commit();
+        assertThat(journal.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void survivesReopen() throws IOException {
+        Path file = tempDir.resolve("reopen.journal");
+        DbSpillJournal journal = DbSpillJournal.open(file, 1024 * 1024);
+        journal.append(List.of(report("v1", 1000), report("v2", 2000)));
+        journal.read(1);
+        journal.commit();
+        journal.force();
+
+        DbSpillJournal reopened = DbSpillJournal.open(file, 1024 * 1024);
+        assertThat(reopened.size()).isEqualTo(1);
+        List<Object> objects = reopened.read(10);
+        assertThat(objects).hasSize(1);
+        AvlReport avlReport = (AvlReport) objects.get(0);
+        assertThat(avlReport.getVehicleId()).isEqualTo("v2");
+        assertThat(avlReport.getTime()).isEqualTo(2000);
+    }
+
+    @Test
+    public void compactsWhenFull() throws IOException {
+        DbSpillJournal journal = DbSpillJournal.open(tempDir.resolve("full.journal"), 4 * 1024);
+
+        int appended = 0;
+        while (journal.append(List.of(report("v" + appended, appended)))) ++appended;
+        assertThat(appended).isGreaterThan(2);
+
+        // Once some have been committed there is room again
+        journal.read(2);
+        journal.commit();
+        assertThat(journal.append(List.of(report("new", 0)))).isTrue();
+        assertThat(journal.size()).isEqualTo(appended - 1);
+        assertThat(journal.read(1)).extracting("vehicleId").containsExactly("v2");
+    }
+
+    @Test
+    public void commitsOnlyObjectsWritten() throws IOException {
+        DbSpillJournal journal = DbSpillJournal.open(tempDir.resolve("partial.journal"), 1024 * 1024);
+        journal.append(List.of(report("v1", 1000), report("v2", 2000), report("v3", 3000), report("v4", 4000)));
+
+        assertThat(journal.read(3)).extracting("vehicleId").containsExactly("v1", "v2", "v3");
+        journal.commit(1);
+        assertThat(journal.size()).isEqualTo(3);
+        // Nothing more to commit until read again
+        journal.commit();
+        assertThat(journal.size()).isEqualTo(3);
+
+        assertThat(journal.read(3)).extracting("vehicleId").containsExactly("v2", "v3", "v4");
+        journal.commit(0);
+        assertThat(journal.read(3)).extracting("vehicleId").containsExactly("v2", "v3", "v4");
+        journal.commit(3);
+        assertThat(journal.isEmpty()).isTrue();
+        assertThat(journal.appendIfNotEmpty(report("v5", 5000))).isFalse();
+    }
+}
@@ -0,0 +1,166 @@
+package org.transitclock.domain.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Inheritance;
+import jakarta.persistence.InheritanceType;
+import jakarta.persistence.Version;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.jdbc.connections.internal.UserSuppliedConnectionProviderImpl;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Arrival;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Departure;
+
+class EntityInsertMappingTest {
+
+    @Entity
+    public static class VersionedEntity {
+        @Id
+        private String id;
+
+        @Version
+        private int version;
+    }
+
+    @Entity
+    public static class IdentityEntity {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        private long id;
+    }
+
+    @Entity
+    @Inheritance(strategy = InheritanceType.JOINED)
+    public static class JoinedBaseEntity {
+        @Id
+        private String id;
+    }
+
+    @Entity
+    public static class JoinedChildEntity extends JoinedBaseEntity {
+        private String name;
+    }
+
+    private static SessionFactoryImplementor sessionFactory;
+
+    /** Builds the session factory without a database since only the mapping is needed */
+    @BeforeAll
+    static void buildSessionFactory() {
+        Configuration config = new Configuration()
+                .setProperty(AvailableSettings.DIALECT, PostgreSQLDialect.class.getName())
+                .setProperty("hibernate.temp.use_jdbc_metadata_defaults", "false")
+                .setProperty(AvailableSettings.HBM2DDL_AUTO, "none")
+                .setProperty(AvailableSettings.CONNECTION_PROVIDER, UserSuppliedConnectionProviderImpl.class.getName())
+                .addAnnotatedClass(AvlReport.class)
+                .addAnnotatedClass(ArrivalDeparture.class)
+                .addAnnotatedClass(Arrival.class)
+                .addAnnotatedClass(Departure.class)
+                .addAnnotatedClass(VersionedEntity.class)
+                .addAnnotatedClass(IdentityEntity.class)
+                .addAnnotatedClass(JoinedBaseEntity.class)
+                .addAnnotatedClass(JoinedChildEntity.class);
+        SessionFactory factory = config.buildSessionFactory();
+        sessionFactory = factory.unwrap(SessionFactoryImplementor.class);
+    }
+
+    @AfterAll
+    static void closeSessionFactory() {
+        if (sessionFactory != null) sessionFactory.close();
+    }
+
+    /** A PreparedStatement that only records the values set for each parameter index */
+    private static PreparedStatement recordingStatement(Map<Integer, Object> values) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("set") && args != null && args[0] instanceof Integer index) {
+                        values.put(index, method.getName().equals("setNull") ? null : args[1]);
+                    }
+                    return null;
+                });
+    }
+
+    @Test
+    void columnsAndValues() throws Exception {
+        EntityInsertMapping mapping = EntityInsertMapping.create(sessionFactory, AvlReport.class);
+
+        assertThat(mapping.getTableName()).isEqualTo("avl_reports");
+        assertThat(mapping.getColumnNames()).startsWith("time", "vehicle_id").contains("lat", "lon", "speed");
+        assertThat(mapping.getBoundColumnCount()).isEqualTo(mapping.getColumnNames().size());
+        assertThat(mapping.getDiscriminatorSqlValue()).isNull();
+
+        AvlReport avlReport = new AvlReport("v1", 1_000_000L, 12.5, 43.25, 3.0f, 90.0f, "test");
+        Map<Integer, Object> values = new HashMap<>();
+        int nextIndex;
+        try (var session = sessionFactory.openSession()) {
+            nextIndex = mapping.bind(
+                    recordingStatement(values), 1, avlReport, session.unwrap(SharedSessionContractImplementor.class));
+        }
+
+        assertThat(nextIndex).isEqualTo(mapping.getBoundColumnCount() + 1);
+        assertThat(values).hasSize(mapping.getBoundColumnCount());
+        int column = 1;
+        for (String columnName : mapping.getColumnNames()) {
+            Object value = values.get(column++);
+            switch (columnName) {
+                case "vehicle_id" -> assertThat(value).isEqualTo("v1");
+                case "time" -> assertThat(((Date) value).getTime()).isEqualTo(1_000_000L);
+                case "lat" -> assertThat(value).isEqualTo(12.5);
+                case "lon" -> assertThat(value).isEqualTo(43.25);
+                case "speed" -> assertThat(value).isEqualTo(3.0f);
+                default -> {}
+            }
+        }
+    }
+
+    @Test
+    void discriminator() {
+        EntityInsertMapping arrivals = EntityInsertMapping.create(sessionFactory, Arrival.class);
+        EntityInsertMapping departures = EntityInsertMapping.create(sessionFactory, Departure.class);
+
+        assertThat(arrivals.getTableName()).isEqualTo("arrivals_departures");
+        assertThat(arrivals.getColumnNames()).endsWith("type").doesNotHaveDuplicates();
+        assertThat(arrivals.getBoundColumnCount()).isEqualTo(arrivals.getColumnNames().size() - 1);
+        assertThat(arrivals.getDiscriminatorValue()).isEqualTo("ARRIVAL");
+        assertThat(arrivals.getDiscriminatorSqlValue()).isEqualTo("'ARRIVAL'");
+        assertThat(departures.getDiscriminatorValue()).isEqualTo("DEPARTURE");
+    }
+
+    @Test
+    void unsupportedEntities() {
+        assertThatThrownBy(() -> EntityInsertMapping.create(sessionFactory, VersionedEntity.class))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> EntityInsertMapping.create(sessionFactory, IdentityEntity.class))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> EntityInsertMapping.create(sessionFactory, JoinedChildEntity.class))
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void unsupportedEntitiesFallBackToMerge() {
+        InsertDbBulkWriter writer = new InsertDbBulkWriter();
+
+        assertThat(writer.getMapping(sessionFactory, VersionedEntity.class)).isNull();
+        // Remembered so that only tries once
+        assertThat(writer.getMapping(sessionFactory, VersionedEntity.class)).isNull();
+        assertThat(writer.getMapping(sessionFactory, AvlReport.class)).isNotNull();
+    }
+}
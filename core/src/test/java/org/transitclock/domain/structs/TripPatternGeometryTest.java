@@ -0,0 +1,85 @@
+package org.transitclock.domain.structs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TripPatternGeometryTest {
+
+    private static StopPath stopPath(List<Location> locations) {
+        StopPath stopPath = new StopPath(1, "p", "s", 1, false, "r1", false, false, false, null, null, null, null);
+        stopPath.setLocations(new ArrayList<>(locations));
+        // Creates the segment vectors, as when read from the db
+        stopPath.onLoad(null, (Object) null);
+        return stopPath;
+    }
+
+    /** Stop paths with segments in all directions, plus a zero length one */
+    private static List<StopPath> stopPaths(Random random, double baseLat, double baseLon) {
+        List<StopPath> stopPaths = new ArrayList<>();
+        Location previous = new Location(baseLat, baseLon);
+        for (int i = 0; i < 20; ++i) {
+            List<Location> locations = new ArrayList<>();
+            locations.add(previous);
+            int numberSegments = 1 + random.nextInt(4);
+            for (int j = 0; j < numberSegments; ++j) {
+                previous = new Location(
+                        previous.getLat() + (random.nextDouble() - 0.5) * 0.004,
+                        previous.getLon() + (random.nextDouble() - 0.5) * 0.004);
+                locations.add(previous);
+            }
+            if (i == 7) locations.add(previous);
+            stopPaths.add(stopPath(locations));
+        }
+        return stopPaths;
+    }
+
+    @Test
+    public void sameAsVectors() {
+        Random random = new Random(17);
+        for (double[] base : new double[][] {{52.23, 21.01}, {-33.87, 151.21}, {0.01, -0.01}, {64.14, -21.94}}) {
+            List<StopPath> stopPaths = stopPaths(random, base[0], base[1]);
+            TripPatternGeometry geometry = new TripPatternGeometry(stopPaths);
+
+            int segment = 0;
+            for (int stopPathIndex = 0; stopPathIndex < stopPaths.size(); ++stopPathIndex) {
+                List<VectorWithHeading> vectors = stopPaths.get(stopPathIndex).getSegmentVectors();
+                for (int segmentIndex = 0; segmentIndex < vectors.size(); ++segmentIndex) {
+                    VectorWithHeading vector = vectors.get(segmentIndex);
+                    assertThat(geometry.getSegmentOffset(stopPathIndex, segmentIndex)).isEqualTo(segment);
+                    assertThat(geometry.getLength(segment)).isEqualTo(vector.length());
+                    assertThat(geometry.getHeading(segment)).isEqualTo(vector.getHeading());
+
+                    // Locations near the segment, including beyond its ends
+                    for (int i = 0; i < 50; ++i) {
+                        Location loc = new Location(
+                                vector.getL1().getLat() + (random.nextDouble() - 0.25) * 0.006,
+                                vector.getL1().getLon() + (random.nextDouble() - 0.25) * 0.006);
+                        double latRadians = Math.toRadians(loc.getLat());
+                        double lonRadians = Math.toRadians(loc.getLon());
+                        assertThat(geometry.distance(segment, latRadians, lonRadians))
+                                .as("distance to segment %d from %s", segment, loc)
+                                .isEqualTo(vector.distance(loc));
+                        assertThat(geometry.matchDistanceAlongSegment(segment, latRadians, lonRadians))
+                                .as("distance along segment %d for %s", segment, loc)
+                                .isEqualTo(vector.matchDistanceAlongVector(loc));
+                    }
+                    // The ends of the segment themselves
+                    for (Location loc : List.of(vector.getL1(), vector.getL2())) {
+                        double latRadians = Math.toRadians(loc.getLat());
+                        double lonRadians = Math.toRadians(loc.getLon());
+                        assertThat(geometry.distance(segment, latRadians, lonRadians))
+                                .isEqualTo(vector.distance(loc));
+                        assertThat(geometry.matchDistanceAlongSegment(segment, latRadians, lonRadians))
+                                .isEqualTo(vector.matchDistanceAlongVector(loc));
+                    }
+                    ++segment;
+                }
+            }
+            assertThat(geometry.getNumberSegments()).isEqualTo(segment);
+        }
+    }
+}
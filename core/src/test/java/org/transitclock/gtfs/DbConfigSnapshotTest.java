@@ -0,0 +1,138 @@
+package org.transitclock.gtfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.collection.spi.PersistentBag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.domain.structs.Block;
+
+class DbConfigSnapshotTest {
+
+    private static final int CONFIG_REV = 7;
+    private static final int TRAVEL_TIMES_REV = 3;
+
+    // Offsets in the header
+    private static final int CLASSES_HASH_OFFSET = 8;
+
+    @TempDir
+    Path directory;
+
+    private static DbConfigSnapshot snapshot(Block... blocks) {
+        return new DbConfigSnapshot(
+                List.of(blocks),
+                Map.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of());
+    }
+
+    private static Block block(String blockId) {
+        return new Block(CONFIG_REV, blockId, "weekday", 0, 3600, new ArrayList<>());
+    }
+
+    private Path writeSnapshot() {
+        Path file = DbConfigSnapshot.file(directory.toString(), "agency");
+        snapshot(block("b1"), block("b2")).write(file, CONFIG_REV, TRAVEL_TIMES_REV);
+        return file;
+    }
+
+    @Test
+    public void roundTrip() {
+        Path file = writeSnapshot();
+
+        DbConfigSnapshot read = DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV);
+
+        assertThat(read).isNotNull();
+        assertThat(read.blocks).extracting(Block::getId).containsExactly("b1", "b2");
+        assertThat(read.trips).isEmpty();
+        assertThat(file.resolveSibling(file.getFileName() + ".tmp")).doesNotExist();
+    }
+
+    @Test
+    public void differentRevsIgnored() {
+        Path file = writeSnapshot();
+
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV + 1, TRAVEL_TIMES_REV)).isNull();
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV + 1)).isNull();
+    }
+
+    @Test
+    public void differentClassesHashIgnored() throws Exception {
+        Path file = writeSnapshot();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(CLASSES_HASH_OFFSET);
+            raf.writeLong(DbConfigSnapshot.CLASSES_HASH + 1);
+        }
+
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV)).isNull();
+    }
+
+    @Test
+    public void differentMagicNumberIgnored() throws Exception {
+        Path file = writeSnapshot();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.writeInt(0);
+        }
+
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV)).isNull();
+    }
+
+    @Test
+    public void truncatedFileIgnored() throws Exception {
+        Path file = writeSnapshot();
+        long size = Files.size(file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size - 10);
+        }
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV)).isNull();
+
+        // Not even the whole header
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(CLASSES_HASH_OFFSET + 2);
+        }
+        assertThat(DbConfigSnapshot.read(file, CONFIG_REV, TRAVEL_TIMES_REV)).isNull();
+    }
+
+    @Test
+    public void missingFileIgnored() {
+        assertThat(DbConfigSnapshot.read(directory.resolve("none.snapshot"), CONFIG_REV, TRAVEL_TIMES_REV))
+                .isNull();
+    }
+
+    @Test
+    public void notWrittenIfNotInitialized() throws Exception {
+        // A lazy loaded collection that hasn't been read in yet
+        Block block = block("b1");
+        Field trips = Block.class.getDeclaredField("trips");
+        trips.setAccessible(true);
+        trips.set(block, new PersistentBag<>());
+        DbConfigSnapshot snapshot = snapshot(block("b0"), block);
+
+        assertThat(DbConfigSnapshot.findUninitialized(snapshot)).isEqualTo("Block.trips");
+
+        Path file = DbConfigSnapshot.file(directory.toString(), "agency");
+        snapshot.write(file, CONFIG_REV, TRAVEL_TIMES_REV);
+        assertThat(file).doesNotExist();
+    }
+
+    @Test
+    public void initializedGraphFound() {
+        assertThat(DbConfigSnapshot.findUninitialized(snapshot(block("b1")))).isNull();
+    }
+}
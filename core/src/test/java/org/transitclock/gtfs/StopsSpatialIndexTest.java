@@ -0,0 +1,101 @@
+package org.transitclock.gtfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+
+class StopsSpatialIndexTest {
+
+    private static StopPath stopPath(int stopSeq, Location stopLocation) {
+        StopPath stopPath = new StopPath(
+                1, "p" + stopSeq, "s" + stopSeq, stopSeq, false, "r1", false, false, false, null, null, null, null);
+        ArrayList<Location> locations = new ArrayList<>();
+        locations.add(stopLocation);
+        stopPath.setLocations(locations);
+        return stopPath;
+    }
+
+    private static TripPattern tripPattern(Location... stopLocations) {
+        // Not named stopPaths since that would be the field of TripPattern
+        List<StopPath> paths = new ArrayList<>();
+        for (int i = 0; i < stopLocations.length; ++i) paths.add(stopPath(i + 1, stopLocations[i]));
+        return new TripPattern() {
+            @Override
+            public List<StopPath> getStopPaths() {
+                return paths;
+            }
+        };
+    }
+
+    /** What the index should return, by looking at every stop */
+    private static Set<TripPattern> tripPatternsNear(List<TripPattern> tripPatterns, Location loc, double maxDistance) {
+        Set<TripPattern> near = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (TripPattern tripPattern : tripPatterns) {
+            List<StopPath> stopPaths = tripPattern.getStopPaths();
+            for (int i = 0; i < stopPaths.size() - 1; ++i) {
+                if (stopPaths.get(i).getStopLocation().distance(loc) <= maxDistance) near.add(tripPattern);
+            }
+        }
+        return near;
+    }
+
+    @Test
+    public void lastStopNotIncluded() {
+        Location first = new Location(52.0, 21.0);
+        Location last = new Location(52.05, 21.05);
+        TripPattern tripPattern = tripPattern(first, last);
+        StopsSpatialIndex index = new StopsSpatialIndex(List.of(tripPattern));
+
+        assertThat(index.getTripPatternsNear(first, 10.0)).containsExactly(tripPattern);
+        assertThat(index.getTripPatternsNear(last, 10.0)).isEmpty();
+        assertThat(index.getNumberOfCells()).isEqualTo(1);
+    }
+
+    @Test
+    public void stopsInNeighbouringCellsFound() {
+        // Either side of a cell boundary
+        TripPattern north = tripPattern(new Location(52.0001, 21.0), new Location(53.0, 21.0));
+        TripPattern south = tripPattern(new Location(51.9999, 21.0), new Location(53.0, 21.0));
+        StopsSpatialIndex index = new StopsSpatialIndex(List.of(north, south));
+
+        assertThat(index.getTripPatternsNear(new Location(52.0001, 21.0), 30.0))
+                .containsExactlyInAnyOrder(north, south);
+        assertThat(index.getTripPatternsNear(new Location(52.0001, 21.0), 5.0)).containsExactly(north);
+    }
+
+    @Test
+    public void sameAsLookingAtEveryStop() {
+        Random random = new Random(42);
+        // A city near the equator and one far north where cells are narrow
+        for (double baseLat : new double[] {1.3, 64.1}) {
+            List<TripPattern> tripPatterns = new ArrayList<>();
+            for (int i = 0; i < 50; ++i) {
+                Location[] stops = new Location[10];
+                for (int j = 0; j < stops.length; ++j) {
+                    stops[j] = new Location(baseLat + random.nextDouble() * 0.1, 21.0 + random.nextDouble() * 0.1);
+                }
+                tripPatterns.add(tripPattern(stops));
+            }
+            StopsSpatialIndex index = new StopsSpatialIndex(tripPatterns);
+
+            for (int i = 0; i < 200; ++i) {
+                Location loc = new Location(baseLat + random.nextDouble() * 0.1, 21.0 + random.nextDouble() * 0.1);
+                for (double maxDistance : new double[] {50.0, 300.0, 1500.0, 5000.0}) {
+                    Set<TripPattern> expected = tripPatternsNear(tripPatterns, loc, maxDistance);
+                    Set<TripPattern> actual = index.getTripPatternsNear(loc, maxDistance);
+                    assertThat(actual).hasSameSizeAs(expected);
+                    assertThat(expected).containsAll(actual);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.transitclock.utils;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ZoneOffsetTableTest {
+    private static final String[] ZONES = {"America/Los_Angeles", "Europe/Bucharest", "Australia/Lord_Howe", "UTC"};
+
+    @Test
+    void testSecondsIntoDayMatchesCalendar() {
+        for (String zone : ZONES) {
+            ZoneOffsetTable table = new ZoneOffsetTable(ZoneId.of(zone));
+            Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(zone));
+            long start = Instant.parse("2023-01-01T00:00:00Z").toEpochMilli();
+            for (long epochTime = start; epochTime < start + 400 * Time.MS_PER_DAY; epochTime += 7 * Time.MS_PER_MIN + 13) {
+                calendar.setTimeInMillis(epochTime);
+                int expected = calendar.get(Calendar.HOUR_OF_DAY) * Time.SEC_PER_HOUR
+                        + calendar.get(Calendar.MINUTE) * Time.SEC_PER_MIN
+                        + calendar.get(Calendar.SECOND);
+                assertEquals(expected, table.getSecondsIntoDay(epochTime), zone + " " + epochTime);
+            }
+        }
+    }
+
+    @Test
+    void testStartOfDayMatchesZonedDateTime() {
+        for (String zone : ZONES) {
+            ZoneId zoneId = ZoneId.of(zone);
+            ZoneOffsetTable table = new ZoneOffsetTable(zoneId);
+            for (LocalDate date = LocalDate.of(2023, 1, 1); date.getYear() < 2025; date = date.plusDays(1)) {
+                long expected = date.atStartOfDay(zoneId).toInstant().toEpochMilli();
+                long noon = date.atTime(12, 0).atZone(zoneId).toInstant().toEpochMilli();
+                assertEquals(expected, table.getStartOfDay(noon), zone + " " + date);
+                assertEquals(expected, table.getStartOfDay(expected), zone + " " + date);
+            }
+        }
+    }
+
+    @Test
+    void testEpochTimeAroundDstAndMidnight() {
+        ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+        ZoneOffsetTable table = new ZoneOffsetTable(zoneId);
+
+        // Day that clocks are set forward
+        long reference = ZonedDateTime.of(2024, 3, 10, 12, 0, 0, 0, zoneId).toInstant().toEpochMilli();
+        assertEquals(ZonedDateTime.of(2024, 3, 10, 8, 0, 0, 0, zoneId).toInstant().toEpochMilli(),
+                table.getEpochTime(8 * Time.SEC_PER_HOUR, reference));
+
+        // Just before midnight and a trip time just after midnight
+        reference = ZonedDateTime.of(2024, 11, 2, 23, 57, 13, 0, zoneId).toInstant().toEpochMilli();
+        assertEquals(ZonedDateTime.of(2024, 11, 3, 0, 5, 0, 0, zoneId).toInstant().toEpochMilli(),
+                table.getEpochTime(5 * Time.SEC_PER_MIN, reference));
+        assertEquals(ZonedDateTime.of(2024, 11, 3, 0, 5, 0, 0, zoneId).toInstant().toEpochMilli(),
+                table.getEpochTime(Time.SEC_PER_DAY + 5 * Time.SEC_PER_MIN, reference));
+
+        // Nonexistent local time is moved forward by the length of the gap
+        long local = LocalDate.of(2024, 3, 10).toEpochDay() * Time.MS_PER_DAY + (2 * Time.SEC_PER_HOUR + 30 * Time.SEC_PER_MIN) * 1000L;
+        assertEquals(ZonedDateTime.of(2024, 3, 10, 3, 30, 0, 0, zoneId).toInstant().toEpochMilli(),
+                table.getEpochTimeForLocalTime(local));
+    }
+}